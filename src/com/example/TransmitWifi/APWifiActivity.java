@@ -37,7 +37,10 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
     private AccessPointManager mWifiApManager;
     private AccessPointListAdapter mAccessPointAdapter;
     private ProgressDialog mProgressDialog;
-    private AccessPointItem mSelectedItem;
+    /**
+     * files shared by the access point, the first one names it
+     */
+    private final ShareSet mShareSet = new ShareSet();
     private SimpleWebServer mHttpServer;
 
     private void stopHTTPServer() {
@@ -58,6 +61,7 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
         File wwwRoot = new File(rootPath).getAbsoluteFile();
         mHttpServer  = new SimpleWebServer(NetWorkUtils.getLocalInetAddress(), port, wwwRoot);
         try {
+            mHttpServer.setShareSet(mShareSet);
             mHttpServer.start();
         } catch (IOException ioe) {
             ioe.printStackTrace();
@@ -91,15 +95,34 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
     }
 
     private boolean isAnyAccessPointWorking() {
-        return mSelectedItem != null;
+        return !mShareSet.isEmpty();
     }
 
     private boolean isSharingItem(AccessPointItem item) {
-        return item == mSelectedItem;
+        return mShareSet.contains(item);
+    }
+
+    /**
+     * 热点已建立时加入或移除共享的文件, 不用重建热点; 最后一个文件移除后关闭热点
+     * @param item file to add or remove
+     */
+    private void toggleSharedItem(AccessPointItem item) {
+        if (isSharingItem(item)) {
+            mShareSet.remove(item);
+            if (mShareSet.isEmpty()) {
+                closeAccessPoint();
+            }
+        } else {
+            mShareSet.add(item);
+        }
+        if (!mShareSet.isEmpty()) {
+            mAccessPointInfoTextView.setText("sharing " + mShareSet.size() + " files:" + mWifiApManager.getWifiApSSID());
+        }
+        mAccessPointAdapter.notifyDataSetChanged();
     }
 
     private void createAccessPoint(AccessPointItem item) {
-        mSelectedItem = item;
+        mShareSet.add(item);
         showProgressDialog("Waiting", "Creating an access point Now");
         mWifiApManager.createWifiApSSID(item.getWifiSuffix());
         if (mWifiApManager.startWifiAp()) {
@@ -117,7 +140,7 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
             if (!isAnyAccessPointWorking()) {
                 createAccessPoint(selectedItem);
             } else {
-                closeAccessPoint();
+                toggleSharedItem(selectedItem);
             }
         }
     };
@@ -155,9 +178,10 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
             @Override
             public void run() {
                 if (isAnyAccessPointWorking()) {
-                    String wwwDir = mSelectedItem.getWWWRootPath();
-                    mSelectedItem.createMetaFile(wwwDir);
-                    startHTTPServer(wwwDir, NetWorkUtils.HTTP_LISTERN_PORT);
+                    // metaFile.html of clients without share set support is made from the set by the server,
+                    // it follows the first file when that is removed
+                    AccessPointItem firstItem = (AccessPointItem) mShareSet.first();
+                    startHTTPServer(firstItem.getWWWRootPath(), NetWorkUtils.HTTP_LISTERN_PORT);
                 }
             }
         }, START_SERVER_DELAY_TIME_MS);
@@ -166,13 +190,13 @@ public class APWifiActivity extends Activity implements AccessPointManager.OnWif
     private void onBuildWifiApFailed() {
         updateAccessPointList();
         dismissProgressDialog();
-        mSelectedItem = null;
+        mShareSet.clear();
     }
 
     private void onWifiClosed() {
         updateAccessPointList();
         dismissProgressDialog();
-        mSelectedItem = null;
+        mShareSet.clear();
     }
 
     private Handler mHandler = new Handler();
@@ -0,0 +1,526 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * 边发送边生成的ZIP或TAR归档, 不生成临时文件.
+ * ZIP只用存储方式(媒体文件已压缩), 长度事先可算出, 回复带Content-Length. 每个文件先读一遍计算CRC写入本地头,
+ * 数据再用transferTo零拷贝发送, 第二遍通常来自页缓存; 非阻塞通道上CRC分段计算, 不长时间占用事件循环.
+ * TAR不需要CRC, 文件数据直接零拷贝发送. 超过4GB或65535项时使用ZIP64, 长文件名用PAX扩展头
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ArchiveBody extends ResponseBody {
+    private static final String TAG = "ArchiveBody";
+
+    /**
+     * 归档格式
+     */
+    enum Format {
+        ZIP("application/zip", ".zip"),
+        TAR("application/x-tar", ".tar");
+
+        final String mMimeType;
+        final String mExtension;
+
+        Format(String mimeType, String extension) {
+            mMimeType = mimeType;
+            mExtension = extension;
+        }
+    }
+
+    /**
+     * bytes checksummed per writeTo() on a non-blocking channel before returning to the event loop
+     */
+    private static final int CRC_SLICE = 1024 * 1024;
+    private static final int BUFSIZE = 64 * 1024;
+    /**
+     * central directory records are written in batches of about this size
+     */
+    private static final int CENTRAL_BATCH = 16 * 1024;
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+    private static final int ZIP32_MAX_ENTRIES = 0xFFFF;
+    private static final long TAR_MAX_SIZE = 077777777777L;
+    private static final int TAR_BLOCK = 512;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int STAGE_HEADER = 0;
+    private static final int STAGE_DATA = 1;
+    private static final int STAGE_CENTRAL = 2;
+    private static final int STAGE_END = 3;
+    private static final int STAGE_DONE = 4;
+
+    /**
+     * 归档中的一项
+     */
+    static final class Entry {
+        final File mFile;
+        final byte[] mName;
+        final boolean mDirectory;
+        final long mSize;
+        final long mTime;
+        /**
+         * PAX extended header records of a TAR entry, null if the ustar header is enough
+         */
+        byte[] mPax;
+        long mOffset;
+        long mCrc;
+
+        Entry(File file, String name, boolean directory, long size, long time) {
+            mFile = file;
+            mName = name.getBytes(UTF8);
+            mDirectory = directory;
+            mSize = size;
+            mTime = time;
+        }
+
+        boolean isZip64() {
+            return mSize >= ZIP32_MAX;
+        }
+    }
+
+    private final Format mFormat;
+    private final List<Entry> mEntries;
+    private final long mLength;
+    private long mCentralOffset;
+    private long mCentralSize;
+    private final Calendar mCalendar = Calendar.getInstance();
+
+    private int mStage = STAGE_HEADER;
+    private int mIndex = 0;
+    private ByteBuffer mOut;
+    private FileInputStream mStream;
+    private FileChannel mChannel;
+    private long mPosition;
+    private long mRemaining;
+    private final CRC32 mCrc = new CRC32();
+    private long mCrcPosition = 0;
+    private ByteBuffer mCrcBuffer;
+
+    /**
+     * 构造函数
+     * @param format archive format
+     * @param entries entries in archive order, see add()
+     */
+    ArchiveBody(Format format, List<Entry> entries) {
+        mFormat = format;
+        mEntries = entries;
+        mLength = format == Format.ZIP ? layoutZip() : layoutTar();
+    }
+
+    /**
+     * 把文件或目录加入归档, 目录按名称顺序递归加入, 不跟随指向目录的符号链接.
+     * 长度在回复头中已发出, 发送中途无法跳过文件, 所以不可读的文件在这里就略过
+     * @param entries entries of the archive
+     * @param file file or directory to add
+     * @param name path in the archive, '/' separated
+     * @param maxEntries limit of the count of entries
+     * @throws HTTPServerDaemon.ResponseException if there are more than maxEntries entries
+     */
+    static void add(List<Entry> entries, File file, String name, int maxEntries)
+            throws HTTPServerDaemon.ResponseException {
+        if (entries.size() >= maxEntries) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.FORBIDDEN,
+                    "FORBIDDEN: More than " + maxEntries + " files in one archive.");
+        }
+        if (!file.canRead()) {
+            ServerLog.w(TAG, "skip unreadable {}", file);
+            return;
+        }
+        if (!file.isDirectory()) {
+            entries.add(new Entry(file, name, false, file.length(), file.lastModified()));
+            return;
+        }
+        entries.add(new Entry(file, name + "/", true, 0, file.lastModified()));
+        if (Utils.isSymbolicLink(file)) {
+            return;
+        }
+        String[] children = file.list();
+        if (children == null) {
+            return;
+        }
+        Arrays.sort(children);
+        for (String child : children) {
+            add(entries, new File(file, child), name + "/" + child, maxEntries);
+        }
+    }
+
+    private long layoutZip() {
+        long offset = 0;
+        long central = 0;
+        for (Entry entry : mEntries) {
+            entry.mOffset = offset;
+            offset += 30 + entry.mName.length + (entry.isZip64() ? 20 : 0) + entry.mSize;
+            central += 46 + entry.mName.length + centralExtraLength(entry);
+        }
+        mCentralOffset = offset;
+        mCentralSize = central;
+        return offset + central + (needsZip64End() ? 56 + 20 : 0) + 22;
+    }
+
+    private boolean needsZip64End() {
+        return mEntries.size() >= ZIP32_MAX_ENTRIES || mCentralOffset >= ZIP32_MAX || mCentralSize >= ZIP32_MAX;
+    }
+
+    private static int centralExtraLength(Entry entry) {
+        int fields = (entry.isZip64() ? 2 : 0) + (entry.mOffset >= ZIP32_MAX ? 1 : 0);
+        return fields > 0 ? 4 + 8 * fields : 0;
+    }
+
+    private long layoutTar() {
+        long length = 0;
+        for (Entry entry : mEntries) {
+            boolean ascii = true;
+            for (byte b : entry.mName) {
+                ascii &= b > 0;
+            }
+            StringBuilder pax = new StringBuilder();
+            if (entry.mName.length > 100 || !ascii) {
+                paxRecord(pax, "path", new String(entry.mName, UTF8));
+            }
+            if (entry.mSize > TAR_MAX_SIZE) {
+                paxRecord(pax, "size", String.valueOf(entry.mSize));
+            }
+            if (pax.length() > 0) {
+                entry.mPax = pax.toString().getBytes(UTF8);
+                length += TAR_BLOCK + blocks(entry.mPax.length);
+            }
+            length += TAR_BLOCK + blocks(entry.mSize);
+        }
+        // two zero blocks end the archive
+        return length + 2 * TAR_BLOCK;
+    }
+
+    /**
+     * PAX记录"length key=value\n", length包括自身的位数
+     */
+    private static void paxRecord(StringBuilder pax, String key, String value) {
+        int length = (" " + key + "=" + value + "\n").getBytes(UTF8).length;
+        int total = length + String.valueOf(length).length();
+        if (String.valueOf(total).length() != String.valueOf(length).length()) {
+            total++;
+        }
+        pax.append(total).append(' ').append(key).append('=').append(value).append('\n');
+    }
+
+    private static long blocks(long size) {
+        return (size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK;
+    }
+
+    @Override
+    long length() {
+        return mLength;
+    }
+
+    @Override
+    boolean writeTo(WritableByteChannel channel) throws IOException {
+        boolean blocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+        while (true) {
+            if (mOut != null) {
+                write(channel, mOut);
+                if (mOut.hasRemaining()) {
+                    return false;
+                }
+                mOut = null;
+            }
+            switch (mStage) {
+                case STAGE_HEADER:
+                    if (mIndex == mEntries.size()) {
+                        mStage = mFormat == Format.ZIP ? STAGE_CENTRAL : STAGE_END;
+                        mIndex = 0;
+                        break;
+                    }
+                    Entry entry = mEntries.get(mIndex);
+                    if (mFormat == Format.ZIP) {
+                        if (!entry.mDirectory && !checksum(entry, blocking)) {
+                            // give the event loop a turn, the socket is still writable
+                            return false;
+                        }
+                        mOut = localHeader(entry);
+                    } else {
+                        mOut = tarHeader(entry);
+                    }
+                    mPosition = 0;
+                    mRemaining = entry.mDirectory ? 0 : entry.mSize;
+                    mStage = STAGE_DATA;
+                    break;
+                case STAGE_DATA:
+                    entry = mEntries.get(mIndex);
+                    if (mRemaining > 0) {
+                        open(entry);
+                        long sent = transfer(mChannel, mPosition, mRemaining, channel);
+                        if (sent <= 0) {
+                            if (mPosition >= mChannel.size()) {
+                                throw new IOException("file truncated while sending: " + entry.mFile);
+                            }
+                            return false;
+                        }
+                        mPosition += sent;
+                        mRemaining -= sent;
+                        break;
+                    }
+                    closeFile();
+                    if (mFormat == Format.TAR && entry.mSize % TAR_BLOCK != 0) {
+                        mOut = ByteBuffer.allocate((int) (TAR_BLOCK - entry.mSize % TAR_BLOCK));
+                    }
+                    mIndex++;
+                    mStage = STAGE_HEADER;
+                    break;
+                case STAGE_CENTRAL:
+                    if (mIndex == mEntries.size()) {
+                        mStage = STAGE_END;
+                        break;
+                    }
+                    mOut = centralRecords();
+                    break;
+                case STAGE_END:
+                    mOut = mFormat == Format.ZIP ? zipEnd() : ByteBuffer.allocate(2 * TAR_BLOCK);
+                    mStage = STAGE_DONE;
+                    break;
+                default:
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * 计算文件的CRC, 非阻塞通道上每次最多计算CRC_SLICE字节
+     * @return true when the crc of the entry is known
+     */
+    private boolean checksum(Entry entry, boolean blocking) throws IOException {
+        open(entry);
+        if (mCrcBuffer == null) {
+            mCrcBuffer = ByteBuffer.allocate(BUFSIZE);
+        }
+        long slice = 0;
+        while (mCrcPosition < entry.mSize) {
+            if (!blocking && slice >= CRC_SLICE) {
+                return false;
+            }
+            mCrcBuffer.clear();
+            mCrcBuffer.limit((int) Math.min(BUFSIZE, entry.mSize - mCrcPosition));
+            int read = mChannel.read(mCrcBuffer, mCrcPosition);
+            if (read <= 0) {
+                throw new IOException("file truncated while sending: " + entry.mFile);
+            }
+            mCrc.update(mCrcBuffer.array(), 0, read);
+            mCrcPosition += read;
+            slice += read;
+            addPrepared(read);
+        }
+        entry.mCrc = mCrc.getValue();
+        mCrc.reset();
+        mCrcPosition = 0;
+        return true;
+    }
+
+    private void open(Entry entry) throws IOException {
+        if (mChannel == null) {
+            mStream = new FileInputStream(entry.mFile);
+            mChannel = mStream.getChannel();
+        }
+    }
+
+    private void closeFile() {
+        if (mChannel != null) {
+            NetWorkUtils.safeClose(mChannel);
+            NetWorkUtils.safeClose(mStream);
+            mChannel = null;
+            mStream = null;
+        }
+    }
+
+    private ByteBuffer localHeader(Entry entry) {
+        boolean zip64 = entry.isZip64();
+        ByteBuffer b = ByteBuffer.allocate(30 + entry.mName.length + (zip64 ? 20 : 0)).order(ByteOrder.LITTLE_ENDIAN);
+        b.putInt(0x04034b50);
+        b.putShort((short) (zip64 ? 45 : 20));
+        // bit 11: names are UTF-8
+        b.putShort((short) 0x0800);
+        // method 0: stored
+        b.putShort((short) 0);
+        b.putInt(dosTime(entry.mTime));
+        b.putInt((int) entry.mCrc);
+        b.putInt((int) (zip64 ? ZIP32_MAX : entry.mSize));
+        b.putInt((int) (zip64 ? ZIP32_MAX : entry.mSize));
+        b.putShort((short) entry.mName.length);
+        b.putShort((short) (zip64 ? 20 : 0));
+        b.put(entry.mName);
+        if (zip64) {
+            b.putShort((short) 0x0001);
+            b.putShort((short) 16);
+            b.putLong(entry.mSize);
+            b.putLong(entry.mSize);
+        }
+        b.flip();
+        return b;
+    }
+
+    /**
+     * 中央目录, 每次生成约CENTRAL_BATCH字节的记录
+     */
+    private ByteBuffer centralRecords() {
+        int size = 0;
+        int end = mIndex;
+        while (end < mEntries.size() && size < CENTRAL_BATCH) {
+            Entry entry = mEntries.get(end++);
+            size += 46 + entry.mName.length + centralExtraLength(entry);
+        }
+        ByteBuffer b = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (; mIndex < end; mIndex++) {
+            Entry entry = mEntries.get(mIndex);
+            boolean zip64 = entry.isZip64();
+            boolean farOffset = entry.mOffset >= ZIP32_MAX;
+            int version = zip64 || farOffset ? 45 : 20;
+            b.putInt(0x02014b50);
+            // made by: unix, otherwise unzip translates the names from an MS-DOS code page
+            b.putShort((short) (0x0300 | version));
+            b.putShort((short) version);
+            b.putShort((short) 0x0800);
+            b.putShort((short) 0);
+            b.putInt(dosTime(entry.mTime));
+            b.putInt((int) entry.mCrc);
+            b.putInt((int) (zip64 ? ZIP32_MAX : entry.mSize));
+            b.putInt((int) (zip64 ? ZIP32_MAX : entry.mSize));
+            b.putShort((short) entry.mName.length);
+            b.putShort((short) centralExtraLength(entry));
+            // comment length, disk number, internal attributes
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            b.putShort((short) 0);
+            // external attributes: unix mode in the high word, MS-DOS directory flag in the low byte
+            b.putInt(entry.mDirectory ? (040755 << 16) | 0x10 : 0100644 << 16);
+            b.putInt((int) (farOffset ? ZIP32_MAX : entry.mOffset));
+            b.put(entry.mName);
+            if (zip64 || farOffset) {
+                b.putShort((short) 0x0001);
+                b.putShort((short) (centralExtraLength(entry) - 4));
+                if (zip64) {
+                    b.putLong(entry.mSize);
+                    b.putLong(entry.mSize);
+                }
+                if (farOffset) {
+                    b.putLong(entry.mOffset);
+                }
+            }
+        }
+        b.flip();
+        return b;
+    }
+
+    private ByteBuffer zipEnd() {
+        boolean zip64 = needsZip64End();
+        ByteBuffer b = ByteBuffer.allocate((zip64 ? 56 + 20 : 0) + 22).order(ByteOrder.LITTLE_ENDIAN);
+        int count = mEntries.size();
+        if (zip64) {
+            long recordOffset = mCentralOffset + mCentralSize;
+            b.putInt(0x06064b50);
+            b.putLong(44);
+            b.putShort((short) 45);
+            b.putShort((short) 45);
+            b.putInt(0);
+            b.putInt(0);
+            b.putLong(count);
+            b.putLong(count);
+            b.putLong(mCentralSize);
+            b.putLong(mCentralOffset);
+            // zip64 end of central directory locator
+            b.putInt(0x07064b50);
+            b.putInt(0);
+            b.putLong(recordOffset);
+            b.putInt(1);
+        }
+        b.putInt(0x06054b50);
+        b.putShort((short) 0);
+        b.putShort((short) 0);
+        b.putShort((short) Math.min(count, ZIP32_MAX_ENTRIES));
+        b.putShort((short) Math.min(count, ZIP32_MAX_ENTRIES));
+        b.putInt((int) Math.min(mCentralSize, ZIP32_MAX));
+        b.putInt((int) Math.min(mCentralOffset, ZIP32_MAX));
+        b.putShort((short) 0);
+        b.flip();
+        return b;
+    }
+
+    /**
+     * MS-DOS格式的修改时间, 低16位是时间, 高16位是日期, 1980年以前的取1980-01-01
+     */
+    private int dosTime(long millis) {
+        mCalendar.setTimeInMillis(millis);
+        int year = mCalendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        int date = ((year - 1980) << 9) | ((mCalendar.get(Calendar.MONTH) + 1) << 5)
+                | mCalendar.get(Calendar.DAY_OF_MONTH);
+        int time = (mCalendar.get(Calendar.HOUR_OF_DAY) << 11) | (mCalendar.get(Calendar.MINUTE) << 5)
+                | (mCalendar.get(Calendar.SECOND) >> 1);
+        return (date << 16) | time;
+    }
+
+    private ByteBuffer tarHeader(Entry entry) {
+        int paxLength = entry.mPax != null ? TAR_BLOCK + (int) blocks(entry.mPax.length) : 0;
+        byte[] out = new byte[paxLength + TAR_BLOCK];
+        if (entry.mPax != null) {
+            ustar(out, 0, "PaxHeader".getBytes(UTF8), entry.mPax.length, entry.mTime, 'x', false);
+            System.arraycopy(entry.mPax, 0, out, TAR_BLOCK, entry.mPax.length);
+        }
+        byte[] name = entry.mName;
+        if (name.length > 100) {
+            // the PAX path record holds the full name
+            name = new byte[100];
+            System.arraycopy(entry.mName, entry.mName.length - 100, name, 0, 100);
+        }
+        ustar(out, paxLength, name, entry.mDirectory ? 0 : Math.min(entry.mSize, TAR_MAX_SIZE), entry.mTime,
+                entry.mDirectory ? '5' : '0', entry.mDirectory);
+        return ByteBuffer.wrap(out);
+    }
+
+    private static void ustar(byte[] out, int offset, byte[] name, long size, long time, char type,
+                              boolean directory) {
+        System.arraycopy(name, 0, out, offset, Math.min(name.length, 100));
+        octal(out, offset + 100, 8, directory ? 0755 : 0644);
+        octal(out, offset + 108, 8, 0);
+        octal(out, offset + 116, 8, 0);
+        octal(out, offset + 124, 12, size);
+        octal(out, offset + 136, 12, Math.max(0, time / 1000));
+        out[offset + 156] = (byte) type;
+        System.arraycopy("ustar\u000000".getBytes(UTF8), 0, out, offset + 257, 8);
+        // the checksum is computed with its own field filled with spaces
+        Arrays.fill(out, offset + 148, offset + 156, (byte) ' ');
+        long sum = 0;
+        for (int i = offset; i < offset + TAR_BLOCK; i++) {
+            sum += out[i] & 0xFF;
+        }
+        octal(out, offset + 148, 7, sum);
+    }
+
+    /**
+     * 写入以NUL结尾, 前面补0的八进制数
+     */
+    private static void octal(byte[] out, int offset, int length, long value) {
+        int i = offset + length - 1;
+        out[i] = 0;
+        while (--i >= offset) {
+            out[i] = (byte) ('0' + (value & 7));
+            value >>>= 3;
+        }
+    }
+
+    @Override
+    void close() {
+        closeFile();
+    }
+}
@@ -0,0 +1,332 @@
+package com.example.TransmitWifi;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 发送带宽调度: 全局和每个连接的令牌桶限速, 全局带宽按权重在活动的传输之间公平分配.
+ * 消息体按配额(quantum)发送, 令牌不足的连接按虚拟完成时间(start-time fair queueing)排队,
+ * 标记最小的先得到令牌, 快的客户端不能挤占慢的. 等待时阻塞引擎睡眠到令牌足够, nio引擎暂停该连接的写事件, 不忙等.
+ * 每次申请都按当前的限速计算, 运行中修改限速对已打开的连接同样生效.
+ * 用ReentrantLock而不是synchronized, 虚拟线程在等待令牌时不占住载体线程
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class BandwidthScheduler {
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MILLI = 1000000L;
+    private static final long MIN_QUANTUM = 4 * 1024;
+    private static final long MAX_QUANTUM = 64 * 1024;
+    /**
+     * quantum in fractions of a second of the rate, smaller is smoother, larger means fewer system calls
+     */
+    private static final int QUANTA_PER_SECOND = 50;
+
+    private final ReentrantLock mLock = new ReentrantLock();
+    /**
+     * signalled when tokens are returned or the limits change
+     */
+    private final Condition mChanged = mLock.newCondition();
+    /**
+     * no limit set, flows skip the lock
+     */
+    private volatile boolean mUnlimited;
+    private long mRate;
+    private long mFlowRate;
+    private long mQuantum;
+    private double mTokens;
+    private long mLastRefill = System.nanoTime();
+    /**
+     * start tag of the quantum granted last
+     */
+    private double mVirtualTime = 0;
+    /**
+     * flows which asked for global tokens and were refused, guarded by mLock
+     */
+    private final List<Flow> mWaiting = new ArrayList<Flow>();
+
+    /**
+     * 构造函数
+     * @param bytesPerSecond limit of all connections together, 0 for unlimited
+     * @param flowBytesPerSecond limit of each connection, 0 for unlimited
+     */
+    BandwidthScheduler(long bytesPerSecond, long flowBytesPerSecond) {
+        setLimits(bytesPerSecond, flowBytesPerSecond);
+    }
+
+    /**
+     * 修改限速, 立即对所有连接生效
+     * @param bytesPerSecond limit of all connections together, 0 for unlimited
+     * @param flowBytesPerSecond limit of each connection, 0 for unlimited
+     */
+    void setLimits(long bytesPerSecond, long flowBytesPerSecond) {
+        mLock.lock();
+        try {
+            mRate = Math.max(0, bytesPerSecond);
+            mFlowRate = Math.max(0, flowBytesPerSecond);
+            long slowest = mRate == 0 ? mFlowRate : mFlowRate == 0 ? mRate : Math.min(mRate, mFlowRate);
+            mQuantum = Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, slowest / QUANTA_PER_SECOND));
+            mTokens = Math.min(mTokens, burst());
+            mWaiting.clear();
+            mUnlimited = mRate == 0 && mFlowRate == 0;
+            mChanged.signalAll();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return bytes granted at most per acquire
+     */
+    long getQuantum() {
+        mLock.lock();
+        try {
+            return mQuantum;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * 新建一个连接的发送配额, 没有限速时也可以建立, 之后设置的限速对它生效
+     * @return flow of one connection, close() it with the connection
+     */
+    Flow newFlow() {
+        mLock.lock();
+        try {
+            Flow flow = new Flow();
+            // a new connection starts with a full bucket of its own
+            flow.mOwnTokens = burst();
+            return flow;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private long burst() {
+        return 2 * mQuantum;
+    }
+
+    private void refill(long now) {
+        if (mRate > 0) {
+            mTokens = Math.min(burst(), mTokens + (double) (now - mLastRefill) * mRate / NANOS_PER_SECOND);
+        }
+        mLastRefill = now;
+    }
+
+    private double startTag(Flow flow) {
+        return Math.max(flow.mFinish, mVirtualTime);
+    }
+
+    /**
+     * 在锁内尝试分配令牌
+     * @return granted bytes, 0 with flow.mDelayNanos set if the flow has to wait
+     */
+    private long grant(Flow flow, long wanted, long now) {
+        long need = Math.min(wanted, mQuantum);
+        if (mRate == 0 && mFlowRate == 0) {
+            return wanted;
+        }
+        if (mFlowRate > 0) {
+            flow.refillOwn(now, mFlowRate, burst());
+            if (flow.mOwnTokens < need) {
+                // limited by its own rate, it does not compete for the shared tokens meanwhile
+                mWaiting.remove(flow);
+                flow.mDelayNanos = nanosFor(need - flow.mOwnTokens, mFlowRate);
+                return 0;
+            }
+        }
+        if (mRate > 0) {
+            refill(now);
+            double start = startTag(flow);
+            int ahead = 0;
+            for (Flow other : mWaiting) {
+                if (other != flow && startTag(other) < start) {
+                    ahead++;
+                }
+            }
+            if (ahead > 0 || mTokens < need) {
+                if (!mWaiting.contains(flow)) {
+                    mWaiting.add(flow);
+                }
+                // the flows ahead take a quantum each before this one
+                flow.mDelayNanos = nanosFor(need * (ahead + 1) - mTokens, mRate);
+                return 0;
+            }
+            mWaiting.remove(flow);
+            mTokens -= need;
+            mVirtualTime = start;
+            flow.mFinish = start + (double) need / flow.mWeight;
+        }
+        if (mFlowRate > 0) {
+            flow.mOwnTokens -= need;
+        }
+        return need;
+    }
+
+    private static long nanosFor(double bytes, long rate) {
+        return Math.max(NANOS_PER_MILLI, (long) (bytes * NANOS_PER_SECOND / rate));
+    }
+
+    /**
+     * 一个连接的发送配额
+     */
+    final class Flow {
+        private int mWeight = 1;
+        private double mFinish = 0;
+        /**
+         * tokens of the per-connection bucket
+         */
+        private double mOwnTokens = 0;
+        private long mOwnRefill = System.nanoTime();
+        private long mDelayNanos = 0;
+
+        private void refillOwn(long now, long rate, long burst) {
+            mOwnTokens = Math.min(burst, mOwnTokens + (double) (now - mOwnRefill) * rate / NANOS_PER_SECOND);
+            mOwnRefill = now;
+        }
+
+        /**
+         * @return false while no limit is set, the caller may write without asking for quota
+         */
+        boolean isLimited() {
+            return !mUnlimited;
+        }
+
+        /**
+         * @param weight share of the total rate relative to the other transfers, at least 1
+         */
+        void setWeight(int weight) {
+            mLock.lock();
+            try {
+                mWeight = Math.max(1, weight);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 不等待地申请发送配额
+         * @param wanted bytes the caller could send
+         * @return granted bytes, 0 if the caller has to wait getDelayMillis() first
+         */
+        long tryAcquire(long wanted) {
+            if (mUnlimited) {
+                return wanted;
+            }
+            mLock.lock();
+            try {
+                return grant(this, wanted, System.nanoTime());
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 申请发送配额, 令牌不足时等待到令牌足够或限速改变
+         * @param wanted bytes the caller could send
+         * @return granted bytes, more than 0
+         * @throws InterruptedIOException if the thread is interrupted while waiting
+         */
+        long acquire(long wanted) throws InterruptedIOException {
+            if (mUnlimited) {
+                return wanted;
+            }
+            mLock.lock();
+            try {
+                while (true) {
+                    long granted = grant(this, wanted, System.nanoTime());
+                    if (granted > 0) {
+                        return granted;
+                    }
+                    try {
+                        mChanged.awaitNanos(mDelayNanos);
+                    } catch (InterruptedException e) {
+                        mWaiting.remove(this);
+                        throw new InterruptedIOException("interrupted while throttled");
+                    }
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * @return time to wait after tryAcquire() returned 0
+         */
+        long getDelayMillis() {
+            mLock.lock();
+            try {
+                return Math.max(1, mDelayNanos / NANOS_PER_MILLI);
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 退还未用完的配额, 例如socket缓冲区已满
+         * @param unused bytes granted but not sent
+         */
+        void refund(long unused) {
+            if (unused <= 0 || mUnlimited) {
+                return;
+            }
+            mLock.lock();
+            try {
+                if (mRate > 0) {
+                    mTokens = Math.min(burst(), mTokens + unused);
+                    mFinish -= (double) unused / mWeight;
+                }
+                if (mFlowRate > 0) {
+                    mOwnTokens += unused;
+                }
+                mChanged.signalAll();
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 记入未经申请发出的数据, 例如和回复头聚集写出的小消息体
+         * @param sent bytes sent
+         */
+        void charge(long sent) {
+            if (sent <= 0 || mUnlimited) {
+                return;
+            }
+            mLock.lock();
+            try {
+                long now = System.nanoTime();
+                if (mRate > 0) {
+                    refill(now);
+                    // may go below zero, later requests wait for the debt
+                    mTokens -= sent;
+                    mFinish = startTag(this) + (double) sent / mWeight;
+                }
+                if (mFlowRate > 0) {
+                    refillOwn(now, mFlowRate, burst());
+                    mOwnTokens -= sent;
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+
+        /**
+         * 连接关闭时调用, 不再参与排队
+         */
+        void close() {
+            mLock.lock();
+            try {
+                if (mWaiting.remove(this)) {
+                    mChanged.signalAll();
+                }
+            } finally {
+                mLock.unlock();
+            }
+        }
+    }
+}
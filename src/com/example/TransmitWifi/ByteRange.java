@@ -0,0 +1,106 @@
+package com.example.TransmitWifi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Range请求头中的一个字节区间 (RFC 7233), 支持 "a-b", "a-" 和后缀区间 "-n"
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ByteRange {
+    /**
+     * more ranges than this in one request are ignored and the whole file is sent
+     */
+    static final int MAX_RANGES = 16;
+    private static final String BYTES_UNIT = "bytes=";
+
+    /**
+     * first byte, inclusive
+     */
+    final long mStart;
+    /**
+     * last byte, inclusive
+     */
+    final long mEnd;
+
+    ByteRange(long start, long end) {
+        mStart = start;
+        mEnd = end;
+    }
+
+    long length() {
+        return mEnd - mStart + 1;
+    }
+
+    /**
+     * @return value of the Content-Range header for this range
+     */
+    String toContentRange(long totalLength) {
+        return "bytes " + mStart + "-" + mEnd + "/" + totalLength;
+    }
+
+    /**
+     * 解析Range请求头, 区间按请求中的顺序返回, 已截断到文件长度
+     * @param spec value of the Range header
+     * @param totalLength length of the file
+     * @return satisfiable ranges, empty if none is satisfiable (416),
+     *         null if the header is malformed or has too many ranges and should be ignored
+     */
+    static List<ByteRange> parse(String spec, long totalLength) {
+        if (spec == null || !spec.startsWith(BYTES_UNIT)) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<ByteRange>();
+        int count = 0;
+        int pos = BYTES_UNIT.length();
+        while (pos <= spec.length()) {
+            int comma = spec.indexOf(',', pos);
+            if (comma < 0) {
+                comma = spec.length();
+            }
+            String item = spec.substring(pos, comma).trim();
+            pos = comma + 1;
+            if (item.length() == 0) {
+                // empty list elements are allowed
+                continue;
+            }
+            if (++count > MAX_RANGES) {
+                return null;
+            }
+            int minus = item.indexOf('-');
+            if (minus < 0) {
+                return null;
+            }
+            long start;
+            long end;
+            try {
+                if (minus == 0) {
+                    long suffix = Long.parseLong(item.substring(1));
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix == 0 || totalLength == 0) {
+                        continue;
+                    }
+                    start = Math.max(0, totalLength - suffix);
+                    end = totalLength - 1;
+                } else {
+                    start = Long.parseLong(item.substring(0, minus));
+                    end = minus == item.length() - 1 ? totalLength - 1 : Long.parseLong(item.substring(minus + 1));
+                    if (start < 0 || end < start && minus != item.length() - 1) {
+                        return null;
+                    }
+                    if (start >= totalLength) {
+                        continue;
+                    }
+                    end = Math.min(end, totalLength - 1);
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            ranges.add(new ByteRange(start, end));
+        }
+        return count > 0 ? ranges : null;
+    }
+}
@@ -0,0 +1,341 @@
+package com.example.TransmitWifi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 文件的分块哈希树: 文件按固定大小分块, 每块的SHA-256是叶子, 两两合并到根.
+ * 叶子是H(0x00 | 块), 内部节点是H(0x01 | 左 | 右), 落单的节点直接升到上一层.
+ * 下载时逐块校验, 只需重新下载校验失败的块, 中断的下载也可以从第一个不对的块继续.
+ * 文本形式:
+ * <pre>
+ * TransmitWifi-chunks 1
+ * length 3000000
+ * chunk 1048576
+ * root 5f1c...
+ * 每块一行叶子的十六进制
+ * </pre>
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ChunkManifest {
+    /**
+     * default size of a chunk, the last chunk may be shorter
+     */
+    static final int CHUNK_SIZE = 1024 * 1024;
+    /**
+     * manifests of larger chunk counts are refused when parsed
+     */
+    static final int MAX_CHUNKS = 1 << 22;
+    private static final String HEADER = "TransmitWifi-chunks 1";
+    private static final int BUFSIZE = 64 * 1024;
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+
+    private final long mLength;
+    private final int mChunkSize;
+    private final byte[][] mLeaves;
+    private final byte[] mRoot;
+
+    private ChunkManifest(long length, int chunkSize, byte[][] leaves) {
+        mLength = length;
+        mChunkSize = chunkSize;
+        mLeaves = leaves;
+        mRoot = root(leaves);
+    }
+
+    /**
+     * 计算文件的分块哈希树
+     * @param file the file
+     * @param length length of the file, later bytes are not read
+     * @param chunkSize size of a chunk
+     * @return manifest of the first length bytes of the file
+     * @throws IOException if the file can not be read or is shorter than length
+     */
+    static ChunkManifest compute(File file, long length, int chunkSize) throws IOException {
+        byte[][] leaves = new byte[chunkCount(length, chunkSize)][];
+        MessageDigest digest = newLeafDigest();
+        ByteBuffer buffer = ByteBuffer.allocate(BUFSIZE);
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            int index = 0;
+            long chunkRemaining = Math.min(chunkSize, length);
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), chunkRemaining));
+                int read = channel.read(buffer);
+                if (read < 0) {
+                    throw new IOException(file + " is shorter than " + length);
+                }
+                digest.update(buffer.array(), 0, read);
+                remaining -= read;
+                chunkRemaining -= read;
+                if (chunkRemaining == 0) {
+                    leaves[index++] = digest.digest();
+                    digest.update(LEAF);
+                    chunkRemaining = Math.min(chunkSize, remaining);
+                }
+            }
+            if (index == 0) {
+                // an empty file has a single empty chunk
+                leaves[index] = digest.digest();
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        return new ChunkManifest(length, chunkSize, leaves);
+    }
+
+    /**
+     * 解析文本形式, 根与叶子不符时视为损坏
+     * @param in stream of the text, not closed
+     * @return the manifest
+     * @throws IOException if the text is not a valid manifest
+     */
+    static ChunkManifest parse(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        if (!HEADER.equals(reader.readLine())) {
+            throw new IOException("not a chunk manifest");
+        }
+        long length;
+        int chunkSize;
+        byte[] root;
+        try {
+            length = Long.parseLong(field(reader.readLine(), "length"));
+            chunkSize = Integer.parseInt(field(reader.readLine(), "chunk"));
+            root = fromHex(field(reader.readLine(), "root"));
+        } catch (NumberFormatException e) {
+            // IOException(String, Throwable) needs API 9
+            throw new IOException("broken chunk manifest: " + e.getMessage());
+        }
+        if (length < 0 || chunkSize <= 0 || (length + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IOException("bad chunk manifest size " + length + "/" + chunkSize);
+        }
+        byte[][] leaves = new byte[chunkCount(length, chunkSize)][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = fromHex(reader.readLine());
+        }
+        ChunkManifest manifest = new ChunkManifest(length, chunkSize, leaves);
+        if (!Arrays.equals(root, manifest.mRoot)) {
+            throw new IOException("chunk manifest root mismatch");
+        }
+        return manifest;
+    }
+
+    /**
+     * @return length of the file
+     */
+    long getLength() {
+        return mLength;
+    }
+
+    int getChunkCount() {
+        return mLeaves.length;
+    }
+
+    /**
+     * @return offset of the chunk in the file
+     */
+    long chunkStart(int index) {
+        return (long) index * mChunkSize;
+    }
+
+    int chunkLength(int index) {
+        return (int) Math.min(mChunkSize, mLength - chunkStart(index));
+    }
+
+    /**
+     * @return hex root of the tree, identifies the content like a digest of the file
+     */
+    String getRoot() {
+        return HashIndex.toHex(mRoot);
+    }
+
+    /**
+     * 检查本地已有的文件, 找到第一个缺少或不对的块
+     * @param file local file, may be missing or partly downloaded
+     * @return count of leading chunks which are right, getChunkCount() if the whole file is
+     */
+    int verifiedPrefix(File file) throws IOException {
+        if (!file.isFile()) {
+            return 0;
+        }
+        Verifier verifier = new Verifier(0);
+        byte[] buf = new byte[BUFSIZE];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            long remaining = Math.min(file.length(), mLength);
+            int read;
+            while (remaining > 0 && (read = in.read(buf, 0, (int) Math.min(buf.length, remaining))) > 0) {
+                remaining -= read;
+                verifier.update(buf, 0, read);
+                if (!verifier.mFailed.isEmpty()) {
+                    return verifier.mFailed.get(0);
+                }
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        // ends the single empty chunk of an empty file, a partial chunk is not checked
+        verifier.finish(-1);
+        return !verifier.mFailed.isEmpty() ? verifier.mFailed.get(0) : verifier.mNext;
+    }
+
+    /**
+     * @return the text form
+     */
+    byte[] getBytes() {
+        StringBuilder text = new StringBuilder(HEADER.length() + 128 + mLeaves.length * 65);
+        text.append(HEADER).append('\n');
+        text.append("length ").append(mLength).append('\n');
+        text.append("chunk ").append(mChunkSize).append('\n');
+        text.append("root ").append(HashIndex.toHex(mRoot)).append('\n');
+        for (byte[] leaf : mLeaves) {
+            text.append(HashIndex.toHex(leaf)).append('\n');
+        }
+        try {
+            return text.toString().getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 逐块校验从某块开始顺序到达的数据
+     */
+    final class Verifier {
+        private final MessageDigest mDigest = newLeafDigest();
+        private final List<Integer> mFailed = new ArrayList<Integer>();
+        /**
+         * chunk being received
+         */
+        private int mNext;
+        private long mChunkRemaining;
+
+        /**
+         * @param first index of the chunk the data starts with
+         */
+        Verifier(int first) {
+            mNext = first;
+            mChunkRemaining = first < mLeaves.length ? chunkLength(first) : 0;
+        }
+
+        void update(byte[] buf, int off, int len) {
+            while (len > 0 && mNext < mLeaves.length) {
+                int count = (int) Math.min(len, mChunkRemaining);
+                mDigest.update(buf, off, count);
+                off += count;
+                len -= count;
+                mChunkRemaining -= count;
+                if (mChunkRemaining == 0) {
+                    endChunk();
+                }
+            }
+        }
+
+        /**
+         * 数据结束, 结束处之后到last的块都算失败
+         * @param last index of the last chunk which should have been received
+         */
+        void finish(int last) {
+            if (mNext < mLeaves.length && mChunkRemaining == chunkLength(mNext) && mChunkRemaining == 0) {
+                // the single empty chunk of an empty file
+                endChunk();
+            }
+            while (mNext <= last) {
+                mFailed.add(mNext++);
+            }
+        }
+
+        /**
+         * @return indexes of the chunks which failed, in order
+         */
+        List<Integer> getFailed() {
+            return mFailed;
+        }
+
+        private void endChunk() {
+            if (!Arrays.equals(mDigest.digest(), mLeaves[mNext])) {
+                mFailed.add(mNext);
+            }
+            mDigest.update(LEAF);
+            mNext++;
+            mChunkRemaining = mNext < mLeaves.length ? chunkLength(mNext) : 0;
+        }
+    }
+
+    private static int chunkCount(long length, int chunkSize) {
+        return (int) Math.max(1, (length + chunkSize - 1) / chunkSize);
+    }
+
+    private static byte[] root(byte[][] leaves) {
+        byte[][] level = leaves;
+        MessageDigest digest = newDigest();
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                } else {
+                    digest.update(NODE);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                }
+            }
+            level = parents;
+        }
+        return level[0];
+    }
+
+    private static MessageDigest newLeafDigest() {
+        MessageDigest digest = newDigest();
+        digest.update(LEAF);
+        return digest;
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String field(String line, String name) throws IOException {
+        if (line == null || !line.startsWith(name + " ")) {
+            throw new IOException("chunk manifest without " + name);
+        }
+        return line.substring(name.length() + 1).trim();
+    }
+
+    private static byte[] fromHex(String hex) throws IOException {
+        if (hex == null || hex.length() != HashIndex.DIGEST_LENGTH) {
+            throw new IOException("bad chunk digest " + hex);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high < 0 || low < 0) {
+                throw new IOException("bad chunk digest " + hex);
+            }
+            bytes[i] = (byte) (high << 4 | low);
+        }
+        return bytes;
+    }
+}
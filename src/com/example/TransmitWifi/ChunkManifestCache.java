@@ -0,0 +1,111 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 文件分块哈希树的缓存. 分块哈希要读整个文件, 在后台低优先级线程中计算, 和HashIndex的扫描一样不占用处理请求的线程;
+ * 同一版本的文件同时只计算一次, 计算完成前查询返回null, 由调用者回复503让客户端稍后再来.
+ * 以FileMetaCache.Entry.contentKey()为键, 不用32位的弱ETag, 不同文件不会拿到彼此的哈希树
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ChunkManifestCache {
+    private static final String TAG = "ChunkManifestCache";
+    private static final int WORKER_COUNT = 2;
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * LRU of computed manifests by content key, guarded by itself
+     */
+    private final LinkedHashMap<String, ChunkManifest> mManifests;
+    /**
+     * content keys of the manifests being computed
+     */
+    private final ConcurrentHashMap<String, Boolean> mComputing = new ConcurrentHashMap<String, Boolean>();
+    private final ThreadPoolExecutor mExecutor;
+
+    /**
+     * 构造函数
+     * @param maxManifests count of computed manifests kept
+     */
+    ChunkManifestCache(final int maxManifests) {
+        mManifests = new LinkedHashMap<String, ChunkManifest>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ChunkManifest> eldest) {
+                return size() > maxManifests;
+            }
+        };
+        // no queue: while all workers are busy a request is refused and answered with 503 as well;
+        // idle workers end after the keep alive, allowCoreThreadTimeOut() needs API 9
+        mExecutor = new ThreadPoolExecutor(0, WORKER_COUNT, IDLE_THREAD_KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "ChunkManifest Worker");
+                        thread.setDaemon(true);
+                        // hashing must not slow down the transfers
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * 查找文件的分块哈希, 没有时在后台开始计算
+     * @param file the file
+     * @param length length of this version of the file
+     * @param key content key of this version of the file, see FileMetaCache.Entry.contentKey()
+     * @return the manifest, null while it is computed
+     */
+    ChunkManifest get(final File file, final long length, final String key) {
+        synchronized (mManifests) {
+            ChunkManifest manifest = mManifests.get(key);
+            if (manifest != null) {
+                return manifest;
+            }
+        }
+        if (mComputing.putIfAbsent(key, Boolean.TRUE) != null) {
+            return null;
+        }
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long start = System.currentTimeMillis();
+                        ChunkManifest manifest = ChunkManifest.compute(file, length, ChunkManifest.CHUNK_SIZE);
+                        ServerLog.d(TAG, "chunk manifest of {} in {} ms", file, System.currentTimeMillis() - start);
+                        synchronized (mManifests) {
+                            mManifests.put(key, manifest);
+                        }
+                    } catch (IOException e) {
+                        ServerLog.w(TAG, "can not compute chunk manifest of {}", file);
+                    } finally {
+                        mComputing.remove(key);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            mComputing.remove(key);
+        }
+        return null;
+    }
+
+    /**
+     * 清空已计算的分块哈希, 正在计算的完成后仍会加入
+     */
+    void clear() {
+        synchronized (mManifests) {
+            mManifests.clear();
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.TransmitWifi;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 文本文件的gzip/deflate压缩版本缓存, 以文件内容的键(FileMetaCache.Entry.contentKey())为键.
+ * 小的压缩结果放在内存中, 大的写到缓存目录, 同一文件只压缩一次; 正在压缩时其他请求发送原文件而不重复压缩
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class CompressedVariantCache {
+    private static final String TAG = "CompressedVariantCache";
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+    /**
+     * smaller files do not gain enough to pay for the Content-Encoding round
+     */
+    private static final long MIN_COMPRESS_SIZE = 1024;
+    /**
+     * files up to this size are compressed in memory, bigger ones straight into the cache directory
+     */
+    private static final long MAX_IN_MEMORY_SOURCE = 1024 * 1024;
+    /**
+     * variants up to this size are kept in memory
+     */
+    private static final int MAX_IN_MEMORY_VARIANT = 64 * 1024;
+    private static final int COPY_BUFSIZE = 16384;
+
+    /**
+     * a file which does not get smaller, served as is
+     */
+    private static final Variant INCOMPRESSIBLE = new Variant(null, null, 0);
+
+    private final File mCacheDir;
+    private final long mMemoryBudget;
+    private long mMemoryUsed = 0;
+    /**
+     * LRU of the variants in memory, guarded by itself
+     */
+    private final LinkedHashMap<String, Variant> mMemory = new LinkedHashMap<String, Variant>(16, 0.75f, true);
+    /**
+     * file path to its current variant on disk, older variants of the file are deleted
+     */
+    private final ConcurrentHashMap<String, File> mDiskVariants = new ConcurrentHashMap<String, File>();
+    /**
+     * keys of the variants being compressed
+     */
+    private final ConcurrentHashMap<String, Boolean> mComputing = new ConcurrentHashMap<String, Boolean>();
+
+    /**
+     * 构造函数
+     * @param cacheDir directory for the variants too large for memory
+     * @param memoryBudget bytes of compressed data kept in memory
+     */
+    CompressedVariantCache(File cacheDir, long memoryBudget) {
+        mCacheDir = cacheDir;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * 是否值得压缩, 图片音视频和压缩包本身已压缩
+     * @param mime mime type of the file
+     * @return true for text and script types
+     */
+    static boolean isCompressible(String mime) {
+        return mime.startsWith("text/") || mime.equals("application/javascript")
+                || mime.endsWith("/xml") || mime.endsWith("+xml") || mime.equals("application/json");
+    }
+
+    /**
+     * 按Accept-Encoding选择编码, q=0表示拒绝
+     * @param acceptEncoding value of the Accept-Encoding header, may be null
+     * @return GZIP, DEFLATE or null for identity
+     */
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String best = null;
+        float bestQ = 0;
+        for (String item : acceptEncoding.split(",")) {
+            String coding = item;
+            float q = 1;
+            int semicolon = item.indexOf(';');
+            if (semicolon >= 0) {
+                coding = item.substring(0, semicolon);
+                String param = item.substring(semicolon + 1).trim();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(param.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            coding = coding.trim().toLowerCase();
+            if ((coding.equals(GZIP) || coding.equals("x-gzip")) && q > bestQ) {
+                best = GZIP;
+                bestQ = q;
+            } else if (coding.equals(DEFLATE) && q > bestQ) {
+                best = DEFLATE;
+                bestQ = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * 获得压缩版本, 不存在时立即压缩并缓存. 同一版本正在被另一个请求压缩时不等待, 返回null
+     * @param file the file
+     * @param length length of the file
+     * @param contentKey key of this version of the file, see FileMetaCache.Entry.contentKey()
+     * @param encoding GZIP or DEFLATE
+     * @return the variant, null if the file should be sent as is
+     */
+    Variant get(File file, long length, String contentKey, String encoding) throws IOException {
+        if (length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+        String key = contentKey + "." + encoding;
+        Variant variant = lookup(key);
+        if (variant == null) {
+            if (mComputing.putIfAbsent(key, Boolean.TRUE) != null) {
+                return null;
+            }
+            try {
+                // stored by the request which has just finished
+                variant = lookup(key);
+                if (variant == null) {
+                    variant = compress(file, key, encoding);
+                }
+            } finally {
+                mComputing.remove(key);
+            }
+        }
+        return variant != INCOMPRESSIBLE ? variant : null;
+    }
+
+    /**
+     * 只查找已有的压缩版本, 不压缩, 用于HEAD请求
+     * @return the variant, null if none is cached or the file should be sent as is
+     */
+    Variant peek(long length, String contentKey, String encoding) {
+        if (length < MIN_COMPRESS_SIZE) {
+            return null;
+        }
+        Variant variant = lookup(contentKey + "." + encoding);
+        return variant != INCOMPRESSIBLE ? variant : null;
+    }
+
+    private Variant lookup(String key) {
+        Variant variant;
+        synchronized (mMemory) {
+            variant = mMemory.get(key);
+        }
+        if (variant == null) {
+            File disk = new File(mCacheDir, key);
+            if (disk.isFile()) {
+                variant = new Variant(null, disk, disk.length());
+            }
+        }
+        return variant;
+    }
+
+    private Variant compress(File file, String key, String encoding) throws IOException {
+        long start = System.currentTimeMillis();
+        Variant variant;
+        if (file.length() <= MAX_IN_MEMORY_SOURCE) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) file.length() / 2);
+            copyCompressed(file, bytes, encoding);
+            if (bytes.size() >= file.length()) {
+                variant = INCOMPRESSIBLE;
+            } else if (bytes.size() <= MAX_IN_MEMORY_VARIANT) {
+                variant = new Variant(bytes.toByteArray(), null, bytes.size());
+            } else {
+                variant = storeOnDisk(file, key, encoding, bytes.toByteArray());
+            }
+        } else {
+            variant = storeOnDisk(file, key, encoding, null);
+            if (variant.mLength >= file.length()) {
+                variant.mFile.delete();
+                variant = INCOMPRESSIBLE;
+            }
+        }
+        if (variant.mFile == null) {
+            putInMemory(key, variant);
+        }
+        if (ServerLog.isLoggable(Log.INFO)) {
+            ServerLog.i(TAG, "compressed " + file.getName() + " " + file.length() + " -> " + variant.mLength
+                    + " bytes in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        return variant;
+    }
+
+    /**
+     * 写入缓存目录, 先写临时文件再改名, 并发的请求不会读到一半的文件
+     */
+    private Variant storeOnDisk(File file, String key, String encoding, byte[] data) throws IOException {
+        if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs()) {
+            throw new IOException("cannot create " + mCacheDir);
+        }
+        File tmp = File.createTempFile(key, ".tmp", mCacheDir);
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            if (data != null) {
+                out.write(data);
+            } else {
+                copyCompressed(file, out, encoding);
+            }
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+        File target = new File(mCacheDir, key);
+        if (!tmp.renameTo(target)) {
+            tmp.delete();
+            throw new IOException("cannot store " + target);
+        }
+        File old = mDiskVariants.put(file.getAbsolutePath() + "-" + encoding, target);
+        if (old != null && !old.equals(target)) {
+            old.delete();
+        }
+        return new Variant(null, target, target.length());
+    }
+
+    private void copyCompressed(File file, OutputStream out, String encoding) throws IOException {
+        InputStream in = new FileInputStream(file);
+        DeflaterOutputStream zip = GZIP.equals(encoding) ? new GZIPOutputStream(out, COPY_BUFSIZE)
+                : new DeflaterOutputStream(out);
+        try {
+            byte[] buf = new byte[COPY_BUFSIZE];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                zip.write(buf, 0, read);
+            }
+            zip.finish();
+        } finally {
+            NetWorkUtils.safeClose(in);
+            // also releases the native deflater
+            NetWorkUtils.safeClose(zip);
+        }
+    }
+
+    private void putInMemory(String key, Variant variant) {
+        synchronized (mMemory) {
+            Variant old = mMemory.put(key, variant);
+            mMemoryUsed += variant.mLength - (old != null ? old.mLength : 0);
+            Iterator<Map.Entry<String, Variant>> it = mMemory.entrySet().iterator();
+            while (mMemoryUsed > mMemoryBudget && it.hasNext()) {
+                Map.Entry<String, Variant> eldest = it.next();
+                mMemoryUsed -= eldest.getValue().mLength;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 一个压缩版本, 在内存中或在缓存目录中
+     */
+    static final class Variant {
+        private final byte[] mData;
+        private final File mFile;
+        private final long mLength;
+
+        Variant(byte[] data, File file, long length) {
+            mData = data;
+            mFile = file;
+            mLength = length;
+        }
+
+        /**
+         * 生成发送该版本的回复
+         * @param mime mime type of the original file
+         */
+        HTTPServerDaemon.Response newResponse(String mime) throws IOException {
+            if (mData != null) {
+                return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.OK, mime,
+                        new ByteArrayInputStream(mData), mData.length);
+            }
+            return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.OK, mime,
+                    new FileInputStream(mFile).getChannel(), 0, mLength);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.TransmitWifi;
+
+import java.io.Closeable;
+
+/**
+ * 一个连接的超时: 等待下一个请求的空闲时间, 读完请求头的期限, 传输中的最低速率.
+ * 定时器在TimerWheel中, 连接每次改变阶段时重新设置; 到期时关闭连接并计入ServerMetrics
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ConnectionGuard extends TimerWheel.Timeout {
+    private static final String TAG = "ConnectionGuard";
+
+    /**
+     * 超时的原因
+     */
+    enum Reason {
+        /**
+         * no request within the keep-alive timeout
+         */
+        IDLE,
+        /**
+         * request header not complete within the header timeout
+         */
+        HEADER,
+        /**
+         * transfer slower than the minimum rate
+         */
+        SLOW
+    }
+
+    private enum Phase {
+        NONE, IDLE, HEADER, TRANSFER
+    }
+
+    private final TimerWheel mWheel;
+    private final Closeable mConnection;
+    private final ServerMetrics mMetrics;
+    private final long mIdleTimeout;
+    private final long mHeaderTimeout;
+    private final long mMinRate;
+    private final long mRateWindow;
+
+    private volatile Phase mPhase = Phase.NONE;
+    /**
+     * bytes sent and received, written by the connection thread only
+     */
+    private volatile long mProgress = 0;
+    private volatile int mThrottleCount = 0;
+    /**
+     * response whose body is being written, its bytes count as progress while the write blocks
+     */
+    private volatile HTTPServerDaemon.Response mSending;
+    private long mWindowProgress;
+    private int mWindowThrottleCount;
+
+    /**
+     * 构造函数
+     * @param wheel wheel the timeouts are kept in
+     * @param connection closed when a timeout expires
+     * @param metrics counts the expired connections
+     * @param idleTimeout time to wait for a request, 0 waits forever
+     * @param headerTimeout time from the first byte to the end of a request header, 0 waits forever
+     * @param minRate bytes per second a transfer must reach in each window, 0 for no limit
+     * @param rateWindow time the rate is measured over
+     */
+    ConnectionGuard(TimerWheel wheel, Closeable connection, ServerMetrics metrics, long idleTimeout,
+                    long headerTimeout, long minRate, long rateWindow) {
+        mWheel = wheel;
+        mConnection = connection;
+        mMetrics = metrics;
+        mIdleTimeout = idleTimeout;
+        mHeaderTimeout = headerTimeout;
+        mMinRate = minRate;
+        mRateWindow = rateWindow;
+    }
+
+    /**
+     * 等待下一个请求
+     */
+    void awaitRequest() {
+        if (mPhase != Phase.IDLE) {
+            enter(Phase.IDLE, mIdleTimeout);
+        }
+    }
+
+    /**
+     * 收到了请求的第一部分, 期限从此开始计算
+     */
+    void headerStarted() {
+        if (mPhase != Phase.HEADER) {
+            enter(Phase.HEADER, mHeaderTimeout);
+        }
+    }
+
+    /**
+     * 开始读请求体或写回复, 之后每个窗口检查一次速率
+     */
+    void transferStarted() {
+        if (mPhase != Phase.TRANSFER) {
+            mWindowProgress = totalProgress();
+            mWindowThrottleCount = mThrottleCount;
+            enter(Phase.TRANSFER, mMinRate > 0 ? mRateWindow : 0);
+        }
+    }
+
+    /**
+     * 处理请求期间不计时, 例如serve()生成内容
+     */
+    void pause() {
+        if (mPhase != Phase.NONE) {
+            mPhase = Phase.NONE;
+            mWheel.cancel(this);
+        }
+    }
+
+    /**
+     * @param bytes bytes sent or received
+     */
+    void progress(long bytes) {
+        if (bytes > 0) {
+            mProgress += bytes;
+        }
+    }
+
+    /**
+     * 开始或结束写出一个消息体
+     * @param response response whose body is written next, null when done
+     */
+    void sending(HTTPServerDaemon.Response response) {
+        HTTPServerDaemon.Response previous = mSending;
+        if (previous != null) {
+            mProgress += previous.getBodyProgress();
+        }
+        mSending = response;
+    }
+
+    private long totalProgress() {
+        HTTPServerDaemon.Response sending = mSending;
+        return mProgress + (sending != null ? sending.getBodyProgress() : 0);
+    }
+
+    /**
+     * 因限速而等待, 该窗口内不检查最低速率
+     */
+    void throttled() {
+        mThrottleCount++;
+    }
+
+    /**
+     * 连接关闭时调用
+     */
+    void close() {
+        mPhase = Phase.NONE;
+        mWheel.cancel(this);
+    }
+
+    private void enter(Phase phase, long timeout) {
+        mPhase = phase;
+        if (timeout > 0) {
+            mWheel.schedule(this, timeout);
+        } else {
+            mWheel.cancel(this);
+        }
+    }
+
+    @Override
+    void onExpired() {
+        if (isPending()) {
+            // set again by the connection meanwhile
+            return;
+        }
+        switch (mPhase) {
+            case IDLE:
+                expire(Reason.IDLE);
+                break;
+            case HEADER:
+                expire(Reason.HEADER);
+                break;
+            case TRANSFER:
+                long progress = totalProgress();
+                int throttleCount = mThrottleCount;
+                if (progress - mWindowProgress >= mMinRate * mRateWindow / 1000
+                        || throttleCount != mWindowThrottleCount) {
+                    mWindowProgress = progress;
+                    mWindowThrottleCount = throttleCount;
+                    mWheel.schedule(this, mRateWindow);
+                } else {
+                    expire(Reason.SLOW);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void expire(Reason reason) {
+        mPhase = Phase.NONE;
+        mMetrics.onConnectionTimeout(reason);
+        ServerLog.d(TAG, "close connection on timeout: {}", reason);
+        NetWorkUtils.safeClose(mConnection);
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * 目录列表, JSON或HTML, 分页.
+ * 目录的文件名用File.list()一次读出, 按目录和修改时间保留一段时间, 各页直接从名字数组中的序号开始, 不必从头跳过.
+ * 一页边读文件属性边生成, 以chunked编码发送, 属性和页面文本不整体读入内存; 顺序是文件系统的目录顺序.
+ * 游标包含下一页的序号和目录的修改时间, 目录改变后旧游标返回410. 生成完的小页面按目录修改时间缓存
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class DirectoryListing {
+    /**
+     * default entries per page
+     */
+    static final int DEFAULT_PAGE_SIZE = 500;
+    static final int MAX_PAGE_SIZE = 5000;
+    /**
+     * default bytes of rendered pages kept in memory
+     */
+    static final long DEFAULT_BUDGET = 1024 * 1024;
+    /**
+     * larger pages are sent but not cached
+     */
+    private static final int MAX_CACHED_PAGE = 64 * 1024;
+    /**
+     * name lists kept between pages
+     */
+    private static final int MAX_SNAPSHOTS = 8;
+    private static final long SNAPSHOT_TIMEOUT_MS = 30 * 1000;
+    /**
+     * text rendered before it is handed to the chunked body
+     */
+    private static final int RENDER_BATCH = 8192;
+    private static final String MIME_JSON = "application/json";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final long mBudget;
+    /**
+     * LRU of rendered pages, guarded by itself
+     */
+    private final LinkedHashMap<String, byte[]> mPages = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long mUsed = 0;
+    /**
+     * names of the directories being listed, keyed by directory and mtime, guarded by itself
+     */
+    private final LinkedHashMap<String, Snapshot> mSnapshots = new LinkedHashMap<String, Snapshot>();
+
+    /**
+     * 构造函数
+     * @param budget bytes of rendered pages kept in memory
+     */
+    DirectoryListing(long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * 回复目录的一页
+     * @param dir the directory
+     * @param uri request path of the directory, ending with '/'
+     * @param json true for JSON, false for HTML
+     * @param cursor cursor of the page from the previous page, null for the first page
+     * @param limit entries per page
+     * @return the page, chunked unless it was cached
+     */
+    HTTPServerDaemon.Response serve(File dir, String uri, boolean json, String cursor, int limit) throws IOException {
+        long mtime = dir.lastModified();
+        int offset = 0;
+        if (cursor != null && cursor.length() > 0) {
+            int dot = cursor.indexOf('.');
+            try {
+                offset = Integer.parseInt(cursor.substring(0, Math.max(dot, 0)));
+                if (offset < 0 || Long.parseLong(cursor.substring(dot + 1), 16) != mtime) {
+                    return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.GONE,
+                            HTTPServerDaemon.MIME_PLAINTEXT, "GONE: Directory changed, start the listing again.");
+                }
+            } catch (NumberFormatException e) {
+                return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                        HTTPServerDaemon.MIME_PLAINTEXT, "BAD REQUEST: Bad cursor.");
+            }
+        }
+        limit = Math.max(1, Math.min(limit, MAX_PAGE_SIZE));
+        String mime = json ? MIME_JSON : HTTPServerDaemon.MIME_HTML;
+        String pageKey = dir.getPath() + '\0' + mtime + '\0' + json + '\0' + offset + '\0' + limit;
+        byte[] page;
+        synchronized (mPages) {
+            page = mPages.get(pageKey);
+        }
+        if (page != null) {
+            return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.OK, mime,
+                    new ResponseBody.BytesBody(page));
+        }
+
+        String[] names = names(dir, mtime);
+        PageStream body = new PageStream(dir, uri, mtime, json, offset, limit, names, pageKey);
+        return new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.OK, mime, body, -1);
+    }
+
+    /**
+     * 清空保留的文件名和缓存的页面
+     */
+    void clear() {
+        synchronized (mSnapshots) {
+            mSnapshots.clear();
+        }
+        synchronized (mPages) {
+            mPages.clear();
+            mUsed = 0;
+        }
+    }
+
+    /**
+     * 目录的文件名, 同一修改时间的目录只读一次
+     * @return names in directory order
+     * @throws IOException if the directory can not be read
+     */
+    private String[] names(File dir, long mtime) throws IOException {
+        String key = dir.getPath() + '\0' + mtime;
+        long now = System.currentTimeMillis();
+        synchronized (mSnapshots) {
+            expire(now);
+            Snapshot snapshot = mSnapshots.get(key);
+            if (snapshot != null) {
+                return snapshot.mNames;
+            }
+        }
+        String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("can not list " + dir);
+        }
+        synchronized (mSnapshots) {
+            mSnapshots.put(key, new Snapshot(names, now));
+            expire(now);
+        }
+        return names;
+    }
+
+    /**
+     * 移除超时和超出数量的文件名, 调用时持有mSnapshots的锁
+     */
+    private void expire(long now) {
+        Iterator<Snapshot> it = mSnapshots.values().iterator();
+        while (it.hasNext()) {
+            Snapshot snapshot = it.next();
+            if (mSnapshots.size() <= MAX_SNAPSHOTS && now - snapshot.mListedAt < SNAPSHOT_TIMEOUT_MS) {
+                break;
+            }
+            it.remove();
+        }
+    }
+
+    private void cache(String key, byte[] page) {
+        synchronized (mPages) {
+            byte[] old = mPages.put(key, page);
+            mUsed += page.length - (old != null ? old.length : 0);
+            Iterator<byte[]> it = mPages.values().iterator();
+            while (mUsed > mBudget && it.hasNext()) {
+                mUsed -= it.next().length;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 某一修改时间的目录的文件名
+     */
+    private static final class Snapshot {
+        final String[] mNames;
+        final long mListedAt;
+
+        Snapshot(String[] names, long listedAt) {
+            mNames = names;
+            mListedAt = listedAt;
+        }
+    }
+
+    /**
+     * 一页的内容, 读取时才遍历目录
+     */
+    private final class PageStream extends InputStream {
+        private final File mDir;
+        private final String mUri;
+        private final long mMtime;
+        private final boolean mJson;
+        private final int mOffset;
+        private final int mEnd;
+        private final String mPageKey;
+        private final String[] mNames;
+        private int mIndex;
+        private boolean mStarted = false;
+        private boolean mDone = false;
+        private boolean mEmpty = true;
+        private final StringBuilder mText = new StringBuilder();
+        private byte[] mPending;
+        private int mPendingPos;
+        /**
+         * copy of the page for the cache, null once it is too large
+         */
+        private ByteArrayOutputStream mCopy = new ByteArrayOutputStream();
+
+        PageStream(File dir, String uri, long mtime, boolean json, int offset, int limit, String[] names,
+                   String pageKey) {
+            mDir = dir;
+            mUri = uri;
+            mMtime = mtime;
+            mJson = json;
+            mOffset = offset;
+            mEnd = offset + limit;
+            mNames = names;
+            mPageKey = pageKey;
+            mIndex = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            while (mPending == null || mPendingPos == mPending.length) {
+                if (mDone) {
+                    return -1;
+                }
+                render();
+            }
+            int count = Math.min(len, mPending.length - mPendingPos);
+            System.arraycopy(mPending, mPendingPos, b, off, count);
+            mPendingPos += count;
+            return count;
+        }
+
+        private void render() throws IOException {
+            if (!mStarted) {
+                mStarted = true;
+                header();
+            }
+            int end = Math.min(mEnd, mNames.length);
+            while (mText.length() < RENDER_BATCH && mIndex < end) {
+                String name = mNames[mIndex++];
+                File file = new File(mDir, name);
+                long mtime = file.lastModified();
+                if (mtime == 0 && !file.exists()) {
+                    // removed meanwhile, still counted so the offsets stay stable
+                    continue;
+                }
+                boolean dir = file.isDirectory();
+                entry(name, dir, dir ? 0 : file.length(), mtime);
+            }
+            if (mText.length() < RENDER_BATCH) {
+                footer(mIndex == mEnd && mEnd < mNames.length ? mIndex + "." + Long.toHexString(mMtime) : null);
+                mDone = true;
+            }
+            mPending = mText.toString().getBytes(UTF8);
+            mPendingPos = 0;
+            mText.setLength(0);
+            if (mCopy != null) {
+                if (mCopy.size() + mPending.length > MAX_CACHED_PAGE) {
+                    mCopy = null;
+                } else {
+                    mCopy.write(mPending, 0, mPending.length);
+                }
+            }
+            if (mDone && mCopy != null) {
+                cache(mPageKey, mCopy.toByteArray());
+                mCopy = null;
+            }
+        }
+
+        private void header() {
+            if (mJson) {
+                mText.append("{\"path\":");
+                appendJson(mUri);
+                mText.append(",\"mtime\":").append(mMtime).append(",\"offset\":").append(mOffset)
+                        .append(",\"entries\":[");
+            } else {
+                mText.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>Index of ");
+                appendHtml(mUri);
+                mText.append("</title></head><body><h1>Index of ");
+                appendHtml(mUri);
+                mText.append("</h1>\n<table>\n");
+                if (mOffset == 0 && !mUri.equals("/")) {
+                    mText.append("<tr><td><a href=\"../\">../</a></td><td></td><td></td></tr>\n");
+                }
+            }
+        }
+
+        private void entry(String name, boolean dir, long size, long mtime) {
+            if (mJson) {
+                if (!mEmpty) {
+                    mText.append(',');
+                }
+                mText.append("{\"name\":");
+                appendJson(name);
+                mText.append(",\"type\":\"").append(dir ? "dir" : "file").append("\",\"size\":").append(size)
+                        .append(",\"mtime\":").append(mtime).append('}');
+            } else {
+                String href = encode(name) + (dir ? "/" : "");
+                mText.append("<tr><td><a href=\"").append(href).append("\">");
+                appendHtml(dir ? name + "/" : name);
+                mText.append("</a></td><td>").append(dir ? "" : String.valueOf(size)).append("</td><td>")
+                        .append(mtime).append("</td></tr>\n");
+            }
+            mEmpty = false;
+        }
+
+        private void footer(String next) {
+            if (mJson) {
+                mText.append("],\"next\":");
+                if (next != null) {
+                    mText.append('"').append(next).append('"');
+                } else {
+                    mText.append("null");
+                }
+                mText.append("}\n");
+            } else {
+                mText.append("</table>\n");
+                if (next != null) {
+                    mText.append("<p><a href=\"?cursor=").append(next).append("&amp;limit=").append(mEnd - mOffset)
+                            .append("\">Next page</a></p>\n");
+                }
+                mText.append("</body></html>\n");
+            }
+        }
+
+        private void appendJson(String s) {
+            mText.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    mText.append('\\').append(c);
+                } else if (c < 0x20) {
+                    mText.append(String.format("\\u%04x", (int) c));
+                } else {
+                    mText.append(c);
+                }
+            }
+            mText.append('"');
+        }
+
+        private void appendHtml(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                switch (c) {
+                    case '&':
+                        mText.append("&amp;");
+                        break;
+                    case '<':
+                        mText.append("&lt;");
+                        break;
+                    case '>':
+                        mText.append("&gt;");
+                        break;
+                    case '"':
+                        mText.append("&quot;");
+                        break;
+                    default:
+                        mText.append(c);
+                        break;
+                }
+            }
+        }
+
+        private String encode(String name) {
+            try {
+                return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+            } catch (UnsupportedEncodingException e) {
+                return name;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.example.TransmitWifi;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话和下载任务运行所用的线程类型.
+ * 虚拟线程需要Java 21及以上的运行环境, 通过反射获取, 不支持时退回平台线程.
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public enum ExecutionMode {
+    /**
+     * ordinary platform threads
+     */
+    PLATFORM,
+    /**
+     * virtual threads, one per task, parked instead of blocking a carrier on socket i/o
+     */
+    VIRTUAL;
+
+    private static final String TAG = "ExecutionMode";
+
+    /**
+     * 当前运行环境是否支持该模式
+     * @return false for VIRTUAL on runtimes without Thread.ofVirtual()
+     */
+    public boolean isSupported() {
+        return this == PLATFORM || virtualThreadFactory("probe") != null;
+    }
+
+    /**
+     * 生成线程工厂
+     * @param name prefix of the thread names
+     * @return factory for this mode, a platform factory if virtual threads are not supported
+     */
+    public ThreadFactory newThreadFactory(final String name) {
+        if (this == VIRTUAL) {
+            ThreadFactory factory = virtualThreadFactory(name);
+            if (factory != null) {
+                return factory;
+            }
+            ServerLog.i(TAG, "virtual threads not supported, use platform threads");
+        }
+        return new ThreadFactory() {
+            private final AtomicInteger mSeqNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r);
+                thread.setName(name + " " + mSeqNumber.getAndIncrement());
+                return thread;
+            }
+        };
+    }
+
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            // Thread.ofVirtual().name(name + " ", 0).factory()
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + " ", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
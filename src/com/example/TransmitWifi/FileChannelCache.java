@@ -0,0 +1,268 @@
+package com.example.TransmitWifi;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 打开的FileChannel缓存, 以规范路径为键, 同一文件的并发回复共用一个通道.
+ * 回复只用transferTo和按位置读, 不改变通道的position; 引用计数为0的通道按空闲时间和最大数量关闭.
+ * 有空闲通道时由一个后台线程按空闲时间清理, 没有新请求时也会关闭
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class FileChannelCache {
+    private static final String TAG = "FileChannelCache";
+    /**
+     * default count of channels kept open
+     */
+    static final int DEFAULT_MAX_OPEN = 64;
+    /**
+     * default time an unused channel is kept open
+     */
+    static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+
+    private final int mMaxOpen;
+    private final long mIdleTimeout;
+    /**
+     * LRU of the open channels, guarded by itself
+     */
+    private final LinkedHashMap<String, Handle> mOpen = new LinkedHashMap<String, Handle>(16, 0.75f, true);
+    /**
+     * closes idle channels while there are any, guarded by mOpen
+     */
+    private Thread mSweeper;
+
+    /**
+     * 构造函数
+     * @param maxOpen channels kept open at most, exceeded only while all of them are in use
+     * @param idleTimeoutMs time an unused channel is kept open
+     */
+    FileChannelCache(int maxOpen, long idleTimeoutMs) {
+        mMaxOpen = maxOpen;
+        mIdleTimeout = idleTimeoutMs;
+    }
+
+    /**
+     * 获得文件的共享通道, 用完后关闭返回的Lease
+     * @param file the file to open
+     * @param key canonical path of the file
+     * @param version etag of the file, a new version is opened again
+     * @return lease of the channel
+     */
+    Lease acquire(File file, String key, String version) throws IOException {
+        List<Handle> closing = new ArrayList<Handle>();
+        try {
+            synchronized (mOpen) {
+                Handle handle = mOpen.get(key);
+                if (handle != null && handle.mVersion.equals(version)) {
+                    handle.mRefCount++;
+                    evict(closing);
+                    return new Lease(handle);
+                }
+                if (handle != null) {
+                    mOpen.remove(key);
+                    retire(handle, closing);
+                }
+                evict(closing);
+            }
+            FileChannel channel = new FileInputStream(file).getChannel();
+            synchronized (mOpen) {
+                Handle handle = mOpen.get(key);
+                if (handle != null && handle.mVersion.equals(version)) {
+                    // opened by another request meanwhile
+                    NetWorkUtils.safeClose(channel);
+                    handle.mRefCount++;
+                    return new Lease(handle);
+                }
+                if (handle != null) {
+                    retire(handle, closing);
+                }
+                handle = new Handle(version, channel);
+                handle.mRefCount++;
+                mOpen.put(key, handle);
+                evict(closing);
+                return new Lease(handle);
+            }
+        } finally {
+            for (Handle handle : closing) {
+                NetWorkUtils.safeClose(handle.mChannel);
+            }
+        }
+    }
+
+    /**
+     * 关闭所有未使用的通道, 使用中的在释放后关闭
+     */
+    void closeAll() {
+        List<Handle> closing = new ArrayList<Handle>();
+        synchronized (mOpen) {
+            for (Handle handle : mOpen.values()) {
+                retire(handle, closing);
+            }
+            mOpen.clear();
+            if (mSweeper != null) {
+                mSweeper.interrupt();
+                mSweeper = null;
+            }
+        }
+        for (Handle handle : closing) {
+            NetWorkUtils.safeClose(handle.mChannel);
+        }
+    }
+
+    /**
+     * @return count of channels kept open
+     */
+    int size() {
+        synchronized (mOpen) {
+            return mOpen.size();
+        }
+    }
+
+    private void evict(List<Handle> closing) {
+        long now = now();
+        Iterator<Handle> it = mOpen.values().iterator();
+        while (it.hasNext()) {
+            Handle handle = it.next();
+            if (handle.mRefCount == 0 && (mOpen.size() > mMaxOpen || now - handle.mLastUsed >= mIdleTimeout)) {
+                it.remove();
+                closing.add(handle);
+            }
+        }
+    }
+
+    /**
+     * 调用时持有mOpen
+     * @return time until the next idle channel expires, -1 if none is idle
+     */
+    private long nextIdleExpiry() {
+        long now = now();
+        long next = -1;
+        for (Handle handle : mOpen.values()) {
+            if (handle.mRefCount == 0) {
+                long left = Math.max(0, handle.mLastUsed + mIdleTimeout - now);
+                next = next < 0 ? left : Math.min(next, left);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * 有空闲通道且清理线程未运行时启动它, 调用时持有mOpen
+     */
+    private void startSweeper() {
+        if (mSweeper != null || nextIdleExpiry() < 0) {
+            return;
+        }
+        mSweeper = new Thread("FileChannelCache Sweeper") {
+            @Override
+            public void run() {
+                List<Handle> closing = new ArrayList<Handle>();
+                try {
+                    while (true) {
+                        long wait;
+                        synchronized (mOpen) {
+                            if (mSweeper != this) {
+                                return;
+                            }
+                            evict(closing);
+                            wait = nextIdleExpiry();
+                            if (wait < 0) {
+                                mSweeper = null;
+                            }
+                        }
+                        for (Handle handle : closing) {
+                            NetWorkUtils.safeClose(handle.mChannel);
+                        }
+                        closing.clear();
+                        if (wait < 0) {
+                            return;
+                        }
+                        Thread.sleep(Math.max(1, wait));
+                    }
+                } catch (InterruptedException e) {
+                    ServerLog.d(TAG, "sweeper stopped");
+                }
+            }
+        };
+        mSweeper.setDaemon(true);
+        mSweeper.start();
+    }
+
+    private void retire(Handle handle, List<Handle> closing) {
+        handle.mRetired = true;
+        if (handle.mRefCount == 0) {
+            closing.add(handle);
+        }
+    }
+
+    private void release(Handle handle) {
+        List<Handle> closing = new ArrayList<Handle>();
+        synchronized (mOpen) {
+            handle.mRefCount--;
+            handle.mLastUsed = now();
+            if (handle.mRefCount == 0 && handle.mRetired) {
+                closing.add(handle);
+            }
+            evict(closing);
+            startSweeper();
+        }
+        for (Handle closed : closing) {
+            NetWorkUtils.safeClose(closed.mChannel);
+        }
+    }
+
+    /**
+     * 单调时钟, 不受系统时间修改影响
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    private static final class Handle {
+        private final String mVersion;
+        private final FileChannel mChannel;
+        private int mRefCount = 0;
+        private long mLastUsed = now();
+        private boolean mRetired = false;
+
+        Handle(String version, FileChannel channel) {
+            mVersion = version;
+            mChannel = channel;
+        }
+    }
+
+    /**
+     * 一次使用, close()释放引用, 可重复调用
+     */
+    final class Lease implements Closeable {
+        private final Handle mHandle;
+        private boolean mReleased = false;
+
+        private Lease(Handle handle) {
+            mHandle = handle;
+        }
+
+        FileChannel getChannel() {
+            return mHandle.mChannel;
+        }
+
+        @Override
+        public void close() {
+            synchronized (this) {
+                if (mReleased) {
+                    return;
+                }
+                mReleased = true;
+            }
+            release(mHandle);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 按请求路径缓存文件元数据: 规范路径, 大小, 修改时间, MIME类型和ETag.
+ * 超过重新验证间隔后只用lastModified()和length()确认文件未变, 304和HEAD请求基本不访问文件系统
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class FileMetaCache {
+    /**
+     * default time an entry is trusted without looking at the file
+     */
+    static final long DEFAULT_REVALIDATE_INTERVAL_MS = 2000;
+    private static final int MAX_ENTRIES = 1024;
+
+    private final Map<String, String> mMimeTypes;
+    private volatile long mRevalidateInterval = DEFAULT_REVALIDATE_INTERVAL_MS;
+    private volatile HashIndex mHashIndex;
+    /**
+     * LRU keyed by home dir and uri, guarded by itself
+     */
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, FileMetaCache.Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * 构造函数
+     * @param mimeTypes file extension to mime type
+     */
+    FileMetaCache(Map<String, String> mimeTypes) {
+        mMimeTypes = mimeTypes;
+    }
+
+    /**
+     * @param intervalMs time an entry is trusted without looking at the file, 0 to check on every request
+     */
+    void setRevalidateInterval(long intervalMs) {
+        mRevalidateInterval = intervalMs;
+    }
+
+    /**
+     * 设置摘要索引, 已索引的文件以SHA-256作为强ETag
+     * @param index the index, null to use the etags derived from path, mtime and size only
+     */
+    void setHashIndex(HashIndex index) {
+        mHashIndex = index;
+        invalidate();
+    }
+
+    /**
+     * 清空缓存, 用于文件被替换后立即生效
+     */
+    void invalidate() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    /**
+     * 获得文件元数据, 过期的条目先重新验证
+     * @param homeDir root directory of the server
+     * @param uri request path, already checked for "../"
+     * @return entry of the file, also for files which do not exist
+     */
+    Entry lookup(File homeDir, String uri) throws IOException {
+        return lookup(homeDir.getPath() + '\0' + uri, new File(homeDir, uri));
+    }
+
+    /**
+     * 获得不在根目录下的文件的元数据, 如共享集合中的文件
+     * @param file absolute path of the file
+     * @return entry of the file, also for files which do not exist
+     */
+    Entry lookup(File file) throws IOException {
+        return lookup('\0' + file.getPath(), file);
+    }
+
+    private Entry lookup(String key, File file) throws IOException {
+        Entry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+        }
+        long now = System.currentTimeMillis();
+        if (entry != null) {
+            if (now - entry.mCheckedAt < mRevalidateInterval) {
+                return strengthen(key, entry);
+            }
+            if (entry.isUnchanged()) {
+                entry.mCheckedAt = now;
+                return strengthen(key, entry);
+            }
+        }
+        entry = strengthen(null, load(file, now));
+        synchronized (mEntries) {
+            mEntries.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * 索引中已有文件的摘要时换用摘要作为ETag
+     * @param key key of a cached entry to replace, null if the caller caches the result
+     */
+    private Entry strengthen(String key, Entry entry) {
+        HashIndex index = mHashIndex;
+        if (index == null || entry.mStrongEtag || !entry.mExists || entry.mIsDirectory) {
+            return entry;
+        }
+        String digest = index.digestOf(entry.mCanonicalPath, entry.mLength, entry.mLastModified);
+        if (digest == null) {
+            return entry;
+        }
+        Entry strong = new Entry(entry.mFile, entry.mCanonicalPath, true, false, entry.mLength, entry.mLastModified,
+                entry.mMimeType, digest, true, entry.mCheckedAt);
+        if (key != null) {
+            synchronized (mEntries) {
+                mEntries.put(key, strong);
+            }
+        }
+        return strong;
+    }
+
+    private Entry load(File f, long now) throws IOException {
+        if (!f.exists()) {
+            return new Entry(f, null, false, false, 0, 0, null, null, false, now);
+        }
+        String canonicalPath = f.getCanonicalPath();
+        long lastModified = f.lastModified();
+        long length = f.length();
+        // Get MIME type from file name extension, if possible
+        String mime = null;
+        int dot = canonicalPath.lastIndexOf('.');
+        if (dot >= 0) {
+            mime = mMimeTypes.get(canonicalPath.substring(dot + 1).toLowerCase());
+        }
+        if (mime == null) {
+            mime = HTTPServerDaemon.MIME_DEFAULT_BINARY;
+        }
+        String etag = Integer.toHexString((f.getAbsolutePath() + lastModified + "" + length).hashCode());
+        return new Entry(f, canonicalPath, true, f.isDirectory(), length, lastModified, mime, etag, false, now);
+    }
+
+    /**
+     * 一个文件的元数据, 除验证时间外不可变
+     */
+    static final class Entry {
+        final File mFile;
+        final String mCanonicalPath;
+        final boolean mExists;
+        final boolean mIsDirectory;
+        final long mLength;
+        final long mLastModified;
+        final String mMimeType;
+        final String mEtag;
+        /**
+         * true if mEtag is the SHA-256 of the content, see HashIndex
+         */
+        final boolean mStrongEtag;
+        private volatile long mCheckedAt;
+        private volatile String mContentKey;
+
+        Entry(File file, String canonicalPath, boolean exists, boolean isDirectory, long length, long lastModified,
+              String mimeType, String etag, boolean strongEtag, long checkedAt) {
+            mFile = file;
+            mCanonicalPath = canonicalPath;
+            mExists = exists;
+            mIsDirectory = isDirectory;
+            mLength = length;
+            mLastModified = lastModified;
+            mMimeType = mimeType;
+            mEtag = etag;
+            mStrongEtag = strongEtag;
+            mCheckedAt = checkedAt;
+        }
+
+        /**
+         * 这一版本内容的键, 派生数据(压缩版本, 分块哈希)按它缓存. 弱ETag只有32位, 不同文件可能相同;
+         * 这里已索引时用内容的SHA-256, 否则用规范路径, 大小和修改时间的SHA-256
+         * @return 64 lower case hex digits, also usable as a file name
+         */
+        String contentKey() {
+            if (mStrongEtag) {
+                return mEtag;
+            }
+            String key = mContentKey;
+            if (key == null) {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    key = HashIndex.toHex(digest.digest((mCanonicalPath + '\0' + mLength + '\0' + mLastModified)
+                            .getBytes("UTF-8")));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                } catch (UnsupportedEncodingException e) {
+                    throw new IllegalStateException(e);
+                }
+                mContentKey = key;
+            }
+            return key;
+        }
+
+        /**
+         * lastModified() is 0 for a missing file, so a deleted or created file is noticed as well
+         */
+        private boolean isUnchanged() {
+            return mFile.lastModified() == mLastModified && (!mExists || mFile.length() == mLength);
+        }
+    }
+}
@@ -2,10 +2,14 @@ package com.example.TransmitWifi;
 
 import java.io.*;
 import java.net.*;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.text.SimpleDateFormat;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
-import android.util.Log;
 
 /**
  * http 服务抽象类
@@ -26,11 +30,87 @@ public abstract class HTTPServerDaemon {
      * mime type  binary
      */
     public static final String MIME_DEFAULT_BINARY = "application/octet-stream";
+    /**
+     * default count of event loop threads used by the nio engine
+     */
+    public static final int DEFAULT_EVENT_LOOP_COUNT = 2;
+    /**
+     * default idle time before a keep-alive connection is closed
+     */
+    public static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 30 * 1000;
+    /**
+     * default time from the first byte of a request to the end of its header
+     */
+    public static final int DEFAULT_HEADER_TIMEOUT_MS = 10 * 1000;
+    /**
+     * default rate below which a transfer is considered stalled
+     */
+    public static final int DEFAULT_MIN_TRANSFER_RATE = 1024;
+    /**
+     * default time the transfer rate is measured over
+     */
+    public static final int DEFAULT_MIN_RATE_WINDOW_MS = 15 * 1000;
+    /**
+     * resolution of the connection timeouts
+     */
+    static final int TIMER_TICK_MS = 100;
+    static final int TIMER_SLOTS = 512;
+    /**
+     * default count of requests served on one connection
+     */
+    public static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+    /**
+     * default count of worker threads kept for the blocking engine
+     */
+    public static final int DEFAULT_CORE_WORKERS = 4;
+    /**
+     * default max count of worker threads, i.e. connections served at the same time
+     */
+    public static final int DEFAULT_MAX_WORKERS = 32;
+    /**
+     * default count of accepted connections waiting for a worker
+     */
+    public static final int DEFAULT_WORKER_QUEUE_SIZE = 32;
+    /**
+     * seconds a client is asked to wait when the server is saturated
+     */
+    public static final int RETRY_AFTER_SECONDS = 5;
+    /**
+     * default size of the chunks a body of unknown length is sent in
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    /**
+     * default path answered with the server metrics instead of serve()
+     */
+    public static final String DEFAULT_METRICS_URI = "/_metrics";
 
     private final InetAddress mINetAddress;
     private final int mPort;
     private ServerSocket mServerSocket;
     private Thread mListenThread;
+    private Engine mEngine = Engine.BLOCKING;
+    private int mEventLoopCount = DEFAULT_EVENT_LOOP_COUNT;
+    private volatile NioServerEngine mNioEngine;
+    private int mKeepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+    private int mHeaderTimeout = DEFAULT_HEADER_TIMEOUT_MS;
+    private int mMinTransferRate = DEFAULT_MIN_TRANSFER_RATE;
+    private int mMinRateWindow = DEFAULT_MIN_RATE_WINDOW_MS;
+    private int mMaxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+    private int mCoreWorkers = DEFAULT_CORE_WORKERS;
+    private int mMaxWorkers = DEFAULT_MAX_WORKERS;
+    private int mWorkerQueueSize = DEFAULT_WORKER_QUEUE_SIZE;
+    private OverloadPolicy mOverloadPolicy = OverloadPolicy.SERVICE_UNAVAILABLE;
+    private ExecutionMode mExecutionMode = ExecutionMode.PLATFORM;
+    private ThreadPool mWorkerPool;
+    private TimerWheel mTimerWheel;
+    private Thread mTimerThread;
+    /**
+     * every connection takes a flow of it, so limits set later reach the open connections too
+     */
+    private final BandwidthScheduler mBandwidth = new BandwidthScheduler(0, 0);
+    private final ServerMetrics mMetrics = new ServerMetrics();
+    private volatile String mMetricsUri = DEFAULT_METRICS_URI;
+    private volatile File mUploadDir = new File(System.getProperty("java.io.tmpdir"), "TransmitWifi-uploads");
     private static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
     /**
      *构造函数
@@ -44,28 +124,206 @@ public abstract class HTTPServerDaemon {
 
 
     private void doWithClientConnect(final InputStream inputStream, final Socket finalAccept) {
-        Thread task = new Thread() {
+        Runnable task = new Runnable() {
             @Override
             public void run() {
                 OutputStream outputStream = null;
+                HTTPSession session = null;
+                ConnectionGuard guard = newGuard(mTimerWheel, finalAccept);
+                mMetrics.onConnectionOpened();
                 try {
                     outputStream = finalAccept.getOutputStream();
-                    HTTPSession session = new HTTPSession(inputStream, outputStream);
-                    Log.i(TAG, "new a session for the http server");
+                    // the socket comes from a ServerSocketChannel, so its channel allows sendfile
+                    WritableByteChannel outputChannel = finalAccept.getChannel() != null
+                            ? finalAccept.getChannel() : Channels.newChannel(outputStream);
+                    session = new HTTPSession(inputStream, outputChannel);
+                    session.setGuard(guard);
+                    ServerLog.d(TAG, "new a session for the http server");
                     while (!finalAccept.isClosed()) {
                         session.execute();
                     }
                 } catch (IOException e) {
-                    e.printStackTrace();
+                    ServerLog.d(TAG, "connection closed: {}", e);
                 } finally {
+                    guard.close();
+                    if (session != null) {
+                        session.close();
+                    }
                     NetWorkUtils.safeClose(outputStream);
                     NetWorkUtils.safeClose(inputStream);
                     NetWorkUtils.safeClose(finalAccept);
+                    mMetrics.onConnectionClosed();
                 }
             }
         };
-        task.setName("HTTPServerDaemon Request Processor");
-        task.start();
+        if (!mWorkerPool.offerTasklet(task)) {
+            rejectConnection(finalAccept);
+        }
+    }
+
+    /**
+     * 线程池饱和时拒绝连接, 按设置直接关闭或回复503
+     */
+    private void rejectConnection(Socket socket) {
+        ServerLog.w(TAG, "worker pool saturated: {}", mWorkerPool);
+        mMetrics.onConnectionRejected();
+        if (mOverloadPolicy == OverloadPolicy.SERVICE_UNAVAILABLE && socket.getChannel() != null) {
+            Response r = new Response(Response.Status.SERVICE_UNAVAILABLE, MIME_PLAINTEXT, "SERVICE UNAVAILABLE: Server busy.");
+            r.addHeader("Retry-After", "" + RETRY_AFTER_SECONDS);
+            r.setKeepAlive(false);
+            // a fresh socket buffer takes the few bytes without blocking the listener
+            ResponseWriter writer = new ResponseWriter(socket.getChannel(), null, mMetrics);
+            try {
+                writer.offer(r);
+                writer.flush();
+            } catch (IOException e) {
+                ServerLog.d(TAG, "rejected connection closed: {}", e);
+            } finally {
+                writer.close();
+            }
+        }
+        NetWorkUtils.safeClose(socket);
+    }
+
+    /**
+     * 设置连接处理引擎, 需在start()之前调用
+     * @param engine BLOCKING uses a thread per connection, NIO multiplexes connections on event loops
+     */
+    public void setEngine(Engine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * 设置nio引擎的事件循环线程数
+     * @param count count of selector threads, at least one
+     */
+    public void setEventLoopCount(int count) {
+        mEventLoopCount = Math.max(1, count);
+    }
+
+    /**
+     * 设置空闲的持久连接被关闭前的等待时间
+     * @param timeoutMs idle time in milliseconds, 0 waits forever
+     */
+    public void setKeepAliveTimeout(int timeoutMs) {
+        mKeepAliveTimeout = Math.max(0, timeoutMs);
+    }
+
+    /**
+     * 设置读完请求头的期限, 从请求的第一个字节开始计算, 用于关闭只发送部分请求头的连接
+     * @param timeoutMs time in milliseconds, 0 waits forever
+     */
+    public void setHeaderTimeout(int timeoutMs) {
+        mHeaderTimeout = Math.max(0, timeoutMs);
+    }
+
+    /**
+     * 设置传输的最低速率, 读请求体或写回复时一个窗口内收发少于该速率的连接被关闭. 因限速而等待的窗口不计
+     * @param bytesPerSecond minimum rate, 0 disables the check
+     * @param windowMs time the rate is measured over
+     */
+    public void setMinTransferRate(int bytesPerSecond, int windowMs) {
+        mMinTransferRate = Math.max(0, bytesPerSecond);
+        mMinRateWindow = Math.max(TIMER_TICK_MS, windowMs);
+    }
+
+    /**
+     * 为新连接创建超时, 使用当前的设置
+     * @param wheel timer wheel of the thread or event loop serving the connection
+     * @param connection closed when a timeout expires
+     */
+    ConnectionGuard newGuard(TimerWheel wheel, Closeable connection) {
+        return new ConnectionGuard(wheel, connection, mMetrics, mKeepAliveTimeout, mHeaderTimeout,
+                mMinTransferRate, mMinRateWindow);
+    }
+
+    /**
+     * 设置一个连接上最多处理的请求数
+     * @param count max requests per connection, 1 disables keep-alive
+     */
+    public void setMaxKeepAliveRequests(int count) {
+        mMaxKeepAliveRequests = Math.max(1, count);
+    }
+
+    /**
+     * 设置工作线程池, 需在start()之前调用. 阻塞引擎每个连接占一个线程, nio引擎每个正在处理的请求占一个线程
+     * @param coreWorkers threads kept while idle
+     * @param maxWorkers threads at most, i.e. connections or nio requests served at the same time
+     * @param queueSize connections or nio requests waiting for a thread, more are rejected
+     */
+    public void setWorkerPool(int coreWorkers, int maxWorkers, int queueSize) {
+        mCoreWorkers = coreWorkers;
+        mMaxWorkers = maxWorkers;
+        mWorkerQueueSize = Math.max(1, queueSize);
+    }
+
+    /**
+     * 设置线程池饱和时的处理方式
+     * @param policy CLOSE drops the connection, SERVICE_UNAVAILABLE answers 503 with Retry-After first
+     */
+    public void setOverloadPolicy(OverloadPolicy policy) {
+        mOverloadPolicy = policy;
+    }
+
+    /**
+     * 设置阻塞式引擎中会话运行的线程类型, 在start()之前调用.
+     * 虚拟线程时最大线程数即同时处理的连接数, 不再排队
+     * @param mode PLATFORM (default) or VIRTUAL, VIRTUAL falls back to PLATFORM where not supported
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        mExecutionMode = mode;
+    }
+
+    /**
+     * 设置发送限速, 可在运行中修改. 全局带宽按Response.setBandwidthWeight()的权重在活动的传输间公平分配,
+     * 超出配额的连接等待令牌而不占用CPU
+     * @param totalBytesPerSecond limit of all connections together, 0 for unlimited
+     * @param connectionBytesPerSecond limit of each connection, 0 for unlimited
+     */
+    public void setBandwidthLimit(long totalBytesPerSecond, long connectionBytesPerSecond) {
+        mBandwidth.setLimits(totalBytesPerSecond, connectionBytesPerSecond);
+    }
+
+    /**
+     * 设置服务器日志的输出级别, 低于该级别的日志不生成消息
+     * @param level one of android.util.Log.VERBOSE ... Log.ERROR, default Log.INFO, Log.ASSERT turns logging off
+     */
+    public static void setLogLevel(int level) {
+        ServerLog.setLevel(level);
+    }
+
+    /**
+     * 获得运行指标, 用snapshot()读取当前值
+     * @return metrics of this server
+     */
+    public ServerMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * 设置返回运行指标的路径, 该路径的请求不经过serve().
+     * 默认返回JSON, 参数format=prometheus时返回Prometheus文本格式
+     * @param uri path like DEFAULT_METRICS_URI, null to disable
+     */
+    public void setMetricsUri(String uri) {
+        mMetricsUri = uri;
+    }
+
+    /**
+     * 设置上传文件的临时目录, 请求结束时其中未被serve()移走的文件被删除.
+     * 与保存上传文件的目录在同一文件系统上时serve()可以直接改名
+     * @param dir directory for the temp files of uploads, created when needed
+     */
+    public void setUploadDir(File dir) {
+        mUploadDir = dir;
+    }
+
+    /**
+     * 获得工作线程池, 用于查看队列深度, 活动线程数和排队时间
+     * @return the pool running the connections or nio requests, null before start()
+     */
+    public ThreadPool getWorkerPool() {
+        return mWorkerPool;
     }
 
     /**
@@ -73,17 +331,36 @@ public abstract class HTTPServerDaemon {
      * @throws IOException if the socket is in use.
      */
     public void start() throws IOException {
-        mServerSocket = new ServerSocket();
-        mServerSocket.bind(new InetSocketAddress(mINetAddress, mPort));
+        if (mEngine == Engine.NIO) {
+            // the event loops only read and write, serve() runs on the workers
+            mWorkerPool = new ThreadPool(mCoreWorkers, mMaxWorkers, mWorkerQueueSize,
+                    "HTTPServerDaemon Request Processor", mExecutionMode);
+            mWorkerPool.start();
+            mNioEngine = new NioServerEngine(this, mEventLoopCount);
+            try {
+                mNioEngine.start(new InetSocketAddress(mINetAddress, mPort));
+            } catch (IOException e) {
+                mNioEngine = null;
+                mWorkerPool.stop();
+                throw e;
+            }
+            return;
+        }
+        mServerSocket = ServerSocketChannel.open().socket();
+        mServerSocket.bind(new InetSocketAddress(mINetAddress, mPort), NetWorkUtils.DEFAULT_BACKLOG);
+        mWorkerPool = new ThreadPool(mCoreWorkers, mMaxWorkers, mWorkerQueueSize,
+                "HTTPServerDaemon Request Processor", mExecutionMode);
+        mWorkerPool.start();
+        startTimer();
 
         mListenThread = new Thread() {
             @Override
             public void run() {
                 do {
                     try {
-                        Log.i(TAG, "wait for the connection accept ");
+                        ServerLog.v(TAG, "wait for the connection accept ");
                         final Socket finalAccept = mServerSocket.accept();
-                        Log.i(TAG, "get a connection ");
+                        ServerLog.v(TAG, "get a connection from {}", finalAccept.getRemoteSocketAddress(), null);
                         final InputStream inputStream = finalAccept.getInputStream();
 
                         if (inputStream == null) {
@@ -101,13 +378,44 @@ public abstract class HTTPServerDaemon {
         mListenThread.start();
     }
 
+    /**
+     * 阻塞引擎的超时由一个线程按tick推进时间轮, 连接线程只设置和取消超时
+     */
+    private void startTimer() {
+        final TimerWheel wheel = new TimerWheel(TIMER_TICK_MS, TIMER_SLOTS);
+        mTimerWheel = wheel;
+        mTimerThread = new Thread("HTTPServerDaemon Timer") {
+            @Override
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        Thread.sleep(wheel.millisToNextTick());
+                        wheel.expire();
+                    }
+                } catch (InterruptedException e) {
+                    ServerLog.d(TAG, "timer stopped");
+                }
+            }
+        };
+        mTimerThread.setDaemon(true);
+        mTimerThread.start();
+    }
+
     /**
      * 停止http server
      */
     public void stop() {
+        if (mNioEngine != null) {
+            mNioEngine.stop();
+            mNioEngine = null;
+            mWorkerPool.stop();
+            return;
+        }
         try {
             NetWorkUtils.safeClose(mServerSocket);
             mListenThread.join();
+            mWorkerPool.stop();
+            mTimerThread.interrupt();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -126,11 +434,34 @@ public abstract class HTTPServerDaemon {
                                    Map<String, String> files);
 
     protected Response serve(HTTPSession session) {
-        String uri = session.getUri();
         Method method = session.getMethod();
-        Map<String, String> parms = session.getParms();
-        Map<String, String> headers = session.getHeaders();
-        return serve(uri, method, headers, parms, null);
+        Map<String, String> files = Collections.emptyMap();
+        if (Method.PUT == method || Method.POST == method) {
+            files = new HashMap<String, String>();
+            try {
+                session.parseBody(files);
+            } catch (IOException e) {
+                return new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT,
+                        "SERVER INTERNAL ERROR: IOException: " + e.getMessage());
+            } catch (ResponseException re) {
+                return new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+            }
+        }
+        return serve(session.getUri(), method, session.getHeaders(), session.getParms(), files);
+    }
+
+    /**
+     * 是否接收该请求的请求体, 不接收时files为空, 回复后关闭连接而不读取请求体.
+     * nio引擎在调用serve()之前接收, 阻塞引擎在serve()中调用HTTPSession.parseBody()时接收
+     * @param session session whose request header has been parsed
+     * @return true to receive POST and PUT bodies into temp files
+     */
+    protected boolean acceptsUpload(HTTPSession session) {
+        return true;
+    }
+
+    HTTPSession newSession(InputStream inputStream, WritableByteChannel outputChannel) {
+        return new HTTPSession(inputStream, outputChannel);
     }
 
     protected String decodePercent(String str) {
@@ -138,7 +469,7 @@ public abstract class HTTPServerDaemon {
         try {
             decoded = URLDecoder.decode(str, "UTF8");
         } catch (UnsupportedEncodingException ignored) {
-            Log.i(TAG, "decode percent failed");
+            ServerLog.w(TAG, "decode percent failed");
         }
         return decoded;
     }
@@ -200,6 +531,34 @@ public abstract class HTTPServerDaemon {
         }
     }
 
+    /**
+     * 连接处理引擎
+     */
+    public enum Engine {
+        /**
+         * one blocking thread per connection
+         */
+        BLOCKING,
+        /**
+         * non-blocking selector event loops shared by all connections
+         */
+        NIO
+    }
+
+    /**
+     * 工作线程池饱和时对新连接的处理方式
+     */
+    public enum OverloadPolicy {
+        /**
+         * close the connection at once
+         */
+        CLOSE,
+        /**
+         * answer 503 with Retry-After, then close
+         */
+        SERVICE_UNAVAILABLE
+    }
+
     // ------------------------------------------------------------------------------- //
 
     /**
@@ -217,7 +576,7 @@ public abstract class HTTPServerDaemon {
         /**
          * Data of the response, may be null.
          */
-        private InputStream mData;
+        private ResponseBody mBody;
         /**
          * Headers for the HTTP response. Use addHeader() to add lines.
          */
@@ -226,6 +585,28 @@ public abstract class HTTPServerDaemon {
          * The request method that spawned this response.
          */
         private Method mRequestMethod;
+        /**
+         * state of a non-blocking write, see beginWrite()
+         */
+        private long mPending;
+        private boolean mSendBody;
+        private boolean mKeepAlive = false;
+        /**
+         * HTTP/1.0 clients do not understand chunked encoding
+         */
+        private boolean mRequestHttp10 = false;
+        private boolean mChunked;
+        private int mChunkSize = DEFAULT_CHUNK_SIZE;
+        /**
+         * header lines encoded ahead, e.g. by the content cache
+         */
+        private byte[] mFixedHeader;
+        private int mBandwidthWeight = 1;
+        /**
+         * System.nanoTime() when the request was parsed, 0 if unknown
+         */
+        private long mRequestStart;
+        private String mRequestUri;
         /**
          * 构造函数: response = HTTP_OK, mime = MIME_HTML and your supplied message
          * @param msg The message will return to the client
@@ -235,7 +616,7 @@ public abstract class HTTPServerDaemon {
         }
 
         /**
-         * 构造函数
+         * 构造函数, 长度未知的数据流以chunked编码发送, 见setData()
          * @param status Status of response
          * @param mimeType the type of input stream
          * @param data the content input
@@ -243,7 +624,48 @@ public abstract class HTTPServerDaemon {
         public Response(Status status, String mimeType, InputStream data) {
             this.mStatus = status;
             this.mMimeType = mimeType;
-            this.mData = data;
+            setData(data);
+        }
+
+        /**
+         * 构造函数, 长度已知的数据流, 可超过2GB.
+         * 长度未知时边读边发, 以Transfer-Encoding: chunked发送, HTTP/1.0的客户端则发送到流结束后关闭连接.
+         * nio引擎在事件循环中读取数据流, 这时read()不能阻塞等待数据, 例如由另一线程写入的PipedInputStream
+         * @param status Status of response
+         * @param mimeType the type of input stream
+         * @param data the content input
+         * @param length count of bytes data will deliver, -1 if unknown
+         */
+        public Response(Status status, String mimeType, InputStream data, long length) {
+            this.mStatus = status;
+            this.mMimeType = mimeType;
+            this.mBody = length >= 0 ? new ResponseBody.StreamBody(data, length) : new ResponseBody.ChunkedBody(data);
+        }
+
+        /**
+         * 构造函数, 文件区间以零拷贝方式发送
+         * @param status Status of response
+         * @param mimeType the type of file
+         * @param channel opened file channel, closed when the response is done
+         * @param offset file offset of the first byte to send
+         * @param length count of bytes to send
+         */
+        public Response(Status status, String mimeType, FileChannel channel, long offset, long length) {
+            this.mStatus = status;
+            this.mMimeType = mimeType;
+            this.mBody = new ResponseBody.FileBody(channel, offset, length);
+        }
+
+        /**
+         * 构造函数, 用于服务器内部的消息体类型
+         * @param status Status of response
+         * @param mimeType the type of content
+         * @param body the body, closed when the response is done
+         */
+        Response(Status status, String mimeType, ResponseBody body) {
+            this.mStatus = status;
+            this.mMimeType = mimeType;
+            this.mBody = body;
         }
 
         /**
@@ -256,12 +678,82 @@ public abstract class HTTPServerDaemon {
             this.mStatus = status;
             this.mMimeType = mimeType;
             try {
-                this.mData = txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null;
+                setData(txt != null ? new ByteArrayInputStream(txt.getBytes("UTF-8")) : null);
             } catch (java.io.UnsupportedEncodingException uee) {
                 uee.printStackTrace();
             }
         }
 
+        /**
+         * 设置长度未知的消息体每块的大小
+         * @param chunkSize max count of body bytes per chunk
+         */
+        public void setChunkSize(int chunkSize) {
+            mChunkSize = Math.max(1, chunkSize);
+        }
+
+        /**
+         * 设置限速时该回复在活动传输之间分得带宽的权重, 见setBandwidthLimit()
+         * @param weight share relative to the other transfers, default 1
+         */
+        public void setBandwidthWeight(int weight) {
+            mBandwidthWeight = Math.max(1, weight);
+        }
+
+        int getBandwidthWeight() {
+            return mBandwidthWeight;
+        }
+
+        void setRequestStart(long nanos) {
+            mRequestStart = nanos;
+        }
+
+        long getRequestStart() {
+            return mRequestStart;
+        }
+
+        void setRequestUri(String uri) {
+            mRequestUri = uri;
+        }
+
+        /**
+         * @return "METHOD uri" of the request, for logging
+         */
+        String describeRequest() {
+            return mRequestMethod + " " + mRequestUri;
+        }
+
+        /**
+         * @return body bytes written so far
+         */
+        long getBodyBytesSent() {
+            return mBody != null ? mBody.getBytesSent() : 0;
+        }
+
+        /**
+         * @return body bytes written or read in preparation of writing, for the transfer rate check
+         */
+        long getBodyProgress() {
+            return mBody != null ? mBody.getBytesSent() + mBody.getBytesPrepared() : 0;
+        }
+
+        /**
+         * @param count body bytes written together with the header
+         */
+        void addGatheredBytes(long count) {
+            if (mBody != null) {
+                mBody.addSent(count);
+            }
+        }
+
+        /**
+         * 设置预先编码的回复头行, 和addHeader()的参数一起发送
+         * @param lines encoded header lines, each ending with CRLF, shared and not modified
+         */
+        void setFixedHeader(byte[] lines) {
+            mFixedHeader = lines;
+        }
+
         /**
          * 回复中增加参数
          * @param name name of parameter
@@ -271,65 +763,146 @@ public abstract class HTTPServerDaemon {
             mHeader.put(name, value);
         }
 
-        private void send(OutputStream outputStream) {
-            String mime = mMimeType;
-            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
-            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
-
+        /**
+         * 将回复头写入缓冲区
+         * @param dst buffer in write mode
+         * @return false if dst is too small, dst is left unchanged then
+         */
+        boolean encodeHeader(ByteBuffer dst) {
+            if (mStatus == null) {
+                throw new Error("sendResponse(): Status can't be null.");
+            }
+            int start = dst.position();
             try {
-                if (mStatus == null) {
-                    throw new Error("sendResponse(): Status can't be null.");
+                dst.put(HeaderEncoder.statusLine(mStatus));
+                if (mMimeType != null) {
+                    dst.put(HeaderEncoder.contentTypeLine(mMimeType));
                 }
-                PrintWriter pw = new PrintWriter(outputStream);
-                pw.print("HTTP/1.1 " + mStatus.getDescription() + " \r\n");
-
-                if (mime != null) {
-                    pw.print("Content-Type: " + mime + "\r\n");
+                if (mHeader.get("Date") == null) {
+                    dst.put(HeaderEncoder.dateLine());
                 }
-
-                if (mHeader == null || mHeader.get("Date") == null) {
-                    pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+                for (Map.Entry<String, String> entry : mHeader.entrySet()) {
+                    HeaderEncoder.putHeader(dst, entry.getKey(), entry.getValue());
                 }
-
-                if (mHeader != null) {
-                    for (String key : mHeader.keySet()) {
-                        String value = mHeader.get(key);
-                        pw.print(key + ": " + value + "\r\n");
-                    }
+                if (mFixedHeader != null) {
+                    dst.put(mFixedHeader);
                 }
-
-                int pending = mData != null ? mData.available() : -1; 
-                // This is to support partial sends, see serveFile()
-                Log.i(TAG, "pending :" + pending);
-                if (pending > 0) {
-                    pw.print("Connection: keep-alive\r\n");
-                    pw.print("Content-Length: " + pending + "\r\n");
+                dst.put(mKeepAlive ? HeaderEncoder.CONNECTION_KEEP_ALIVE : HeaderEncoder.CONNECTION_CLOSE);
+                if (mChunked) {
+                    dst.put(HeaderEncoder.TRANSFER_ENCODING_CHUNKED);
+                } else if (mPending >= 0 && mayHaveBody() && mHeader.get("Content-Length") == null) {
+                    // This is to support partial sends, see serveFile()
+                    dst.put(HeaderEncoder.CONTENT_LENGTH);
+                    HeaderEncoder.putDecimal(dst, mPending);
+                    dst.put(HeaderEncoder.CRLF);
                 }
+                dst.put(HeaderEncoder.CRLF);
+                return true;
+            } catch (BufferOverflowException e) {
+                dst.position(start);
+                return false;
+            }
+        }
 
-                pw.print("\r\n");
-                pw.flush();
-
-                if (mRequestMethod != Method.HEAD && mData != null) {
-                    final int bufferSize = 16384; //16K
-                    byte[] buff = new byte[bufferSize];
-                    while (pending > 0) {
-                        Log.i(TAG, "read begin");
-                        int read = mData.read(buff, 0, ((pending > bufferSize) ? bufferSize : pending));
-                        Log.i(TAG, "read end");
-                        Log.i(TAG, "read =" + read);
-                        if (read <= 0) {
-                            break;
-                        }
-                        outputStream.write(buff, 0, read);
+        /**
+         * 将回复头写入新分配的缓冲区, 用于超出批量缓冲区的回复头
+         * @param sizeHint size to start with
+         * @return header in read mode
+         */
+        ByteBuffer encodeHeader(int sizeHint) {
+            ByteBuffer header = ByteBuffer.allocate(sizeHint);
+            while (!encodeHeader(header)) {
+                header = ByteBuffer.allocate(header.capacity() * 2);
+            }
+            header.flip();
+            return header;
+        }
 
-                        pending -= read;
-                    }
-                }
-                outputStream.flush();
-                NetWorkUtils.safeClose(mData);
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-                // Couldn't write? No can do.
+        private boolean mayHaveBody() {
+            return mStatus != Status.NO_CONTENT && mStatus != Status.NOT_MODIFIED;
+        }
+
+        /**
+         * 准备发送, 确定消息体长度, 之后由encodeHeader()生成回复头
+         */
+        void beginWrite() {
+            mPending = mBody != null ? mBody.length() : 0;
+            mChunked = mPending < 0 && !mRequestHttp10 && mayHaveBody();
+            mSendBody = mRequestMethod != Method.HEAD && mBody != null && mPending != 0 && mayHaveBody();
+            if (mPending < 0) {
+                ((ResponseBody.ChunkedBody) mBody).start(mChunked, mChunkSize);
+            }
+        }
+
+        boolean hasBodyToSend() {
+            return mSendBody;
+        }
+
+        /**
+         * 消息体长度是否已知或分块发送, 否则只能以关闭连接结束回复
+         * @return true if the receiver can find the end of the response
+         */
+        boolean isLengthKnown() {
+            return mBody == null || mBody.length() >= 0 || !mRequestHttp10;
+        }
+
+        void setRequestHttp10(boolean http10) {
+            mRequestHttp10 = http10;
+        }
+
+        /**
+         * 小的消息体整个读入内存, 以便和回复头聚集写出
+         * @return body in read mode, null if there is no body to send or it is too large
+         */
+        ByteBuffer gatherBody() throws IOException {
+            return mSendBody ? mBody.gatherBuffer() : null;
+        }
+
+        /**
+         * 向通道写出尽可能多的消息体数据
+         * @param channel the socket channel of the connection
+         * @return true if the whole body has been written
+         */
+        boolean writeBody(WritableByteChannel channel) throws IOException {
+            return !mSendBody || mBody.writeTo(channel);
+        }
+
+        /**
+         * 向通道写出不超过quota字节的消息体, 之后用takeUnusedQuota()取回剩余的配额
+         * @param channel the socket channel of the connection
+         * @param quota bytes which may be written
+         * @return true if the whole body has been written
+         */
+        boolean writeBody(WritableByteChannel channel, long quota) throws IOException {
+            if (!mSendBody) {
+                return true;
+            }
+            mBody.setQuota(quota);
+            return mBody.writeTo(channel);
+        }
+
+        /**
+         * @return bytes of the last quota not written, the body is unlimited again afterwards
+         */
+        long takeUnusedQuota() {
+            if (!mSendBody) {
+                return 0;
+            }
+            long unused = mBody.getQuota();
+            mBody.setQuota(Long.MAX_VALUE);
+            return unused;
+        }
+
+        void setKeepAlive(boolean keepAlive) {
+            mKeepAlive = keepAlive;
+        }
+
+        /**
+         * 释放消息体
+         */
+        void close() {
+            if (mBody != null) {
+                mBody.close();
             }
         }
 
@@ -371,15 +944,22 @@ public abstract class HTTPServerDaemon {
          * @return input stream of content
          */
         public InputStream getData() {
-            return mData;
+            return mBody != null ? mBody.getInputStream() : null;
         }
 
         /**
-         * set content for response
+         * set content for response. 只有ByteArrayInputStream的长度是已知的, 其他数据流以chunked编码发送到流结束,
+         * 长度已知时用Response(Status, String, InputStream, long)
          * @param data input stream of content
          */
         public void setData(InputStream data) {
-            this.mData = data;
+            if (data == null) {
+                this.mBody = null;
+            } else if (data instanceof ByteArrayInputStream) {
+                this.mBody = new ResponseBody.StreamBody(data, ((ByteArrayInputStream) data).available());
+            } else {
+                this.mBody = new ResponseBody.ChunkedBody(data);
+            }
         }
 
         /**
@@ -446,6 +1026,14 @@ public abstract class HTTPServerDaemon {
              * status of http
              */
             NOT_FOUND(404, "Not Found"),
+            /**
+             * status of http
+             */
+            GONE(410, "Gone"),
+            /**
+             * status of http
+             */
+            PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
             /**
              * status of http
              */
@@ -453,7 +1041,11 @@ public abstract class HTTPServerDaemon {
             /**
              * status of http
              */
-            INTERNAL_ERROR(500, "Internal Server Error");
+            INTERNAL_ERROR(500, "Internal Server Error"),
+            /**
+             * status of http
+             */
+            SERVICE_UNAVAILABLE(503, "Service Unavailable");
             private final int mRequestStatus;
             private final String mDescription;
 
@@ -484,187 +1076,345 @@ public abstract class HTTPServerDaemon {
      * 处理http相关请求 i.e. parses the HTTP request and returns the response.
      */
     protected class HTTPSession {
-        private static final int BUFSIZE = 8192;
-
-        private InputStream mInputStream;
-        private final OutputStream mOutputStream;
-
-        private int mSplitByte;
-        private int mReadLength;
+        private final InputStream mInputStream;
+        private final WritableByteChannel mOutputChannel;
+        private final HttpRequestParser mParser = new HttpRequestParser();
+        private final ResponseWriter mWriter;
+        private final InputStream mBodyInputStream = new BodyInputStream();
 
         private String mUri;
         private Method mMethod;
-        private Map<String, String> mParameters;
+        private final Map<String, String> mParameters = new HashMap<String, String>();
         private Map<String, String> mHeaders;
+        private long mBodyRemaining = 0;
+        private long mRequestStart;
+        /**
+         * the header of the current request has been interpreted, see beginRequest()
+         */
+        private boolean mRequestBegun = false;
+        private UploadReceiver mUpload;
+        private int mRequestCount = 0;
+        private boolean mKeepAlive = true;
+        private ConnectionGuard mGuard;
 
-        public HTTPSession(InputStream inputStream, OutputStream outputStream) {
+        public HTTPSession(InputStream inputStream, WritableByteChannel outputChannel) {
             this.mInputStream = inputStream;
-            this.mOutputStream = outputStream;
+            this.mOutputChannel = outputChannel;
+            this.mWriter = new ResponseWriter(outputChannel, mBandwidth.newFlow(), mMetrics);
         }
 
+        /**
+         * @param guard timeouts of the connection, told about the progress of the session
+         */
+        void setGuard(ConnectionGuard guard) {
+            mGuard = guard;
+            mWriter.setGuard(guard);
+        }
+
+        /**
+         * 阻塞方式处理一个或多个请求. 已在缓冲区中的流水线请求依次回复, 回复头合并写出.
+         * 连接不再保持时关闭输出通道.
+         */
         public void execute() throws IOException {
+            boolean keepOpen = false;
             try {
-                // Read the first 8192 bytes.
-                // The full header should fit in here.
-                // Apache's default header limit is 8KB.
-                // Do NOT assume that a single read will get the entire header at once!
-                byte[] buf = new byte[BUFSIZE];
-                mSplitByte = 0;
-                mReadLength = 0;
-                int read = mInputStream.read(buf, 0, BUFSIZE);
-
-                if (read == -1) {
-                    // socket was been closed
-                    throw new SocketException();
-                }
-
-                while (read > 0) {
-                    mReadLength += read;
-                    mSplitByte = findHeaderEnd(buf, mReadLength);
-                    if (mSplitByte >  0) {
-                        break;
+                try {
+                    // The full header should fit in the parser buffer, Apache's default header limit is 8KB.
+                    // Do NOT assume that a single read will get the entire header at once!
+                    while (!parseRequest()) {
+                        if (mGuard != null) {
+                            if (hasPartialRequest()) {
+                                mGuard.headerStarted();
+                            } else {
+                                mGuard.awaitRequest();
+                            }
+                        }
+                        int read = mParser.fill(mInputStream);
+                        if (read == -1) {
+                            // socket was been closed
+                            throw new SocketException();
+                        }
+                        mMetrics.addBytesReceived(read);
                     }
-                    read = mInputStream.read(buf, mReadLength, BUFSIZE - mReadLength);
+                    do {
+                        send(nextResponse());
+                    } while (mKeepAlive && parseRequest());
+                } catch (ResponseException re) {
+                    send(errorResponse(re));
                 }
+                mWriter.flush();
+                keepOpen = mKeepAlive;
+            } finally {
+                if (!keepOpen) {
+                    mWriter.close();
+                    NetWorkUtils.safeClose(mOutputChannel);
+                }
+            }
+        }
 
-                if (mSplitByte < mReadLength) {
-                    ByteArrayInputStream splitInputStream = new ByteArrayInputStream(buf, mSplitByte, mReadLength - mSplitByte);
-                    SequenceInputStream sequenceInputStream = new SequenceInputStream(splitInputStream, mInputStream);
-                    mInputStream = sequenceInputStream;
+        private void send(Response r) throws IOException {
+            try {
+                while (!mWriter.offer(r)) {
+                    mWriter.flush();
                 }
-                mParameters = new HashMap<String, String>();
-                mHeaders = new HashMap<String, String>();
+            } catch (IOException e) {
+                r.close();
+                throw e;
+            }
+        }
 
-                BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, mReadLength)));
+        /**
+         * 从非阻塞通道读取请求数据
+         * @param channel socket channel of the connection
+         * @return count of bytes read, -1 at end of stream
+         */
+        int fill(ReadableByteChannel channel) throws IOException {
+            int read = mParser.fill(channel);
+            mMetrics.addBytesReceived(read);
+            if (mGuard != null) {
+                mGuard.progress(read);
+            }
+            return read;
+        }
 
-                Map<String, String> pre = new HashMap<String, String>();
-                decodeHeader(hin, pre, mParameters, mHeaders);
-                /**
-                 *Get client request method
-                 */
-                mMethod = Method.lookup(pre.get("method"));
+        /**
+         * @return true if part of the next request has arrived
+         */
+        boolean hasPartialRequest() {
+            return mParser.hasPartialRequest();
+        }
 
-                if (mMethod == null) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
-                }
-                /**
-                 *Get client request file
-                 */
-                mUri = pre.get("uri");
-                // Ok, now do the serve()
-                Response r = serve(this);
-
-                if (r == null) {
-                    throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
-                } else {
-                    r.setRequestMethod(mMethod);
-                    r.send(mOutputStream);
-                }
-            } catch (SocketException e) {
-                // throw it out to close socket object (finalAccept)
-                throw e;
-            } catch (IOException ioe) {
-                Response r = new Response(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
-                r.send(mOutputStream);
-                NetWorkUtils.safeClose(mOutputStream);
+        /**
+         * 解析已读到的数据
+         * @return true if a whole request header has arrived
+         */
+        boolean parseRequest() throws ResponseException {
+            return mParser.parse();
+        }
+
+        /**
+         * 为解析完的请求调用serve(), 出错时生成错误回复并结束连接
+         * @return response to send, never null
+         */
+        Response nextResponse() {
+            try {
+                return serveRequest();
             } catch (ResponseException re) {
-                Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
-                r.send(mOutputStream);
-                NetWorkUtils.safeClose(mOutputStream);
-            } finally {
-                Log.i(TAG, "##################finally##############");
+                return errorResponse(re);
             }
         }
 
-        private void decodeHeader(BufferedReader in, Map<String, String> pre, Map<String, String> parms, Map<String, String> headers)
-                throws ResponseException {
-            try {
-                // Read the request line
-                String inLine = in.readLine();
-                if (inLine == null) {
-                    return;
-                }
+        /**
+         * 生成错误回复, 之后关闭连接
+         * @param re the error
+         * @return response carrying the error message
+         */
+        Response errorResponse(ResponseException re) {
+            mKeepAlive = false;
+            mRequestBegun = false;
+            discardUpload();
+            Response r = new Response(re.getStatus(), MIME_PLAINTEXT, re.getMessage());
+            r.setKeepAlive(false);
+            return r;
+        }
 
-                StringTokenizer st = new StringTokenizer(inLine);
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
-                }
+        ResponseWriter getWriter() {
+            return mWriter;
+        }
 
-                pre.put("method", st.nextToken());
+        /**
+         * 最后一个回复发出后连接是否继续使用
+         * @return false if the connection should be closed after writing
+         */
+        boolean isKeepAlive() {
+            return mKeepAlive;
+        }
 
-                if (!st.hasMoreTokens()) {
-                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        /**
+         * 非阻塞方式接收已到达的上传数据, 在nextResponse()之前反复调用, 直到返回true
+         * @return true if the request body has been received or is left to serve()
+         */
+        boolean receiveBody() throws IOException, ResponseException {
+            beginRequest();
+            if (mUpload == null) {
+                if (!isUpload()) {
+                    return true;
                 }
+                startUpload();
+            }
+            int available = mBodyInputStream.available();
+            while (mBodyRemaining > 0 && available > 0) {
+                mUpload.receive(mBodyInputStream, available);
+                available = mBodyInputStream.available();
+            }
+            return mBodyRemaining == 0;
+        }
 
-                String uri = st.nextToken();
+        /**
+         * @return true while a request body is received before the request is served
+         */
+        boolean isReceivingBody() {
+            return mRequestBegun && mUpload != null;
+        }
 
-                // Decode parameters from the URI
-                int qmi = uri.indexOf('?');
-                if (qmi >= 0) {
-                    decodeParams(uri.substring(qmi + 1), parms);
-                    uri = decodePercent(uri.substring(0, qmi));
-                } else {
-                    uri = decodePercent(uri);
+        /**
+         * 接收POST/PUT的请求体. multipart表单中的文件和其他类型的请求体写入临时文件, 路径放入files,
+         * 表单字段放入参数. 临时文件在回复生成后删除, 需要保留时由serve()移走
+         * @param files receives field names, or UploadReceiver.CONTENT_KEY, mapped to temp file paths
+         * @throws ResponseException on a malformed or too large form
+         */
+        public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+            if (mUpload == null) {
+                if (!isUpload()) {
+                    return;
                 }
+                startUpload();
+            }
+            while (mBodyRemaining > 0) {
+                if (mUpload.receive(mBodyInputStream, mBodyRemaining) == -1) {
+                    throw new SocketException("connection closed during upload");
+                }
+            }
+            mUpload.finish();
+            if (mUpload.getFormBody() != null) {
+                String queryString = mParameters.get(QUERY_STRING_PARAMETER);
+                decodeParams(mUpload.getFormBody(), mParameters);
+                if (queryString != null) {
+                    mParameters.put(QUERY_STRING_PARAMETER, queryString);
+                }
+            }
+            mParameters.putAll(mUpload.getParms());
+            files.putAll(mUpload.getFiles());
+        }
 
-                // If there's another token, it's protocol version,
-                // followed by HTTP headers. Ignore version but parse headers.
-                // NOTE: this now forces header names lowercase since they are
-                // case insensitive and vary by client.
-                if (st.hasMoreTokens()) {
-                    String line = in.readLine();
-                    while (line != null && line.trim().length() > 0) {
-                        int p = line.indexOf(':');
-                        if (p >= 0) {
-                            headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
-                        }
-                        line = in.readLine();
-                    }
+        private boolean isUpload() {
+            return (mMethod == Method.POST || mMethod == Method.PUT) && mBodyRemaining > 0 && acceptsUpload(this);
+        }
+
+        private void startUpload() throws IOException, ResponseException {
+            mUpload = new UploadReceiver(mHeaders.get("content-type"), mUploadDir);
+            String expect = mHeaders.get("expect");
+            if (expect != null && expect.equalsIgnoreCase("100-continue") && mParser.available() == 0) {
+                // the client waits for this before sending the body, skipped if earlier responses are still pending
+                if (mWriter.offerContinue() || (mWriter.flush() && mWriter.offerContinue())) {
+                    mWriter.flush();
                 }
+            }
+        }
 
-                pre.put("uri", uri);
-            } catch (IOException ioe) {
-                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage(), ioe);
+        private void discardUpload() {
+            if (mUpload != null) {
+                mUpload.close();
+                mUpload = null;
             }
         }
 
-        private int findHeaderEnd(final byte[] buf, int rlen) {
-            int splitbyte = 0;
-            while (splitbyte + 3 < rlen) {
-                if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && buf[splitbyte + 2] == '\r' && buf[splitbyte + 3] == '\n') {
-                    return splitbyte + 4;
+        /**
+         * 连接关闭时释放未完成的上传
+         */
+        void close() {
+            discardUpload();
+        }
+
+        /**
+         * 解释请求头, 每个请求只做一次
+         */
+        private void beginRequest() throws ResponseException {
+            if (mRequestBegun) {
+                return;
+            }
+            mRequestStart = System.nanoTime();
+            mMethod = mParser.getMethod();
+            mUri = mParser.getUri();
+            mHeaders = mParser.getHeaders();
+            mParameters.clear();
+            if (mParser.getQueryString() != null) {
+                decodeParams(mParser.getQueryString(), mParameters);
+            }
+            mBodyRemaining = 0;
+            String contentLength = mHeaders.get("content-length");
+            if (contentLength != null) {
+                try {
+                    mBodyRemaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    mParser.consume();
+                    throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Bad Content-Length.");
                 }
-                splitbyte++;
             }
-            return 0;
+            mRequestBegun = true;
         }
 
-        private int[] getBoundaryPositions(ByteBuffer b, byte[] boundary) {
-            int matchcount = 0;
-            int matchbyte = -1;
-            List<Integer> matchbytes = new ArrayList<Integer>();
-            for (int i = 0; i < b.limit(); i++) {
-                if (b.get(i) == boundary[matchcount]) {
-                    if (matchcount == 0) {
-                        matchbyte = i;
-                    }
-                    matchcount++;
-                    if (matchcount == boundary.length) {
-                        matchbytes.add(matchbyte);
-                        matchcount = 0;
-                        matchbyte = -1;
-                    }
-                } else {
-                    i -= matchcount;
-                    matchcount = 0;
-                    matchbyte = -1;
-                }
+        private Response serveRequest() throws ResponseException {
+            beginRequest();
+            mRequestBegun = false;
+            mRequestCount++;
+            boolean keepAlive = wantsKeepAlive();
+            if (mGuard != null) {
+                // serve() may take its time, the body it reads is checked as a transfer
+                mGuard.pause();
+            }
+            // Ok, now do the serve()
+            String metricsUri = mMetricsUri;
+            Response r = metricsUri != null && metricsUri.equals(mUri) ? metricsResponse() : serve(this);
+            mParser.consume();
+            if (mBodyRemaining > 0) {
+                // a body the handler did not read, e.g. a refused upload, is not drained, the connection is closed instead
+                keepAlive = false;
+                mBodyRemaining = 0;
+            }
+            discardUpload();
+
+            if (r == null) {
+                throw new ResponseException(Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: Serve() returned a null response.");
+            }
+            r.setRequestMethod(mMethod);
+            r.setRequestHttp10(mParser.isHttp10());
+            r.setRequestStart(mRequestStart);
+            r.setRequestUri(mUri);
+            mKeepAlive = keepAlive && r.isLengthKnown();
+            r.setKeepAlive(mKeepAlive);
+            return r;
+        }
+
+        /**
+         * 运行指标的回复
+         */
+        private Response metricsResponse() {
+            ServerMetrics.Snapshot snapshot = mMetrics.snapshot();
+            Response r;
+            if ("prometheus".equals(mParameters.get("format"))) {
+                r = new Response(Response.Status.OK, "text/plain; version=0.0.4", snapshot.toPrometheus());
+            } else {
+                r = new Response(Response.Status.OK, "application/json", snapshot.toJson());
+            }
+            r.addHeader("Cache-Control", "no-cache");
+            return r;
+        }
+
+        private boolean wantsKeepAlive() {
+            if (mRequestCount >= mMaxKeepAliveRequests) {
+                return false;
+            }
+            String transferEncoding = mHeaders.get("transfer-encoding");
+            if (transferEncoding != null && !transferEncoding.equalsIgnoreCase("identity")) {
+                // the end of a chunked request body is not tracked
+                return false;
             }
-            int[] ret = new int[matchbytes.size()];
-            for (int i = 0; i < ret.length; i++) {
-                ret[i] = matchbytes.get(i);
+            String connection = mHeaders.get("connection");
+            if (mParser.isHttp10()) {
+                return connection != null && hasToken(connection, "keep-alive");
             }
-            return ret;
+            return connection == null || !hasToken(connection, "close");
+        }
+
+        private boolean hasToken(String value, String token) {
+            int length = token.length();
+            for (int i = 0; i + length <= value.length(); i++) {
+                if (value.regionMatches(true, i, token, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         /**
@@ -708,11 +1458,56 @@ public abstract class HTTPServerDaemon {
         }
 
         public final InputStream getInputStream() {
-            return mInputStream;
+            return mBodyInputStream;
+        }
+
+        /**
+         * 请求体输入流, 先读解析器缓冲区中剩余的数据, 再读socket, 以Content-Length为界
+         */
+        private class BodyInputStream extends InputStream {
+            private final byte[] mOne = new byte[1];
+
+            @Override
+            public int read() throws IOException {
+                return read(mOne, 0, 1) == 1 ? (mOne[0] & 0xFF) : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (mBodyRemaining <= 0) {
+                    return -1;
+                }
+                len = (int) Math.min(len, mBodyRemaining);
+                int read;
+                if (mParser.available() > 0) {
+                    read = mParser.read(b, off, len);
+                } else if (mInputStream != null) {
+                    if (mGuard != null) {
+                        mGuard.transferStarted();
+                    }
+                    read = mInputStream.read(b, off, len);
+                    mMetrics.addBytesReceived(read);
+                    if (mGuard != null) {
+                        mGuard.progress(read);
+                    }
+                } else {
+                    read = -1;
+                }
+                if (read > 0) {
+                    mBodyRemaining -= read;
+                }
+                return read;
+            }
+
+            @Override
+            public int available() throws IOException {
+                long available = mParser.available() + (mInputStream != null ? mInputStream.available() : 0);
+                return (int) Math.min(available, mBodyRemaining);
+            }
         }
     }
 
-    private static final class ResponseException extends Exception {
+    static final class ResponseException extends Exception {
 
         private final Response.Status mStatus;
 
@@ -736,6 +1531,10 @@ public abstract class HTTPServerDaemon {
      * @return the port of listen
      */
     public final int getListeningPort() {
+        NioServerEngine nioEngine = mNioEngine;
+        if (nioEngine != null) {
+            return nioEngine.getLocalPort();
+        }
         return mServerSocket == null ? -1 : mServerSocket.getLocalPort();
     }
 
@@ -745,7 +1544,7 @@ public abstract class HTTPServerDaemon {
      */
 
     public final boolean wasStarted() {
-        return mServerSocket != null && mListenThread != null;
+        return mNioEngine != null || (mServerSocket != null && mListenThread != null);
     }
 
     /**
@@ -753,6 +1552,10 @@ public abstract class HTTPServerDaemon {
      * @return the same as above
      */
     public final boolean isAlive() {
+        NioServerEngine nioEngine = mNioEngine;
+        if (nioEngine != null) {
+            return nioEngine.isAlive();
+        }
         return wasStarted() && !mServerSocket.isClosed() && mListenThread.isAlive();
     }
 }
@@ -0,0 +1,491 @@
+package com.example.TransmitWifi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 根目录下所有文件的SHA-256索引, 在后台计算: 扫描线程遍历目录, 变了的文件交给按核数创建的线程池并行计算.
+ * 索引保存在文件中, 重新扫描时只计算大小或修改时间变了的文件; 扫描在启动时, 上传后和查询时超过间隔才进行.
+ * 摘要用作强ETag, 也用于/by-hash/下按内容寻址
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class HashIndex {
+    private static final String TAG = "HashIndex";
+    /**
+     * default time after which a lookup starts a new scan
+     */
+    static final long DEFAULT_RESCAN_INTERVAL_MS = 60 * 1000;
+    /**
+     * length of a digest in hex
+     */
+    static final int DIGEST_LENGTH = 64;
+    private static final int BUFSIZE = 64 * 1024;
+    private static final String STORE_HEADER = "TransmitWifi-hashindex 1";
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(BUFSIZE);
+        }
+    };
+
+    private final File mRoot;
+    private final String mRootPath;
+    private final File mStore;
+    private volatile long mRescanInterval = DEFAULT_RESCAN_INTERVAL_MS;
+    /**
+     * entries by canonical path
+     */
+    private final ConcurrentHashMap<String, Entry> mByPath = new ConcurrentHashMap<String, Entry>();
+    /**
+     * canonical path by digest, the last indexed file wins for duplicates
+     */
+    private final ConcurrentHashMap<String, String> mByDigest = new ConcurrentHashMap<String, String>();
+    private final AtomicBoolean mScanning = new AtomicBoolean();
+    private volatile boolean mLoaded = false;
+    private volatile boolean mClosed = false;
+    private volatile long mLastScan = 0;
+    /**
+     * hashing threads of the running scan, guarded by this
+     */
+    private ThreadPoolExecutor mPool;
+
+    /**
+     * 构造函数
+     * @param root directory to index
+     * @param store file the index is kept in between runs
+     */
+    HashIndex(File root, File store) {
+        File canonical;
+        try {
+            canonical = root.getCanonicalFile();
+        } catch (IOException e) {
+            canonical = root.getAbsoluteFile();
+        }
+        mRoot = canonical;
+        mRootPath = canonical.getPath();
+        mStore = store;
+    }
+
+    /**
+     * @param intervalMs time after which a lookup starts a new scan
+     */
+    void setRescanInterval(long intervalMs) {
+        mRescanInterval = intervalMs;
+    }
+
+    /**
+     * 在后台开始一次扫描, 已在扫描时不做任何事
+     */
+    void refresh() {
+        if (mClosed || !mScanning.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread("HashIndex Scanner") {
+            @Override
+            public void run() {
+                try {
+                    scan();
+                } catch (RuntimeException e) {
+                    ServerLog.w(TAG, "scan failed", e);
+                } finally {
+                    mLastScan = System.currentTimeMillis();
+                    mScanning.set(false);
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * 停止计算, 正在进行的扫描不再保存
+     */
+    void close() {
+        mClosed = true;
+        synchronized (this) {
+            if (mPool != null) {
+                mPool.shutdownNow();
+                mPool = null;
+            }
+        }
+    }
+
+    /**
+     * 查询文件的摘要, 间隔过后顺便开始重新扫描
+     * @param canonicalPath canonical path of the file
+     * @param length current length of the file
+     * @param lastModified current modification time of the file
+     * @return hex SHA-256 of the file, null if it is not indexed or has changed since
+     */
+    String digestOf(String canonicalPath, long length, long lastModified) {
+        if (System.currentTimeMillis() - mLastScan > mRescanInterval) {
+            refresh();
+        }
+        Entry entry = mByPath.get(canonicalPath);
+        if (entry == null || entry.mLength != length || entry.mLastModified != lastModified) {
+            return null;
+        }
+        return entry.mDigest;
+    }
+
+    /**
+     * @param digest hex SHA-256, lower case
+     * @return path relative to the root, '/' separated, null if no file has the digest
+     */
+    String pathOf(String digest) {
+        String path = mByDigest.get(digest);
+        return path != null ? relative(path) : null;
+    }
+
+    /**
+     * @return count of indexed files
+     */
+    int size() {
+        return mByPath.size();
+    }
+
+    /**
+     * 索引的文本形式, 每行"digest length path", 读取时才生成, 扫描中读取的是当时的状态
+     * @return stream of UTF-8 lines, path relative to the root
+     */
+    InputStream openListing() {
+        final Iterator<Entry> it = mByPath.values().iterator();
+        return new InputStream() {
+            private final StringBuilder mText = new StringBuilder();
+            private byte[] mPending = new byte[0];
+            private int mPos = 0;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (mPos == mPending.length) {
+                    while (mText.length() < BUFSIZE / 8 && it.hasNext()) {
+                        Entry entry = it.next();
+                        mText.append(entry.mDigest).append(' ').append(entry.mLength).append(' ')
+                                .append(relative(entry.mPath)).append('\n');
+                    }
+                    if (mText.length() == 0) {
+                        return -1;
+                    }
+                    mPending = mText.toString().getBytes("UTF-8");
+                    mPos = 0;
+                    mText.setLength(0);
+                }
+                int count = Math.min(len, mPending.length - mPos);
+                System.arraycopy(mPending, mPos, b, off, count);
+                mPos += count;
+                return count;
+            }
+        };
+    }
+
+    private String relative(String path) {
+        return path.substring(mRootPath.length() + 1).replace(File.separatorChar, '/');
+    }
+
+    private void scan() {
+        if (!mLoaded) {
+            load();
+            mLoaded = true;
+        }
+        ThreadPoolExecutor pool;
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            int threads = Runtime.getRuntime().availableProcessors();
+            // created for one scan and shut down after it, no idle threads between scans
+            pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private int mCount = 0;
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "HashIndex Worker " + mCount++);
+                            thread.setDaemon(true);
+                            // hashing must not slow down the transfers
+                            thread.setPriority(Thread.MIN_PRIORITY);
+                            return thread;
+                        }
+                    });
+            mPool = pool;
+        }
+        long start = System.currentTimeMillis();
+        Map<String, Boolean> seen = new HashMap<String, Boolean>();
+        boolean changed = false;
+        try {
+            List<Future<Boolean>> tasks = walk(pool, seen);
+            for (Future<Boolean> task : tasks) {
+                changed |= task.get();
+            }
+        } catch (RejectedExecutionException e) {
+            // pool shut down by close()
+            ServerLog.d(TAG, "scan stopped: {}", e.toString());
+            return;
+        } catch (CancellationException e) {
+            ServerLog.d(TAG, "scan stopped: {}", e.toString());
+            return;
+        } catch (InterruptedException e) {
+            ServerLog.d(TAG, "scan stopped: {}", e.toString());
+            return;
+        } catch (ExecutionException e) {
+            ServerLog.w(TAG, "scan failed", e.getCause());
+            return;
+        } finally {
+            pool.shutdownNow();
+            synchronized (this) {
+                if (mPool == pool) {
+                    mPool = null;
+                }
+            }
+        }
+        if (mClosed) {
+            return;
+        }
+        for (Entry entry : mByPath.values()) {
+            if (!seen.containsKey(entry.mPath)) {
+                remove(entry);
+                changed = true;
+            }
+        }
+        if (changed) {
+            save();
+        }
+        ServerLog.d(TAG, "indexed {} files in {} ms", mByPath.size(), System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 遍历根目录, 不进入符号链接的目录; 变了的文件各自作为任务交给线程池
+     * @param seen filled with the paths of all files found
+     * @return the hash tasks, each tells whether it indexed its file
+     */
+    private List<Future<Boolean>> walk(ThreadPoolExecutor pool, Map<String, Boolean> seen) {
+        List<Future<Boolean>> tasks = new ArrayList<Future<Boolean>>();
+        List<File> dirs = new ArrayList<File>();
+        dirs.add(mRoot);
+        while (!dirs.isEmpty() && !mClosed) {
+            File dir = dirs.remove(dirs.size() - 1);
+            String[] names = dir.list();
+            if (names == null) {
+                continue;
+            }
+            for (String name : names) {
+                File file = new File(dir, name);
+                if (file.equals(mStore)) {
+                    continue;
+                }
+                if (file.isDirectory()) {
+                    if (!Utils.isSymbolicLink(file)) {
+                        dirs.add(file);
+                    }
+                    continue;
+                }
+                String path = file.getPath();
+                long length = file.length();
+                long lastModified = file.lastModified();
+                seen.put(path, Boolean.TRUE);
+                Entry entry = mByPath.get(path);
+                if (entry == null || entry.mLength != length || entry.mLastModified != lastModified) {
+                    tasks.add(pool.submit(new HashTask(file, length, lastModified)));
+                }
+            }
+        }
+        return tasks;
+    }
+
+    private void put(Entry entry) {
+        Entry old = mByPath.put(entry.mPath, entry);
+        if (old != null && !old.mDigest.equals(entry.mDigest)) {
+            mByDigest.remove(old.mDigest, old.mPath);
+        }
+        mByDigest.put(entry.mDigest, entry.mPath);
+    }
+
+    private void remove(Entry entry) {
+        mByPath.remove(entry.mPath, entry);
+        mByDigest.remove(entry.mDigest, entry.mPath);
+    }
+
+    private void load() {
+        if (mStore == null || !mStore.isFile()) {
+            return;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(mStore), "UTF-8"));
+            if (!STORE_HEADER.equals(in.readLine())) {
+                ServerLog.w(TAG, "ignore unknown index {}", mStore);
+                return;
+            }
+            String line;
+            while ((line = in.readLine()) != null) {
+                // digest, length, mtime, path relative to the root
+                String[] fields = line.split("\t", 4);
+                if (fields.length == 4 && fields[0].length() == DIGEST_LENGTH) {
+                    String path = mRootPath + File.separator + fields[3].replace('/', File.separatorChar);
+                    put(new Entry(path, Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[0]));
+                }
+            }
+        } catch (IOException e) {
+            ServerLog.w(TAG, "can not read index", e);
+        } catch (NumberFormatException e) {
+            ServerLog.w(TAG, "broken index", e);
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+    }
+
+    /**
+     * 写入临时文件后改名, 中途退出不会留下不完整的索引
+     */
+    private void save() {
+        if (mStore == null) {
+            return;
+        }
+        File tmp = new File(mStore.getPath() + ".tmp");
+        Writer out = null;
+        try {
+            File dir = mStore.getParentFile();
+            if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("can not create " + dir);
+            }
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"), BUFSIZE);
+            out.write(STORE_HEADER);
+            out.write('\n');
+            for (Entry entry : mByPath.values()) {
+                out.write(entry.mDigest + '\t' + entry.mLength + '\t' + entry.mLastModified + '\t' + relative(entry.mPath)
+                        + '\n');
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(mStore)) {
+                throw new IOException("can not replace " + mStore);
+            }
+        } catch (IOException e) {
+            ServerLog.w(TAG, "can not save index", e);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    /**
+     * 计算文件的SHA-256
+     * @param file the file
+     * @return lower case hex digest
+     */
+    static String sha256(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = BUFFER.get();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            buffer.clear();
+            while (channel.read(buffer) >= 0) {
+                digest.update(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        return toHex(digest.digest());
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[2 * i + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 一个文件的摘要, 修改时间和大小用于判断是否需要重新计算
+     */
+    static final class Entry {
+        final String mPath;
+        final long mLength;
+        final long mLastModified;
+        final String mDigest;
+
+        Entry(String path, long length, long lastModified, String digest) {
+            mPath = path;
+            mLength = length;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+    }
+
+    /**
+     * 计算一个文件的摘要, 计算期间文件被修改则放弃, 下次扫描再算
+     */
+    private final class HashTask implements Callable<Boolean> {
+        private final File mFile;
+        private final long mLength;
+        private final long mLastModified;
+
+        HashTask(File file, long length, long lastModified) {
+            mFile = file;
+            mLength = length;
+            mLastModified = lastModified;
+        }
+
+        @Override
+        public Boolean call() {
+            if (mClosed) {
+                return false;
+            }
+            try {
+                String digest = sha256(mFile);
+                if (mFile.length() == mLength && mFile.lastModified() == mLastModified) {
+                    put(new Entry(mFile.getPath(), mLength, mLastModified, digest));
+                    return true;
+                }
+            } catch (IOException e) {
+                ServerLog.d(TAG, "can not hash {}", mFile);
+            }
+            return false;
+        }
+    }
+}
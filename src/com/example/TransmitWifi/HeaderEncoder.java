@@ -0,0 +1,168 @@
+package com.example.TransmitWifi;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 回复头编码.
+ * 状态行, 常用头和Content-Type行预先编码为字节, Date头每秒只格式化一次, 直接写入调用者的缓冲区
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class HeaderEncoder {
+    static final byte[] CRLF = ascii("\r\n");
+    static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+    static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+    static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+    private static final byte[] COLON_SPACE = ascii(": ");
+    /**
+     * mime types are few, a custom one beyond this count is encoded on each response
+     */
+    private static final int MAX_CACHED_CONTENT_TYPES = 64;
+
+    private static final Map<HTTPServerDaemon.Response.Status, byte[]> STATUS_LINES =
+            new EnumMap<HTTPServerDaemon.Response.Status, byte[]>(HTTPServerDaemon.Response.Status.class);
+    private static final ConcurrentHashMap<String, byte[]> CONTENT_TYPE_LINES = new ConcurrentHashMap<String, byte[]>();
+    private static volatile CachedDate sDate;
+
+    static {
+        for (HTTPServerDaemon.Response.Status status : HTTPServerDaemon.Response.Status.values()) {
+            STATUS_LINES.put(status, ascii("HTTP/1.1 " + status.getDescription() + "\r\n"));
+        }
+    }
+
+    private HeaderEncoder() {
+    }
+
+    /**
+     * @param status status of the response
+     * @return "HTTP/1.1 ... \r\n", shared, do not modify
+     */
+    static byte[] statusLine(HTTPServerDaemon.Response.Status status) {
+        return STATUS_LINES.get(status);
+    }
+
+    /**
+     * @param mime mime type of the body
+     * @return "Content-Type: ...\r\n", shared, do not modify
+     */
+    static byte[] contentTypeLine(String mime) {
+        byte[] line = CONTENT_TYPE_LINES.get(mime);
+        if (line == null) {
+            line = utf8("Content-Type: " + mime + "\r\n");
+            if (CONTENT_TYPE_LINES.size() < MAX_CACHED_CONTENT_TYPES) {
+                CONTENT_TYPE_LINES.putIfAbsent(mime, line);
+            }
+        }
+        return line;
+    }
+
+    /**
+     * 当前时间的Date头, 同一秒内的回复共用
+     * @return "Date: ...\r\n", shared, do not modify
+     */
+    static byte[] dateLine() {
+        long second = System.currentTimeMillis() / 1000;
+        CachedDate date = sDate;
+        if (date == null || date.mSecond != second) {
+            // a race only formats the same second twice
+            SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+            gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+            date = new CachedDate(second, ascii("Date: " + gmtFrmt.format(new Date(second * 1000)) + "\r\n"));
+            sDate = date;
+        }
+        return date.mLine;
+    }
+
+    /**
+     * 预先编码固定的回复头行
+     * @param lines header lines, each ending with CRLF
+     * @return UTF-8 bytes of the lines
+     */
+    static byte[] encode(String lines) {
+        return utf8(lines);
+    }
+
+    /**
+     * 写入一行 "name: value\r\n"
+     * @throws java.nio.BufferOverflowException if dst is too small
+     */
+    static void putHeader(ByteBuffer dst, String name, String value) {
+        putString(dst, name);
+        dst.put(COLON_SPACE);
+        putString(dst, value);
+        dst.put(CRLF);
+    }
+
+    /**
+     * 写入字符串, ASCII逐字节写入, 否则按UTF-8编码
+     * @throws java.nio.BufferOverflowException if dst is too small
+     */
+    static void putString(ByteBuffer dst, String s) {
+        int start = dst.position();
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                dst.position(start);
+                dst.put(utf8(s));
+                return;
+            }
+            dst.put((byte) c);
+        }
+    }
+
+    /**
+     * 写入非负十进制数
+     * @throws java.nio.BufferOverflowException if dst is too small
+     */
+    static void putDecimal(ByteBuffer dst, long value) {
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits++;
+        }
+        int end = dst.position() + digits;
+        if (end > dst.limit()) {
+            throw new java.nio.BufferOverflowException();
+        }
+        for (int i = end - 1; i >= dst.position(); i--) {
+            dst.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        dst.position(end);
+    }
+
+    static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) s.charAt(i);
+        }
+        return bytes;
+    }
+
+    private static byte[] utf8(String s) {
+        try {
+            return s.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e);
+        }
+    }
+
+    private static final class CachedDate {
+        private final long mSecond;
+        private final byte[] mLine;
+
+        CachedDate(long second, byte[] line) {
+            mSecond = second;
+            mLine = line;
+        }
+    }
+}
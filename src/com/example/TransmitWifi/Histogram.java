@@ -0,0 +1,147 @@
+package com.example.TransmitWifi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 固定内存的对数-线性直方图(HDR风格).
+ * 每个2的幂区间分为16个线性子桶, 相对误差不超过1/16; 记录只做一次数组原子加, 不加锁不分配对象
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public final class Histogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * largest power of two tracked, larger values count into the last bucket
+     */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final StripedCounter mSum = new StripedCounter();
+    private final AtomicLong mMax = new AtomicLong();
+
+    Histogram() {
+    }
+
+    /**
+     * 记录一个值
+     * @param value non-negative value, e.g. microseconds, negative values count as 0
+     */
+    void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(indexOf(value));
+        mSum.add(value);
+        long max = mMax.get();
+        while (value > max && !mMax.compareAndSet(max, value)) {
+            max = mMax.get();
+        }
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return largest value of the bucket, what a percentile of that bucket reports
+     */
+    private static long highestOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKETS) / SUB_BUCKETS;
+        long sub = SUB_BUCKETS + (index - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * 复制当前数据, 用于计算百分位数
+     * @return copy of the counts
+     */
+    Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.sum(), mMax.get());
+    }
+
+    /**
+     * 直方图的一次快照
+     */
+    public static final class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        /**
+         * @return count of recorded values
+         */
+        public long getCount() {
+            return mCount;
+        }
+
+        /**
+         * @return sum of the recorded values
+         */
+        public long getSum() {
+            return mSum;
+        }
+
+        /**
+         * @return largest recorded value
+         */
+        public long getMax() {
+            return mMax;
+        }
+
+        /**
+         * @return mean of the recorded values, 0 if none
+         */
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * 百分位数
+         * @param percentile 0 to 100, e.g. 99.9
+         * @return value at or below which the given percentage of values lie, within 1/16
+         */
+        public long getPercentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(percentile / 100 * mCount);
+            rank = Math.max(1, Math.min(mCount, rank));
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank) {
+                    return Math.min(highestOf(i), mMax);
+                }
+            }
+            return mMax;
+        }
+    }
+}
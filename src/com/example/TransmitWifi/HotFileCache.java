@@ -0,0 +1,185 @@
+package com.example.TransmitWifi;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 小文件内容的内存缓存, 按字节数限制大小.
+ * 命中不加锁; 用带访问计数的CLOCK算法淘汰, 经常访问的文件(如metaFile.html)不会被一次性的请求挤出.
+ * 文件的ETag包含修改时间和大小, ETag改变即视为失效
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class HotFileCache {
+    /**
+     * default bytes of file content kept in memory
+     */
+    static final long DEFAULT_BUDGET = 4 * 1024 * 1024;
+    /**
+     * default size of the largest file kept
+     */
+    static final int DEFAULT_MAX_FILE_SIZE = 64 * 1024;
+    /**
+     * hits remembered per entry, an entry survives that many sweeps of the clock hand
+     */
+    private static final int MAX_FREQUENCY = 3;
+
+    private final long mBudget;
+    private final int mMaxFileSize;
+    private final ConcurrentHashMap<String, Entry> mEntries = new ConcurrentHashMap<String, Entry>();
+    /**
+     * clock ring and hand, guarded by itself
+     */
+    private final List<Entry> mRing = new ArrayList<Entry>();
+    private int mHand = 0;
+    private long mUsed = 0;
+
+    private final AtomicLong mHitCount = new AtomicLong();
+    private final AtomicLong mMissCount = new AtomicLong();
+    private final AtomicLong mEvictionCount = new AtomicLong();
+
+    /**
+     * 构造函数
+     * @param budget bytes of content kept at most
+     * @param maxFileSize larger files are never cached
+     */
+    HotFileCache(long budget, int maxFileSize) {
+        mBudget = budget;
+        mMaxFileSize = maxFileSize;
+    }
+
+    /**
+     * 获得文件内容, 未缓存或已改变时读入
+     * @param meta metadata of the file
+     * @param vary true if the response varies by Accept-Encoding
+     * @return entry with the content, null if the file is too large
+     */
+    Entry get(FileMetaCache.Entry meta, boolean vary) throws IOException {
+        if (meta.mLength > mMaxFileSize || meta.mLength > mBudget) {
+            return null;
+        }
+        Entry entry = mEntries.get(meta.mCanonicalPath);
+        if (entry != null && entry.mEtag.equals(meta.mEtag) && entry.mVary == vary) {
+            mHitCount.incrementAndGet();
+            entry.touch();
+            return entry;
+        }
+        mMissCount.incrementAndGet();
+        Entry loaded = new Entry(meta.mCanonicalPath, meta.mEtag, read(meta), vary);
+        insert(loaded);
+        return loaded;
+    }
+
+    private byte[] read(FileMetaCache.Entry meta) throws IOException {
+        byte[] content = new byte[(int) meta.mLength];
+        InputStream in = new FileInputStream(meta.mFile);
+        try {
+            int offset = 0;
+            while (offset < content.length) {
+                int read = in.read(content, offset, content.length - offset);
+                if (read < 0) {
+                    throw new IOException("file truncated while caching");
+                }
+                offset += read;
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        return content;
+    }
+
+    private void insert(Entry entry) {
+        synchronized (mRing) {
+            Entry old = mEntries.put(entry.mKey, entry);
+            if (old != null && mRing.remove(old)) {
+                mUsed -= old.size();
+            }
+            while (mUsed + entry.size() > mBudget && !mRing.isEmpty()) {
+                evictOne();
+            }
+            mRing.add(entry);
+            mUsed += entry.size();
+        }
+    }
+
+    /**
+     * 时钟指针扫过的条目访问计数减一, 计数为0的被淘汰
+     */
+    private void evictOne() {
+        while (true) {
+            if (mHand >= mRing.size()) {
+                mHand = 0;
+            }
+            Entry candidate = mRing.get(mHand);
+            if (candidate.mFrequency.get() > 0) {
+                candidate.mFrequency.decrementAndGet();
+                mHand++;
+                continue;
+            }
+            mRing.remove(mHand);
+            mUsed -= candidate.size();
+            mEntries.remove(candidate.mKey, candidate);
+            mEvictionCount.incrementAndGet();
+            return;
+        }
+    }
+
+    long getHitCount() {
+        return mHitCount.get();
+    }
+
+    long getMissCount() {
+        return mMissCount.get();
+    }
+
+    long getEvictionCount() {
+        return mEvictionCount.get();
+    }
+
+    /**
+     * @return bytes of content currently cached
+     */
+    long getUsedBytes() {
+        synchronized (mRing) {
+            return mUsed;
+        }
+    }
+
+    /**
+     * 一个文件版本的内容和预先编码的回复头, 只有Date, Connection和Content-Length在每次回复时生成
+     */
+    static final class Entry {
+        private final String mKey;
+        final String mEtag;
+        final byte[] mContent;
+        final byte[] mFixedHeader;
+        private final boolean mVary;
+        private final AtomicInteger mFrequency = new AtomicInteger();
+
+        Entry(String key, String etag, byte[] content, boolean vary) {
+            mKey = key;
+            mEtag = etag;
+            mContent = content;
+            mVary = vary;
+            mFixedHeader = HeaderEncoder.encode("Accept-Ranges: bytes\r\nETag: " + etag + "\r\n"
+                    + (vary ? "Vary: Accept-Encoding\r\n" : ""));
+        }
+
+        private void touch() {
+            int frequency = mFrequency.get();
+            if (frequency < MAX_FREQUENCY) {
+                mFrequency.compareAndSet(frequency, frequency + 1);
+            }
+        }
+
+        private long size() {
+            return mContent.length + mFixedHeader.length;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.util.Log;
 import java.io.*;
 import java.net.SocketException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 /**
@@ -16,7 +17,31 @@ import java.util.Map;
 public class HttpDownload extends SimpleDownload {
     private static final String TAG = "HttpDownload ";
     private static final int BUFSIZE = 8192;
+    private static final int MAX_LOCAL_DIGESTS = 64;
+    /**
+     * SHA-256 of local copies by path, reused while length and mtime are unchanged, guarded by itself
+     */
+    private static final Map<String, LocalDigest> LOCAL_DIGESTS = new LinkedHashMap<String, LocalDigest>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LocalDigest> eldest) {
+            return size() > MAX_LOCAL_DIGESTS;
+        }
+    };
     private Map mEntryParams = new HashMap<String, String>();
+    /**
+     * file already on the device, its SHA-256 is sent as If-None-Match
+     */
+    private File mLocalCopy;
+    private boolean mNotModified = false;
+    private boolean mPartial = false;
+    /**
+     * Retry-After of a 503 answer in seconds, 0 for none
+     */
+    private int mRetryAfter = 0;
+    /**
+     * query appended to the encoded path, null for none
+     */
+    private String mQuery;
 
     /**
      * 构造函数
@@ -27,15 +52,42 @@ public class HttpDownload extends SimpleDownload {
      * @param port server listen port
      * @param handler main thread handler
      */
-    public HttpDownload(String downloadPath, String savePath, int offset, String inetAddress, int port, Handler handler) {
+    public HttpDownload(String downloadPath, String savePath, long offset, String inetAddress, int port, Handler handler) {
         super(handler, inetAddress, port, savePath);
         mUri = downloadPath;
         mDataOffset = offset;
     }
 
-    private String constructRequestString() {
-        String reqStr = "GET " + NetWorkUtils.encodeURIWithPercent(mUri) + " HTTP/1.1" + "\r\n";
-        reqStr += "Accept-Encoding: gzip\r\n";
+    /**
+     * 设置本地已有的同一文件, 在startDownload()之前调用.
+     * 服务器对已索引的文件用SHA-256作ETag, 内容相同时回复304, 不再重复下载
+     * @param file local copy of the file, usually the save path itself
+     */
+    public void setLocalCopy(File file) {
+        mLocalCopy = file;
+    }
+
+    /**
+     * 设置请求的查询参数, 在startDownload()之前调用
+     * @param query query string without '?', already encoded
+     */
+    public void setQuery(String query) {
+        mQuery = query;
+    }
+
+    private String constructRequestString(String digest) {
+        String reqStr = "GET " + NetWorkUtils.encodeURIWithPercent(mUri) + (mQuery != null ? "?" + mQuery : "")
+                + " HTTP/1.1" + "\r\n";
+        if (digest != null) {
+            reqStr += "If-None-Match: " + digest + "\r\n";
+        }
+        if (mDataOffset > 0 || mDataEnd >= 0) {
+            reqStr += "Range: bytes=" + mDataOffset + "-" + (mDataEnd >= 0 ? String.valueOf(mDataEnd) : "") + "\r\n";
+        }
+        if (getChunkManifest() == null && digest == null) {
+            // chunk hashes are of the file as is, and a compressed variant has a tag of its own
+            reqStr += "Accept-Encoding: gzip, deflate\r\n";
+        }
         reqStr += "Accept-Language: zh-CN, en-US\r\n";
         reqStr += "User-Agent: Android\r\n";
         reqStr += "Accept: application/xml,application/xhtml+xml,text/html;q=0.9,text/plain;q=0.8,image/png,*/*;q=0.5\r\n";
@@ -46,11 +98,38 @@ public class HttpDownload extends SimpleDownload {
     }
 
     protected  void sendRequest(OutputStream sockOutputStream) throws IOException {
-        byte[] sendByte = constructRequestString().getBytes();
+        String digest = null;
+        if (mLocalCopy != null && mDataOffset == 0 && getChunkManifest() == null && mLocalCopy.isFile()) {
+            digest = localDigest(mLocalCopy);
+        }
+        byte[] sendByte = constructRequestString(digest).getBytes();
         sockOutputStream.write(sendByte);
         sockOutputStream.flush();
     }
 
+    /**
+     * 本地文件的摘要, 大小和修改时间不变时不重新计算, 重试和下一次下载都不必再读一遍文件
+     */
+    private static String localDigest(File file) throws IOException {
+        String key = file.getAbsolutePath();
+        long length = file.length();
+        long lastModified = file.lastModified();
+        synchronized (LOCAL_DIGESTS) {
+            LocalDigest cached = LOCAL_DIGESTS.get(key);
+            if (cached != null && cached.mLength == length && cached.mLastModified == lastModified) {
+                return cached.mDigest;
+            }
+        }
+        // hashed on the download thread, the file may be large
+        String digest = HashIndex.sha256(file);
+        if (file.length() == length && file.lastModified() == lastModified) {
+            synchronized (LOCAL_DIGESTS) {
+                LOCAL_DIGESTS.put(key, new LocalDigest(length, lastModified, digest));
+            }
+        }
+        return digest;
+    }
+
     /**
      * 获得http协议的相关参数
      * @return parameter map
@@ -59,11 +138,19 @@ public class HttpDownload extends SimpleDownload {
         return mEntryParams;
     }
 
+    /**
+     * 服务器暂时无法回复时建议的等待时间, 例如分块哈希还在计算
+     * @return seconds of Retry-After if the download was refused with 503, 0 otherwise
+     */
+    public int getRetryAfter() {
+        return mRetryAfter;
+    }
+
     /**
      * 获得Content的大小
      * @return size should be downloaded
      */
-    public int getDataSize() {
+    public long getDataSize() {
         return mDataSize;
     }
 
@@ -77,7 +164,14 @@ public class HttpDownload extends SimpleDownload {
             if (inLine == null) {
                 return false;
             }
-            if (inLine.indexOf("200") < 0) {
+            if (inLine.indexOf("304") >= 0) {
+                // the local copy is the same file
+                mNotModified = true;
+                return true;
+            }
+            mPartial = inLine.indexOf("206") >= 0;
+            boolean accepted = inLine.indexOf("200") >= 0 || mPartial;
+            if (!accepted && inLine.indexOf("503") < 0) {
                 return false;
             }
             String line = in.readLine();
@@ -89,6 +183,14 @@ public class HttpDownload extends SimpleDownload {
                 }
                 line = in.readLine();
             }
+            if (!accepted) {
+                try {
+                    mRetryAfter = Integer.parseInt(parms.get("retry-after"));
+                } catch (NumberFormatException e) {
+                    mRetryAfter = 0;
+                }
+                return false;
+            }
         } catch (IOException ioe) {
             ioe.printStackTrace();
             Log.i(TAG, "parse response exception");
@@ -110,10 +212,13 @@ public class HttpDownload extends SimpleDownload {
     private void getContentLength(Map params) {
         String key = "content-length";
         String contentlength = (String) params.get(key);
-        if (contentlength == null) {
-            mDataSize = 0;
-        } else {
-            mDataSize = Integer.parseInt(contentlength);
+        mDataSize = 0;
+        if (contentlength != null) {
+            try {
+                mDataSize = Long.parseLong(contentlength);
+            } catch (NumberFormatException e) {
+                Log.i(TAG, "bad content-length " + contentlength);
+            }
         }
         Log.i(TAG, "mDataSize  = " + mDataSize);
     }
@@ -149,10 +254,71 @@ public class HttpDownload extends SimpleDownload {
         }
 
         BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, rlen)));
-        decodeHeader(hin, mEntryParams);
+        mEntryParams.clear();
+        mNotModified = false;
+        mRetryAfter = 0;
+        if (!decodeHeader(hin, mEntryParams)) {
+            throw new IOException("download of " + mUri + " refused");
+        }
+        if ((mDataOffset > 0 || mDataEnd >= 0) && !mPartial && !mNotModified) {
+            // the whole file would be written at the offset
+            throw new IOException("range of " + mUri + " not supported");
+        }
         Log.i(TAG, "mEntryParams = " + mEntryParams);
         getContentLength(mEntryParams);
+        String encoding = (String) mEntryParams.get("content-encoding");
+        if (encoding != null && !encoding.equalsIgnoreCase("identity")) {
+            mContentEncoding = encoding.toLowerCase();
+        }
 
         return dataInputStream;
     }
+
+    @Override
+    protected boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * ETag是SHA-256时校验下载的文件
+     */
+    @Override
+    protected void verifyDownload(File saveFile) throws IOException {
+        String etag = (String) mEntryParams.get("etag");
+        if (mDataOffset != 0 || mContentEncoding != null || getChunkManifest() != null || !isDigest(etag)) {
+            return;
+        }
+        String digest = HashIndex.sha256(saveFile);
+        if (!digest.equalsIgnoreCase(etag)) {
+            Log.i(TAG, "digest mismatch " + digest + " expected " + etag);
+            throw new IOException("digest mismatch of " + saveFile);
+        }
+    }
+
+    private static boolean isDigest(String etag) {
+        if (etag == null || etag.length() != HashIndex.DIGEST_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < etag.length(); i++) {
+            if (Character.digit(etag.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 本地文件某一版本的摘要
+     */
+    private static final class LocalDigest {
+        final long mLength;
+        final long mLastModified;
+        final String mDigest;
+
+        LocalDigest(long length, long lastModified, String digest) {
+            mLength = length;
+            mLastModified = lastModified;
+            mDigest = digest;
+        }
+    }
 }
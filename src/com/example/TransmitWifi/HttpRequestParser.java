@@ -0,0 +1,459 @@
+package com.example.TransmitWifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 增量式http请求头解析器.
+ * 每个连接复用一个缓冲区, 数据分多次到达时从上次停下的位置继续扫描;
+ * 常见头名称使用常量字符串, 重复出现的头值和uri在连接内复用, 头表也在请求间复用.
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class HttpRequestParser {
+    /**
+     * size of the header buffer, Apache's default header limit is 8KB
+     */
+    static final int BUFSIZE = 8192;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int STATE_REQUEST_LINE = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_DONE = 2;
+
+    /**
+     * lower case names of the headers which get a constant key and a per connection value cache
+     */
+    private static final String[] KNOWN_HEADERS = {
+        "host", "connection", "range", "if-none-match", "if-modified-since", "if-range",
+        "accept", "accept-encoding", "accept-language", "accept-charset", "user-agent",
+        "content-length", "content-type", "transfer-encoding", "expect", "cookie",
+        "referer", "cache-control", "pragma", "keep-alive", "origin", "authorization",
+    };
+    private static final byte[][] KNOWN_HEADER_BYTES = toBytes(KNOWN_HEADERS);
+    private static final HTTPServerDaemon.Method[] METHODS = HTTPServerDaemon.Method.values();
+    private static final byte[][] METHOD_BYTES;
+    private static final byte[] HTTP_10 = "HTTP/1.0".getBytes(UTF8);
+
+    static {
+        String[] names = new String[METHODS.length];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = METHODS[i].name();
+        }
+        METHOD_BYTES = toBytes(names);
+    }
+
+    private final byte[] mBuf = new byte[BUFSIZE];
+    private final ByteBuffer mByteBuffer = ByteBuffer.wrap(mBuf);
+    /**
+     * first byte of the current request
+     */
+    private int mStart = 0;
+    /**
+     * first byte of the line being scanned
+     */
+    private int mLineStart = 0;
+    /**
+     * scanning resumes here, after a completed request it is the first body byte
+     */
+    private int mPos = 0;
+    /**
+     * end of valid data in mBuf
+     */
+    private int mLimit = 0;
+    private int mState = STATE_REQUEST_LINE;
+
+    private HTTPServerDaemon.Method mMethod;
+    private boolean mHttp10;
+    private String mUri;
+    private String mQueryString;
+    private byte[] mRawUri = new byte[256];
+    private int mRawUriLength = -1;
+    private byte[] mDecodeBuf = new byte[256];
+
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+    private String[] mNames = new String[16];
+    private int mNameCount = 0;
+    private String[] mPrevNames = new String[16];
+    private int mPrevNameCount = 0;
+    private final byte[][] mLastValueBytes = new byte[KNOWN_HEADERS.length][];
+    private final String[] mLastValues = new String[KNOWN_HEADERS.length];
+
+    /**
+     * 从流中读取数据到缓冲区
+     * @param in socket input stream
+     * @return count of bytes read, -1 at end of stream
+     */
+    int fill(InputStream in) throws IOException {
+        makeRoom();
+        int read = in.read(mBuf, mLimit, mBuf.length - mLimit);
+        if (read > 0) {
+            mLimit += read;
+        }
+        return read;
+    }
+
+    /**
+     * 从通道中读取数据到缓冲区
+     * @param channel socket channel, may be non-blocking
+     * @return count of bytes read, -1 at end of stream
+     */
+    int fill(ReadableByteChannel channel) throws IOException {
+        makeRoom();
+        mByteBuffer.limit(mBuf.length);
+        mByteBuffer.position(mLimit);
+        int read = channel.read(mByteBuffer);
+        if (read > 0) {
+            mLimit += read;
+        }
+        return read;
+    }
+
+    /**
+     * 继续解析缓冲区中的数据
+     * @return true if a whole request header is available
+     * @throws HTTPServerDaemon.ResponseException on a malformed or oversized header
+     */
+    boolean parse() throws HTTPServerDaemon.ResponseException {
+        while (mState != STATE_DONE) {
+            int lf = indexOf('\n', mPos, mLimit);
+            if (lf < 0) {
+                mPos = mLimit;
+                if (mLimit - mStart >= mBuf.length) {
+                    throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                            "BAD REQUEST: Header too large.");
+                }
+                return false;
+            }
+            int lineEnd = (lf > mLineStart && mBuf[lf - 1] == '\r') ? lf - 1 : lf;
+            if (mState == STATE_REQUEST_LINE) {
+                if (lineEnd == mLineStart) {
+                    // ignore empty lines in front of a request
+                    mStart = lf + 1;
+                } else {
+                    parseRequestLine(mLineStart, lineEnd);
+                    mState = STATE_HEADERS;
+                }
+            } else if (lineEnd == mLineStart) {
+                finishHeaders();
+                mState = STATE_DONE;
+            } else {
+                parseHeaderLine(mLineStart, lineEnd);
+            }
+            mPos = lf + 1;
+            mLineStart = mPos;
+        }
+        return true;
+    }
+
+    /**
+     * 当前请求处理完毕, 之后的数据属于下一个请求
+     */
+    void consume() {
+        mState = STATE_REQUEST_LINE;
+        mStart = mPos;
+        mLineStart = mPos;
+        mNameCount = 0;
+    }
+
+    /**
+     * 是否已收到下一个请求的一部分
+     * @return false if the connection is idle between requests
+     */
+    boolean hasPartialRequest() {
+        return mLimit > mStart;
+    }
+
+    /**
+     * 缓冲区中尚未解析的字节数, 即已到达的请求体或后续请求
+     * @return count of buffered bytes after the current header
+     */
+    int available() {
+        return mLimit - mPos;
+    }
+
+    /**
+     * 读取缓冲区中请求头之后的数据
+     * @return count of bytes copied
+     */
+    int read(byte[] b, int off, int len) {
+        int count = Math.min(len, mLimit - mPos);
+        System.arraycopy(mBuf, mPos, b, off, count);
+        mPos += count;
+        mLineStart = mPos;
+        return count;
+    }
+
+    HTTPServerDaemon.Method getMethod() {
+        return mMethod;
+    }
+
+    String getUri() {
+        return mUri;
+    }
+
+    /**
+     * @return the raw query string without '?', null if the uri has none
+     */
+    String getQueryString() {
+        return mQueryString;
+    }
+
+    /**
+     * @return true for HTTP/1.0 and older requests
+     */
+    boolean isHttp10() {
+        return mHttp10;
+    }
+
+    /**
+     * @return lower case header names mapped to trimmed values, reused by the next request
+     */
+    Map<String, String> getHeaders() {
+        return mHeaders;
+    }
+
+    private void makeRoom() {
+        // while the body of a parsed request is read, the header bytes are no longer needed
+        int keep = mState == STATE_DONE ? mPos : mStart;
+        if (keep == mLimit || mLimit == mBuf.length) {
+            compact(keep);
+        }
+    }
+
+    private void compact(int shift) {
+        if (shift == 0) {
+            return;
+        }
+        System.arraycopy(mBuf, shift, mBuf, 0, mLimit - shift);
+        mLimit -= shift;
+        mPos -= shift;
+        mLineStart -= shift;
+        mStart = Math.max(0, mStart - shift);
+    }
+
+    private void parseRequestLine(int from, int to) throws HTTPServerDaemon.ResponseException {
+        int methodEnd = indexOf(' ', from, to);
+        if (methodEnd < 0) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+        }
+        mMethod = lookupMethod(from, methodEnd);
+        if (mMethod == null) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
+        }
+
+        int uriStart = methodEnd;
+        while (uriStart < to && mBuf[uriStart] == ' ') {
+            uriStart++;
+        }
+        int uriEnd = indexOf(' ', uriStart, to);
+        if (uriEnd < 0) {
+            uriEnd = to;
+        }
+        if (uriStart == uriEnd) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+        }
+
+        // a request without version is HTTP/0.9, handle it like 1.0
+        int versionStart = uriEnd;
+        while (versionStart < to && mBuf[versionStart] == ' ') {
+            versionStart++;
+        }
+        mHttp10 = versionStart == to || regionEquals(versionStart, to, HTTP_10, false);
+
+        int query = indexOf('?', uriStart, uriEnd);
+        int pathEnd = query >= 0 ? query : uriEnd;
+        mQueryString = query >= 0 ? new String(mBuf, query + 1, uriEnd - query - 1, UTF8) : null;
+        if (mUri == null || !regionEquals(uriStart, pathEnd, mRawUri, mRawUriLength)) {
+            mUri = decodePercent(uriStart, pathEnd);
+            if (mRawUri.length < pathEnd - uriStart) {
+                mRawUri = new byte[pathEnd - uriStart];
+            }
+            System.arraycopy(mBuf, uriStart, mRawUri, 0, pathEnd - uriStart);
+            mRawUriLength = pathEnd - uriStart;
+        }
+    }
+
+    private void parseHeaderLine(int from, int to) {
+        int colon = indexOf(':', from, to);
+        if (colon < 0) {
+            return;
+        }
+        int nameStart = skipSpace(from, colon);
+        int nameEnd = trimSpace(nameStart, colon);
+        int valueStart = skipSpace(colon + 1, to);
+        int valueEnd = trimSpace(valueStart, to);
+
+        String name;
+        String value;
+        int known = lookupKnownHeader(nameStart, nameEnd);
+        if (known >= 0) {
+            name = KNOWN_HEADERS[known];
+            byte[] last = mLastValueBytes[known];
+            if (last != null && regionEquals(valueStart, valueEnd, last, last.length)) {
+                value = mLastValues[known];
+            } else {
+                last = new byte[valueEnd - valueStart];
+                System.arraycopy(mBuf, valueStart, last, 0, last.length);
+                value = new String(last, UTF8);
+                mLastValueBytes[known] = last;
+                mLastValues[known] = value;
+            }
+        } else {
+            char[] chars = new char[nameEnd - nameStart];
+            for (int i = 0; i < chars.length; i++) {
+                chars[i] = (char) toLower(mBuf[nameStart + i]);
+            }
+            name = new String(chars);
+            value = new String(mBuf, valueStart, valueEnd - valueStart, UTF8);
+        }
+
+        mHeaders.put(name, value);
+        if (mNameCount == mNames.length) {
+            String[] names = new String[mNames.length * 2];
+            System.arraycopy(mNames, 0, names, 0, mNameCount);
+            mNames = names;
+        }
+        mNames[mNameCount++] = name;
+    }
+
+    /**
+     * 删除上一个请求中有而本次没有的头, 其余表项被本次的值覆盖
+     */
+    private void finishHeaders() {
+        for (int i = 0; i < mPrevNameCount; i++) {
+            String name = mPrevNames[i];
+            boolean present = false;
+            for (int j = 0; j < mNameCount && !present; j++) {
+                present = mNames[j].equals(name);
+            }
+            if (!present) {
+                mHeaders.remove(name);
+            }
+        }
+        String[] names = mPrevNames;
+        mPrevNames = mNames;
+        mPrevNameCount = mNameCount;
+        mNames = names.length >= mPrevNames.length ? names : new String[mPrevNames.length];
+        mNameCount = 0;
+    }
+
+    private String decodePercent(int from, int to) throws HTTPServerDaemon.ResponseException {
+        if (mDecodeBuf.length < to - from) {
+            mDecodeBuf = new byte[to - from];
+        }
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = mBuf[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%') {
+                int hi = i + 2 < to ? Character.digit(mBuf[i + 1], 16) : -1;
+                int lo = hi >= 0 ? Character.digit(mBuf[i + 2], 16) : -1;
+                if (lo < 0) {
+                    throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                            "BAD REQUEST: Bad percent encoding.");
+                }
+                b = (byte) ((hi << 4) | lo);
+                i += 2;
+            }
+            mDecodeBuf[n++] = b;
+        }
+        return new String(mDecodeBuf, 0, n, UTF8);
+    }
+
+    private HTTPServerDaemon.Method lookupMethod(int from, int to) {
+        for (int i = 0; i < METHOD_BYTES.length; i++) {
+            // method names are upper case, compare case insensitive like Method.lookup()
+            byte[] name = METHOD_BYTES[i];
+            if (name.length != to - from) {
+                continue;
+            }
+            int j = 0;
+            while (j < name.length && toLower(mBuf[from + j]) == toLower(name[j])) {
+                j++;
+            }
+            if (j == name.length) {
+                return METHODS[i];
+            }
+        }
+        return null;
+    }
+
+    private int lookupKnownHeader(int from, int to) {
+        for (int i = 0; i < KNOWN_HEADER_BYTES.length; i++) {
+            if (regionEquals(from, to, KNOWN_HEADER_BYTES[i], true)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int from, int to, byte[] other, boolean ignoreCase) {
+        if (other.length != to - from) {
+            return false;
+        }
+        for (int i = 0; i < other.length; i++) {
+            byte b = mBuf[from + i];
+            if (b != other[i] && !(ignoreCase && toLower(b) == other[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean regionEquals(int from, int to, byte[] other, int otherLength) {
+        if (otherLength != to - from) {
+            return false;
+        }
+        for (int i = 0; i < otherLength; i++) {
+            if (mBuf[from + i] != other[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (mBuf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int skipSpace(int from, int to) {
+        while (from < to && (mBuf[from] == ' ' || mBuf[from] == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimSpace(int from, int to) {
+        while (to > from && (mBuf[to - 1] == ' ' || mBuf[to - 1] == '\t')) {
+            to--;
+        }
+        return to;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z') ? b + ('a' - 'A') : b;
+    }
+
+    private static byte[][] toBytes(String[] strings) {
+        byte[][] bytes = new byte[strings.length][];
+        for (int i = 0; i < strings.length; i++) {
+            bytes[i] = strings[i].getBytes(UTF8);
+        }
+        return bytes;
+    }
+}
@@ -2,23 +2,56 @@ package com.example.TransmitWifi;
 import android.os.Handler;
 import android.util.Log;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 
 /**
- * 下载多媒体文件控制类
+ * 下载多媒体文件控制类.
+ * 先取服务器的共享清单, 清单中的文件排队逐个下载; 服务器没有共享清单时按metaFile.html下载单个文件
  * @author haihui.li
  * @version 1.0.0
  */
 
 public class MediaFileDownload {
     private static final String TAG = "MediaFileDownload";
+    /**
+     * times the chunk manifest is asked for again while the server computes it
+     */
+    private static final int MAX_CHUNKS_ATTEMPTS = 6;
+    private SimpleDownload mShareDownload;
     private SimpleDownload mMetaDownload;
+    private HttpDownload mChunksDownload;
+    private int mChunksAttempts = 0;
+    private ChunkManifest mChunkManifest;
     private SimpleDownload mMediaDownload;
     private Map<String, String> mMetaEntry = new HashMap<String, String>();
+    /**
+     * files of the share set not downloaded yet
+     */
+    private final Queue<Map<String, String>> mQueue = new LinkedList<Map<String, String>>();
+    /**
+     * names the files of the share set are saved as
+     */
+    private final Set<String> mSaveNames = new HashSet<String>();
+    private boolean mShareSetMode = false;
+    private long mSetSize = 0;
+    private long mDoneSize = 0;
+    private long mCurrentSize = 0;
+    private int mFailedCount = 0;
+    private String mSaveName;
     private OnMediaFileDownloadResultListener mDownloadResultListener;
     private String mIpAddress;
     private Handler mHandler;
+    private ExecutionMode mExecutionMode = ExecutionMode.PLATFORM;
 
     /**
      * 设置下载完状态监听接口
@@ -36,12 +69,27 @@ public class MediaFileDownload {
         return NetWorkUtils.DOWNLOAD_SAVE_PATH + "/" + TransmitFileItem.META_FILE_NAME;
     }
 
+    private String getShareFileSavePath() {
+        return NetWorkUtils.DOWNLOAD_SAVE_PATH + "/" + TransmitFileItem.SHARE_FILE_NAME;
+    }
+
+    private String getChunksFileSavePath() {
+        return NetWorkUtils.DOWNLOAD_SAVE_PATH + "/" + TransmitFileItem.CHUNKS_FILE_NAME;
+    }
+
     private String getMediaFilePathOnServer() {
+        String id = mMetaEntry.get(TransmitFileItem.META_DATA_ID);
+        if (id != null) {
+            return SimpleWebServer.SHARE_PREFIX + id;
+        }
         String path = mMetaEntry.get(TransmitFileItem.META_DATA_PATH);
         return "/" + Utils.getFileName(path);
     }
 
     private String getMediaFileSavePath() {
+        if (mSaveName != null) {
+            return NetWorkUtils.DOWNLOAD_SAVE_PATH + "/" + mSaveName;
+        }
         String path = mMetaEntry.get(TransmitFileItem.META_DATA_PATH);
         return NetWorkUtils.DOWNLOAD_SAVE_PATH + "/" + Utils.getFileName(path);
     }
@@ -51,6 +99,84 @@ public class MediaFileDownload {
     }
 
 
+    private void downloadShareFile() {
+        mShareDownload = new HttpDownload(SimpleWebServer.SHARE_PREFIX,
+                                                getShareFileSavePath(),
+                                                0, mIpAddress,
+                                                NetWorkUtils.HTTP_LISTERN_PORT,
+                                                mHandler);
+        mShareDownload.setDownloadResultListener(mShareDownloadListener);
+        mShareDownload.setExecutionMode(mExecutionMode);
+        mShareDownload.startDownload();
+    }
+
+    /**
+     * 解析共享清单, 文件放入下载队列
+     * @return true if the server shares any file
+     */
+    private boolean parseShareFile() {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(getShareFileSavePath());
+            List<Map<String, String>> entries = ShareSet.parseManifest(in);
+            for (Map<String, String> entry : entries) {
+                mSetSize += parseSize(entry);
+            }
+            mQueue.addAll(entries);
+        } catch (IOException ie) {
+            Log.i(TAG, "bad share manifest: " + ie.getMessage());
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        return !mQueue.isEmpty();
+    }
+
+    /**
+     * 下载队列中的下一个文件, 队列空时报告整个集合的结果
+     */
+    private void downloadNextInSet() {
+        mMediaDownload = null;
+        Map<String, String> entry = mQueue.poll();
+        if (entry == null) {
+            Log.i(TAG, "share set done, " + mFailedCount + " failed");
+            if (mDownloadResultListener != null) {
+                if (mFailedCount > 0) {
+                    mDownloadResultListener.onMediaDownloadFailed();
+                } else {
+                    mDownloadResultListener.onMediaDownloadCompleted();
+                }
+            }
+            return;
+        }
+        mMetaEntry = entry;
+        mCurrentSize = parseSize(entry);
+        mSaveName = saveNameOf(entry);
+        mChunksAttempts = 0;
+        downloadChunksFile();
+    }
+
+    /**
+     * 不同目录下的同名文件保存为不同的名字
+     */
+    private String saveNameOf(Map<String, String> entry) {
+        String name = Utils.getFileName(entry.get(TransmitFileItem.META_DATA_PATH));
+        if (!mSaveNames.add(name)) {
+            String extension = Utils.getFileExtension(name);
+            name = Utils.getFileShortName(name) + "_" + entry.get(TransmitFileItem.META_DATA_ID)
+                    + (extension.length() > 0 ? "." + extension : "");
+            mSaveNames.add(name);
+        }
+        return name;
+    }
+
+    private static long parseSize(Map<String, String> entry) {
+        try {
+            return Long.parseLong(entry.get(TransmitFileItem.META_DATA_SIZE));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     private void downloadMetaFile() {
         mMetaDownload = new HttpDownload(getMetaFilePathOnServer(),
                                                 getMetaFileSavePath(),
@@ -58,20 +184,67 @@ public class MediaFileDownload {
                                                 NetWorkUtils.HTTP_LISTERN_PORT,
                                                 mHandler);
         mMetaDownload.setDownloadResultListener(mMetaDownloadListener);
+        mMetaDownload.setExecutionMode(mExecutionMode);
         mMetaDownload.startDownload();
 
     }
 
+    /**
+     * 下载文件的分块哈希, 保存在meta file旁边
+     */
+    private void downloadChunksFile() {
+        mChunksAttempts++;
+        HttpDownload download = new HttpDownload(getMediaFilePathOnServer(),
+                                                getChunksFileSavePath(),
+                                                0, mIpAddress,
+                                                NetWorkUtils.HTTP_LISTERN_PORT,
+                                                mHandler);
+        download.setQuery("chunks");
+        mChunksDownload = download;
+        mChunksDownload.setDownloadResultListener(mChunksDownloadListener);
+        mChunksDownload.setExecutionMode(mExecutionMode);
+        mChunksDownload.startDownload();
+    }
+
+    private void parseChunksFile() {
+        mChunkManifest = null;
+        InputStream in = null;
+        try {
+            in = new FileInputStream(getChunksFileSavePath());
+            mChunkManifest = ChunkManifest.parse(in);
+        } catch (IOException ie) {
+            Log.i(TAG, "no chunk manifest, download unchecked: " + ie.getMessage());
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+    }
+
     private void downloadMediaFile() {
-        mMediaDownload = new HttpDownload(getMediaFilePathOnServer(),
+        HttpDownload download = new HttpDownload(getMediaFilePathOnServer(),
                                                 getMediaFileSavePath(),
                                                 0, mIpAddress,
                                                 NetWorkUtils.HTTP_LISTERN_PORT,
                                                 mHandler);
+        // a file received before is not downloaded again if unchanged
+        download.setLocalCopy(new File(getMediaFileSavePath()));
+        if (mChunkManifest != null) {
+            // verified chunk by chunk, the right chunks of an earlier try are kept
+            download.setChunkManifest(mChunkManifest);
+        }
+        mMediaDownload = download;
         mMediaDownload.setDownloadResultListener(mMediaDownloadListener);
+        mMediaDownload.setExecutionMode(mExecutionMode);
         mMediaDownload.startDownload();
     }
 
+    /**
+     * 设置下载线程的类型, 在startDownloadMediaFile()之前调用
+     * @param mode PLATFORM (default) or VIRTUAL
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        mExecutionMode = mode;
+    }
+
     /**
      * 开始文件下载
      * @param ipAddress the internet address of server Will connect to
@@ -80,17 +253,39 @@ public class MediaFileDownload {
     public void startDownloadMediaFile(String ipAddress, Handler handler) {
         mIpAddress = ipAddress;
         mHandler = handler;
-        downloadMetaFile();
+        mMetaEntry = new HashMap<String, String>();
+        mQueue.clear();
+        mSaveNames.clear();
+        mShareSetMode = false;
+        mSetSize = 0;
+        mDoneSize = 0;
+        mFailedCount = 0;
+        mSaveName = null;
+        mMediaDownload = null;
+        downloadShareFile();
     }
 
     /**
      * 停止文件下载
      */
     public void stopDownloadMediaFile() {
+        // the failure of the current file then ends the set
+        mQueue.clear();
+        if (mShareDownload != null) {
+            mShareDownload.stopDownload();
+        }
+
         if (mMetaDownload != null) {
             mMetaDownload.stopDownload();
         }
 
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mChunksRetry);
+        }
+        if (mChunksDownload != null) {
+            mChunksDownload.stopDownload();
+        }
+
         if (mMediaDownload != null) {
             mMediaDownload.stopDownload();
         }
@@ -101,6 +296,13 @@ public class MediaFileDownload {
      * @return percent of download
      */
     public int getProgress() {
+        if (mShareSetMode) {
+            if (mSetSize == 0) {
+                return 0;
+            }
+            long current = mMediaDownload != null ? mCurrentSize * mMediaDownload.getProgress() / Utils.PERCENT_FECTOR : 0;
+            return (int) Math.min(Utils.PERCENT_FECTOR, Utils.PERCENT_FECTOR * (mDoneSize + current) / mSetSize);
+        }
         return mMediaDownload != null ? mMediaDownload.getProgress() : 0;
     }
 
@@ -112,6 +314,24 @@ public class MediaFileDownload {
         return mMetaEntry;
     }
 
+    private SimpleDownload.OnDownloadResultListener mShareDownloadListener = new SimpleDownload.OnDownloadResultListener() {
+        @Override
+        public void onDownloadFailed() {
+            // an older server which shares a single file
+            downloadMetaFile();
+        }
+        @Override
+        public void onDownloadComplete() {
+            if (parseShareFile()) {
+                mShareSetMode = true;
+                downloadNextInSet();
+            } else {
+                downloadMetaFile();
+            }
+        }
+
+    };
+
     private SimpleDownload.OnDownloadResultListener mMetaDownloadListener = new SimpleDownload.OnDownloadResultListener() {
         @Override
         public void onDownloadFailed() {
@@ -124,6 +344,34 @@ public class MediaFileDownload {
         public void onDownloadComplete() {
             parseMetaFile();
             Log.i(TAG, "  ###onDownloadComplete### ");
+            mChunksAttempts = 0;
+            downloadChunksFile();
+        }
+
+    };
+
+    private final Runnable mChunksRetry = new Runnable() {
+        public void run() {
+            downloadChunksFile();
+        }
+    };
+
+    private SimpleDownload.OnDownloadResultListener mChunksDownloadListener = new SimpleDownload.OnDownloadResultListener() {
+        @Override
+        public void onDownloadFailed() {
+            int retryAfter = mChunksDownload.getRetryAfter();
+            if (retryAfter > 0 && mChunksAttempts < MAX_CHUNKS_ATTEMPTS) {
+                // the server computes the manifest in the background
+                mHandler.postDelayed(mChunksRetry, retryAfter * 1000L);
+                return;
+            }
+            // an older server without chunk manifests
+            mChunkManifest = null;
+            downloadMediaFile();
+        }
+        @Override
+        public void onDownloadComplete() {
+            parseChunksFile();
             downloadMediaFile();
         }
 
@@ -132,12 +380,23 @@ public class MediaFileDownload {
     private SimpleDownload.OnDownloadResultListener mMediaDownloadListener = new SimpleDownload.OnDownloadResultListener() {
         @Override
         public void onDownloadFailed() {
+            if (mShareSetMode) {
+                // the rest of the set is still downloaded
+                mFailedCount++;
+                downloadNextInSet();
+                return;
+            }
             if (mDownloadResultListener != null) {
                 mDownloadResultListener.onMediaDownloadFailed();
             }
         }
         @Override
         public void onDownloadComplete() {
+            if (mShareSetMode) {
+                mDoneSize += mCurrentSize;
+                downloadNextInSet();
+                return;
+            }
             if (mDownloadResultListener != null) {
                 mDownloadResultListener.onMediaDownloadCompleted();
             }
@@ -162,7 +162,7 @@ public class MediaItem {
         }
 
         try {
-            mSize = Integer.parseInt(properties.getProperty(MediaStore.Audio.Media.SIZE));
+            mSize = Long.parseLong(properties.getProperty(MediaStore.Audio.Media.SIZE));
         } catch (NumberFormatException e) {
             e.printStackTrace();
         }
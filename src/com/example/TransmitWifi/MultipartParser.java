@@ -0,0 +1,295 @@
+package com.example.TransmitWifi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * 流式multipart/form-data解析器.
+ * 数据分段读入固定大小的缓冲区, 用Boyer-Moore-Horspool跳跃查找分隔符"\r\n--boundary",
+ * 确定不属于分隔符的数据立即交给Listener, 缓冲区只保留可能是分隔符开头的尾部. 内存占用与上传大小无关
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class MultipartParser {
+    /**
+     * size of the buffer, also the limit of the headers of one part
+     */
+    static final int BUFSIZE = 64 * 1024;
+    /**
+     * RFC 2046 limits the boundary to 70 characters
+     */
+    private static final int MAX_BOUNDARY_LENGTH = 70;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int STATE_PREAMBLE = 0;
+    private static final int STATE_DELIMITER = 1;
+    private static final int STATE_HEADERS = 2;
+    private static final int STATE_BODY = 3;
+    private static final int STATE_EPILOGUE = 4;
+
+    /**
+     * 解析结果的接收者
+     */
+    interface Listener {
+        /**
+         * 一个部分的头已解析
+         * @param headers lower case header names mapped to trimmed values
+         */
+        void onPartBegin(Map<String, String> headers) throws IOException, HTTPServerDaemon.ResponseException;
+
+        /**
+         * 当前部分的数据
+         * @param data part data in read mode, only valid during the call
+         */
+        void onPartData(ByteBuffer data) throws IOException, HTTPServerDaemon.ResponseException;
+
+        /**
+         * 当前部分结束
+         */
+        void onPartEnd() throws IOException, HTTPServerDaemon.ResponseException;
+    }
+
+    private final Listener mListener;
+    private final byte[] mDelimiter;
+    /**
+     * Horspool shift of each byte value
+     */
+    private final int[] mSkip = new int[256];
+    private final byte[] mBuf = new byte[BUFSIZE];
+    private final ByteBuffer mData = ByteBuffer.wrap(mBuf);
+    private int mPos = 0;
+    private int mLimit = 0;
+    private int mState = STATE_PREAMBLE;
+    private final Map<String, String> mHeaders = new HashMap<String, String>();
+
+    /**
+     * 构造函数
+     * @param boundary boundary parameter of the Content-Type
+     * @param listener receives the parts
+     * @throws HTTPServerDaemon.ResponseException if the boundary is empty or too long
+     */
+    MultipartParser(String boundary, Listener listener) throws HTTPServerDaemon.ResponseException {
+        if (boundary == null || boundary.length() == 0 || boundary.length() > MAX_BOUNDARY_LENGTH) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Bad multipart boundary.");
+        }
+        mListener = listener;
+        mDelimiter = ("\r\n--" + boundary).getBytes(UTF8);
+        int length = mDelimiter.length;
+        for (int i = 0; i < mSkip.length; i++) {
+            mSkip[i] = length;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            mSkip[mDelimiter[i] & 0xFF] = length - 1 - i;
+        }
+        // the first delimiter may start the body without a line break in front
+        mBuf[0] = '\r';
+        mBuf[1] = '\n';
+        mLimit = 2;
+    }
+
+    /**
+     * 从流中读取并解析
+     * @param in request body stream
+     * @param max bytes which may be read
+     * @return count of bytes read, -1 at end of stream
+     */
+    int read(InputStream in, long max) throws IOException, HTTPServerDaemon.ResponseException {
+        if (mPos > 0) {
+            System.arraycopy(mBuf, mPos, mBuf, 0, mLimit - mPos);
+            mLimit -= mPos;
+            mPos = 0;
+        }
+        int read = in.read(mBuf, mLimit, (int) Math.min(max, mBuf.length - mLimit));
+        if (read > 0) {
+            mLimit += read;
+            parse();
+        }
+        return read;
+    }
+
+    /**
+     * 请求体结束
+     * @throws HTTPServerDaemon.ResponseException if the closing delimiter is missing
+     */
+    void finish() throws HTTPServerDaemon.ResponseException {
+        if (mState != STATE_EPILOGUE) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Truncated multipart body.");
+        }
+    }
+
+    private void parse() throws IOException, HTTPServerDaemon.ResponseException {
+        while (true) {
+            switch (mState) {
+                case STATE_PREAMBLE:
+                case STATE_BODY:
+                    int found = indexOfDelimiter(mPos, mLimit);
+                    if (found < 0) {
+                        // the tail may be the start of a delimiter, keep it for the next read
+                        int safe = Math.max(mPos, mLimit - mDelimiter.length + 1);
+                        emit(safe);
+                        return;
+                    }
+                    emit(found);
+                    if (mState == STATE_BODY) {
+                        mListener.onPartEnd();
+                    }
+                    mPos = found + mDelimiter.length;
+                    mState = STATE_DELIMITER;
+                    break;
+                case STATE_DELIMITER:
+                    if (mLimit - mPos < 2) {
+                        return;
+                    }
+                    if (mBuf[mPos] == '-' && mBuf[mPos + 1] == '-') {
+                        mState = STATE_EPILOGUE;
+                        break;
+                    }
+                    // transport padding may follow the boundary
+                    int lf = indexOf('\n', mPos, mLimit);
+                    if (lf < 0) {
+                        checkHeaderRoom();
+                        return;
+                    }
+                    mPos = lf + 1;
+                    mState = STATE_HEADERS;
+                    break;
+                case STATE_HEADERS:
+                    if (!parseHeaders()) {
+                        checkHeaderRoom();
+                        return;
+                    }
+                    mListener.onPartBegin(mHeaders);
+                    mState = STATE_BODY;
+                    break;
+                default:
+                    // drop the epilogue
+                    mPos = mLimit;
+                    return;
+            }
+        }
+    }
+
+    /**
+     * 交出当前位置到end之间的数据, 前导部分直接丢弃
+     */
+    private void emit(int end) throws IOException, HTTPServerDaemon.ResponseException {
+        if (end > mPos && mState == STATE_BODY) {
+            mData.limit(end);
+            mData.position(mPos);
+            mListener.onPartData(mData);
+        }
+        mPos = end;
+    }
+
+    private int indexOfDelimiter(int from, int to) {
+        byte[] delimiter = mDelimiter;
+        int last = delimiter.length - 1;
+        int i = from;
+        while (i + last < to) {
+            int j = last;
+            while (mBuf[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += mSkip[mBuf[i + last] & 0xFF];
+        }
+        return -1;
+    }
+
+    /**
+     * 解析一个部分的头, 需要完整的头都在缓冲区中
+     * @return false if the empty line ending the headers has not arrived yet
+     */
+    private boolean parseHeaders() throws HTTPServerDaemon.ResponseException {
+        int end = mPos;
+        while (true) {
+            int lf = indexOf('\n', end, mLimit);
+            if (lf < 0) {
+                return false;
+            }
+            int lineEnd = lf > end && mBuf[lf - 1] == '\r' ? lf - 1 : lf;
+            if (lineEnd == end) {
+                break;
+            }
+            end = lf + 1;
+        }
+        mHeaders.clear();
+        int lineStart = mPos;
+        while (true) {
+            int lf = indexOf('\n', lineStart, mLimit);
+            int lineEnd = lf > lineStart && mBuf[lf - 1] == '\r' ? lf - 1 : lf;
+            if (lineEnd == lineStart) {
+                mPos = lf + 1;
+                return true;
+            }
+            int colon = indexOf(':', lineStart, lineEnd);
+            if (colon < 0) {
+                throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                        "BAD REQUEST: Bad multipart header.");
+            }
+            String name = new String(mBuf, lineStart, colon - lineStart, UTF8).trim().toLowerCase(Locale.US);
+            String value = new String(mBuf, colon + 1, lineEnd - colon - 1, UTF8).trim();
+            mHeaders.put(name, value);
+            lineStart = lf + 1;
+        }
+    }
+
+    private void checkHeaderRoom() throws HTTPServerDaemon.ResponseException {
+        if (mPos == 0 && mLimit == mBuf.length) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Multipart header too large.");
+        }
+    }
+
+    private int indexOf(char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (mBuf[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 取出头值中的参数, 例如Content-Disposition的name和filename
+     * @param value header value like: form-data; name="file"; filename="a.txt"
+     * @param name parameter name, lower case
+     * @return the unquoted parameter value, null if absent
+     */
+    static String getParameter(String value, String name) {
+        if (value == null) {
+            return null;
+        }
+        int i = value.indexOf(';');
+        while (i >= 0 && i < value.length()) {
+            int start = i + 1;
+            while (start < value.length() && value.charAt(start) == ' ') {
+                start++;
+            }
+            int eq = value.indexOf('=', start);
+            if (eq < 0) {
+                return null;
+            }
+            boolean quoted = eq + 1 < value.length() && value.charAt(eq + 1) == '"';
+            int end = quoted ? value.indexOf('"', eq + 2) : value.indexOf(';', eq + 1);
+            if (end < 0) {
+                end = value.length();
+            }
+            if (value.substring(start, eq).trim().equalsIgnoreCase(name)) {
+                return value.substring(quoted ? eq + 2 : eq + 1, end).trim();
+            }
+            i = quoted ? value.indexOf(';', end) : end;
+        }
+        return null;
+    }
+}
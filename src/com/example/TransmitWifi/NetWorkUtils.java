@@ -28,9 +28,9 @@ public class NetWorkUtils {
     public static final String DOWNLOAD_SAVE_PATH = "/sdcard";
 
     /**
-     * socket time out
+     * socket read time out, a peer silent for this long has gone out of range
      */
-    public static final int SO_TIME_OUT = 1000 * 60 * 60;
+    public static final int SO_TIME_OUT = 1000 * 60;
     /**
      * log
      */
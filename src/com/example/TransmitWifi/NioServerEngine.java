@@ -0,0 +1,472 @@
+package com.example.TransmitWifi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 基于Selector的非阻塞http引擎, 所有连接复用少量事件循环线程.
+ * 事件循环只做读写, 完整到达的请求交给工作线程池执行serve(), 回复再交回事件循环写出;
+ * 请求执行期间该连接暂停读取, 流水线请求按顺序逐个执行.
+ * 每个事件循环有一个时间轮管理其连接的超时, select的超时不超过下一个tick
+ * @author haihui.li
+ * @version 1.0.0
+ */
+class NioServerEngine {
+    private static final String TAG = "NioServerEngine";
+
+    private final HTTPServerDaemon mDaemon;
+    private final EventLoop[] mLoops;
+    private ServerSocketChannel mServerChannel;
+    private int mNextLoop = 0;
+
+    /**
+     * 构造函数
+     * @param daemon server whose serve() handles the requests
+     * @param loopCount count of event loop threads
+     */
+    NioServerEngine(HTTPServerDaemon daemon, int loopCount) {
+        mDaemon = daemon;
+        mLoops = new EventLoop[loopCount];
+    }
+
+    /**
+     * 绑定端口并启动事件循环
+     * @param address address to listen on
+     * @throws IOException if the socket is in use.
+     */
+    void start(InetSocketAddress address) throws IOException {
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(address, NetWorkUtils.DEFAULT_BACKLOG);
+        mServerChannel.configureBlocking(false);
+
+        for (int i = 0; i < mLoops.length; i++) {
+            mLoops[i] = new EventLoop(i);
+        }
+        // the first loop also accepts new connections
+        mServerChannel.register(mLoops[0].mSelector, SelectionKey.OP_ACCEPT);
+        for (EventLoop loop : mLoops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * 停止所有事件循环并关闭连接
+     */
+    void stop() {
+        NetWorkUtils.safeClose(mServerChannel);
+        for (EventLoop loop : mLoops) {
+            if (loop != null) {
+                loop.exit();
+            }
+        }
+        for (EventLoop loop : mLoops) {
+            try {
+                if (loop != null) {
+                    loop.join();
+                }
+            } catch (InterruptedException ie) {
+                ie.printStackTrace();
+            }
+        }
+    }
+
+    int getLocalPort() {
+        return mServerChannel == null ? -1 : mServerChannel.socket().getLocalPort();
+    }
+
+    boolean isAlive() {
+        return mServerChannel != null && mServerChannel.isOpen() && mLoops[0] != null && mLoops[0].isAlive();
+    }
+
+    private void accept() {
+        try {
+            SocketChannel channel = mServerChannel.accept();
+            while (channel != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = mLoops[mNextLoop];
+                mNextLoop = (mNextLoop + 1) % mLoops.length;
+                loop.register(channel);
+                channel = mServerChannel.accept();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 事件循环线程, 负责一组连接的读写
+     */
+    private class EventLoop extends Thread {
+        private final Selector mSelector;
+        private final Queue<SocketChannel> mPendingChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        /**
+         * connections whose request a worker has served, the response is written by the loop
+         */
+        private final Queue<Connection> mServed = new ConcurrentLinkedQueue<Connection>();
+        /**
+         * connections waiting for bandwidth quota, resumed by time
+         */
+        private final List<Connection> mThrottled = new ArrayList<Connection>();
+        /**
+         * timeouts of the connections of this loop, only touched by the loop thread
+         */
+        private final TimerWheel mWheel = new TimerWheel(HTTPServerDaemon.TIMER_TICK_MS, HTTPServerDaemon.TIMER_SLOTS);
+        private volatile boolean mStop = false;
+
+        EventLoop(int id) throws IOException {
+            mSelector = Selector.open();
+            setName("NioServerEngine EventLoop " + id);
+        }
+
+        void register(SocketChannel channel) {
+            mPendingChannels.add(channel);
+            mSelector.wakeup();
+        }
+
+        void exit() {
+            mStop = true;
+            mSelector.wakeup();
+        }
+
+        /**
+         * 工作线程执行完请求后调用
+         * @param connection connection whose response is ready
+         */
+        void served(Connection connection) {
+            mServed.add(connection);
+            mSelector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!mStop) {
+                try {
+                    mSelector.select(nextTimeout());
+                    registerPending();
+                    sendServed();
+                    Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    resumeThrottled(System.nanoTime() / 1000000);
+                    mWheel.expire();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            for (SelectionKey key : mSelector.keys()) {
+                if (key.attachment() instanceof Connection) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            sendServed();
+            NetWorkUtils.safeClose(mSelector);
+        }
+
+        /**
+         * select超时, 有超时时不超过下一个tick, 有被限速的连接时不超过最早的恢复时间
+         */
+        private long nextTimeout() {
+            long selectTimeout = mWheel.size() > 0 ? mWheel.millisToNextTick() : 0;
+            if (mThrottled.isEmpty()) {
+                return selectTimeout;
+            }
+            long resumeAt = Long.MAX_VALUE;
+            for (Connection connection : mThrottled) {
+                resumeAt = Math.min(resumeAt, connection.mResumeAt);
+            }
+            long wait = Math.max(1, resumeAt - System.nanoTime() / 1000000);
+            return selectTimeout > 0 ? Math.min(selectTimeout, wait) : wait;
+        }
+
+        void throttle(Connection connection, long delayMs) {
+            connection.mResumeAt = System.nanoTime() / 1000000 + delayMs;
+            if (!mThrottled.contains(connection)) {
+                mThrottled.add(connection);
+            }
+        }
+
+        private void resumeThrottled(long now) {
+            if (mThrottled.isEmpty()) {
+                return;
+            }
+            List<Connection> due = new ArrayList<Connection>();
+            Iterator<Connection> it = mThrottled.iterator();
+            while (it.hasNext()) {
+                Connection connection = it.next();
+                if (connection.mResumeAt <= now) {
+                    it.remove();
+                    due.add(connection);
+                }
+            }
+            for (Connection connection : due) {
+                try {
+                    connection.onWritable();
+                } catch (IOException e) {
+                    ServerLog.d(TAG, "connection closed: {}", e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+
+        private void registerPending() {
+            SocketChannel channel = mPendingChannels.poll();
+            while (channel != null) {
+                try {
+                    SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+                    key.attach(new Connection(this, channel, key));
+                } catch (ClosedChannelException e) {
+                    NetWorkUtils.safeClose(channel);
+                }
+                channel = mPendingChannels.poll();
+            }
+        }
+
+        private void sendServed() {
+            Connection connection = mServed.poll();
+            while (connection != null) {
+                try {
+                    connection.onServed();
+                } catch (IOException e) {
+                    ServerLog.d(TAG, "connection closed: {}", e.getMessage());
+                    connection.close();
+                }
+                connection = mServed.poll();
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            if (!key.isValid()) {
+                return;
+            }
+            if (key.isAcceptable()) {
+                accept();
+                return;
+            }
+            Connection connection = (Connection) key.attachment();
+            try {
+                if (key.isReadable()) {
+                    connection.onReadable();
+                } else if (key.isWritable()) {
+                    connection.onWritable();
+                }
+            } catch (IOException e) {
+                ServerLog.d(TAG, "connection closed: {}", e.getMessage());
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * 单个客户端连接的状态
+     */
+    private class Connection implements Closeable {
+        private final EventLoop mLoop;
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private final HTTPServerDaemon.HTTPSession mSession;
+        private final ResponseWriter mWriter;
+        private final ConnectionGuard mGuard;
+        /**
+         * response which waits until the writer has drained
+         */
+        private HTTPServerDaemon.Response mPending;
+        /**
+         * a worker owns the session until it has served the request, no reading meanwhile
+         */
+        private boolean mServing = false;
+        /**
+         * response of the worker, handed to the loop by served()
+         */
+        private volatile HTTPServerDaemon.Response mServedResponse;
+        private boolean mWaitingForWrite = false;
+        /**
+         * monotonic time in ms the connection may write again when over the bandwidth limit
+         */
+        private long mResumeAt;
+        private boolean mClosed = false;
+
+        Connection(EventLoop loop, SocketChannel channel, SelectionKey key) {
+            mLoop = loop;
+            mChannel = channel;
+            mKey = key;
+            mSession = mDaemon.newSession(null, channel);
+            mWriter = mSession.getWriter();
+            mGuard = mDaemon.newGuard(loop.mWheel, this);
+            mSession.setGuard(mGuard);
+            mGuard.awaitRequest();
+            mDaemon.getMetrics().onConnectionOpened();
+        }
+
+        void onReadable() throws IOException {
+            if (mSession.fill(mChannel) == -1) {
+                close();
+                return;
+            }
+            processRequests();
+        }
+
+        void onWritable() throws IOException {
+            processRequests();
+        }
+
+        /**
+         * 回复缓冲区中已完整到达的请求, 按顺序合并写出
+         */
+        private void processRequests() throws IOException {
+            while (true) {
+                if (mPending != null) {
+                    if (!mWriter.flush()) {
+                        waitForWrite();
+                        return;
+                    }
+                    // the writer takes any response once it is drained
+                    mWriter.offer(mPending);
+                    mPending = null;
+                }
+                if (mServing || !mSession.isKeepAlive()) {
+                    break;
+                }
+                HTTPServerDaemon.Response response;
+                try {
+                    if (!mSession.parseRequest() || !mSession.receiveBody()) {
+                        break;
+                    }
+                    if (dispatch()) {
+                        break;
+                    }
+                    response = mSession.errorResponse(new HTTPServerDaemon.ResponseException(
+                            HTTPServerDaemon.Response.Status.SERVICE_UNAVAILABLE, "SERVICE UNAVAILABLE: Server busy."));
+                    response.addHeader("Retry-After", "" + HTTPServerDaemon.RETRY_AFTER_SECONDS);
+                } catch (HTTPServerDaemon.ResponseException re) {
+                    response = mSession.errorResponse(re);
+                }
+                if (!mWriter.offer(response)) {
+                    mPending = response;
+                }
+            }
+            if (!mWriter.flush()) {
+                waitForWrite();
+                return;
+            }
+            if (mServing) {
+                // earlier responses are out, wait for the worker without reading
+                mWaitingForWrite = true;
+                mKey.interestOps(0);
+                return;
+            }
+            if (!mSession.isKeepAlive()) {
+                close();
+                return;
+            }
+            if (mWaitingForWrite) {
+                mWaitingForWrite = false;
+                mKey.interestOps(SelectionKey.OP_READ);
+            }
+            if (mSession.isReceivingBody()) {
+                mGuard.transferStarted();
+            } else if (mSession.hasPartialRequest()) {
+                mGuard.headerStarted();
+            } else {
+                mGuard.awaitRequest();
+            }
+        }
+
+        /**
+         * 把已完整到达的请求交给工作线程执行
+         * @return false if the worker pool is saturated
+         */
+        private boolean dispatch() {
+            // the timeouts belong to the loop, serve() is not timed
+            mGuard.pause();
+            mServing = true;
+            boolean accepted = mDaemon.getWorkerPool().offerTasklet(new Runnable() {
+                @Override
+                public void run() {
+                    HTTPServerDaemon.Response response;
+                    try {
+                        response = mSession.nextResponse();
+                    } catch (RuntimeException e) {
+                        ServerLog.w(TAG, "serve failed: {}", e);
+                        response = mSession.errorResponse(new HTTPServerDaemon.ResponseException(
+                                HTTPServerDaemon.Response.Status.INTERNAL_ERROR, "SERVER INTERNAL ERROR: " + e.getMessage()));
+                    }
+                    mServedResponse = response;
+                    mLoop.served(Connection.this);
+                }
+            });
+            if (!accepted) {
+                mServing = false;
+                mDaemon.getMetrics().onConnectionRejected();
+            }
+            return accepted;
+        }
+
+        /**
+         * 工作线程执行完请求, 在事件循环中写出回复并继续处理后续请求
+         */
+        void onServed() throws IOException {
+            HTTPServerDaemon.Response response = mServedResponse;
+            mServedResponse = null;
+            mServing = false;
+            if (mClosed) {
+                response.close();
+                mSession.close();
+                return;
+            }
+            if (!mWriter.offer(response)) {
+                mPending = response;
+            }
+            processRequests();
+        }
+
+        private void waitForWrite() {
+            mWaitingForWrite = true;
+            if (mWriter.isThrottled()) {
+                // over the bandwidth limit, neither read nor write until the quota is refilled
+                mKey.interestOps(0);
+                mLoop.throttle(this, mWriter.getThrottleDelayMillis());
+            } else if (mKey.interestOps() != SelectionKey.OP_WRITE) {
+                // wait until the socket drains, stop reading meanwhile
+                mKey.interestOps(SelectionKey.OP_WRITE);
+            }
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            mGuard.close();
+            mDaemon.getMetrics().onConnectionClosed();
+            if (mPending != null) {
+                mPending.close();
+                mPending = null;
+            }
+            mWriter.close();
+            if (!mServing) {
+                // otherwise closed by onServed() once the worker is done with it
+                mSession.close();
+            }
+            mLoop.mThrottled.remove(this);
+            mKey.cancel();
+            NetWorkUtils.safeClose(mChannel);
+        }
+    }
+}
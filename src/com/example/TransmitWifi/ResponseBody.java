@@ -0,0 +1,534 @@
+package com.example.TransmitWifi;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * http回复的消息体, 以通道方式增量写出
+ * @author haihui.li
+ * @version 1.0.0
+ */
+abstract class ResponseBody {
+    /**
+     * bodies up to this size may be written together with the header
+     */
+    static final int GATHER_LIMIT = 16384; //16K
+
+    /**
+     * bytes writeTo() may still write, see setQuota()
+     */
+    private long mQuota = Long.MAX_VALUE;
+    /**
+     * bytes written by writeTo() so far, also read by the timer checking the transfer rate
+     */
+    private volatile long mSent = 0;
+    /**
+     * bytes read ahead of sending, e.g. for the CRC of a ZIP entry
+     */
+    private volatile long mPrepared = 0;
+
+    /**
+     * 消息体长度
+     * @return count of bytes to send, -1 if unknown
+     */
+    abstract long length();
+
+    /**
+     * 写出尽可能多的数据, 阻塞通道上一次调用即可写完
+     * @param channel the socket channel
+     * @return true if the whole body has been written
+     */
+    abstract boolean writeTo(WritableByteChannel channel) throws IOException;
+
+    /**
+     * 将整个消息体读入内存, 以便和回复头一次写出, 只在写出消息体之前调用.
+     * 返回的缓冲区由writeTo()继续写出
+     * @return body in read mode, null if the body is too large or cannot be gathered
+     */
+    ByteBuffer gatherBuffer() throws IOException {
+        return null;
+    }
+
+    /**
+     * 限制之后writeTo()写出的字节数, 用于限速. 配额用完时writeTo()返回false
+     * @param quota bytes writeTo() may write, Long.MAX_VALUE for no limit
+     */
+    final void setQuota(long quota) {
+        mQuota = quota;
+    }
+
+    /**
+     * @return bytes of the quota not yet written
+     */
+    final long getQuota() {
+        return mQuota;
+    }
+
+    /**
+     * @return bytes written so far
+     */
+    final long getBytesSent() {
+        return mSent;
+    }
+
+    /**
+     * @return bytes read in preparation of the data sent next, see addPrepared()
+     */
+    final long getBytesPrepared() {
+        return mPrepared;
+    }
+
+    /**
+     * 记入为发送而预先读取的字节, 使超时检查把准备数据的时间也看作传输进展
+     * @param count bytes read from the source without being sent yet
+     */
+    final void addPrepared(long count) {
+        mPrepared += count;
+    }
+
+    /**
+     * 记入和回复头一起写出的字节, 见gatherBuffer()
+     * @param count bytes of the gathered buffer written
+     */
+    final void addSent(long count) {
+        mSent += count;
+    }
+
+    /**
+     * 在配额内写出缓冲区
+     * @return count of bytes written
+     */
+    final int write(WritableByteChannel channel, ByteBuffer src) throws IOException {
+        if (mQuota <= 0) {
+            return 0;
+        }
+        int limit = src.limit();
+        if (src.remaining() > mQuota) {
+            src.limit(src.position() + (int) mQuota);
+        }
+        int written;
+        try {
+            written = channel.write(src);
+        } finally {
+            src.limit(limit);
+        }
+        mQuota -= written;
+        mSent += written;
+        return written;
+    }
+
+    /**
+     * 在配额内从文件通道零拷贝发送
+     * @return count of bytes sent
+     */
+    final long transfer(FileChannel file, long position, long count, WritableByteChannel channel)
+            throws IOException {
+        if (mQuota <= 0) {
+            return 0;
+        }
+        long sent = file.transferTo(position, Math.min(count, mQuota), channel);
+        mQuota -= sent;
+        mSent += sent;
+        return sent;
+    }
+
+    /**
+     * 获得数据流, 非流式消息体返回null
+     * @return input stream of content
+     */
+    InputStream getInputStream() {
+        return null;
+    }
+
+    /**
+     * 释放消息体占用的资源
+     */
+    abstract void close();
+
+    /**
+     * 由InputStream产生的消息体, 经堆缓冲区拷贝, 用于生成的内容
+     */
+    static class StreamBody extends ResponseBody {
+        private static final int BUFSIZE = GATHER_LIMIT;
+        private final InputStream mData;
+        private ByteBuffer mBuffer;
+        private final long mLength;
+        private long mPending;
+
+        /**
+         * @param length count of bytes the stream will deliver, may exceed 2GB
+         */
+        StreamBody(InputStream data, long length) {
+            mData = data;
+            mLength = length;
+            mPending = length;
+        }
+
+        @Override
+        long length() {
+            return mLength;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (mBuffer == null) {
+                mBuffer = ByteBuffer.allocate(BUFSIZE);
+                mBuffer.flip();
+            }
+            while (true) {
+                if (!mBuffer.hasRemaining()) {
+                    if (mPending <= 0) {
+                        return true;
+                    }
+                    mBuffer.clear();
+                    int read = mData.read(mBuffer.array(), 0, (int) Math.min(mPending, BUFSIZE));
+                    if (read <= 0) {
+                        mPending = 0;
+                        mBuffer.limit(0);
+                        continue;
+                    }
+                    mBuffer.limit(read);
+                    mPending -= read;
+                }
+                write(channel, mBuffer);
+                if (mBuffer.hasRemaining()) {
+                    return false;
+                }
+            }
+        }
+
+        @Override
+        ByteBuffer gatherBuffer() throws IOException {
+            if (mBuffer == null) {
+                if (mPending > BUFSIZE) {
+                    return null;
+                }
+                mBuffer = ByteBuffer.allocate(BUFSIZE);
+                while (mPending > 0) {
+                    int read = mData.read(mBuffer.array(), mBuffer.position(), (int) mPending);
+                    if (read <= 0) {
+                        break;
+                    }
+                    mBuffer.position(mBuffer.position() + read);
+                    mPending -= read;
+                }
+                mPending = 0;
+                mBuffer.flip();
+            }
+            return mPending == 0 ? mBuffer : null;
+        }
+
+        @Override
+        InputStream getInputStream() {
+            return mData;
+        }
+
+        @Override
+        void close() {
+            NetWorkUtils.safeClose(mData);
+        }
+    }
+
+    /**
+     * 内存中的消息体, 数组可被多个回复共用, 不做拷贝
+     */
+    static class BytesBody extends ResponseBody {
+        private final ByteBuffer mBuffer;
+
+        BytesBody(byte[] data) {
+            mBuffer = ByteBuffer.wrap(data);
+        }
+
+        @Override
+        long length() {
+            return mBuffer.capacity();
+        }
+
+        @Override
+        ByteBuffer gatherBuffer() {
+            return mBuffer;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (mBuffer.hasRemaining()) {
+                write(channel, mBuffer);
+            }
+            return !mBuffer.hasRemaining();
+        }
+
+        @Override
+        void close() {
+        }
+    }
+
+    /**
+     * 文件区间消息体, 用FileChannel.transferTo零拷贝发送(Linux上为sendfile)
+     */
+    static class FileBody extends ResponseBody {
+        private final FileChannel mChannel;
+        private final Closeable mOwner;
+        private final long mLength;
+        private long mPosition;
+        private long mRemaining;
+        /**
+         * small file read into memory by gatherBuffer()
+         */
+        private ByteBuffer mBuffer;
+
+        FileBody(FileChannel channel, long offset, long length) {
+            this(channel, offset, length, channel);
+        }
+
+        /**
+         * 构造函数, 共享的通道
+         * @param channel file channel, only read by position
+         * @param owner closed instead of the channel when the body is done, e.g. a FileChannelCache lease
+         */
+        FileBody(FileChannel channel, long offset, long length, Closeable owner) {
+            mChannel = channel;
+            mOwner = owner;
+            mLength = length;
+            mPosition = offset;
+            mRemaining = length;
+        }
+
+        @Override
+        long length() {
+            return mLength;
+        }
+
+        @Override
+        ByteBuffer gatherBuffer() throws IOException {
+            if (mBuffer == null) {
+                if (mRemaining != mLength || mLength > GATHER_LIMIT) {
+                    return null;
+                }
+                mBuffer = ByteBuffer.allocate((int) mLength);
+                while (mBuffer.hasRemaining()) {
+                    if (mChannel.read(mBuffer, mPosition + mBuffer.position()) < 0) {
+                        throw new IOException("file truncated while sending");
+                    }
+                }
+                mBuffer.flip();
+                mPosition += mLength;
+                mRemaining = 0;
+            }
+            return mBuffer;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (mBuffer != null && mBuffer.hasRemaining()) {
+                write(channel, mBuffer);
+                if (mBuffer.hasRemaining()) {
+                    return false;
+                }
+            }
+            while (mRemaining > 0) {
+                long sent = transfer(mChannel, mPosition, mRemaining, channel);
+                if (sent <= 0) {
+                    if (mPosition >= mChannel.size()) {
+                        throw new IOException("file truncated while sending");
+                    }
+                    // socket buffer is full or the quota is used up
+                    return false;
+                }
+                mPosition += sent;
+                mRemaining -= sent;
+            }
+            return true;
+        }
+
+        @Override
+        void close() {
+            NetWorkUtils.safeClose(mOwner);
+        }
+    }
+
+    /**
+     * multipart/byteranges消息体, 各部分的头在内存中, 数据用transferTo从文件通道发送
+     */
+    static class MultipartBody extends ResponseBody {
+        private final FileChannel mChannel;
+        private final Closeable mOwner;
+        private final List<ByteRange> mRanges;
+        private final ByteBuffer[] mPartHeaders;
+        private final ByteBuffer mTrailer;
+        private final long mLength;
+        private int mPart = 0;
+        private long mPosition;
+        private long mRemaining = -1;
+
+        /**
+         * 构造函数
+         * @param channel file channel, only read by position
+         * @param owner closed when the body is done, the channel itself or a FileChannelCache lease
+         * @param ranges satisfiable ranges in the order requested
+         * @param boundary multipart boundary, also given in the Content-Type of the response
+         * @param mimeType type of the file, sent in each part
+         * @param totalLength length of the file
+         */
+        MultipartBody(FileChannel channel, Closeable owner, List<ByteRange> ranges, String boundary, String mimeType,
+                      long totalLength) {
+            mChannel = channel;
+            mOwner = owner;
+            mRanges = ranges;
+            mPartHeaders = new ByteBuffer[ranges.size()];
+            long length = 0;
+            for (int i = 0; i < mPartHeaders.length; i++) {
+                ByteRange range = ranges.get(i);
+                mPartHeaders[i] = ascii("\r\n--" + boundary + "\r\nContent-Type: " + mimeType
+                        + "\r\nContent-Range: " + range.toContentRange(totalLength) + "\r\n\r\n");
+                length += mPartHeaders[i].remaining() + range.length();
+            }
+            mTrailer = ascii("\r\n--" + boundary + "--\r\n");
+            mLength = length + mTrailer.remaining();
+        }
+
+        private static ByteBuffer ascii(String s) {
+            byte[] bytes = new byte[s.length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = (byte) s.charAt(i);
+            }
+            return ByteBuffer.wrap(bytes);
+        }
+
+        @Override
+        long length() {
+            return mLength;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            while (mPart < mPartHeaders.length) {
+                ByteBuffer header = mPartHeaders[mPart];
+                if (header.hasRemaining()) {
+                    write(channel, header);
+                    if (header.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (mRemaining < 0) {
+                    mPosition = mRanges.get(mPart).mStart;
+                    mRemaining = mRanges.get(mPart).length();
+                }
+                while (mRemaining > 0) {
+                    long sent = transfer(mChannel, mPosition, mRemaining, channel);
+                    if (sent <= 0) {
+                        if (mPosition >= mChannel.size()) {
+                            throw new IOException("file truncated while sending");
+                        }
+                        return false;
+                    }
+                    mPosition += sent;
+                    mRemaining -= sent;
+                }
+                mRemaining = -1;
+                mPart++;
+            }
+            write(channel, mTrailer);
+            return !mTrailer.hasRemaining();
+        }
+
+        @Override
+        void close() {
+            NetWorkUtils.safeClose(mOwner);
+        }
+    }
+
+    /**
+     * 长度未知的数据流, 边读边以chunked编码发送, 不分块时发送到流结束为止.
+     * read()在写回复的线程中调用, nio引擎中是事件循环, 数据流不能阻塞等待生产者
+     */
+    static class ChunkedBody extends ResponseBody {
+        /**
+         * room for the chunk size line, 8 hex digits and CRLF
+         */
+        private static final int SIZE_LINE_ROOM = 10;
+        private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'};
+        private final InputStream mData;
+        private ByteBuffer mBuffer;
+        private boolean mFramed;
+        private int mChunkSize;
+        private boolean mDone = false;
+
+        ChunkedBody(InputStream data) {
+            mData = data;
+        }
+
+        /**
+         * 开始发送前调用
+         * @param framed true for Transfer-Encoding: chunked, false to send the raw stream until it ends
+         * @param chunkSize max count of data bytes per chunk
+         */
+        void start(boolean framed, int chunkSize) {
+            mFramed = framed;
+            mChunkSize = chunkSize;
+        }
+
+        @Override
+        long length() {
+            return -1;
+        }
+
+        @Override
+        boolean writeTo(WritableByteChannel channel) throws IOException {
+            if (mBuffer == null) {
+                mBuffer = ByteBuffer.allocate(SIZE_LINE_ROOM + mChunkSize + 2);
+                mBuffer.limit(0);
+            }
+            byte[] array = mBuffer.array();
+            while (true) {
+                if (mBuffer.hasRemaining()) {
+                    write(channel, mBuffer);
+                    if (mBuffer.hasRemaining()) {
+                        return false;
+                    }
+                }
+                if (mDone) {
+                    return true;
+                }
+                // send whatever the producer has ready instead of waiting for a full chunk
+                int read = mData.read(array, SIZE_LINE_ROOM, mChunkSize);
+                if (read < 0) {
+                    mDone = true;
+                    mBuffer.clear();
+                    if (mFramed) {
+                        mBuffer.put(LAST_CHUNK);
+                    }
+                    mBuffer.flip();
+                } else if (read > 0) {
+                    int start = SIZE_LINE_ROOM;
+                    int end = SIZE_LINE_ROOM + read;
+                    if (mFramed) {
+                        array[--start] = '\n';
+                        array[--start] = '\r';
+                        for (int n = read; n > 0; n >>>= 4) {
+                            array[--start] = (byte) Character.forDigit(n & 0xf, 16);
+                        }
+                        array[end++] = '\r';
+                        array[end++] = '\n';
+                    }
+                    mBuffer.limit(end);
+                    mBuffer.position(start);
+                }
+            }
+        }
+
+        @Override
+        InputStream getInputStream() {
+            return mData;
+        }
+
+        @Override
+        void close() {
+            NetWorkUtils.safeClose(mData);
+        }
+    }
+}
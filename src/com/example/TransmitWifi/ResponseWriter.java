@@ -0,0 +1,340 @@
+package com.example.TransmitWifi;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * 按顺序写出一个连接上的回复.
+ * 流水线请求的回复头直接编码到一个复用的缓冲区中, 直到遇到有消息体的回复或没有更多请求时才一次写出.
+ * 小的消息体和回复头用聚集写(writev)一起写出, 减少系统调用和TCP分段.
+ * 设置了限速时消息体按BandwidthScheduler分配的配额写出. 写出的字节数, 首字节时间和回复时间记入ServerMetrics,
+ * 写出进度报告给连接的ConnectionGuard.
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ResponseWriter {
+    private static final String TAG = "ResponseWriter";
+    private static final int BATCH_SIZE = 8192;
+    /**
+     * responses whose headers wait in the batch at most
+     */
+    private static final int MAX_BATCHED = 32;
+    /**
+     * a blocking write returns only when done, bodies are written in steps of this size to report progress
+     */
+    private static final long PROGRESS_STEP = 64 * 1024;
+    private static final byte[] CONTINUE = HeaderEncoder.ascii("HTTP/1.1 100 Continue\r\n\r\n");
+
+    private final WritableByteChannel mChannel;
+    private final boolean mBlocking;
+    /**
+     * header bytes not yet written, kept in write mode
+     */
+    private final ByteBuffer mBatch = ByteBuffer.allocate(BATCH_SIZE);
+    /**
+     * header which did not fit into the batch buffer
+     */
+    private ByteBuffer mLargeHeader;
+    /**
+     * response whose body follows the batched headers
+     */
+    private HTTPServerDaemon.Response mCurrent;
+    private final ByteBuffer[] mGather = new ByteBuffer[2];
+    /**
+     * quota of the connection, null if the bandwidth is not limited
+     */
+    private final BandwidthScheduler.Flow mFlow;
+    private boolean mThrottled = false;
+    private final ServerMetrics mMetrics;
+    /**
+     * request times of the responses whose headers are batched, the last one may be mCurrent
+     */
+    private final long[] mBatchStarts = new long[MAX_BATCHED];
+    private int mBatchCount = 0;
+    private long mCurrentStart;
+    private long mBodyStart;
+    private long mBodyReported;
+    private ConnectionGuard mGuard;
+
+    /**
+     * 构造函数
+     * @param channel socket channel of the connection, blocking or not
+     * @param flow bandwidth quota of the connection, null for unlimited
+     * @param metrics metrics the written responses are counted in
+     */
+    ResponseWriter(WritableByteChannel channel, BandwidthScheduler.Flow flow, ServerMetrics metrics) {
+        mChannel = channel;
+        mBlocking = !(channel instanceof SelectableChannel) || ((SelectableChannel) channel).isBlocking();
+        mFlow = flow;
+        mMetrics = metrics;
+    }
+
+    /**
+     * @param guard timeouts of the connection, told about the write progress
+     */
+    void setGuard(ConnectionGuard guard) {
+        mGuard = guard;
+    }
+
+    /**
+     * 加入一个回复
+     * @param response response of the next request in order
+     * @return false if pending data has to be flushed before the response can be taken
+     */
+    boolean offer(HTTPServerDaemon.Response response) throws IOException {
+        if (mCurrent != null || mLargeHeader != null || mBatchCount == MAX_BATCHED) {
+            return false;
+        }
+        response.beginWrite();
+        if (!response.encodeHeader(mBatch)) {
+            if (mBatch.position() > 0) {
+                return false;
+            }
+            mLargeHeader = response.encodeHeader(BATCH_SIZE * 2);
+        }
+        mMetrics.onResponse(response.getStatus());
+        long start = response.getRequestStart();
+        mBatchStarts[mBatchCount++] = start != 0 ? start : System.nanoTime();
+        if (response.hasBodyToSend()) {
+            mCurrent = response;
+            if (mFlow != null) {
+                mFlow.setWeight(response.getBandwidthWeight());
+            }
+        } else {
+            response.close();
+        }
+        return true;
+    }
+
+    /**
+     * 加入一个100 Continue临时回复, 只能在之前的回复都已写出或只剩回复头时加入
+     * @return false if a body is still pending
+     */
+    boolean offerContinue() {
+        if (mCurrent != null || mLargeHeader != null || mBatch.remaining() < CONTINUE.length) {
+            return false;
+        }
+        mBatch.put(CONTINUE);
+        return true;
+    }
+
+    /**
+     * 写出尽可能多的数据, 阻塞通道上一次调用即可写完
+     * @return true if everything offered so far has been written
+     */
+    boolean flush() throws IOException {
+        if (mGuard != null && (mBatch.position() > 0 || mLargeHeader != null || mCurrent != null)) {
+            mGuard.transferStarted();
+        }
+        ByteBuffer body = null;
+        if ((mBatch.position() > 0 || mLargeHeader != null) && mCurrent != null
+                && mChannel instanceof GatheringByteChannel) {
+            body = mCurrent.gatherBody();
+        }
+        if (mBatch.position() > 0) {
+            mBatch.flip();
+            write(mBatch, mLargeHeader == null ? body : null);
+            mBatch.compact();
+            if (mBatch.position() > 0) {
+                return false;
+            }
+        }
+        if (mLargeHeader != null) {
+            write(mLargeHeader, body);
+            if (mLargeHeader.hasRemaining()) {
+                return false;
+            }
+            mLargeHeader = null;
+        }
+        if (mBatchCount > 0) {
+            headersWritten();
+        }
+        if (mCurrent != null) {
+            boolean done;
+            if (mFlow != null && mFlow.isLimited()) {
+                done = writeThrottled();
+            } else if (mBlocking && (mGuard != null || mFlow != null)) {
+                done = writeInSteps();
+            } else {
+                done = mCurrent.writeBody(mChannel);
+            }
+            long sent = mCurrent.getBodyBytesSent();
+            mMetrics.addBytesSent(sent - mBodyReported);
+            mBodyReported = sent;
+            if (!done) {
+                return false;
+            }
+            long now = System.nanoTime();
+            mMetrics.recordResponseTime(now - mCurrentStart);
+            mMetrics.recordTransfer(sent, now - mBodyStart);
+            logTransfer(sent, now - mBodyStart);
+            if (mGuard != null) {
+                mGuard.sending(null);
+            }
+            mCurrent.close();
+            mCurrent = null;
+        }
+        return true;
+    }
+
+    /**
+     * 每次传输一条汇总, 大的传输为INFO级别, 其余为DEBUG级别
+     */
+    private void logTransfer(long sent, long nanos) {
+        int level = sent >= ServerMetrics.MIN_TRANSFER_SIZE ? Log.INFO : Log.DEBUG;
+        if (!ServerLog.isLoggable(level)) {
+            return;
+        }
+        long ms = nanos / 1000000;
+        String msg = mCurrent.describeRequest() + " " + mCurrent.getStatus().getRequestStatus() + ": sent " + sent
+                + " bytes in " + ms + " ms" + (ms > 0 ? ", " + sent / 1024 * 1000 / ms + " KiB/s" : "");
+        if (level == Log.INFO) {
+            ServerLog.i(TAG, msg);
+        } else {
+            ServerLog.d(TAG, msg);
+        }
+    }
+
+    /**
+     * 批量的回复头都已写出, 记录首字节时间, 没有消息体的回复也就此结束
+     */
+    private void headersWritten() {
+        long now = System.nanoTime();
+        int last = mBatchCount - 1;
+        for (int i = 0; i <= last; i++) {
+            mMetrics.recordFirstByte(now - mBatchStarts[i]);
+            if (i < last || mCurrent == null) {
+                mMetrics.recordResponseTime(now - mBatchStarts[i]);
+            }
+        }
+        if (mCurrent != null) {
+            mCurrentStart = mBatchStarts[last];
+            mBodyStart = now;
+            mBodyReported = 0;
+            if (mGuard != null) {
+                mGuard.sending(mCurrent);
+            }
+        }
+        mBatchCount = 0;
+    }
+
+    /**
+     * 按配额写出消息体, 阻塞通道上等待配额, 非阻塞通道上配额不足时返回, 由isThrottled()区分
+     * @return true if the whole body has been written
+     */
+    private boolean writeThrottled() throws IOException {
+        mThrottled = false;
+        while (true) {
+            long granted;
+            if (mBlocking) {
+                if (mGuard != null && mFlow.getDelayMillis() > 0) {
+                    mGuard.throttled();
+                }
+                granted = mFlow.acquire(Long.MAX_VALUE);
+            } else {
+                granted = mFlow.tryAcquire(Long.MAX_VALUE);
+                if (granted == 0) {
+                    if (mGuard != null) {
+                        mGuard.throttled();
+                    }
+                    mThrottled = true;
+                    return false;
+                }
+            }
+            boolean done = mCurrent.writeBody(mChannel, granted);
+            long unused = mCurrent.takeUnusedQuota();
+            mFlow.refund(unused);
+            if (done) {
+                return true;
+            }
+            if (unused > 0) {
+                // socket buffer is full
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 阻塞通道上分段写出消息体, 使ConnectionGuard在写的过程中能看到进度, 中途设置的限速也能生效
+     * @return true if the whole body has been written
+     */
+    private boolean writeInSteps() throws IOException {
+        while (true) {
+            if (mFlow != null && mFlow.isLimited()) {
+                // a limit was set during the transfer
+                return writeThrottled();
+            }
+            boolean done = mCurrent.writeBody(mChannel, PROGRESS_STEP);
+            long unused = mCurrent.takeUnusedQuota();
+            if (done) {
+                return true;
+            }
+            if (unused > 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 上次flush()是否因为限速而未写完, 此时不必等待通道可写
+     * @return true if the connection should wait getThrottleDelayMillis() before the next flush()
+     */
+    boolean isThrottled() {
+        return mThrottled;
+    }
+
+    /**
+     * @return time until the quota allows writing again
+     */
+    long getThrottleDelayMillis() {
+        return mFlow != null ? mFlow.getDelayMillis() : 0;
+    }
+
+    private void write(ByteBuffer header, ByteBuffer body) throws IOException {
+        if (body == null || !body.hasRemaining()) {
+            int written = mChannel.write(header);
+            mMetrics.addBytesSent(written);
+            if (mGuard != null) {
+                mGuard.progress(written);
+            }
+            return;
+        }
+        mGather[0] = header;
+        mGather[1] = body;
+        int bodyStart = body.position();
+        try {
+            long written = ((GatheringByteChannel) mChannel).write(mGather);
+            int bodyWritten = body.position() - bodyStart;
+            // body bytes are counted by the body, see flush()
+            mMetrics.addBytesSent(written - bodyWritten);
+            if (mGuard != null) {
+                mGuard.progress(written - bodyWritten);
+            }
+            mCurrent.addGatheredBytes(bodyWritten);
+            if (mFlow != null) {
+                mFlow.charge(bodyWritten);
+            }
+        } finally {
+            mGather[0] = null;
+            mGather[1] = null;
+        }
+    }
+
+    /**
+     * 释放尚未写完的回复
+     */
+    void close() {
+        if (mCurrent != null) {
+            mCurrent.close();
+            mCurrent = null;
+        }
+        if (mFlow != null) {
+            mFlow.close();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package com.example.TransmitWifi;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 服务器日志: 先判断级别再生成消息, 记录放入无锁环形缓冲区, 由后台线程格式化并写入android.util.Log.
+ * 消息中的"{}"依次替换为参数, 拼接在后台线程进行; 缓冲区满时丢弃并计数, 请求线程从不等待日志输出
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ServerLog {
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+    private static final long IDLE_PARK_NANOS = 1000000000L;
+    /**
+     * a producer has claimed a slot but not filled it yet, it does so within a few instructions
+     */
+    private static final long PUBLISH_PARK_NANOS = 50000L;
+
+    private static volatile int sLevel = Log.INFO;
+    private static final AtomicReferenceArray<Record> RING = new AtomicReferenceArray<Record>(CAPACITY);
+    /**
+     * next sequence to claim by producers
+     */
+    private static final AtomicLong TAIL = new AtomicLong();
+    /**
+     * next sequence to drain, written by the drain thread only
+     */
+    private static volatile long sHead = 0;
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static volatile Thread sDrainer;
+    private static volatile boolean sParked = false;
+
+    private ServerLog() {
+    }
+
+    /**
+     * 设置输出级别
+     * @param level one of android.util.Log.VERBOSE ... Log.ERROR, Log.ASSERT turns logging off
+     */
+    static void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     * 调用者需要拼接多个参数时先判断
+     * @param level android.util.Log level
+     * @return true if records of the level are written
+     */
+    static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    static void v(String tag, String msg) {
+        log(Log.VERBOSE, tag, msg, null, null, null);
+    }
+
+    static void v(String tag, String format, Object arg1, Object arg2) {
+        log(Log.VERBOSE, tag, format, arg1, arg2, null);
+    }
+
+    static void d(String tag, String msg) {
+        log(Log.DEBUG, tag, msg, null, null, null);
+    }
+
+    static void d(String tag, String format, Object arg) {
+        log(Log.DEBUG, tag, format, arg, null, null);
+    }
+
+    static void d(String tag, String format, Object arg1, Object arg2) {
+        log(Log.DEBUG, tag, format, arg1, arg2, null);
+    }
+
+    static void i(String tag, String msg) {
+        log(Log.INFO, tag, msg, null, null, null);
+    }
+
+    static void i(String tag, String format, Object arg) {
+        log(Log.INFO, tag, format, arg, null, null);
+    }
+
+    static void w(String tag, String msg) {
+        log(Log.WARN, tag, msg, null, null, null);
+    }
+
+    static void w(String tag, String format, Object arg) {
+        log(Log.WARN, tag, format, arg, null, null);
+    }
+
+    static void w(String tag, String msg, Throwable tr) {
+        log(Log.WARN, tag, msg, null, null, tr);
+    }
+
+    static void e(String tag, String msg, Throwable tr) {
+        log(Log.ERROR, tag, msg, null, null, tr);
+    }
+
+    private static void log(int level, String tag, String format, Object arg1, Object arg2, Throwable tr) {
+        if (level < sLevel) {
+            return;
+        }
+        if (sDrainer == null) {
+            startDrainer();
+        }
+        long seq = TAIL.get();
+        while (true) {
+            if (seq - sHead >= CAPACITY) {
+                DROPPED.incrementAndGet();
+                return;
+            }
+            if (TAIL.compareAndSet(seq, seq + 1)) {
+                break;
+            }
+            seq = TAIL.get();
+        }
+        RING.set((int) (seq & MASK), new Record(level, tag, format, arg1, arg2, tr));
+        if (sParked) {
+            LockSupport.unpark(sDrainer);
+        }
+    }
+
+    private static synchronized void startDrainer() {
+        if (sDrainer != null) {
+            return;
+        }
+        Thread drainer = new Thread("ServerLog") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.setPriority(Thread.MIN_PRIORITY);
+        drainer.start();
+        sDrainer = drainer;
+    }
+
+    private static void drain() {
+        while (true) {
+            int slot = (int) (sHead & MASK);
+            Record record = RING.get(slot);
+            if (record == null) {
+                if (TAIL.get() != sHead) {
+                    LockSupport.parkNanos(PUBLISH_PARK_NANOS);
+                    continue;
+                }
+                long dropped = DROPPED.getAndSet(0);
+                if (dropped > 0) {
+                    Log.println(Log.WARN, "ServerLog", dropped + " records dropped, buffer full");
+                }
+                sParked = true;
+                if (TAIL.get() == sHead) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+                sParked = false;
+                continue;
+            }
+            RING.set(slot, null);
+            sHead = sHead + 1;
+            record.write();
+        }
+    }
+
+    /**
+     * 一条日志, 消息在后台线程生成
+     */
+    private static final class Record {
+        private final int mLevel;
+        private final String mTag;
+        private final String mFormat;
+        private final Object mArg1;
+        private final Object mArg2;
+        private final Throwable mThrowable;
+
+        Record(int level, String tag, String format, Object arg1, Object arg2, Throwable tr) {
+            mLevel = level;
+            mTag = tag;
+            mFormat = format;
+            mArg1 = arg1;
+            mArg2 = arg2;
+            mThrowable = tr;
+        }
+
+        void write() {
+            String msg = mFormat;
+            int first = msg.indexOf("{}");
+            if (first >= 0) {
+                StringBuilder sb = new StringBuilder(msg.length() + 32);
+                int second = msg.indexOf("{}", first + 2);
+                sb.append(msg, 0, first).append(mArg1);
+                if (second >= 0) {
+                    sb.append(msg, first + 2, second).append(mArg2).append(msg, second + 2, msg.length());
+                } else {
+                    sb.append(msg, first + 2, msg.length());
+                }
+                msg = sb.toString();
+            }
+            if (mThrowable != null) {
+                msg = msg + '\n' + Log.getStackTraceString(mThrowable);
+            }
+            Log.println(mLevel, mTag, msg);
+        }
+    }
+}
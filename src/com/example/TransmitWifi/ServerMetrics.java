@@ -0,0 +1,328 @@
+package com.example.TransmitWifi;
+
+import java.util.Locale;
+
+/**
+ * http服务的运行指标: 连接数, 各状态码的请求数, 收发字节数, 首字节时间和回复时间以及传输速率的直方图.
+ * 热路径上只做分段计数器和直方图的原子加, 不加锁不分配对象; snapshot()复制当前值用于显示或导出
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public final class ServerMetrics {
+    /**
+     * smaller transfers finish within a few round trips and say nothing about throughput
+     */
+    static final long MIN_TRANSFER_SIZE = 64 * 1024;
+    private static final long NANOS_PER_MICRO = 1000;
+    private static final HTTPServerDaemon.Response.Status[] STATUSES = HTTPServerDaemon.Response.Status.values();
+    private static final ConnectionGuard.Reason[] REASONS = ConnectionGuard.Reason.values();
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final StripedCounter mConnectionsAccepted = new StripedCounter();
+    private final StripedCounter mConnectionsActive = new StripedCounter();
+    private final StripedCounter mConnectionsRejected = new StripedCounter();
+    private final StripedCounter[] mTimeouts = new StripedCounter[REASONS.length];
+    private final StripedCounter[] mResponses = new StripedCounter[STATUSES.length];
+    private final StripedCounter mBytesSent = new StripedCounter();
+    private final StripedCounter mBytesReceived = new StripedCounter();
+    private final Histogram mTimeToFirstByte = new Histogram();
+    private final Histogram mResponseTime = new Histogram();
+    private final Histogram mTransferRate = new Histogram();
+
+    ServerMetrics() {
+        for (int i = 0; i < mResponses.length; i++) {
+            mResponses[i] = new StripedCounter();
+        }
+        for (int i = 0; i < mTimeouts.length; i++) {
+            mTimeouts[i] = new StripedCounter();
+        }
+    }
+
+    void onConnectionOpened() {
+        mConnectionsAccepted.increment();
+        mConnectionsActive.increment();
+    }
+
+    void onConnectionClosed() {
+        mConnectionsActive.decrement();
+    }
+
+    void onConnectionRejected() {
+        mConnectionsRejected.increment();
+    }
+
+    void onConnectionTimeout(ConnectionGuard.Reason reason) {
+        mTimeouts[reason.ordinal()].increment();
+    }
+
+    void onResponse(HTTPServerDaemon.Response.Status status) {
+        mResponses[status.ordinal()].increment();
+    }
+
+    void addBytesSent(long bytes) {
+        if (bytes > 0) {
+            mBytesSent.add(bytes);
+        }
+    }
+
+    void addBytesReceived(long bytes) {
+        if (bytes > 0) {
+            mBytesReceived.add(bytes);
+        }
+    }
+
+    /**
+     * @param nanos time from the parsed request to its response header leaving the server
+     */
+    void recordFirstByte(long nanos) {
+        mTimeToFirstByte.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @param nanos time from the parsed request to the last byte of its response
+     */
+    void recordResponseTime(long nanos) {
+        mResponseTime.record(nanos / NANOS_PER_MICRO);
+    }
+
+    /**
+     * @param bytes body bytes of the transfer
+     * @param nanos time spent sending them
+     */
+    void recordTransfer(long bytes, long nanos) {
+        if (bytes >= MIN_TRANSFER_SIZE && nanos > 0) {
+            mTransferRate.record((long) (bytes * 1000000000.0 / 1024 / nanos));
+        }
+    }
+
+    /**
+     * 获得当前指标的副本
+     * @return values at about this moment, counters are read one by one
+     */
+    public Snapshot snapshot() {
+        long[] responses = new long[mResponses.length];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = mResponses[i].sum();
+        }
+        long[] timeouts = new long[mTimeouts.length];
+        for (int i = 0; i < timeouts.length; i++) {
+            timeouts[i] = mTimeouts[i].sum();
+        }
+        return new Snapshot(System.currentTimeMillis() - mStartTime, mConnectionsAccepted.sum(),
+                mConnectionsActive.sum(), mConnectionsRejected.sum(), timeouts, responses, mBytesSent.sum(),
+                mBytesReceived.sum(), mTimeToFirstByte.snapshot(), mResponseTime.snapshot(), mTransferRate.snapshot());
+    }
+
+    /**
+     * 指标的一次快照, 可输出为JSON或Prometheus文本格式
+     */
+    public static final class Snapshot {
+        private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+        private static final String[] JSON_KEYS = {"p50", "p90", "p99", "p999"};
+        private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+        private final long mUptime;
+        private final long mConnectionsAccepted;
+        private final long mConnectionsActive;
+        private final long mConnectionsRejected;
+        private final long[] mTimeouts;
+        private final long[] mResponses;
+        private final long mBytesSent;
+        private final long mBytesReceived;
+        private final Histogram.Snapshot mTimeToFirstByte;
+        private final Histogram.Snapshot mResponseTime;
+        private final Histogram.Snapshot mTransferRate;
+
+        private Snapshot(long uptime, long connectionsAccepted, long connectionsActive, long connectionsRejected,
+                         long[] timeouts, long[] responses, long bytesSent, long bytesReceived,
+                         Histogram.Snapshot timeToFirstByte, Histogram.Snapshot responseTime, Histogram.Snapshot transferRate) {
+            mUptime = uptime;
+            mConnectionsAccepted = connectionsAccepted;
+            mConnectionsActive = connectionsActive;
+            mConnectionsRejected = connectionsRejected;
+            mTimeouts = timeouts;
+            mResponses = responses;
+            mBytesSent = bytesSent;
+            mBytesReceived = bytesReceived;
+            mTimeToFirstByte = timeToFirstByte;
+            mResponseTime = responseTime;
+            mTransferRate = transferRate;
+        }
+
+        /**
+         * @return milliseconds since the server was created
+         */
+        public long getUptime() {
+            return mUptime;
+        }
+
+        public long getConnectionsAccepted() {
+            return mConnectionsAccepted;
+        }
+
+        public long getConnectionsActive() {
+            return mConnectionsActive;
+        }
+
+        /**
+         * @return connections dropped or answered 503 because the worker pool was saturated
+         */
+        public long getConnectionsRejected() {
+            return mConnectionsRejected;
+        }
+
+        /**
+         * @return connections closed after waiting longer than the keep-alive timeout for a request
+         */
+        public long getIdleTimeouts() {
+            return mTimeouts[ConnectionGuard.Reason.IDLE.ordinal()];
+        }
+
+        /**
+         * @return connections closed because a request header did not arrive within the header timeout
+         */
+        public long getHeaderTimeouts() {
+            return mTimeouts[ConnectionGuard.Reason.HEADER.ordinal()];
+        }
+
+        /**
+         * @return connections closed because a transfer stayed below the minimum rate
+         */
+        public long getSlowTransferTimeouts() {
+            return mTimeouts[ConnectionGuard.Reason.SLOW.ordinal()];
+        }
+
+        /**
+         * @param status status of the responses
+         * @return count of responses sent with the status
+         */
+        public long getResponseCount(HTTPServerDaemon.Response.Status status) {
+            return mResponses[status.ordinal()];
+        }
+
+        /**
+         * @return count of all responses
+         */
+        public long getResponseCount() {
+            long count = 0;
+            for (long c : mResponses) {
+                count += c;
+            }
+            return count;
+        }
+
+        public long getBytesSent() {
+            return mBytesSent;
+        }
+
+        public long getBytesReceived() {
+            return mBytesReceived;
+        }
+
+        /**
+         * @return microseconds from a parsed request to its response header being written
+         */
+        public Histogram.Snapshot getTimeToFirstByte() {
+            return mTimeToFirstByte;
+        }
+
+        /**
+         * @return microseconds from a parsed request to the end of its response
+         */
+        public Histogram.Snapshot getResponseTime() {
+            return mResponseTime;
+        }
+
+        /**
+         * @return KiB per second of the transfers of at least 64 KiB
+         */
+        public Histogram.Snapshot getTransferRate() {
+            return mTransferRate;
+        }
+
+        /**
+         * @return the snapshot as a JSON object
+         */
+        public String toJson() {
+            StringBuilder sb = new StringBuilder(1024);
+            sb.append("{\"uptime_ms\":").append(mUptime);
+            sb.append(",\"connections\":{\"accepted\":").append(mConnectionsAccepted)
+                    .append(",\"active\":").append(mConnectionsActive)
+                    .append(",\"rejected\":").append(mConnectionsRejected).append('}');
+            sb.append(",\"timeouts\":{");
+            for (ConnectionGuard.Reason reason : REASONS) {
+                sb.append(reason.ordinal() == 0 ? "" : ",").append('"')
+                        .append(reason.name().toLowerCase(Locale.US)).append("\":").append(mTimeouts[reason.ordinal()]);
+            }
+            sb.append('}');
+            sb.append(",\"responses\":{");
+            boolean first = true;
+            for (HTTPServerDaemon.Response.Status status : STATUSES) {
+                long count = mResponses[status.ordinal()];
+                if (count > 0) {
+                    sb.append(first ? "" : ",").append('"').append(status.getRequestStatus()).append("\":")
+                            .append(count);
+                    first = false;
+                }
+            }
+            sb.append('}');
+            sb.append(",\"bytes_sent\":").append(mBytesSent);
+            sb.append(",\"bytes_received\":").append(mBytesReceived);
+            appendJson(sb, "time_to_first_byte_us", mTimeToFirstByte);
+            appendJson(sb, "response_time_us", mResponseTime);
+            appendJson(sb, "transfer_rate_kibps", mTransferRate);
+            return sb.append('}').toString();
+        }
+
+        private static void appendJson(StringBuilder sb, String name, Histogram.Snapshot h) {
+            sb.append(",\"").append(name).append("\":{\"count\":").append(h.getCount())
+                    .append(",\"mean\":").append(String.format(Locale.US, "%.1f", h.getMean()));
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append(",\"").append(JSON_KEYS[i]).append("\":").append(h.getPercentile(PERCENTILES[i]));
+            }
+            sb.append(",\"max\":").append(h.getMax()).append('}');
+        }
+
+        /**
+         * @return the snapshot in the Prometheus text exposition format
+         */
+        public String toPrometheus() {
+            StringBuilder sb = new StringBuilder(2048);
+            gauge(sb, "httpd_uptime_seconds", "gauge", mUptime / 1000);
+            gauge(sb, "httpd_connections_accepted_total", "counter", mConnectionsAccepted);
+            gauge(sb, "httpd_connections_active", "gauge", mConnectionsActive);
+            gauge(sb, "httpd_connections_rejected_total", "counter", mConnectionsRejected);
+            sb.append("# TYPE httpd_timeouts_total counter\n");
+            for (ConnectionGuard.Reason reason : REASONS) {
+                sb.append("httpd_timeouts_total{reason=\"").append(reason.name().toLowerCase(Locale.US)).append("\"} ")
+                        .append(mTimeouts[reason.ordinal()]).append('\n');
+            }
+            sb.append("# TYPE httpd_responses_total counter\n");
+            for (HTTPServerDaemon.Response.Status status : STATUSES) {
+                sb.append("httpd_responses_total{status=\"").append(status.getRequestStatus()).append("\"} ")
+                        .append(mResponses[status.ordinal()]).append('\n');
+            }
+            gauge(sb, "httpd_sent_bytes_total", "counter", mBytesSent);
+            gauge(sb, "httpd_received_bytes_total", "counter", mBytesReceived);
+            appendSummary(sb, "httpd_time_to_first_byte_microseconds", mTimeToFirstByte);
+            appendSummary(sb, "httpd_response_time_microseconds", mResponseTime);
+            appendSummary(sb, "httpd_transfer_rate_kibibytes_per_second", mTransferRate);
+            return sb.toString();
+        }
+
+        private static void gauge(StringBuilder sb, String name, String type, long value) {
+            sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+            sb.append(name).append(' ').append(value).append('\n');
+        }
+
+        private static void appendSummary(StringBuilder sb, String name, Histogram.Snapshot h) {
+            sb.append("# TYPE ").append(name).append(" summary\n");
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                sb.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(h.getPercentile(PERCENTILES[i])).append('\n');
+            }
+            sb.append(name).append("_sum ").append(h.getSum()).append('\n');
+            sb.append(name).append("_count ").append(h.getCount()).append('\n');
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.TransmitWifi;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 一次热点会话共享的一组文件, 文件可以在不同目录.
+ * 每个文件有一个会话内唯一的id, 服务器按id查找文件只需一次HashMap查找; 会话中可以随时加入或移除文件, 不用重建热点.
+ * 清单是每个文件一段meta, 与metaFile.html格式相同, 多一行id, 段之间空一行
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class ShareSet {
+    private final ConcurrentHashMap<String, TransmitFileItem> mById = new ConcurrentHashMap<String, TransmitFileItem>();
+    private final ConcurrentHashMap<TransmitFileItem, String> mIds = new ConcurrentHashMap<TransmitFileItem, String>();
+    /**
+     * ids in the order the files were added
+     */
+    private final List<String> mOrder = new CopyOnWriteArrayList<String>();
+    private final AtomicInteger mNextId = new AtomicInteger();
+
+    /**
+     * 加入一个文件, 已在集合中时不变
+     * @param item the file
+     * @return id of the file
+     */
+    synchronized String add(TransmitFileItem item) {
+        String id = mIds.get(item);
+        if (id == null) {
+            id = Integer.toString(mNextId.incrementAndGet());
+            mById.put(id, item);
+            mIds.put(item, id);
+            mOrder.add(id);
+        }
+        return id;
+    }
+
+    /**
+     * 移除一个文件, 正在进行的下载不受影响
+     * @param item the file
+     * @return true if the file was in the set
+     */
+    synchronized boolean remove(TransmitFileItem item) {
+        String id = mIds.remove(item);
+        if (id == null) {
+            return false;
+        }
+        mById.remove(id);
+        mOrder.remove(id);
+        return true;
+    }
+
+    boolean contains(TransmitFileItem item) {
+        return mIds.containsKey(item);
+    }
+
+    /**
+     * @param id id given by add()
+     * @return the file, null if no file has the id
+     */
+    TransmitFileItem get(String id) {
+        return mById.get(id);
+    }
+
+    /**
+     * @return the file added first, null if the set is empty
+     */
+    TransmitFileItem first() {
+        for (String id : mOrder) {
+            TransmitFileItem item = mById.get(id);
+            if (item != null) {
+                return item;
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return mById.size();
+    }
+
+    boolean isEmpty() {
+        return mById.isEmpty();
+    }
+
+    synchronized void clear() {
+        mById.clear();
+        mIds.clear();
+        mOrder.clear();
+    }
+
+    /**
+     * @return the manifest of the files in the set now, UTF-8
+     */
+    byte[] getManifest() {
+        StringBuilder text = new StringBuilder();
+        for (String id : mOrder) {
+            TransmitFileItem item = mById.get(id);
+            if (item != null) {
+                text.append(TransmitFileItem.META_DATA_ID).append(" :").append(id).append("\r\n");
+                text.append(item.getMetaString());
+            }
+        }
+        try {
+            return text.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 解析清单
+     * @param in stream of the manifest, not closed
+     * @return meta of each file, keys as in TransmitFileItem, in order
+     */
+    static List<Map<String, String>> parseManifest(InputStream in) throws IOException {
+        List<Map<String, String>> entries = new ArrayList<Map<String, String>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        Map<String, String> entry = new HashMap<String, String>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().length() == 0) {
+                if (entry.get(TransmitFileItem.META_DATA_ID) != null) {
+                    entries.add(entry);
+                }
+                entry = new HashMap<String, String>();
+                continue;
+            }
+            int p = line.indexOf(':');
+            if (p >= 0) {
+                entry.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+            }
+        }
+        if (entry.get(TransmitFileItem.META_DATA_ID) != null) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+}
@@ -3,6 +3,10 @@ import android.os.Handler;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 /**
  *下载的抽象类
@@ -11,6 +15,10 @@ import java.net.Socket;
  */
 public abstract class SimpleDownload {
     private static final int READ_BUFFER_SIZE = 4096;
+    /**
+     * rounds of fetching the chunks which failed verification again
+     */
+    private static final int MAX_CHUNK_RETRIES = 3;
     private final String mINetAddress;
     private final String mSavePath;
     private final int mPort;
@@ -24,20 +32,39 @@ public abstract class SimpleDownload {
     /**
      *file offset will be downloaded
      */
-    protected int mDataOffset = 0;
+    protected long mDataOffset = 0;
     /**
      *to avoid divide zero exception ,length will be downloaded
      */
-    protected int mDataSize = 0;
+    protected long mDataSize = 0;
+    /**
+     * last byte to download, -1 for up to the end of the file
+     */
+    protected long mDataEnd = -1;
     /**
      * initialize zero, have downloaded length
      */
-    private int mDownloadedLength = 0;
+    private volatile long mDownloadedLength = 0;
+    /**
+     * content coding of the body, gzip or deflate, null if sent as is
+     */
+    protected String mContentEncoding = null;
 
 
-    private boolean mIsDownloadOK = true;;
+    private boolean mIsDownloadOK = true;
+    /**
+     * chunk hashes of the file, null to save the data unchecked
+     */
+    private ChunkManifest mManifest;
+    private ChunkManifest.Verifier mVerifier;
+    private volatile boolean mStopped = false;
+    /**
+     * the server answered the last request with the data, an error after this is an interrupted transfer
+     */
+    private boolean mResponseAccepted = false;
     private Socket mClientSocket;
     private Thread mDownloadThread;
+    private ExecutionMode mExecutionMode = ExecutionMode.PLATFORM;
     private OnDownloadResultListener mDownloadResultListener;
     /**
      * constructor of download
@@ -53,6 +80,27 @@ public abstract class SimpleDownload {
         this.mHandler = handler;
     }
 
+    /**
+     * 设置下载线程的类型, 在startDownload()之前调用
+     * @param mode PLATFORM (default) or VIRTUAL, VIRTUAL falls back to PLATFORM where not supported
+     */
+    public void setExecutionMode(ExecutionMode mode) {
+        mExecutionMode = mode;
+    }
+
+    /**
+     * 设置文件的分块哈希, 在startDownload()之前调用.
+     * 数据边下载边逐块校验, 不对的块重新下载; 本地已有的正确的块不再下载
+     * @param manifest chunk hashes of the file
+     */
+    void setChunkManifest(ChunkManifest manifest) {
+        mManifest = manifest;
+    }
+
+    ChunkManifest getChunkManifest() {
+        return mManifest;
+    }
+
     /**
      *设置下载完成后的监听函数
      * @param listener callback function when download complete or interrupted
@@ -74,7 +122,9 @@ public abstract class SimpleDownload {
      * @return percent of download
      */
     public int getProgress() {
-        return (mDataSize != 0) ? Utils.PERCENT_FECTOR * mDownloadedLength / mDataSize : 0;
+        long total = mManifest != null ? mManifest.getLength() : mDataSize;
+        // bytes of an interrupted chunk are received twice
+        return (total != 0) ? (int) Math.min(Utils.PERCENT_FECTOR, Utils.PERCENT_FECTOR * mDownloadedLength / total) : 0;
     }
 
     protected void setDownloadFailed() {
@@ -93,6 +143,22 @@ public abstract class SimpleDownload {
      */
     abstract protected void sendRequest(OutputStream sockOutputStream) throws IOException;
 
+    /**
+     * 服务器回复本地的文件已是最新时不写入下载数据
+     * @return true if the response has no body to save
+     */
+    protected boolean isNotModified() {
+        return false;
+    }
+
+    /**
+     * 数据写入后检查文件, 默认不检查
+     * @param saveFile the downloaded file
+     * @throws IOException if the file is not what the server sent
+     */
+    protected void verifyDownload(File saveFile) throws IOException {
+    }
+
 
     private void triggerResultCallback() {
         if (mDownloadResultListener != null) {
@@ -109,48 +175,112 @@ public abstract class SimpleDownload {
        File saveFile = new File(mSavePath);
        RandomAccessFile randomFile = new RandomAccessFile(saveFile, "rw");
        randomFile.seek(mDataOffset);
-       int remainSize = mDataSize;
-       while (mDataSize - mDownloadedLength > 0) {
-           int nRead = dataInputStream.read(buff);
+       if (mContentEncoding != null) {
+           // progress follows the bytes received, the decoded file is larger
+           InputStream decoded;
+           if (mContentEncoding.equals("gzip") || mContentEncoding.equals("x-gzip")) {
+               decoded = new GZIPInputStream(new ProgressInputStream(dataInputStream), READ_BUFFER_SIZE);
+           } else if (mContentEncoding.equals("deflate")) {
+               decoded = new InflaterInputStream(new ProgressInputStream(dataInputStream));
+           } else {
+               randomFile.close();
+               throw new IOException("unsupported content encoding " + mContentEncoding);
+           }
+           int nRead;
+           while ((nRead = decoded.read(buff)) > 0) {
+               randomFile.write(buff, 0, nRead);
+               verify(buff, nRead);
+           }
+           if (mDataEnd < 0) {
+               // drop the tail of an older, longer file
+               randomFile.setLength(randomFile.getFilePointer());
+           }
+           randomFile.close();
+           return;
+       }
+       long remainSize = mDataSize;
+       while (remainSize > 0) {
+           int nRead = dataInputStream.read(buff, 0, (int) Math.min(buff.length, remainSize));
            if (nRead > 0) {
+               remainSize -= nRead;
                mDownloadedLength  += nRead;
                randomFile.write(buff, 0, nRead);
+               verify(buff, nRead);
            } else {
                break;
            }
        }
+       if (remainSize == 0 && mDataEnd < 0) {
+           randomFile.setLength(randomFile.getFilePointer());
+       }
        randomFile.close();
    }
 
+    private void verify(byte[] buff, int count) {
+        if (mVerifier != null) {
+            int failed = mVerifier.getFailed().size();
+            mVerifier.update(buff, 0, count);
+            for (int i = failed; i < mVerifier.getFailed().size(); i++) {
+                // counted again when fetched again
+                mDownloadedLength -= mManifest.chunkLength(mVerifier.getFailed().get(i));
+            }
+        }
+    }
+
+    /**
+     * 读取Content-Length范围内的数据并记录下载进度
+     */
+    private class ProgressInputStream extends FilterInputStream {
+        private long mRemaining = mDataSize;
+
+        ProgressInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+                mDownloadedLength++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+            int nRead = super.read(b, off, (int) Math.min(len, mRemaining));
+            if (nRead > 0) {
+                mRemaining -= nRead;
+                mDownloadedLength += nRead;
+            }
+            return nRead;
+        }
+    }
+
     /**
      * 开始下载
      */
     public void startDownload() {
-        mDownloadThread = new Thread() {
+        mDownloadThread = mExecutionMode.newThreadFactory("SimpleDownload").newThread(new Runnable() {
             @Override
             public void run() {
-                OutputStream sockOutputStream = null;
-                InputStream sockInputStream = null;
                 try {
-                    mClientSocket = new Socket(mINetAddress, mPort);
-                    mClientSocket.setSoTimeout(NetWorkUtils.SO_TIME_OUT);
-                    mClientSocket.setSendBufferSize(NetWorkUtils.SEND_BUFFER_SIZE);
-                    mClientSocket.setReceiveBufferSize(NetWorkUtils.RECEIVE_BUFFER_SIZE);
-                    sockOutputStream = mClientSocket.getOutputStream();
-                    sockInputStream = mClientSocket.getInputStream();
-                    sendRequest(sockOutputStream);
-                    InputStream dataInputStream = parseHeadAndGetDataInputStream(sockInputStream);
-                    saveDownloadData(dataInputStream);
+                    if (mManifest != null) {
+                        downloadVerified();
+                    } else {
+                        download();
+                    }
                 } catch (IOException ie) {
-                    NetWorkUtils.safeClose(sockInputStream);
-                    NetWorkUtils.safeClose(sockOutputStream);
-                    NetWorkUtils.safeClose(mClientSocket);
                     mIsDownloadOK = false;
                     ie.printStackTrace();
                 } finally {
-                    NetWorkUtils.safeClose(sockInputStream);
-                    NetWorkUtils.safeClose(sockOutputStream);
-                    NetWorkUtils.safeClose(mClientSocket);
                     mHandler.post(new Runnable() {
                         public void run() {
                             triggerResultCallback();
@@ -158,13 +288,111 @@ public abstract class SimpleDownload {
                     });
                 }
             }
-        };
+        });
         mDownloadThread.start();
     }
+
+    /**
+     * 一次请求, 下载mDataOffset到mDataEnd的数据
+     */
+    private void download() throws IOException {
+        OutputStream sockOutputStream = null;
+        InputStream sockInputStream = null;
+        mResponseAccepted = false;
+        try {
+            mClientSocket = new Socket(mINetAddress, mPort);
+            mClientSocket.setSoTimeout(NetWorkUtils.SO_TIME_OUT);
+            mClientSocket.setSendBufferSize(NetWorkUtils.SEND_BUFFER_SIZE);
+            mClientSocket.setReceiveBufferSize(NetWorkUtils.RECEIVE_BUFFER_SIZE);
+            sockOutputStream = mClientSocket.getOutputStream();
+            sockInputStream = mClientSocket.getInputStream();
+            sendRequest(sockOutputStream);
+            InputStream dataInputStream = parseHeadAndGetDataInputStream(sockInputStream);
+            mResponseAccepted = true;
+            if (!isNotModified()) {
+                saveDownloadData(dataInputStream);
+                verifyDownload(new File(mSavePath));
+            }
+        } finally {
+            NetWorkUtils.safeClose(sockInputStream);
+            NetWorkUtils.safeClose(sockOutputStream);
+            NetWorkUtils.safeClose(mClientSocket);
+        }
+    }
+
+    /**
+     * 按分块哈希下载: 从本地文件第一个不对的块开始下载到结尾, 之后按连续的区间重新下载校验失败的块
+     */
+    private void downloadVerified() throws IOException {
+        File saveFile = new File(mSavePath);
+        int count = mManifest.getChunkCount();
+        int first = mManifest.verifiedPrefix(saveFile);
+        mDownloadedLength = mManifest.chunkStart(first);
+        List<Integer> failed = new ArrayList<Integer>();
+        if (first < count) {
+            failed.add(first);
+            // the rest of the file in a single request
+            failed.add(count - 1);
+        }
+        for (int round = 0; !failed.isEmpty(); round++) {
+            if (mStopped || round > MAX_CHUNK_RETRIES) {
+                throw new IOException(failed.size() / 2 + " ranges of " + saveFile + " failed verification");
+            }
+            List<Integer> next = new ArrayList<Integer>();
+            for (int i = 0; i < failed.size() && !mStopped; i += 2) {
+                next.addAll(downloadChunks(failed.get(i), failed.get(i + 1)));
+            }
+            failed = next;
+        }
+        RandomAccessFile randomFile = new RandomAccessFile(saveFile, "rw");
+        try {
+            randomFile.setLength(mManifest.getLength());
+        } finally {
+            randomFile.close();
+        }
+    }
+
+    /**
+     * 下载第first到last块并校验
+     * @return first and last chunk of each range which failed, in pairs
+     * @throws IOException if the server can not be reached or refuses the request, retrying would not help
+     */
+    private List<Integer> downloadChunks(int first, int last) throws IOException {
+        int count = mManifest.getChunkCount();
+        mDataOffset = mManifest.chunkStart(first);
+        mDataEnd = last == count - 1 ? -1 : mManifest.chunkStart(last) + mManifest.chunkLength(last) - 1;
+        mContentEncoding = null;
+        mVerifier = mManifest.new Verifier(first);
+        try {
+            download();
+        } catch (IOException ie) {
+            if (!mResponseAccepted) {
+                throw ie;
+            }
+            // an interrupted transfer goes on from where it stopped in the next round
+            ie.printStackTrace();
+        }
+        mVerifier.finish(last);
+        List<Integer> failed = mVerifier.getFailed();
+        mVerifier = null;
+        List<Integer> ranges = new ArrayList<Integer>();
+        for (int i = 0; i < failed.size(); i++) {
+            int index = failed.get(i);
+            if (ranges.isEmpty() || ranges.get(ranges.size() - 1) != index - 1) {
+                ranges.add(index);
+                ranges.add(index);
+            } else {
+                ranges.set(ranges.size() - 1, index);
+            }
+        }
+        return ranges;
+    }
+
     /**
      * 停止下载
      */
     public void stopDownload() {
+        mStopped = true;
         try {
             NetWorkUtils.safeClose(mClientSocket);
             if (mDownloadThread != null) {
@@ -2,6 +2,7 @@ package com.example.TransmitWifi;
 
 import java.io.*;
 import java.net.URLEncoder;
+import java.nio.channels.FileChannel;
 import java.util.*;
 import android.util.Log;
 import java.net.InetAddress;
@@ -14,6 +15,7 @@ import java.net.InetAddress;
 
 public class SimpleWebServer extends HTTPServerDaemon {
     private static final String TAG = "SimpleWebServer";
+    private static final Random BOUNDARY_RANDOM = new Random();
     private static final Map<String, String> MIME_TYPES = new HashMap<String, String>() { {
         put("css", "text/css");
         put("htm", "text/html");
@@ -42,8 +44,48 @@ public class SimpleWebServer extends HTTPServerDaemon {
         put("class", "application/octet-stream");
     } };
 
+    /**
+     * uri prefix of the files addressed by their SHA-256
+     */
+    public static final String BY_HASH_PREFIX = "/by-hash/";
+
+    /**
+     * uri prefix of the share set, the manifest and the files by id
+     */
+    public static final String SHARE_PREFIX = "/share/";
+
+    /**
+     * limit of the entries of one archive download
+     */
+    private static final int MAX_ARCHIVE_ENTRIES = 50000;
+
+    /**
+     * chunk manifests kept in memory, about 64 bytes per MB of the file each
+     */
+    private static final int MAX_CHUNK_MANIFESTS = 16;
+
+    /**
+     * bytes of compressed variants kept in memory
+     */
+    private static final long VARIANT_MEMORY_BUDGET = 2 * 1024 * 1024;
+
     private final File mRootDir;
     private final boolean mQuiet;
+    private boolean mCompressionEnabled = true;
+    private volatile boolean mUploadEnabled = false;
+    private final FileMetaCache mMetaCache = new FileMetaCache(MIME_TYPES);
+    private final HotFileCache mHotCache = new HotFileCache(HotFileCache.DEFAULT_BUDGET,
+            HotFileCache.DEFAULT_MAX_FILE_SIZE);
+    private final FileChannelCache mChannelCache = new FileChannelCache(FileChannelCache.DEFAULT_MAX_OPEN,
+            FileChannelCache.DEFAULT_IDLE_TIMEOUT_MS);
+    private boolean mHashIndexEnabled = true;
+    private File mHashIndexFile;
+    private HashIndex mHashIndex;
+    private final ChunkManifestCache mChunkManifests = new ChunkManifestCache(MAX_CHUNK_MANIFESTS);
+    private volatile ShareSet mShareSet;
+    private final DirectoryListing mListing = new DirectoryListing(DirectoryListing.DEFAULT_BUDGET);
+    private CompressedVariantCache mVariantCache = new CompressedVariantCache(
+            new File(System.getProperty("java.io.tmpdir"), "TransmitWifi-variants"), VARIANT_MEMORY_BUDGET);
 
     /**
      * 构造函数
@@ -61,6 +103,150 @@ public class SimpleWebServer extends HTTPServerDaemon {
         return mRootDir;
     }
 
+    @Override
+    public void start() throws IOException {
+        super.start();
+        if (mHashIndexEnabled) {
+            File store = mHashIndexFile;
+            if (store == null) {
+                store = new File(System.getProperty("java.io.tmpdir"),
+                        "TransmitWifi-hashindex-" + Integer.toHexString(mRootDir.getAbsolutePath().hashCode()));
+            }
+            mHashIndex = new HashIndex(mRootDir, store);
+            mMetaCache.setHashIndex(mHashIndex);
+            mHashIndex.refresh();
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        mChannelCache.closeAll();
+        mListing.clear();
+        mChunkManifests.clear();
+        if (mHashIndex != null) {
+            mMetaCache.setHashIndex(null);
+            mHashIndex.close();
+            mHashIndex = null;
+        }
+    }
+
+    /**
+     * 设置共享的文件集合, 集合可以在服务运行中修改. 清单在/share/, 文件在/share/id
+     * @param shareSet files to share, null for none
+     */
+    void setShareSet(ShareSet shareSet) {
+        mShareSet = shareSet;
+    }
+
+    /**
+     * 设置是否在后台计算根目录下文件的SHA-256, 在start()之前调用.
+     * 算出后文件的ETag就是摘要, 文件也可以通过/by-hash/摘要访问
+     * @param enabled true by default
+     */
+    public void setHashIndexEnabled(boolean enabled) {
+        mHashIndexEnabled = enabled;
+    }
+
+    /**
+     * 设置摘要索引的保存位置, 例如应用的files目录, 在start()之前调用
+     * @param file file the index is kept in between runs, a file in the temp directory by default
+     */
+    public void setHashIndexFile(File file) {
+        mHashIndexFile = file;
+    }
+
+    /**
+     * 上传等改变了根目录下的文件后调用
+     */
+    private void filesChanged() {
+        mMetaCache.invalidate();
+        HashIndex index = mHashIndex;
+        if (index != null) {
+            index.refresh();
+        }
+    }
+
+    private boolean isDirectory(File dir) {
+        try {
+            return mMetaCache.lookup(dir, "").mIsDirectory;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * 设置文件元数据缓存的重新验证间隔
+     * @param intervalMs time file metadata is trusted without looking at the file, 0 to check on every request
+     */
+    public void setMetadataRevalidateInterval(long intervalMs) {
+        mMetaCache.setRevalidateInterval(intervalMs);
+    }
+
+    /**
+     * @return requests answered from the in-memory content cache
+     */
+    public long getContentCacheHitCount() {
+        return mHotCache.getHitCount();
+    }
+
+    /**
+     * @return requests for small files which had to be read from disk
+     */
+    public long getContentCacheMissCount() {
+        return mHotCache.getMissCount();
+    }
+
+    /**
+     * @return files dropped from the content cache to stay in budget
+     */
+    public long getContentCacheEvictionCount() {
+        return mHotCache.getEvictionCount();
+    }
+
+    /**
+     * @return bytes held by the content cache
+     */
+    public long getContentCacheUsedBytes() {
+        return mHotCache.getUsedBytes();
+    }
+
+    /**
+     * 清空文件元数据缓存, 在替换了根目录下的文件后调用可立即生效
+     */
+    public void invalidateFileMetadata() {
+        mMetaCache.invalidate();
+    }
+
+    /**
+     * 设置是否接受上传. PUT把请求体保存为uri指定的文件, POST把multipart表单中的文件保存到uri指定的目录
+     * @param enabled false by default, uploads are answered 403 without reading the body
+     */
+    public void setUploadEnabled(boolean enabled) {
+        mUploadEnabled = enabled;
+    }
+
+    @Override
+    protected boolean acceptsUpload(HTTPSession session) {
+        return mUploadEnabled;
+    }
+
+    /**
+     * 设置是否对文本类文件做gzip/deflate压缩
+     * @param enabled true by default
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        mCompressionEnabled = enabled;
+    }
+
+    /**
+     * 设置压缩版本的缓存目录, 例如应用的cache目录
+     * @param cacheDir directory for compressed variants too large to keep in memory
+     */
+    public void setCompressionCacheDir(File cacheDir) {
+        mVariantCache = new CompressedVariantCache(cacheDir, VARIANT_MEMORY_BUDGET);
+    }
+
     private String encodeUri(String uri) {
         String newUri = "";
         StringTokenizer st = new StringTokenizer(uri, "/ ", true);
@@ -82,13 +268,15 @@ public class SimpleWebServer extends HTTPServerDaemon {
     }
 
     /**
-     * Serves file from homeDir and its' subdirectories (only). Uses only URI, ignores all headers and HTTP parameters.
+     * Serves file from homeDir and its' subdirectories (only). Directories are listed page by page,
+     * see serveDirectory(); files use only URI and headers, except chunks which asks for
+     * the chunk manifest of the file, see serveChunkManifest().
      */
-    Response serveFile(String uri, Map<String, String> header, File homeDir) {
+    Response serveFile(String uri, Method method, Map<String, String> header, Map<String, String> parms, File homeDir) {
         Response res = null;
 
         // Make sure we won't die of an exception later
-        if (!homeDir.isDirectory()) {
+        if (!isDirectory(homeDir)) {
             res = new Response(Response.Status.INTERNAL_ERROR, HTTPServerDaemon.MIME_PLAINTEXT,
                     "INTERNAL ERRROR: serveFile(): given homeDir is not a directory.");
         }
@@ -106,110 +294,505 @@ public class SimpleWebServer extends HTTPServerDaemon {
             }
         }
 
-        File f = new File(homeDir, uri);
-        if (res == null && !f.exists()) {
-            res = new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, file not found.");
+        if (res == null) {
+            try {
+                // size, mtime, mime type and etag come from the metadata cache
+                FileMetaCache.Entry meta = mMetaCache.lookup(homeDir, uri);
+                if (meta.mExists) {
+                    return serveEntry(meta, uri, method, header, parms);
+                }
+                res = new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, file not found.");
+            } catch (IOException ioe) {
+                res = new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT, "FORBIDDEN: Reading file failed.");
+            }
         }
 
+        res.addHeader("Accept-Ranges", "bytes"); // Announce that the file server accepts partial content requestes
+        return res;
+    }
+
+    /**
+     * 发送一个已存在的文件或目录
+     * @param meta entry of the file, from the metadata cache
+     * @param uri request path, directory listings link relative to it
+     */
+    private Response serveEntry(FileMetaCache.Entry meta, String uri, Method method, Map<String, String> header,
+                                Map<String, String> parms) {
+        Response res = null;
+        boolean fromCache = false;
+
         try {
-            if (res == null) {
-                // Get MIME type from file name extension, if possible
-                String mime = null;
-                int dot = f.getCanonicalPath().lastIndexOf('.');
-                if (dot >= 0) {
-                    mime = MIME_TYPES.get(f.getCanonicalPath().substring(dot + 1).toLowerCase());
-                }
-                if (mime == null) {
-                    mime = HTTPServerDaemon.MIME_DEFAULT_BINARY;
-                }
+            if (meta.mIsDirectory) {
+                return serveDirectory(uri, header, parms, meta.mFile);
+            }
 
-                // Calculate etag
-                String etag = Integer.toHexString((f.getAbsolutePath() + f.lastModified() + "" + f.length()).hashCode());
-
-                // Support (simple) skipping:
-                long startFrom = 0;
-                long endAt = -1;
-                String range = header.get("range");
-                if (range != null) {
-                    if (range.startsWith("bytes=")) {
-                        range = range.substring("bytes=".length());
-                        int minus = range.indexOf('-');
-                        try {
-                            if (minus > 0) {
-                                startFrom = Long.parseLong(range.substring(0, minus));
-                                endAt = Long.parseLong(range.substring(minus + 1));
-                            }
-                        } catch (NumberFormatException ignored) {
-                            ignored.printStackTrace();
-                        }
-                    }
-                }
+            if (parms.get("chunks") != null) {
+                return serveChunkManifest(meta, header);
+            }
 
-                // Change return code and add Content-Range header when skipping is requested
-                long fileLen = f.length();
-                Log.i(TAG, "#################file lenght = " + fileLen);
-                if (range != null && startFrom >= 0) {
-                    if (startFrom >= fileLen) {
-                        res = new Response(Response.Status.RANGE_NOT_SATISFIABLE, HTTPServerDaemon.MIME_PLAINTEXT, "");
-                        res.addHeader("Content-Range", "bytes 0-0/" + fileLen);
-                        res.addHeader("ETag", etag);
-                    } else {
-                        if (endAt < 0) {
-                            endAt = fileLen - 1;
-                        }
-                        long newLen = endAt - startFrom + 1;
-                        if (newLen < 0) {
-                            newLen = 0;
-                        }
-
-                        final long dataLen = newLen;
-                        FileInputStream fis = new FileInputStream(f) {
-                            @Override
-                            public int available() throws IOException {
-                                return (int) dataLen;
-                            }
-                        };
-                        fis.skip(startFrom);
-
-                        res = new Response(Response.Status.PARTIAL_CONTENT, mime, fis);
-                        res.addHeader("Content-Length", "" + dataLen);
-                        res.addHeader("Content-Range", "bytes " + startFrom + "-" + endAt + "/" + fileLen);
-                        res.addHeader("ETag", etag);
-                    }
+            File f = meta.mFile;
+            String mime = meta.mMimeType;
+            String etag = meta.mEtag;
+
+            // Byte ranges (RFC 7233), ignored if If-Range names another version of the file
+            long fileLen = meta.mLength;
+            List<ByteRange> ranges = null;
+            String ifRange = header.get("if-range");
+            if (ifRange == null || ifRange.equals(etag)) {
+                ranges = ByteRange.parse(header.get("range"), fileLen);
+            }
+
+            if (ranges != null) {
+                if (ranges.isEmpty()) {
+                    res = new Response(Response.Status.RANGE_NOT_SATISFIABLE, HTTPServerDaemon.MIME_PLAINTEXT, "");
+                    res.addHeader("Content-Range", "bytes */" + fileLen);
+                    res.addHeader("ETag", etag);
+                } else if (ranges.size() == 1) {
+                    ByteRange r = ranges.get(0);
+                    // served straight from the shared file channel with transferTo, no heap copy
+                    FileChannelCache.Lease lease = mChannelCache.acquire(f, meta.mCanonicalPath, etag);
+                    res = new Response(Response.Status.PARTIAL_CONTENT, mime,
+                            new ResponseBody.FileBody(lease.getChannel(), r.mStart, r.length(), lease));
+                    res.addHeader("Content-Range", r.toContentRange(fileLen));
+                    res.addHeader("ETag", etag);
                 } else {
-                    if (etag.equals(header.get("if-none-match"))) {
-                        res = new Response(Response.Status.NOT_MODIFIED, mime, "");
-                    } else {
-                        res = new Response(Response.Status.OK, mime, new FileInputStream(f));
-                        res.addHeader("Content-Length", "" + fileLen);
-                        res.addHeader("ETag", etag);
-                    }
+                    String boundary = Long.toHexString(BOUNDARY_RANDOM.nextLong());
+                    FileChannelCache.Lease lease = mChannelCache.acquire(f, meta.mCanonicalPath, etag);
+                    res = new Response(Response.Status.PARTIAL_CONTENT, "multipart/byteranges; boundary=" + boundary,
+                            new ResponseBody.MultipartBody(lease.getChannel(), lease, ranges, boundary, mime, fileLen));
+                    res.addHeader("ETag", etag);
+                }
+            } else {
+                // gzip/deflate only for text types, media files are compressed already
+                boolean compressible = mCompressionEnabled && CompressedVariantCache.isCompressible(mime);
+                String encoding = compressible ? CompressedVariantCache.negotiate(header.get("accept-encoding")) : null;
+                HotFileCache.Entry hot = null;
+                String ifNoneMatch = header.get("if-none-match");
+                // the tag of the file as is also matches a compressed variant, the content is the same
+                boolean notModified = etag.equals(ifNoneMatch)
+                        || (encoding != null && (etag + "-" + encoding).equals(ifNoneMatch));
+                CompressedVariantCache.Variant variant = null;
+                if (!notModified && encoding != null) {
+                    // only a 200 body pays for compression; HEAD reports a variant which exists already,
+                    // otherwise the headers of the file as is
+                    variant = method == Method.HEAD ? mVariantCache.peek(fileLen, meta.contentKey(), encoding)
+                            : mVariantCache.get(f, fileLen, meta.contentKey(), encoding);
+                }
+                if (notModified) {
+                    res = new Response(Response.Status.NOT_MODIFIED, mime, "");
+                    res.addHeader("ETag", ifNoneMatch);
+                } else if (variant != null) {
+                    res = variant.newResponse(mime);
+                    res.addHeader("Content-Encoding", encoding);
+                    res.addHeader("ETag", etag + "-" + encoding);
+                } else if ((hot = mHotCache.get(meta, compressible)) != null) {
+                    // small file from memory, header lines encoded once per version
+                    res = new Response(Response.Status.OK, mime, new ResponseBody.BytesBody(hot.mContent));
+                    res.setFixedHeader(hot.mFixedHeader);
+                    fromCache = true;
+                } else {
+                    FileChannelCache.Lease lease = mChannelCache.acquire(f, meta.mCanonicalPath, etag);
+                    res = new Response(Response.Status.OK, mime,
+                            new ResponseBody.FileBody(lease.getChannel(), 0, fileLen, lease));
+                    res.addHeader("ETag", etag);
+                }
+                if (compressible && hot == null) {
+                    res.addHeader("Vary", "Accept-Encoding");
                 }
             }
         } catch (IOException ioe) {
             res = new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT, "FORBIDDEN: Reading file failed.");
         }
 
-        res.addHeader("Accept-Ranges", "bytes"); // Announce that the file server accepts partial content requestes
+        if (!fromCache) {
+            res.addHeader("Accept-Ranges", "bytes"); // Announce that the file server accepts partial content requestes
+        }
         return res;
     }
 
     @Override
     public Response serve(String uri, Method method, Map<String, String> header, Map<String, String> parms, Map<String, String> files) {
-        if (!mQuiet) {
-            Log.i(TAG, method + " '" + uri + "' ");
+        if (!mQuiet && ServerLog.isLoggable(Log.VERBOSE)) {
+            ServerLog.v(TAG, "{} '{}'", method, uri);
 
             Iterator<String> e = header.keySet().iterator();
             while (e.hasNext()) {
                 String value = e.next();
-                Log.i(TAG, "  HDR: '" + value + "' = '" + header.get(value) + "'");
+                ServerLog.v(TAG, "  HDR: '{}' = '{}'", value, header.get(value));
             }
             e = parms.keySet().iterator();
             while (e.hasNext()) {
                 String value = e.next();
-                Log.i(TAG, "  PRM: '" + value + "' = '" + parms.get(value) + "'");
+                ServerLog.v(TAG, "  PRM: '{}' = '{}'", value, parms.get(value));
             }
         }
-        return serveFile(uri, header, getRootDir());
+        if (method == Method.PUT || method == Method.POST) {
+            if (!mUploadEnabled) {
+                return new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT, "FORBIDDEN: Uploads are disabled.");
+            }
+            return method == Method.PUT ? servePut(uri, files) : servePost(uri, parms, files);
+        }
+        if (uri.startsWith(BY_HASH_PREFIX)) {
+            return serveByHash(uri.substring(BY_HASH_PREFIX.length()), method, header, parms);
+        }
+        if (uri.startsWith(SHARE_PREFIX)) {
+            return serveShare(uri.substring(SHARE_PREFIX.length()), method, header, parms);
+        }
+        ShareSet shareSet = mShareSet;
+        if (shareSet != null) {
+            Response res = serveFirstShared(shareSet, uri, method, header, parms);
+            if (res != null) {
+                return res;
+            }
+        }
+        return serveFile(uri, method, header, parms, getRootDir());
+    }
+
+    /**
+     * 共享集合: 不带id时发送清单, 带id时发送该文件. 文件可以在根目录之外, 从文件所在的目录发送
+     */
+    private Response serveShare(String id, Method method, Map<String, String> header, Map<String, String> parms) {
+        ShareSet shareSet = mShareSet;
+        if (shareSet == null) {
+            return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, nothing shared.");
+        }
+        if (id.length() == 0) {
+            Response res = new Response(Response.Status.OK, HTTPServerDaemon.MIME_PLAINTEXT,
+                    new ResponseBody.BytesBody(shareSet.getManifest()));
+            // files may be added to the set at any time
+            res.addHeader("Cache-Control", "no-cache");
+            return res;
+        }
+        TransmitFileItem item = shareSet.get(id);
+        if (item == null || item.getPath() == null) {
+            return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, file not found.");
+        }
+        return serveSharedFile(new File(item.getPath()).getAbsoluteFile(), SHARE_PREFIX + id, method, header, parms);
+    }
+
+    /**
+     * 只认metaFile.html的旧客户端: metaFile.html按集合中现在的第一个文件生成, 再按文件名取这个文件.
+     * 都不经过根目录, 第一个文件移除后换成下一个
+     * @return null if the request is for neither
+     */
+    private Response serveFirstShared(ShareSet shareSet, String uri, Method method, Map<String, String> header,
+                                      Map<String, String> parms) {
+        TransmitFileItem first = shareSet.first();
+        if (first == null || first.getPath() == null) {
+            return null;
+        }
+        if (uri.equals("/" + TransmitFileItem.META_FILE_NAME)) {
+            Response res;
+            try {
+                res = new Response(Response.Status.OK, HTTPServerDaemon.MIME_HTML,
+                        new ResponseBody.BytesBody(first.getMetaString().getBytes("UTF-8")));
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+            // the first file changes when it is removed from the set
+            res.addHeader("Cache-Control", "no-cache");
+            return res;
+        }
+        File file = new File(first.getPath()).getAbsoluteFile();
+        if (uri.equals("/" + file.getName())) {
+            return serveSharedFile(file, uri, method, header, parms);
+        }
+        return null;
+    }
+
+    /**
+     * 发送共享集合中的文件, 按文件本身查找, 文件名中的?#%等不经过URI解析
+     */
+    private Response serveSharedFile(File file, String uri, Method method, Map<String, String> header,
+                                     Map<String, String> parms) {
+        try {
+            FileMetaCache.Entry meta = mMetaCache.lookup(file);
+            if (meta.mExists && !meta.mIsDirectory) {
+                return serveEntry(meta, uri, method, header, parms);
+            }
+        } catch (IOException e) {
+            ServerLog.d(TAG, "can not check {}", file);
+        }
+        return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, file not found.");
+    }
+
+    /**
+     * 按SHA-256访问文件, 内容不会改变, 可以永久缓存. 不带摘要时列出整个索引, 客户端据此跳过已有的文件
+     */
+    private Response serveByHash(String digest, Method method, Map<String, String> header, Map<String, String> parms) {
+        HashIndex index = mHashIndex;
+        if (index == null) {
+            return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, no hash index.");
+        }
+        if (digest.length() == 0) {
+            return new Response(Response.Status.OK, HTTPServerDaemon.MIME_PLAINTEXT, index.openListing(), -1);
+        }
+        digest = digest.toLowerCase(Locale.US);
+        String path = digest.length() == HashIndex.DIGEST_LENGTH ? index.pathOf(digest) : null;
+        if (path != null) {
+            try {
+                // the file may have changed after it was indexed
+                FileMetaCache.Entry meta = mMetaCache.lookup(getRootDir(), path);
+                if (meta.mExists && digest.equals(meta.mEtag)) {
+                    Response res = serveFile(path, method, header, parms, getRootDir());
+                    if (res.getStatus() == Response.Status.OK || res.getStatus() == Response.Status.NOT_MODIFIED
+                            || res.getStatus() == Response.Status.PARTIAL_CONTENT) {
+                        res.addHeader("Cache-Control", "public, max-age=31536000, immutable");
+                    }
+                    return res;
+                }
+            } catch (IOException e) {
+                ServerLog.d(TAG, "can not check {}", path);
+            }
+        }
+        return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, file not found.");
+    }
+
+    /**
+     * 文件的分块哈希树, 有chunks参数时代替文件发送, 客户端用它逐块校验和续传, 见ChunkManifest.
+     * 按文件内容的键缓存, 文件变了才重新计算; 在后台计算, 算完之前回复503和Retry-After
+     */
+    private Response serveChunkManifest(FileMetaCache.Entry meta, Map<String, String> header) {
+        String tag = meta.contentKey() + "-chunks";
+        Response res;
+        if (tag.equals(header.get("if-none-match"))) {
+            res = new Response(Response.Status.NOT_MODIFIED, HTTPServerDaemon.MIME_PLAINTEXT, "");
+        } else {
+            ChunkManifest manifest = mChunkManifests.get(meta.mFile, meta.mLength, meta.contentKey());
+            if (manifest == null) {
+                // computed in the background, the whole file is read
+                res = new Response(Response.Status.SERVICE_UNAVAILABLE, HTTPServerDaemon.MIME_PLAINTEXT,
+                        "SERVICE UNAVAILABLE: Chunk manifest is being computed.");
+                res.addHeader("Retry-After", "" + RETRY_AFTER_SECONDS);
+                res.addHeader("Cache-Control", "no-cache");
+                return res;
+            }
+            res = new Response(Response.Status.OK, HTTPServerDaemon.MIME_PLAINTEXT,
+                    new ResponseBody.BytesBody(manifest.getBytes()));
+        }
+        res.addHeader("ETag", tag);
+        return res;
+    }
+
+    /**
+     * 目录列表的一页. 参数: format=json|html, 未给出时按Accept选择; limit每页条数; cursor上一页返回的游标.
+     * 有archive=zip|tar参数时下载整个目录或file参数选出的文件和子目录, 见serveArchive()
+     */
+    private Response serveDirectory(String uri, Map<String, String> header, Map<String, String> parms, File dir)
+            throws IOException {
+        if (!uri.endsWith("/")) {
+            // relative links in the listing need the trailing slash
+            String location = encodeUri(uri) + "/";
+            Response res = new Response(Response.Status.REDIRECT, HTTPServerDaemon.MIME_HTML,
+                    "<html><body>Redirected: <a href=\"" + location + "\">" + location + "</a></body></html>");
+            res.addHeader("Location", location);
+            return res;
+        }
+        if (parms.get("archive") != null) {
+            return serveArchive(uri, parms, dir);
+        }
+        String format = parms.get("format");
+        String accept = header.get("accept");
+        boolean json = format != null ? format.equalsIgnoreCase("json")
+                : accept != null && accept.contains("application/json");
+        int limit = DirectoryListing.DEFAULT_PAGE_SIZE;
+        if (parms.get("limit") != null) {
+            try {
+                limit = Integer.parseInt(parms.get("limit").trim());
+            } catch (NumberFormatException e) {
+                return new Response(Response.Status.BAD_REQUEST, HTTPServerDaemon.MIME_PLAINTEXT, "BAD REQUEST: Bad limit.");
+            }
+        }
+        return mListing.serve(dir, uri, json, parms.get("cursor"), limit);
+    }
+
+    /**
+     * 目录或其中选出的文件打包成一个ZIP(存储方式)或TAR流式发送, 一个请求传输整个相册.
+     * file参数可重复, 是相对于目录的路径, 没有file参数时打包整个目录
+     */
+    private Response serveArchive(String uri, Map<String, String> parms, File dir) throws IOException {
+        ArchiveBody.Format format;
+        if (parms.get("archive").equalsIgnoreCase("zip")) {
+            format = ArchiveBody.Format.ZIP;
+        } else if (parms.get("archive").equalsIgnoreCase("tar")) {
+            format = ArchiveBody.Format.TAR;
+        } else {
+            return new Response(Response.Status.BAD_REQUEST, HTTPServerDaemon.MIME_PLAINTEXT,
+                    "BAD REQUEST: Unknown archive format.");
+        }
+        List<String> selection = decodeParameters(parms).get("file");
+        List<ArchiveBody.Entry> entries = new ArrayList<ArchiveBody.Entry>();
+        try {
+            if (selection == null || selection.isEmpty()) {
+                String[] children = dir.list();
+                if (children != null) {
+                    Arrays.sort(children);
+                    for (String child : children) {
+                        ArchiveBody.add(entries, new File(dir, child), child, MAX_ARCHIVE_ENTRIES);
+                    }
+                }
+            } else {
+                String root = dir.getCanonicalPath() + File.separator;
+                for (String name : selection) {
+                    name = name.replace(File.separatorChar, '/');
+                    while (name.endsWith("/")) {
+                        name = name.substring(0, name.length() - 1);
+                    }
+                    File file = new File(dir, name);
+                    if (name.length() == 0 || !file.getCanonicalPath().startsWith(root)) {
+                        return new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT,
+                                "FORBIDDEN: Won't serve " + name);
+                    }
+                    if (!file.exists()) {
+                        return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT,
+                                "Error 404, file not found: " + name);
+                    }
+                    ArchiveBody.add(entries, file, name, MAX_ARCHIVE_ENTRIES);
+                }
+            }
+        } catch (ResponseException re) {
+            return new Response(re.getStatus(), HTTPServerDaemon.MIME_PLAINTEXT, re.getMessage());
+        }
+        ArchiveBody body = new ArchiveBody(format, entries);
+        Response res = new Response(Response.Status.OK, format.mMimeType, body);
+        String name = dir.getName().length() > 0 ? dir.getName() : "files";
+        res.addHeader("Content-Disposition", "attachment; filename=\"" + name.replaceAll("[^\\x20-\\x7e]|\"", "_")
+                + format.mExtension + "\"; filename*=UTF-8''" + URLEncoder.encode(name + format.mExtension, "UTF-8")
+                .replace("+", "%20"));
+        ServerLog.d(TAG, "archive of {} entries, {} bytes", entries.size(), body.length());
+        return res;
+    }
+
+    /**
+     * 上传的目标, 不允许离开根目录
+     * @return the file under the root directory, null if the uri is not allowed
+     */
+    private File resolveUpload(String uri) {
+        uri = uri.trim().replace(File.separatorChar, '/');
+        if (uri.contains("../") || uri.endsWith("/..")) {
+            return null;
+        }
+        return new File(getRootDir(), uri);
+    }
+
+    /**
+     * PUT: 请求体保存为uri指定的文件, 已存在时替换
+     */
+    private Response servePut(String uri, Map<String, String> files) {
+        File target = resolveUpload(uri);
+        if (target == null || uri.endsWith("/") || target.isDirectory()) {
+            return new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT, "FORBIDDEN: Can not write " + uri);
+        }
+        if (!target.getParentFile().isDirectory()) {
+            return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, directory not found.");
+        }
+        boolean existed = target.exists();
+        try {
+            String tmp = files.get(UploadReceiver.CONTENT_KEY);
+            if (tmp != null) {
+                moveFile(new File(tmp), target);
+            } else {
+                // empty body
+                new FileOutputStream(target).close();
+            }
+        } catch (IOException e) {
+            ServerLog.w(TAG, "upload failed", e);
+            return new Response(Response.Status.INTERNAL_ERROR, HTTPServerDaemon.MIME_PLAINTEXT,
+                    "SERVER INTERNAL ERROR: " + e.getMessage());
+        }
+        filesChanged();
+        ServerLog.i(TAG, "saved upload {}", target);
+        return new Response(existed ? Response.Status.OK : Response.Status.CREATED, HTTPServerDaemon.MIME_PLAINTEXT,
+                uri + "\n");
+    }
+
+    /**
+     * POST: multipart表单中的文件以客户端给出的文件名保存到uri指定的目录, 重名时加序号
+     */
+    private Response servePost(String uri, Map<String, String> parms, Map<String, String> files) {
+        File dir = resolveUpload(uri);
+        if (dir == null) {
+            return new Response(Response.Status.FORBIDDEN, HTTPServerDaemon.MIME_PLAINTEXT, "FORBIDDEN: Can not write " + uri);
+        }
+        if (!dir.isDirectory()) {
+            return new Response(Response.Status.NOT_FOUND, HTTPServerDaemon.MIME_PLAINTEXT, "Error 404, directory not found.");
+        }
+        StringBuilder saved = new StringBuilder();
+        try {
+            for (Map.Entry<String, String> entry : files.entrySet()) {
+                String name = safeFileName(parms.get(entry.getKey()));
+                if (name == null) {
+                    continue;
+                }
+                File target = uniqueFile(dir, name);
+                moveFile(new File(entry.getValue()), target);
+                ServerLog.i(TAG, "saved upload {}", target);
+                saved.append(target.getName()).append('\n');
+            }
+        } catch (IOException e) {
+            ServerLog.w(TAG, "upload failed", e);
+            return new Response(Response.Status.INTERNAL_ERROR, HTTPServerDaemon.MIME_PLAINTEXT,
+                    "SERVER INTERNAL ERROR: " + e.getMessage());
+        } finally {
+            filesChanged();
+        }
+        if (saved.length() == 0) {
+            return new Response(Response.Status.BAD_REQUEST, HTTPServerDaemon.MIME_PLAINTEXT, "BAD REQUEST: No files uploaded.");
+        }
+        return new Response(Response.Status.CREATED, HTTPServerDaemon.MIME_PLAINTEXT, saved.toString());
+    }
+
+    /**
+     * 去掉客户端文件名中的路径, 部分浏览器发送完整路径
+     * @return the last path component, null if nothing usable is left
+     */
+    private static String safeFileName(String name) {
+        if (name == null) {
+            return null;
+        }
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1).trim();
+        if (name.length() == 0 || name.equals(".") || name.equals("..")) {
+            return null;
+        }
+        return name;
+    }
+
+    private static File uniqueFile(File dir, String name) {
+        File file = new File(dir, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String ext = dot > 0 ? name.substring(dot) : "";
+        for (int i = 1; file.exists(); i++) {
+            file = new File(dir, base + " (" + i + ")" + ext);
+        }
+        return file;
+    }
+
+    /**
+     * 移动上传的临时文件, 不在同一文件系统上时复制
+     */
+    private static void moveFile(File from, File to) throws IOException {
+        if (from.renameTo(to)) {
+            return;
+        }
+        FileInputStream in = null;
+        FileOutputStream out = null;
+        try {
+            in = new FileInputStream(from);
+            out = new FileOutputStream(to);
+            FileChannel src = in.getChannel();
+            FileChannel dst = out.getChannel();
+            long size = src.size();
+            long position = 0;
+            while (position < size) {
+                position += src.transferTo(position, size - position, dst);
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+            NetWorkUtils.safeClose(out);
+        }
+        if (!from.delete()) {
+            ServerLog.w(TAG, "can not delete {}", from);
+        }
     }
 }
@@ -0,0 +1,52 @@
+package com.example.TransmitWifi;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 分段计数器, 线程按id落在不同的槽上, 高并发下累加不争用同一缓存行, 读取时求和.
+ * 功能同Java 8的LongAdder, 不分配对象
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class StripedCounter {
+    /**
+     * longs between two used slots, keeps each slot on its own cache line
+     */
+    private static final int PADDING = 8;
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        while (stripes < Runtime.getRuntime().availableProcessors() * 2) {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        add(1);
+    }
+
+    void decrement() {
+        add(-1);
+    }
+
+    void add(long delta) {
+        // Fibonacci hashing spreads consecutive thread ids over the stripes
+        int stripe = (int) ((Thread.currentThread().getId() * 0x9E3779B97F4A7C15L) >>> 32) & (STRIPES - 1);
+        mCells.addAndGet(stripe * PADDING, delta);
+    }
+
+    /**
+     * @return sum of all slots, not an atomic snapshot while others add
+     */
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += mCells.get(i * PADDING);
+        }
+        return sum;
+    }
+}
@@ -1,86 +1,288 @@
 package com.example.TransmitWifi;
-import android.util.Log;
 
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * 工作线程池, 可设置核心/最大线程数和有界队列, 并统计队列深度, 活动线程数和排队时间.
+ * 没有空闲线程时先增加线程到最大线程数, 之后才排队: 阻塞引擎的任务是整个持久连接, 排队的连接要等另一个连接结束.
+ * 虚拟线程模式下不复用线程, 每个任务一个虚拟线程, 最大线程数限制同时运行的任务数.
+ * @author haihui.li
+ * @version 1.0.0
+ */
 public class ThreadPool {
     private static final String TAG = "ThreadPool";
-    private static int mSeqNumber = 0;
-    private final int mCount;
-    private final List<Runnable> mWorkQueue = new LinkedList<Runnable>();
-    private List<WorkThread> mThreadQueue = new LinkedList<WorkThread>();
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
 
+    private final int mCoreCount;
+    private final int mMaxCount;
+    private final int mQueueCapacity;
+    private final String mName;
+    private final ExecutionMode mMode;
+    private ThreadPoolExecutor mExecutor;
+    /**
+     * virtual thread mode: factory and permits of the tasks allowed to run
+     */
+    private ThreadFactory mVirtualFactory;
+    private Semaphore mPermits;
+    private final AtomicInteger mVirtualActive = new AtomicInteger();
+    private final AtomicInteger mVirtualLargest = new AtomicInteger();
+    /**
+     * platform mode: tasklets queued or running
+     */
+    private final AtomicInteger mSubmitted = new AtomicInteger();
+    private volatile boolean mStopped = false;
+
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mWaitCount = new AtomicLong();
+    private final AtomicLong mTotalWaitMs = new AtomicLong();
+    private final AtomicLong mMaxWaitMs = new AtomicLong();
+
+    /**
+     * 固定线程数, 队列无界
+     * @param count count of worker threads
+     */
     ThreadPool(int count) {
-        mCount = count;
+        this(count, count, 0, "ThreadPool");
     }
 
-    class WorkThread extends Thread {
-        private int mThreadId = mSeqNumber++;
-        private boolean mStop = false;
-        public void run() {
-            while (!mStop) {
-                Runnable tasklet = null;
-                synchronized (mWorkQueue) {
-                    while (mWorkQueue.isEmpty()) {
-                        Log.i(TAG, " enter wait state id = " + mThreadId);
-                        try {
-                            mWorkQueue.wait();
-                        } catch (InterruptedException ie) {
-                            ie.printStackTrace();
-                            if (mStop) {
-                                break;
-                            } else {
-                                Log.i(TAG, "Get a tasklet");
-                            }
+    /**
+     * 构造函数
+     * @param coreCount threads kept alive while idle
+     * @param maxCount threads started at most, extra ones before tasklets are queued
+     * @param queueCapacity count of tasklets waiting for a thread, 0 for an unbounded queue
+     * @param name prefix of the worker thread names
+     */
+    ThreadPool(int coreCount, int maxCount, int queueCapacity, String name) {
+        this(coreCount, maxCount, queueCapacity, name, ExecutionMode.PLATFORM);
+    }
+
+    /**
+     * 构造函数
+     * @param coreCount threads kept alive while idle, unused for virtual threads
+     * @param maxCount threads started at most, for virtual threads the tasks running at the same time
+     * @param queueCapacity count of tasklets waiting for a thread, 0 for an unbounded queue
+     * @param name prefix of the worker thread names
+     * @param mode platform or virtual threads
+     */
+    ThreadPool(int coreCount, int maxCount, int queueCapacity, String name, ExecutionMode mode) {
+        mCoreCount = Math.max(1, coreCount);
+        mMaxCount = Math.max(mCoreCount, maxCount);
+        mQueueCapacity = queueCapacity;
+        mName = name;
+        mMode = mode;
+    }
+
+    public void start() {
+        if (mMode == ExecutionMode.VIRTUAL && mMode.isSupported()) {
+            mVirtualFactory = mMode.newThreadFactory(mName);
+            mPermits = new Semaphore(mMaxCount);
+            return;
+        }
+        final GrowingQueue queue = new GrowingQueue(mQueueCapacity > 0 ? mQueueCapacity : Integer.MAX_VALUE);
+        mExecutor = new ThreadPoolExecutor(mCoreCount, mMaxCount, IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                queue, ExecutionMode.PLATFORM.newThreadFactory(mName), new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // the pool reached the maximum after the queue refused the tasklet
+                        if (executor.isShutdown() || !queue.force(r)) {
+                            throw new RejectedExecutionException();
                         }
                     }
-                    Log.i(TAG, "get pid =  " + getId());
-                    Log.i(TAG, mThreadId + " get the work");
-                    tasklet = mWorkQueue.get(0);
-                    mWorkQueue.remove(0);
+                });
+    }
+
+    /**
+     * 停止接收新任务, 已在运行和排队的任务继续执行
+     */
+    public void stop() {
+        mStopped = true;
+        if (mExecutor != null) {
+            mExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 加入任务, 有界队列已满时丢弃并记录
+     * @param tasklet task to run
+     */
+    public void addTasklet(Runnable tasklet) {
+        if (!offerTasklet(tasklet)) {
+            ServerLog.w(TAG, "{} is saturated, tasklet dropped", mName);
+        }
+    }
+
+    /**
+     * 尝试加入任务
+     * @param tasklet task to run
+     * @return false if all threads are busy and the queue is full
+     */
+    public boolean offerTasklet(Runnable tasklet) {
+        if (mVirtualFactory != null) {
+            return startVirtual(tasklet);
+        }
+        mSubmitted.incrementAndGet();
+        try {
+            mExecutor.execute(new TimedTasklet(tasklet));
+            return true;
+        } catch (RejectedExecutionException e) {
+            mSubmitted.decrementAndGet();
+            mRejectedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    private boolean startVirtual(final Runnable tasklet) {
+        if (mStopped || !mPermits.tryAcquire()) {
+            mRejectedCount.incrementAndGet();
+            return false;
+        }
+        int active = mVirtualActive.incrementAndGet();
+        int largest = mVirtualLargest.get();
+        while (active > largest && !mVirtualLargest.compareAndSet(largest, active)) {
+            largest = mVirtualLargest.get();
+        }
+        mVirtualFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tasklet.run();
+                } finally {
+                    mVirtualActive.decrementAndGet();
+                    mPermits.release();
                 }
-                Log.i(TAG, "#####################enter###########");
-                tasklet.run();
-                Log.i(TAG, "#####################exit###########");
             }
+        }).start();
+        return true;
+    }
+
+    /**
+     * @return count of tasklets waiting for a thread
+     */
+    public int getQueueDepth() {
+        return mExecutor != null ? mExecutor.getQueue().size() : 0;
+    }
+
+    /**
+     * @return count of threads running a tasklet
+     */
+    public int getActiveCount() {
+        if (mVirtualFactory != null) {
+            return mVirtualActive.get();
         }
-        public void exit() {
-            mStop = true;
-            this.interrupt();
+        return mExecutor != null ? mExecutor.getActiveCount() : 0;
+    }
+
+    /**
+     * @return count of threads in the pool, busy or idle
+     */
+    public int getPoolSize() {
+        if (mVirtualFactory != null) {
+            return mVirtualActive.get();
         }
+        return mExecutor != null ? mExecutor.getPoolSize() : 0;
     }
 
-    public void start() {
-        int i = 0;
-        for (i = 0; i < mCount; i++) {
-            WorkThread thread = new WorkThread();
-            thread.setPriority(i+Thread.NORM_PRIORITY);
-            thread.start();
-            mThreadQueue.add(thread);
+    /**
+     * @return largest count of threads the pool had at the same time
+     */
+    public int getLargestPoolSize() {
+        if (mVirtualFactory != null) {
+            return mVirtualLargest.get();
         }
+        return mExecutor != null ? mExecutor.getLargestPoolSize() : 0;
     }
 
-    public void stop() {
-        int i = 0;
-        for (i = 0; i < mCount; i++) {
-            WorkThread thread = mThreadQueue.get(0);
-            thread.exit();
+    /**
+     * @return count of tasklets refused because the pool was saturated
+     */
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return average time a tasklet waited in the queue, in milliseconds
+     */
+    public long getAverageQueueWaitMs() {
+        long count = mWaitCount.get();
+        return count > 0 ? mTotalWaitMs.get() / count : 0;
+    }
+
+    /**
+     * @return longest time a tasklet waited in the queue, in milliseconds
+     */
+    public long getMaxQueueWaitMs() {
+        return mMaxWaitMs.get();
+    }
+
+    @Override
+    public String toString() {
+        return mName + " [mode=" + (mVirtualFactory != null ? ExecutionMode.VIRTUAL : ExecutionMode.PLATFORM) + ", pool=" + getPoolSize() + "/" + mMaxCount + ", active=" + getActiveCount()
+                + ", queued=" + getQueueDepth() + ", rejected=" + getRejectedCount()
+                + ", avgWaitMs=" + getAverageQueueWaitMs() + ", maxWaitMs=" + getMaxQueueWaitMs() + "]";
+    }
+
+    /**
+     * 记录任务排队时间
+     */
+    private class TimedTasklet implements Runnable {
+        private final Runnable mTasklet;
+        private final long mQueuedAt = System.currentTimeMillis();
+
+        TimedTasklet(Runnable tasklet) {
+            mTasklet = tasklet;
+        }
+
+        @Override
+        public void run() {
+            long wait = System.currentTimeMillis() - mQueuedAt;
+            mWaitCount.incrementAndGet();
+            mTotalWaitMs.addAndGet(wait);
+            long max = mMaxWaitMs.get();
+            while (wait > max && !mMaxWaitMs.compareAndSet(max, wait)) {
+                max = mMaxWaitMs.get();
+            }
             try {
-                thread.join();
-            } catch (InterruptedException ie) {
-                ie.printStackTrace();
+                mTasklet.run();
+            } finally {
+                mSubmitted.decrementAndGet();
             }
         }
     }
 
-    public void addTasklet(Runnable tasklet) {
-        synchronized (mWorkQueue) {
-            mWorkQueue.add(tasklet);
-            mWorkQueue.notifyAll();
-        }
-    }
-}
+    /**
+     * 线程数未到最大且没有空闲线程时拒绝入队, 让ThreadPoolExecutor启动新线程
+     */
+    private final class GrowingQueue extends LinkedBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
 
+        GrowingQueue(int capacity) {
+            super(capacity);
+        }
 
+        @Override
+        public boolean offer(Runnable tasklet) {
+            ThreadPoolExecutor executor = mExecutor;
+            int poolSize = executor.getPoolSize();
+            if (mSubmitted.get() > poolSize && poolSize < executor.getMaximumPoolSize()) {
+                return false;
+            }
+            return super.offer(tasklet);
+        }
 
+        /**
+         * 不检查线程数直接入队
+         * @return false if the queue is full
+         */
+        boolean force(Runnable tasklet) {
+            return super.offer(tasklet);
+        }
+    }
+}
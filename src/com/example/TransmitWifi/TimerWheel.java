@@ -0,0 +1,158 @@
+package com.example.TransmitWifi;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 哈希时间轮, 用于大量连接的超时.
+ * 超时按到期的tick落入槽中, 每个槽是双向链表, 加入, 取消和重新设置都是O(1); 推进时只检查到期槽中的超时.
+ * 没有自己的线程, 由调用者周期地调用expire(), 到期回调在锁外执行.
+ * 时间取自单调时钟, 系统时间被网络校时或手动修改时超时不会一起到期或停止
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class TimerWheel {
+    private final long mTickMs;
+    private final int mMask;
+    private final Timeout[] mSlots;
+    private final long mStart = now();
+    /**
+     * last tick whose slot has been processed
+     */
+    private long mCurrentTick = 0;
+    private int mSize = 0;
+    private final List<Timeout> mExpired = new ArrayList<Timeout>();
+
+    /**
+     * 构造函数
+     * @param tickMs resolution of the timeouts
+     * @param slots slots of the wheel, rounded up to a power of two
+     */
+    TimerWheel(long tickMs, int slots) {
+        int size = 1;
+        while (size < slots) {
+            size <<= 1;
+        }
+        mTickMs = tickMs;
+        mMask = size - 1;
+        mSlots = new Timeout[size];
+    }
+
+    /**
+     * 设置超时, 已在轮中的先移除
+     * @param timeout the timeout
+     * @param delayMs time until it expires, rounded up to the next tick
+     */
+    synchronized void schedule(Timeout timeout, long delayMs) {
+        unlink(timeout);
+        long now = now();
+        long tick = (now - mStart + Math.max(0, delayMs) + mTickMs - 1) / mTickMs;
+        timeout.mTick = Math.max(tick, mCurrentTick + 1);
+        int slot = (int) (timeout.mTick & mMask);
+        timeout.mNext = mSlots[slot];
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout;
+        }
+        mSlots[slot] = timeout;
+        timeout.mWheel = this;
+        mSize++;
+    }
+
+    /**
+     * 取消超时, 未设置时无作用
+     */
+    synchronized void cancel(Timeout timeout) {
+        unlink(timeout);
+    }
+
+    private void unlink(Timeout timeout) {
+        if (timeout.mWheel == null) {
+            return;
+        }
+        if (timeout.mPrev != null) {
+            timeout.mPrev.mNext = timeout.mNext;
+        } else {
+            mSlots[(int) (timeout.mTick & mMask)] = timeout.mNext;
+        }
+        if (timeout.mNext != null) {
+            timeout.mNext.mPrev = timeout.mPrev;
+        }
+        timeout.mPrev = null;
+        timeout.mNext = null;
+        timeout.mWheel = null;
+        mSize--;
+    }
+
+    /**
+     * 推进到当前时间, 执行到期的超时
+     * @return count of expired timeouts
+     */
+    int expire() {
+        List<Timeout> expired = mExpired;
+        synchronized (this) {
+            long nowTick = (now() - mStart) / mTickMs;
+            // after a long pause every slot is visited once
+            long from = Math.max(mCurrentTick + 1, nowTick - mMask);
+            for (long tick = from; tick <= nowTick; tick++) {
+                Timeout timeout = mSlots[(int) (tick & mMask)];
+                while (timeout != null) {
+                    Timeout next = timeout.mNext;
+                    if (timeout.mTick <= nowTick) {
+                        unlink(timeout);
+                        expired.add(timeout);
+                    }
+                    timeout = next;
+                }
+            }
+            mCurrentTick = Math.max(mCurrentTick, nowTick);
+        }
+        int count = expired.size();
+        for (int i = 0; i < count; i++) {
+            expired.get(i).onExpired();
+        }
+        expired.clear();
+        return count;
+    }
+
+    /**
+     * @return time until the next tick
+     */
+    long millisToNextTick() {
+        long elapsed = now() - mStart;
+        return mTickMs - elapsed % mTickMs;
+    }
+
+    /**
+     * @return milliseconds of the monotonic clock, unrelated to the wall clock
+     */
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    /**
+     * @return count of pending timeouts
+     */
+    synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * 一个可重复设置的超时, 到期时在推进时间轮的线程上调用onExpired()
+     */
+    abstract static class Timeout {
+        private TimerWheel mWheel;
+        private Timeout mPrev;
+        private Timeout mNext;
+        private long mTick;
+
+        /**
+         * @return true if scheduled and neither expired nor cancelled
+         */
+        boolean isPending() {
+            TimerWheel wheel = mWheel;
+            return wheel != null;
+        }
+
+        abstract void onExpired();
+    }
+}
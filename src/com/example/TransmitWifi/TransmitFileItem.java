@@ -13,6 +13,10 @@ import java.util.Map;
 
 public class TransmitFileItem {
     private static final String TAG = "TransmitFileItem";
+    /**
+     * 共享清单中文件的id参数
+     */
+    public static final String META_DATA_ID = "id";
     /**
      * meta html 文件路径参数
      */
@@ -34,6 +38,14 @@ public class TransmitFileItem {
      * meta html 默认名称
      */
     public static final String META_FILE_NAME = "metaFile.html";
+    /**
+     * 客户端保存文件分块哈希的名称, 与meta html 放在一起
+     */
+    public static final String CHUNKS_FILE_NAME = "metaFile.chunks";
+    /**
+     * 客户端保存共享清单的名称, 与meta html 放在一起
+     */
+    public static final String SHARE_FILE_NAME = "metaFile.share";
 
 
     private  String mTitle;
@@ -91,15 +103,19 @@ public class TransmitFileItem {
         mPath = metaMap.get(META_DATA_PATH);
         mDetail = metaMap.get(META_DATA_DETAIL);
         if (metaMap.get(META_DATA_SIZE) != null) {
-            mSize = Integer.parseInt(metaMap.get(META_DATA_SIZE));
+            try {
+                mSize = Long.parseLong(metaMap.get(META_DATA_SIZE));
+            } catch (NumberFormatException e) {
+                Log.i(TAG, "bad size in meta file");
+            }
         }
     }
 
     /**
-     * 创建下载所用的metafile 
-     * @param wwwRootDir the html file placed
+     * 生成meta文本, 以空行结束
+     * @return meta lines of this item
      */
-    public void createMetaFile(String wwwRootDir) {
+    String getMetaString() {
         StringBuilder strBuild = new StringBuilder();
         strBuild.append(META_DATA_PATH);
         strBuild.append(" :");
@@ -117,7 +133,16 @@ public class TransmitFileItem {
         strBuild.append(" :");
         strBuild.append(mDetail);
         strBuild.append("\r\n\r\n");
-        Log.i(TAG, "create meta file = " + strBuild);
+        return strBuild.toString();
+    }
+
+    /**
+     * 创建下载所用的metafile 
+     * @param wwwRootDir the html file placed
+     */
+    public void createMetaFile(String wwwRootDir) {
+        String meta = getMetaString();
+        Log.i(TAG, "create meta file = " + meta);
 
         try {
             File metaFile = new File(wwwRootDir + "/" + META_FILE_NAME);
@@ -127,7 +152,7 @@ public class TransmitFileItem {
             metaFile.createNewFile();
             FileOutputStream fileOutputStream = new FileOutputStream(metaFile);
 
-            byte[] buf = strBuild.toString().getBytes();
+            byte[] buf = meta.getBytes();
             Log.i(TAG, "###########buf length" + buf.length);
             fileOutputStream.write(buf, 0, buf.length);
             fileOutputStream.flush();
@@ -0,0 +1,223 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 接收一个POST/PUT请求的请求体.
+ * multipart/form-data用MultipartParser流式拆分, 文件部分经FileChannel直接写入上传目录的临时文件,
+ * 表单字段和application/x-www-form-urlencoded请求体在内存中, 有大小上限; 其他类型的请求体整体写入一个临时文件.
+ * 临时文件在请求结束时删除, 需要保留的文件由serve()移走
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class UploadReceiver implements MultipartParser.Listener {
+    private static final String TAG = "UploadReceiver";
+    /**
+     * files key of a request body which is not a form
+     */
+    static final String CONTENT_KEY = "content";
+    /**
+     * limit of a form field or an url encoded body kept in memory
+     */
+    static final int MAX_FORM_SIZE = 64 * 1024;
+    private static final int BUFSIZE = 64 * 1024;
+    private static final String MIME_MULTIPART = "multipart/form-data";
+    private static final String MIME_FORM = "application/x-www-form-urlencoded";
+
+    private final File mDir;
+    private final MultipartParser mMultipart;
+    private final boolean mForm;
+    private final Map<String, String> mParms = new LinkedHashMap<String, String>();
+    private final Map<String, String> mFiles = new LinkedHashMap<String, String>();
+    private final List<File> mTempFiles = new ArrayList<File>();
+    /**
+     * form field or url encoded body being received
+     */
+    private ByteArrayOutputStream mField;
+    private String mFieldName;
+    private String mFormBody;
+    /**
+     * temp file of the file part or body being received
+     */
+    private FileOutputStream mFileStream;
+    private FileChannel mFile;
+    private byte[] mBuf;
+    private ByteBuffer mBuffer;
+
+    /**
+     * 构造函数
+     * @param contentType Content-Type of the request, may be null
+     * @param dir directory of the temp files
+     * @throws HTTPServerDaemon.ResponseException if a multipart request has no usable boundary
+     */
+    UploadReceiver(String contentType, File dir) throws HTTPServerDaemon.ResponseException, IOException {
+        mDir = dir;
+        String mime = contentType;
+        if (mime != null && mime.indexOf(';') >= 0) {
+            mime = mime.substring(0, mime.indexOf(';'));
+        }
+        mime = mime != null ? mime.trim() : "";
+        if (mime.equalsIgnoreCase(MIME_MULTIPART)) {
+            mMultipart = new MultipartParser(MultipartParser.getParameter(contentType, "boundary"), this);
+            mForm = false;
+        } else if (mime.equalsIgnoreCase(MIME_FORM)) {
+            mMultipart = null;
+            mForm = true;
+            mField = new ByteArrayOutputStream();
+        } else {
+            mMultipart = null;
+            mForm = false;
+            mFiles.put(CONTENT_KEY, openTempFile().getPath());
+        }
+    }
+
+    /**
+     * 从请求体流中读取一次
+     * @param in request body stream
+     * @param max bytes of the body not received yet
+     * @return count of bytes read, -1 at end of stream
+     */
+    int receive(InputStream in, long max) throws IOException, HTTPServerDaemon.ResponseException {
+        if (mMultipart != null) {
+            return mMultipart.read(in, max);
+        }
+        if (mBuf == null) {
+            mBuf = new byte[BUFSIZE];
+            mBuffer = ByteBuffer.wrap(mBuf);
+        }
+        int read = in.read(mBuf, 0, (int) Math.min(max, mBuf.length));
+        if (read > 0) {
+            mBuffer.limit(read);
+            mBuffer.position(0);
+            onPartData(mBuffer);
+        }
+        return read;
+    }
+
+    /**
+     * 请求体已全部收到
+     */
+    void finish() throws IOException, HTTPServerDaemon.ResponseException {
+        if (mMultipart != null) {
+            mMultipart.finish();
+        } else if (mForm && mField != null) {
+            mFormBody = mField.toString("UTF-8");
+            mField = null;
+        } else {
+            closeFile();
+        }
+    }
+
+    /**
+     * @return an application/x-www-form-urlencoded body still encoded, null for other types
+     */
+    String getFormBody() {
+        return mFormBody;
+    }
+
+    /**
+     * multipart表单的字段, 文件字段的值是客户端给出的文件名
+     * @return field names mapped to values
+     */
+    Map<String, String> getParms() {
+        return mParms;
+    }
+
+    /**
+     * @return field names of the received files mapped to the paths of their temp files
+     */
+    Map<String, String> getFiles() {
+        return mFiles;
+    }
+
+    /**
+     * 删除未被移走的临时文件
+     */
+    void close() {
+        closeFile();
+        for (File file : mTempFiles) {
+            if (file.exists() && !file.delete()) {
+                ServerLog.w(TAG, "can not delete {}", file);
+            }
+        }
+        mTempFiles.clear();
+    }
+
+    @Override
+    public void onPartBegin(Map<String, String> headers) throws IOException, HTTPServerDaemon.ResponseException {
+        String disposition = headers.get("content-disposition");
+        String name = MultipartParser.getParameter(disposition, "name");
+        if (name == null) {
+            throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.BAD_REQUEST,
+                    "BAD REQUEST: Multipart part without a name.");
+        }
+        // several parts may share a name, e.g. <input type="file" multiple>
+        String key = name;
+        for (int i = 1; mParms.containsKey(key); i++) {
+            key = name + i;
+        }
+        String fileName = MultipartParser.getParameter(disposition, "filename");
+        if (fileName != null) {
+            mParms.put(key, fileName);
+            mFiles.put(key, openTempFile().getPath());
+        } else {
+            mFieldName = key;
+            mField = new ByteArrayOutputStream();
+        }
+    }
+
+    @Override
+    public void onPartData(ByteBuffer data) throws IOException, HTTPServerDaemon.ResponseException {
+        if (mFile != null) {
+            while (data.hasRemaining()) {
+                mFile.write(data);
+            }
+        } else if (mField != null) {
+            if (mField.size() + data.remaining() > MAX_FORM_SIZE) {
+                throw new HTTPServerDaemon.ResponseException(HTTPServerDaemon.Response.Status.PAYLOAD_TOO_LARGE,
+                        "PAYLOAD TOO LARGE: Form field exceeds " + MAX_FORM_SIZE + " bytes.");
+            }
+            mField.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+        }
+    }
+
+    @Override
+    public void onPartEnd() throws IOException {
+        if (mField != null) {
+            mParms.put(mFieldName, mField.toString("UTF-8"));
+            mField = null;
+        }
+        closeFile();
+    }
+
+    private File openTempFile() throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("can not create upload directory " + mDir);
+        }
+        File file = File.createTempFile("upload", ".tmp", mDir);
+        mTempFiles.add(file);
+        mFileStream = new FileOutputStream(file);
+        mFile = mFileStream.getChannel();
+        return file;
+    }
+
+    private void closeFile() {
+        if (mFile != null) {
+            NetWorkUtils.safeClose(mFile);
+            NetWorkUtils.safeClose(mFileStream);
+            mFile = null;
+            mFileStream = null;
+        }
+    }
+}
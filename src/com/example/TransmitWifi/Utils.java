@@ -1,6 +1,7 @@
 package com.example.TransmitWifi;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * 网络工具
@@ -57,6 +58,21 @@ public class Utils {
         return uniqueFilePath;
     }
 
+    /**
+     * check whether the last element of the path is a symbolic link, by its canonical path
+     * @param file file or directory
+     * @return true for a link, false otherwise or if the path can not be resolved
+     */
+    public static boolean isSymbolicLink(File file) {
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            File inParent = parent == null ? file.getAbsoluteFile() : new File(parent.getCanonicalFile(), file.getName());
+            return !inParent.getCanonicalFile().equals(inParent.getAbsoluteFile());
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     /**
      * get directory of path
      * @param path of file
@@ -0,0 +1,66 @@
+package com.example.TransmitWifi;
+
+import java.lang.reflect.Method;
+
+/**
+ * 统计当前线程分配的字节数, 用于测量每个请求产生的垃圾.
+ * 在JVM上用com.sun.management.ThreadMXBean, 在Android上用Debug的分配计数, 都通过反射获取
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class Allocations {
+    private static Object sThreadBean;
+    private static Method sThreadAllocatedBytes;
+    private static Method sDebugThreadAllocSize;
+
+    static {
+        try {
+            Object bean = Class.forName("java.lang.management.ManagementFactory").getMethod("getThreadMXBean").invoke(null);
+            Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            if (beanClass.isInstance(bean)) {
+                Method method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+                method.invoke(bean, Thread.currentThread().getId());
+                sThreadBean = bean;
+                sThreadAllocatedBytes = method;
+            }
+        } catch (Exception e) {
+            sThreadAllocatedBytes = null;
+        }
+        if (sThreadAllocatedBytes == null) {
+            try {
+                Class<?> debug = Class.forName("android.os.Debug");
+                debug.getMethod("startAllocCounting").invoke(null);
+                sDebugThreadAllocSize = debug.getMethod("getThreadAllocSize");
+            } catch (Exception e) {
+                sDebugThreadAllocSize = null;
+            }
+        }
+    }
+
+    private Allocations() {
+    }
+
+    /**
+     * @return false if the runtime can not count allocations
+     */
+    static boolean isSupported() {
+        return sThreadAllocatedBytes != null || sDebugThreadAllocSize != null;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, -1 if not supported
+     */
+    static long currentThread() {
+        try {
+            if (sThreadAllocatedBytes != null) {
+                return (Long) sThreadAllocatedBytes.invoke(sThreadBean, Thread.currentThread().getId());
+            }
+            if (sDebugThreadAllocSize != null) {
+                return (Integer) sDebugThreadAllocSize.invoke(null);
+            }
+        } catch (Exception e) {
+            return -1;
+        }
+        return -1;
+    }
+}
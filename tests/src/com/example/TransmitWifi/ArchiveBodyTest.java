@@ -0,0 +1,373 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * 归档的内容: 小目录树的ZIP用ZipInputStream读回, 超过4GB的项使用ZIP64的头, TAR的长文件名使用PAX扩展头
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class ArchiveBodyTest extends TestCase {
+    private static final int MAX_ENTRIES = 100;
+    private static final int TAR_BLOCK = 512;
+    /**
+     * just over the 32-bit sizes of the ZIP headers, a sparse file
+     */
+    private static final long LARGE_SIZE = 0xFFFFFFFFL + 10;
+    private static final String LONG_NAME = "a-file-name-of-more-than-one-hundred-bytes-which-does-not-fit-"
+            + "in-the-name-field-of-the-ustar-header.txt";
+    private static final String UNICODE_NAME = "照片.txt";
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("archive", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        new File(mRoot, "sub/empty").mkdirs();
+        write(new File(mRoot, "a.txt"), "first file".getBytes("UTF-8"));
+        write(new File(mRoot, "sub/text.txt"), "中文".getBytes("UTF-8"));
+        write(new File(mRoot, "sub/" + LONG_NAME), content(1000));
+        write(new File(mRoot, "sub/zero.bin"), new byte[0]);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        delete(mRoot);
+    }
+
+    public void testZipReadBack() throws Exception {
+        List<ArchiveBody.Entry> entries = entries();
+        ArchiveBody body = new ArchiveBody(ArchiveBody.Format.ZIP, entries);
+        byte[] data = stream(body);
+        assertEquals(body.length(), data.length);
+
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(data));
+        try {
+            for (ArchiveBody.Entry expected : entries) {
+                ZipEntry entry = in.getNextEntry();
+                assertNotNull(entry);
+                String name = new String(expected.mName, "UTF-8");
+                assertEquals(name, entry.getName());
+                assertEquals(expected.mDirectory, entry.isDirectory());
+                // the crc is checked by ZipInputStream at the end of the entry
+                byte[] read = readAll(in);
+                if (!expected.mDirectory) {
+                    assertTrue(name, Arrays.equals(readAll(expected.mFile), read));
+                }
+            }
+            assertNull(in.getNextEntry());
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+    }
+
+    public void testTarLongName() throws Exception {
+        List<ArchiveBody.Entry> entries = entries();
+        ArchiveBody body = new ArchiveBody(ArchiveBody.Format.TAR, entries);
+        byte[] data = stream(body);
+        assertEquals(body.length(), data.length);
+
+        int offset = 0;
+        int paxEntries = 0;
+        for (ArchiveBody.Entry expected : entries) {
+            String name = new String(expected.mName, "UTF-8");
+            boolean pax = data[offset + 156] == 'x';
+            if (pax) {
+                checkHeader(data, offset);
+                int size = (int) octal(data, offset + 124, 12);
+                String records = new String(data, offset + TAR_BLOCK, size, "UTF-8");
+                int space = records.indexOf(' ');
+                assertEquals(size, Integer.parseInt(records.substring(0, space)));
+                assertEquals(" path=" + name + "\n", records.substring(space));
+                offset += TAR_BLOCK + blocks(size);
+                paxEntries++;
+            } else {
+                assertTrue(name, expected.mName.length <= 100);
+            }
+            checkHeader(data, offset);
+            if (pax) {
+                // the ustar name is only the end of the path
+                assertTrue(name, name.endsWith(ustarName(data, offset)));
+            } else {
+                assertEquals(name, ustarName(data, offset));
+            }
+            assertEquals(expected.mDirectory ? '5' : '0', data[offset + 156]);
+            long size = octal(data, offset + 124, 12);
+            assertEquals(expected.mDirectory ? 0 : expected.mSize, size);
+            offset += TAR_BLOCK;
+            if (!expected.mDirectory) {
+                byte[] read = new byte[(int) size];
+                System.arraycopy(data, offset, read, 0, read.length);
+                assertTrue(name, Arrays.equals(readAll(expected.mFile), read));
+            }
+            offset += blocks(size);
+        }
+        // the long name and the non-ASCII name
+        assertEquals(2, paxEntries);
+        // two zero blocks end the archive
+        assertEquals(data.length, offset + 2 * TAR_BLOCK);
+        for (int i = offset; i < data.length; i++) {
+            assertEquals(0, data[i]);
+        }
+    }
+
+    /**
+     * 大小超过32位的项: 本地头和中央目录记录中的ZIP64扩展字段, ZIP64目录结束记录. 只保留数据流的头尾
+     */
+    public void testZip64Headers() throws Exception {
+        File large = new File(mRoot, "large.bin");
+        RandomAccessFile file = new RandomAccessFile(large, "rw");
+        try {
+            file.setLength(LARGE_SIZE);
+        } finally {
+            NetWorkUtils.safeClose(file);
+        }
+        List<ArchiveBody.Entry> entries = new ArrayList<ArchiveBody.Entry>();
+        ArchiveBody.add(entries, large, "large.bin", MAX_ENTRIES);
+        ArchiveBody.add(entries, new File(mRoot, "a.txt"), "a.txt", MAX_ENTRIES);
+        ArchiveBody body = new ArchiveBody(ArchiveBody.Format.ZIP, entries);
+        int name = "large.bin".length();
+        long localSize = 30 + name + 20 + LARGE_SIZE;
+        long centralOffset = localSize + 30 + 5 + "first file".length();
+        long centralSize = 46 + name + 4 + 16 + 46 + 5 + 4 + 8;
+        assertEquals(centralOffset + centralSize + 56 + 20 + 22, body.length());
+
+        HeadTailChannel channel = new HeadTailChannel(1024, 1024);
+        try {
+            while (!body.writeTo(channel)) {
+                // blocking channel, returns when done
+            }
+        } finally {
+            body.close();
+        }
+        assertEquals(body.length(), channel.mCount);
+
+        // ZipInputStream takes the sizes from the zip64 extra field
+        ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(channel.head()));
+        ZipEntry entry = in.getNextEntry();
+        assertEquals("large.bin", entry.getName());
+        assertEquals(LARGE_SIZE, entry.getSize());
+        assertEquals(LARGE_SIZE, entry.getCompressedSize());
+
+        ByteBuffer local = ByteBuffer.wrap(channel.head()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(0x04034b50, local.getInt(0));
+        assertEquals(45, local.getShort(4));
+        int crc = local.getInt(14);
+        assertEquals(-1, local.getInt(18));
+        assertEquals(-1, local.getInt(22));
+        assertEquals(20, local.getShort(28));
+        assertEquals(0x0001, local.getShort(30 + name));
+        assertEquals(16, local.getShort(32 + name));
+        assertEquals(LARGE_SIZE, local.getLong(34 + name));
+        assertEquals(LARGE_SIZE, local.getLong(42 + name));
+
+        byte[] tail = channel.tail();
+        ByteBuffer end = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+        int central = tail.length - (int) (body.length() - centralOffset);
+        assertEquals(0x02014b50, end.getInt(central));
+        assertEquals(45, end.getShort(central + 6));
+        assertEquals(crc, end.getInt(central + 16));
+        assertEquals(-1, end.getInt(central + 20));
+        assertEquals(-1, end.getInt(central + 24));
+        assertEquals(20, end.getShort(central + 30));
+        assertEquals(0, end.getInt(central + 42));
+        assertEquals(0x0001, end.getShort(central + 46 + name));
+        assertEquals(LARGE_SIZE, end.getLong(central + 50 + name));
+        assertEquals(LARGE_SIZE, end.getLong(central + 58 + name));
+        // the second entry starts beyond 4GB
+        int second = central + 46 + name + 20;
+        assertEquals(0x02014b50, end.getInt(second));
+        assertEquals(-1, end.getInt(second + 42));
+        assertEquals(0x0001, end.getShort(second + 46 + 5));
+        assertEquals(8, end.getShort(second + 48 + 5));
+        assertEquals(localSize, end.getLong(second + 50 + 5));
+
+        int record = central + (int) centralSize;
+        assertEquals(0x06064b50, end.getInt(record));
+        assertEquals(2, end.getLong(record + 24));
+        assertEquals(2, end.getLong(record + 32));
+        assertEquals(centralSize, end.getLong(record + 40));
+        assertEquals(centralOffset, end.getLong(record + 48));
+        assertEquals(0x07064b50, end.getInt(record + 56));
+        assertEquals(centralOffset + centralSize, end.getLong(record + 64));
+        int eocd = record + 56 + 20;
+        assertEquals(0x06054b50, end.getInt(eocd));
+        assertEquals(2, end.getShort(eocd + 10));
+        assertEquals((int) centralSize, end.getInt(eocd + 12));
+        assertEquals(-1, end.getInt(eocd + 16));
+        assertEquals(tail.length, eocd + 22);
+    }
+
+    private List<ArchiveBody.Entry> entries() throws Exception {
+        List<ArchiveBody.Entry> entries = new ArrayList<ArchiveBody.Entry>();
+        ArchiveBody.add(entries, mRoot, "root", MAX_ENTRIES);
+        // root, a.txt, sub, the long name, sub/empty, text.txt, zero.bin
+        assertEquals(7, entries.size());
+        // not from the file system, whose name encoding may not be UTF-8 where the test runs
+        File text = new File(mRoot, "sub/text.txt");
+        entries.add(new ArchiveBody.Entry(text, "root/" + UNICODE_NAME, false, text.length(), text.lastModified()));
+        return entries;
+    }
+
+    private static byte[] stream(ArchiveBody body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WritableByteChannel channel = Channels.newChannel(out);
+        try {
+            while (!body.writeTo(channel)) {
+                // blocking channel, returns when done
+            }
+        } finally {
+            body.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void checkHeader(byte[] data, int offset) throws Exception {
+        assertEquals("ustar\u000000", new String(data, offset + 257, 8, "US-ASCII"));
+        long sum = 0;
+        for (int i = offset; i < offset + TAR_BLOCK; i++) {
+            sum += i >= offset + 148 && i < offset + 156 ? ' ' : data[i] & 0xFF;
+        }
+        assertEquals(sum, octal(data, offset + 148, 8));
+    }
+
+    private static String ustarName(byte[] data, int offset) throws Exception {
+        int end = offset;
+        while (end < offset + 100 && data[end] != 0) {
+            end++;
+        }
+        return new String(data, offset, end - offset, "UTF-8");
+    }
+
+    private static long octal(byte[] data, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length && data[i] >= '0' && data[i] <= '7'; i++) {
+            value = value * 8 + data[i] - '0';
+        }
+        return value;
+    }
+
+    private static int blocks(long size) {
+        return (int) ((size + TAR_BLOCK - 1) / TAR_BLOCK * TAR_BLOCK);
+    }
+
+    private static byte[] content(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + i % 26);
+        }
+        return data;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return readAll(in);
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 只保留开头和结尾若干字节的通道, 中间的数据只计数
+     */
+    private static final class HeadTailChannel implements WritableByteChannel {
+        private final byte[] mHead;
+        private final byte[] mTail;
+        private long mCount = 0;
+
+        HeadTailChannel(int head, int tail) {
+            mHead = new byte[head];
+            mTail = new byte[tail];
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int count = src.remaining();
+            int start = src.position();
+            for (int i = 0; i < count && mCount + i < mHead.length; i++) {
+                mHead[(int) mCount + i] = src.get(start + i);
+            }
+            // only the last bytes can end up in the tail
+            for (int i = Math.max(0, count - mTail.length); i < count; i++) {
+                mTail[(int) ((mCount + i) % mTail.length)] = src.get(start + i);
+            }
+            mCount += count;
+            src.position(src.limit());
+            return count;
+        }
+
+        byte[] head() {
+            return mHead;
+        }
+
+        /**
+         * 最后mTail.length个字节, 按顺序
+         */
+        byte[] tail() {
+            int start = (int) (mCount % mTail.length);
+            byte[] tail = new byte[mTail.length];
+            System.arraycopy(mTail, start, tail, 0, mTail.length - start);
+            System.arraycopy(mTail, 0, tail, mTail.length - start, start);
+            return tail;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
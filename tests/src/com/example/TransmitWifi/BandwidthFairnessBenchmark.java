@@ -0,0 +1,111 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 限速时多个客户端的公平性: 多个连接同时下载同一个大文件一段时间, 用Jain指数衡量各连接收到的字节数是否平均,
+ * 并比较总吞吐和限速. 两种引擎都测
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class BandwidthFairnessBenchmark extends TestCase {
+    private static final String TAG = "BandwidthFairnessBenchmark";
+    private static final int CLIENTS = 8;
+    private static final long TOTAL_LIMIT = 8 * 1024 * 1024;
+    private static final long CONNECTION_LIMIT = 512 * 1024;
+    private static final long DURATION_MS = 4000;
+    /**
+     * larger than any client receives in the run
+     */
+    private static final long FILE_SIZE = 1L << 30;
+
+    private File mRoot;
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("fairness", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        mFile = new File(mRoot, "movie.mp4");
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(FILE_SIZE);
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mRoot.delete();
+    }
+
+    public void testTotalLimitBlocking() throws Exception {
+        checkTotalLimit(HTTPServerDaemon.Engine.BLOCKING);
+    }
+
+    public void testTotalLimitNio() throws Exception {
+        checkTotalLimit(HTTPServerDaemon.Engine.NIO);
+    }
+
+    public void testConnectionLimitBlocking() throws Exception {
+        checkConnectionLimit(HTTPServerDaemon.Engine.BLOCKING);
+    }
+
+    public void testConnectionLimitNio() throws Exception {
+        checkConnectionLimit(HTTPServerDaemon.Engine.NIO);
+    }
+
+    /**
+     * 不限速时只记录, 回环上的速度取决于调度
+     */
+    public void testUnlimited() throws Exception {
+        for (HTTPServerDaemon.Engine engine : HTTPServerDaemon.Engine.values()) {
+            LoopbackLoad.Result result = runLoad(engine, 0, 0);
+            Log.i(TAG, engine + " unlimited: " + result + ", fairness " + String.format("%.3f", result.fairness()));
+        }
+    }
+
+    private void checkTotalLimit(HTTPServerDaemon.Engine engine) throws IOException {
+        LoopbackLoad.Result result = runLoad(engine, TOTAL_LIMIT, 0);
+        double rate = result.mBodyBytes * 1e9 / result.mElapsedNanos;
+        Log.i(TAG, engine + " total limit " + TOTAL_LIMIT + ": " + result + ", fairness " + String.format("%.3f", result.fairness()));
+        assertEquals(0, result.mFailed);
+        assertTrue("fairness " + result.fairness(), result.fairness() > 0.95);
+        // the first second's burst of the token bucket comes on top of the rate
+        assertTrue("rate " + rate, rate < TOTAL_LIMIT * 1.3 && rate > TOTAL_LIMIT * 0.8);
+    }
+
+    private void checkConnectionLimit(HTTPServerDaemon.Engine engine) throws IOException {
+        LoopbackLoad.Result result = runLoad(engine, 0, CONNECTION_LIMIT);
+        Log.i(TAG, engine + " connection limit " + CONNECTION_LIMIT + ": " + result + ", fairness " + String.format("%.3f", result.fairness()));
+        assertEquals(0, result.mFailed);
+        for (long bytes : result.mBytesPerConnection) {
+            double rate = bytes * 1e9 / result.mElapsedNanos;
+            assertTrue("rate " + rate, rate < CONNECTION_LIMIT * 1.3 && rate > CONNECTION_LIMIT * 0.8);
+        }
+    }
+
+    private LoopbackLoad.Result runLoad(HTTPServerDaemon.Engine engine, long total, long perConnection) throws IOException {
+        SimpleWebServer server = new SimpleWebServer(InetAddress.getByName("127.0.0.1"), 0, mRoot);
+        server.setEngine(engine);
+        server.setHashIndexEnabled(false);
+        server.setBandwidthLimit(total, perConnection);
+        server.start();
+        try {
+            LoopbackLoad load = new LoopbackLoad(server.getListeningPort(), "/movie.mp4", CLIENTS);
+            load.setDuration(DURATION_MS);
+            return load.run();
+        } finally {
+            server.stop();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.TransmitWifi;
+
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Range请求头的解析: 普通区间, 开放区间, 后缀区间, 无法满足的区间, 格式错误和MAX_RANGES上限
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class ByteRangeTest extends TestCase {
+    private static final long LENGTH = 1000;
+
+    public void testClosedRange() {
+        ByteRange range = single("bytes=0-499", LENGTH);
+        assertRange(0, 499, range);
+        assertEquals(500, range.length());
+        assertEquals("bytes 0-499/1000", range.toContentRange(LENGTH));
+        assertRange(999, 999, single("bytes=999-999", LENGTH));
+        // the end is cut to the file
+        assertRange(500, 999, single("bytes=500-5000", LENGTH));
+    }
+
+    public void testOpenEndedRange() {
+        ByteRange range = single("bytes=500-", LENGTH);
+        assertRange(500, 999, range);
+        assertEquals("bytes 500-999/1000", range.toContentRange(LENGTH));
+        assertRange(0, 999, single("bytes=0-", LENGTH));
+    }
+
+    public void testSuffixRange() {
+        ByteRange range = single("bytes=-100", LENGTH);
+        assertRange(900, 999, range);
+        assertEquals("bytes 900-999/1000", range.toContentRange(LENGTH));
+        // a suffix longer than the file is the whole file
+        assertRange(0, 999, single("bytes=-5000", LENGTH));
+    }
+
+    public void testUnsatisfiable() {
+        assertUnsatisfiable("bytes=1000-", LENGTH);
+        assertUnsatisfiable("bytes=1000-2000", LENGTH);
+        assertUnsatisfiable("bytes=-0", LENGTH);
+        assertUnsatisfiable("bytes=1000-,2000-3000", LENGTH);
+        // nothing of an empty file can be sent
+        assertUnsatisfiable("bytes=0-", 0);
+        assertUnsatisfiable("bytes=0-0", 0);
+        assertUnsatisfiable("bytes=-10", 0);
+        // one satisfiable range is enough
+        List<ByteRange> ranges = ByteRange.parse("bytes=2000-,10-19", LENGTH);
+        assertEquals(1, ranges.size());
+        assertRange(10, 19, ranges.get(0));
+    }
+
+    public void testMalformed() {
+        assertNull(ByteRange.parse(null, LENGTH));
+        assertNull(ByteRange.parse("", LENGTH));
+        assertNull(ByteRange.parse("items=0-1", LENGTH));
+        assertNull(ByteRange.parse("bytes=", LENGTH));
+        assertNull(ByteRange.parse("bytes=,", LENGTH));
+        assertNull(ByteRange.parse("bytes=10", LENGTH));
+        assertNull(ByteRange.parse("bytes=-", LENGTH));
+        assertNull(ByteRange.parse("bytes=--5", LENGTH));
+        assertNull(ByteRange.parse("bytes=a-b", LENGTH));
+        assertNull(ByteRange.parse("bytes=1-2-3", LENGTH));
+        assertNull(ByteRange.parse("bytes=-1-5", LENGTH));
+        // the last byte before the first
+        assertNull(ByteRange.parse("bytes=20-10", LENGTH));
+        assertNull(ByteRange.parse("bytes=0-99999999999999999999", LENGTH));
+        // one bad range spoils the whole header
+        assertNull(ByteRange.parse("bytes=0-1,x", LENGTH));
+    }
+
+    public void testRangeList() {
+        List<ByteRange> ranges = ByteRange.parse("bytes= 0-9 , ,-10, 5-14,", LENGTH);
+        assertEquals(3, ranges.size());
+        // in request order, overlapping ranges are kept
+        assertRange(0, 9, ranges.get(0));
+        assertRange(990, 999, ranges.get(1));
+        assertRange(5, 14, ranges.get(2));
+    }
+
+    public void testMaxRanges() {
+        StringBuilder spec = new StringBuilder("bytes=");
+        for (int i = 0; i < ByteRange.MAX_RANGES; i++) {
+            spec.append(i * 10).append('-').append(i * 10 + 4).append(",");
+        }
+        // empty elements do not count
+        spec.append(" ,");
+        List<ByteRange> ranges = ByteRange.parse(spec.toString(), LENGTH);
+        assertEquals(ByteRange.MAX_RANGES, ranges.size());
+        assertRange(150, 154, ranges.get(ByteRange.MAX_RANGES - 1));
+
+        // unsatisfiable ranges count as well
+        assertNull(ByteRange.parse(spec + "5000-", LENGTH));
+        assertNull(ByteRange.parse(spec + "0-0", LENGTH));
+    }
+
+    private static ByteRange single(String spec, long totalLength) {
+        List<ByteRange> ranges = ByteRange.parse(spec, totalLength);
+        assertNotNull(spec, ranges);
+        assertEquals(spec, 1, ranges.size());
+        return ranges.get(0);
+    }
+
+    private static void assertRange(long start, long end, ByteRange range) {
+        assertEquals(start, range.mStart);
+        assertEquals(end, range.mEnd);
+    }
+
+    private static void assertUnsatisfiable(String spec, long totalLength) {
+        List<ByteRange> ranges = ByteRange.parse(spec, totalLength);
+        assertNotNull(spec, ranges);
+        assertTrue(spec, ranges.isEmpty());
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * 分块哈希树: 树的结构, 文本形式的往返, 逐块校验, 本地文件的已校验前缀和空文件
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class ChunkManifestTest extends TestCase {
+    private static final int CHUNK = 4;
+    /**
+     * three chunks of 4, 4 and 2 bytes
+     */
+    private static final byte[] DATA = "0123456789".getBytes();
+
+    private File mFile;
+    private File mLocal;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("chunks", ".bin");
+        mLocal = File.createTempFile("local", ".bin");
+        write(mFile, DATA);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+        mLocal.delete();
+    }
+
+    public void testTree() throws Exception {
+        ChunkManifest manifest = ChunkManifest.compute(mFile, DATA.length, CHUNK);
+        assertEquals(3, manifest.getChunkCount());
+        assertEquals(8, manifest.chunkStart(2));
+        assertEquals(2, manifest.chunkLength(2));
+        byte[] leaf0 = hash(0, slice(DATA, 0, 4));
+        byte[] leaf1 = hash(0, slice(DATA, 4, 8));
+        byte[] leaf2 = hash(0, slice(DATA, 8, 10));
+        // the odd leaf moves up unchanged
+        byte[] root = hash(1, concat(hash(1, concat(leaf0, leaf1)), leaf2));
+        assertEquals(HashIndex.toHex(root), manifest.getRoot());
+        // only the first length bytes count
+        assertEquals(HashIndex.toHex(leaf0), ChunkManifest.compute(mFile, 4, CHUNK).getRoot());
+    }
+
+    public void testParseRoundTrip() throws Exception {
+        ChunkManifest manifest = ChunkManifest.compute(mFile, DATA.length, CHUNK);
+        ChunkManifest parsed = ChunkManifest.parse(new ByteArrayInputStream(manifest.getBytes()));
+        assertEquals(manifest.getRoot(), parsed.getRoot());
+        assertEquals(DATA.length, parsed.getLength());
+        assertEquals(3, parsed.getChunkCount());
+        assertTrue(Arrays.equals(manifest.getBytes(), parsed.getBytes()));
+    }
+
+    public void testParseRejectsBrokenText() throws Exception {
+        String text = new String(ChunkManifest.compute(mFile, DATA.length, CHUNK).getBytes(), "US-ASCII");
+        String[] lines = text.split("\n");
+        // a changed leaf no longer matches the root
+        lines[5] = lines[5].substring(0, 63) + (lines[5].charAt(63) == '0' ? '1' : '0');
+        assertParseFails(join(lines));
+        assertParseFails(text.replace("TransmitWifi-chunks 1", "TransmitWifi-chunks 2"));
+        assertParseFails(text.replace("length 10", "length x"));
+        assertParseFails(text.replace("length 10", "length " + ((long) ChunkManifest.MAX_CHUNKS * CHUNK + 1)));
+        assertParseFails(text.substring(0, text.length() - 10));
+    }
+
+    public void testVerifier() throws Exception {
+        ChunkManifest manifest = ChunkManifest.compute(mFile, DATA.length, CHUNK);
+        ChunkManifest.Verifier verifier = manifest.new Verifier(0);
+        byte[] received = DATA.clone();
+        received[5] = 'x';
+        // split inside a chunk, the data ends early
+        verifier.update(received, 0, 3);
+        verifier.update(received, 3, 5);
+        verifier.finish(2);
+        assertEquals(Arrays.asList(1, 2), verifier.getFailed());
+
+        verifier = manifest.new Verifier(1);
+        verifier.update(DATA, 4, 6);
+        verifier.finish(2);
+        assertTrue(verifier.getFailed().isEmpty());
+    }
+
+    public void testVerifiedPrefix() throws Exception {
+        ChunkManifest manifest = ChunkManifest.compute(mFile, DATA.length, CHUNK);
+        mLocal.delete();
+        assertEquals(0, manifest.verifiedPrefix(mLocal));
+        write(mLocal, slice(DATA, 0, 6));
+        assertEquals(1, manifest.verifiedPrefix(mLocal));
+        byte[] wrong = DATA.clone();
+        wrong[9] = 'x';
+        write(mLocal, wrong);
+        assertEquals(2, manifest.verifiedPrefix(mLocal));
+        write(mLocal, DATA);
+        assertEquals(3, manifest.verifiedPrefix(mLocal));
+    }
+
+    /**
+     * 空文件有一个空块, 空的本地文件就是完整的
+     */
+    public void testEmptyFile() throws Exception {
+        write(mFile, new byte[0]);
+        ChunkManifest manifest = ChunkManifest.compute(mFile, 0, CHUNK);
+        assertEquals(1, manifest.getChunkCount());
+        assertEquals(0, manifest.chunkLength(0));
+        assertEquals(HashIndex.toHex(hash(0, new byte[0])), manifest.getRoot());
+
+        ChunkManifest parsed = ChunkManifest.parse(new ByteArrayInputStream(manifest.getBytes()));
+        assertEquals(manifest.getRoot(), parsed.getRoot());
+        assertEquals(1, parsed.getChunkCount());
+
+        mLocal.delete();
+        assertEquals(0, manifest.verifiedPrefix(mLocal));
+        write(mLocal, new byte[0]);
+        assertEquals(1, manifest.verifiedPrefix(mLocal));
+
+        ChunkManifest.Verifier verifier = manifest.new Verifier(0);
+        verifier.finish(0);
+        assertTrue(verifier.getFailed().isEmpty());
+    }
+
+    /**
+     * 两个文件的弱ETag相同也各自得到自己的哈希树
+     */
+    public void testCacheKeyedByContent() throws Exception {
+        write(mLocal, "abcdefghij".getBytes());
+        mLocal.setLastModified(mFile.lastModified());
+        FileMetaCache metaCache = new FileMetaCache(new HashMap<String, String>());
+        FileMetaCache.Entry first = metaCache.lookup(mFile);
+        FileMetaCache.Entry second = metaCache.lookup(mLocal);
+        ChunkManifestCache cache = new ChunkManifestCache(4);
+        ChunkManifest a = waitFor(cache, first);
+        ChunkManifest b = waitFor(cache, second);
+        assertEquals(ChunkManifest.compute(mFile, DATA.length, ChunkManifest.CHUNK_SIZE).getRoot(), a.getRoot());
+        assertEquals(ChunkManifest.compute(mLocal, DATA.length, ChunkManifest.CHUNK_SIZE).getRoot(), b.getRoot());
+        assertFalse(a.getRoot().equals(b.getRoot()));
+    }
+
+    private static ChunkManifest waitFor(ChunkManifestCache cache, FileMetaCache.Entry meta) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        ChunkManifest manifest;
+        while ((manifest = cache.get(meta.mFile, meta.mLength, meta.contentKey())) == null
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotNull(manifest);
+        return manifest;
+    }
+
+    private static void assertParseFails(String text) throws Exception {
+        try {
+            ChunkManifest.parse(new ByteArrayInputStream(text.getBytes("US-ASCII")));
+            fail("parsed " + text);
+        } catch (IOException expected) {
+            // refused
+        }
+    }
+
+    private static byte[] hash(int prefix, byte[] data) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        digest.update((byte) prefix);
+        return digest.digest(data);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Arrays.copyOfRange() needs API 9
+     */
+    private static byte[] slice(byte[] data, int from, int to) {
+        byte[] result = new byte[to - from];
+        System.arraycopy(data, from, result, 0, result.length);
+        return result;
+    }
+
+    private static String join(String[] lines) {
+        StringBuilder text = new StringBuilder();
+        for (String line : lines) {
+            text.append(line).append('\n');
+        }
+        return text.toString();
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * 压缩版本的键和生成时机: 不同文件不共用压缩结果, 304和HEAD不压缩, 并发的请求只压缩一次
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class CompressedVariantCacheTest extends TestCase {
+    /**
+     * compressed in memory but stored on disk, so the cache directory shows when it is compressed
+     */
+    private static final int TEXT_SIZE = 1000 * 1000;
+    private static final int CLIENTS = 8;
+
+    private File mRoot;
+    private File mCacheDir;
+    private byte[] mText;
+    private SimpleWebServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("variants", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        mCacheDir = new File(mRoot, "cache");
+        mText = randomText(TEXT_SIZE, 1);
+        write(new File(mRoot, "a.txt"), mText);
+        write(new File(mRoot, "b.txt"), randomText(TEXT_SIZE, 2));
+        mServer = new SimpleWebServer(InetAddress.getByName("127.0.0.1"), 0, mRoot);
+        mServer.setHashIndexEnabled(false);
+        mServer.setCompressionCacheDir(mCacheDir);
+        mServer.start();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        delete(mRoot);
+    }
+
+    public void testContentKeyDiffersBetweenFiles() throws Exception {
+        FileMetaCache metaCache = new FileMetaCache(new HashMap<String, String>());
+        File a = new File(mRoot, "a.txt");
+        File b = new File(mRoot, "b.txt");
+        b.setLastModified(a.lastModified());
+        FileMetaCache.Entry first = metaCache.lookup(a);
+        FileMetaCache.Entry second = metaCache.lookup(b);
+        assertEquals(first.mLength, second.mLength);
+        assertFalse(first.contentKey().equals(second.contentKey()));
+        assertEquals(first.contentKey(), new FileMetaCache(new HashMap<String, String>()).lookup(a).contentKey());
+
+        CompressedVariantCache cache = new CompressedVariantCache(mCacheDir, 0);
+        assertNull(cache.peek(first.mLength, first.contentKey(), CompressedVariantCache.GZIP));
+        CompressedVariantCache.Variant variant = cache.get(a, first.mLength, first.contentKey(), CompressedVariantCache.GZIP);
+        assertNotNull(variant);
+        assertNotNull(cache.peek(first.mLength, first.contentKey(), CompressedVariantCache.GZIP));
+        assertNull(cache.peek(second.mLength, second.contentKey(), CompressedVariantCache.GZIP));
+    }
+
+    public void testRevalidationAndHeadDoNotCompress() throws Exception {
+        Response head = request("HEAD", "/a.txt", null);
+        assertEquals(200, head.mStatus);
+        assertNull(head.mHeaders.get("content-encoding"));
+        assertEquals(0, variantFiles());
+
+        String etag = head.mHeaders.get("etag");
+        Response notModified = request("GET", "/a.txt", etag + "-gzip");
+        assertEquals(304, notModified.mStatus);
+        assertEquals(0, variantFiles());
+
+        Response get = request("GET", "/a.txt", null);
+        assertEquals(200, get.mStatus);
+        assertEquals("gzip", get.mHeaders.get("content-encoding"));
+        assertTrue(Arrays.equals(mText, gunzip(get.mBody)));
+        assertEquals(1, variantFiles());
+
+        head = request("HEAD", "/a.txt", null);
+        assertEquals("gzip", head.mHeaders.get("content-encoding"));
+        assertEquals(String.valueOf(get.mBody.length), head.mHeaders.get("content-length"));
+    }
+
+    public void testConcurrentMissesCompressOnce() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CLIENTS);
+        final AtomicInteger compressed = new AtomicInteger();
+        final AtomicInteger failed = new AtomicInteger();
+        for (int i = 0; i < CLIENTS; i++) {
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        Response response = request("GET", "/a.txt", null);
+                        boolean gzip = "gzip".equals(response.mHeaders.get("content-encoding"));
+                        byte[] body = gzip ? gunzip(response.mBody) : response.mBody;
+                        if (response.mStatus != 200 || !Arrays.equals(mText, body)) {
+                            failed.incrementAndGet();
+                        } else if (gzip) {
+                            compressed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        done.await();
+        assertEquals(0, failed.get());
+        assertTrue(compressed.get() >= 1);
+        // no second copy and no temporary file left behind
+        assertEquals(1, variantFiles());
+    }
+
+    private int variantFiles() {
+        String[] names = mCacheDir.list();
+        return names != null ? names.length : 0;
+    }
+
+    private Response request(String method, String uri, String ifNoneMatch) throws IOException {
+        Socket socket = new Socket("127.0.0.1", mServer.getListeningPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            String request = method + " " + uri + " HTTP/1.1\r\nHost: 127.0.0.1\r\nAccept-Encoding: gzip\r\n"
+                    + (ifNoneMatch != null ? "If-None-Match: " + ifNoneMatch + "\r\n" : "") + "Connection: close\r\n\r\n";
+            out.write(request.getBytes("US-ASCII"));
+            out.flush();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[16384];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                received.write(buf, 0, read);
+            }
+            return new Response(received.toByteArray());
+        } finally {
+            NetWorkUtils.safeClose(socket);
+        }
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(data));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[16384];
+        int read;
+        while ((read = in.read(buf)) > 0) {
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 随机的十六进制字符, 压缩到大约一半
+     */
+    private static byte[] randomText(int size, long seed) {
+        Random random = new Random(seed);
+        byte[] text = new byte[size];
+        for (int i = 0; i < size; i++) {
+            text[i] = (byte) Character.forDigit(random.nextInt(16), 16);
+        }
+        return text;
+    }
+
+    private static void write(File file, byte[] data) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * 整个回复, 头名称转为小写
+     */
+    private static final class Response {
+        final int mStatus;
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        final byte[] mBody;
+
+        Response(byte[] data) throws IOException {
+            String text = new String(data, "ISO-8859-1");
+            int end = text.indexOf("\r\n\r\n");
+            if (end < 0) {
+                throw new IOException("incomplete response");
+            }
+            String[] lines = text.substring(0, end).split("\r\n");
+            mStatus = Integer.parseInt(lines[0].split(" ")[1]);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+            mBody = Arrays.copyOfRange(data, end + 4, data.length);
+        }
+    }
+}
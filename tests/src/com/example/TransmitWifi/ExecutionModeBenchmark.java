@@ -0,0 +1,81 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 平台线程和虚拟线程执行会话的对比: 阻塞引擎在本机回环上同时服务10, 100, 1000个持久连接,
+ * 每种连接数发送相同总数的小文件请求, 记录每秒请求数. 不支持虚拟线程的运行环境只测平台线程
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class ExecutionModeBenchmark extends TestCase {
+    private static final String TAG = "ExecutionModeBenchmark";
+    private static final int[] CONNECTIONS = {10, 100, 1000};
+    private static final int TOTAL_REQUESTS = 20000;
+    private static final int FILE_SIZE = 4096;
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("modes", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        FileOutputStream out = new FileOutputStream(new File(mRoot, "small.bin"));
+        try {
+            out.write(new byte[FILE_SIZE]);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        new File(mRoot, "small.bin").delete();
+        mRoot.delete();
+    }
+
+    public void testPlatformThreads() throws Exception {
+        runAll(ExecutionMode.PLATFORM);
+    }
+
+    public void testVirtualThreads() throws Exception {
+        if (!ExecutionMode.VIRTUAL.isSupported()) {
+            Log.i(TAG, "virtual threads are not supported by this runtime");
+            return;
+        }
+        runAll(ExecutionMode.VIRTUAL);
+    }
+
+    private void runAll(ExecutionMode mode) throws IOException {
+        for (int connections : CONNECTIONS) {
+            LoopbackLoad.Result result = runLoad(mode, connections);
+            Log.i(TAG, mode + " " + connections + " connections: " + result);
+            assertEquals(result.toString(), 0, result.mFailed);
+            assertEquals(result.toString(), TOTAL_REQUESTS, result.mRequests);
+        }
+    }
+
+    private LoopbackLoad.Result runLoad(ExecutionMode mode, int connections) throws IOException {
+        SimpleWebServer server = new SimpleWebServer(InetAddress.getByName("127.0.0.1"), 0, mRoot);
+        server.setExecutionMode(mode);
+        server.setHashIndexEnabled(false);
+        // the blocking engine serves each connection on its own thread, none waits in the queue
+        server.setWorkerPool(connections, connections, 1);
+        server.setMaxKeepAliveRequests(Integer.MAX_VALUE);
+        server.start();
+        try {
+            LoopbackLoad load = new LoopbackLoad(server.getListeningPort(), "/small.bin", connections);
+            load.setRequestsPerConnection(TOTAL_REQUESTS / connections);
+            return load.run();
+        } finally {
+            server.stop();
+        }
+    }
+}
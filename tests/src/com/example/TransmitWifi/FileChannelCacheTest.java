@@ -0,0 +1,74 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import junit.framework.TestCase;
+
+/**
+ * FileChannelCache的共享和关闭: 同一文件共用通道, 空闲的通道在没有新请求时也按空闲时间关闭
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class FileChannelCacheTest extends TestCase {
+    private static final long IDLE_TIMEOUT_MS = 100;
+
+    private File mFile;
+    private FileChannelCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("channel", ".bin");
+        FileOutputStream out = new FileOutputStream(mFile);
+        try {
+            out.write(new byte[16]);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+        mCache = new FileChannelCache(2, IDLE_TIMEOUT_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mCache.closeAll();
+        mFile.delete();
+    }
+
+    public void testSharedChannel() throws Exception {
+        FileChannelCache.Lease first = mCache.acquire(mFile, mFile.getPath(), "1");
+        FileChannelCache.Lease second = mCache.acquire(mFile, mFile.getPath(), "1");
+        assertSame(first.getChannel(), second.getChannel());
+        first.close();
+        second.close();
+        assertEquals(1, mCache.size());
+    }
+
+    public void testIdleChannelClosedWithoutTraffic() throws Exception {
+        FileChannelCache.Lease lease = mCache.acquire(mFile, mFile.getPath(), "1");
+        lease.close();
+        assertTrue(lease.getChannel().isOpen());
+        long deadline = System.nanoTime() + IDLE_TIMEOUT_MS * 20 * 1000000;
+        while (lease.getChannel().isOpen() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertFalse(lease.getChannel().isOpen());
+        assertEquals(0, mCache.size());
+    }
+
+    public void testChannelInUseNotClosed() throws Exception {
+        FileChannelCache.Lease lease = mCache.acquire(mFile, mFile.getPath(), "1");
+        Thread.sleep(IDLE_TIMEOUT_MS * 3);
+        assertTrue(lease.getChannel().isOpen());
+        lease.close();
+    }
+
+    public void testNewVersionRetiresOldChannel() throws Exception {
+        FileChannelCache.Lease old = mCache.acquire(mFile, mFile.getPath(), "1");
+        FileChannelCache.Lease current = mCache.acquire(mFile, mFile.getPath(), "2");
+        assertNotSame(old.getChannel(), current.getChannel());
+        assertTrue(old.getChannel().isOpen());
+        old.close();
+        assertFalse(old.getChannel().isOpen());
+        current.close();
+    }
+}
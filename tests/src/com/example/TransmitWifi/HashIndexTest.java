@@ -0,0 +1,106 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * HashIndex的扫描: 子目录中的文件都被索引, 改变的文件重新计算, 删除的文件移出索引, 索引保存后可以重新载入
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class HashIndexTest extends TestCase {
+    private static final long SCAN_TIMEOUT_MS = 10 * 1000;
+    /**
+     * SHA-256 of "hello"
+     */
+    private static final String HELLO = "2cf24dba5fb0a30e26e83b2ac5b9e29e1b161e5c1fa7425e73043362938b9824";
+
+    private File mRoot;
+    private File mStore;
+    private HashIndex mIndex;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("hashindex", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        new File(mRoot, "a/b").mkdirs();
+        write(new File(mRoot, "top.txt"), "hello");
+        write(new File(mRoot, "a/b/deep.txt"), "world");
+        mStore = new File(mRoot, "index.txt");
+        mIndex = new HashIndex(mRoot, mStore);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mIndex.close();
+        delete(mRoot);
+    }
+
+    public void testIndexesTree() throws Exception {
+        scan(mIndex, 2);
+        File top = new File(mRoot, "top.txt");
+        assertEquals(HELLO, mIndex.digestOf(top.getCanonicalPath(), top.length(), top.lastModified()));
+        assertEquals("top.txt", mIndex.pathOf(HELLO));
+        File deep = new File(mRoot, "a/b/deep.txt");
+        String digest = mIndex.digestOf(deep.getCanonicalPath(), deep.length(), deep.lastModified());
+        assertEquals(HashIndex.sha256(deep), digest);
+        assertEquals("a/b/deep.txt", mIndex.pathOf(digest));
+        // a changed file is not reported with the old digest
+        assertNull(mIndex.digestOf(top.getCanonicalPath(), top.length() + 1, top.lastModified()));
+    }
+
+    public void testRescanAndReload() throws Exception {
+        scan(mIndex, 2);
+        File deep = new File(mRoot, "a/b/deep.txt");
+        String digest = HashIndex.sha256(deep);
+        assertTrue(deep.delete());
+        scan(mIndex, 1);
+        assertNull(mIndex.pathOf(digest));
+        long deadline = System.currentTimeMillis() + SCAN_TIMEOUT_MS;
+        while (!mStore.isFile() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(mStore.isFile());
+
+        HashIndex reloaded = new HashIndex(mRoot, mStore);
+        try {
+            scan(reloaded, 1);
+            assertEquals("top.txt", reloaded.pathOf(HELLO));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    private static void scan(HashIndex index, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + SCAN_TIMEOUT_MS;
+        while (index.size() != expected && System.currentTimeMillis() < deadline) {
+            // does nothing while the previous scan is still saving
+            index.refresh();
+            Thread.sleep(10);
+        }
+        assertEquals(expected, index.size());
+    }
+
+    private static void write(File file, String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 回复头编码的速度和分配量: Response.encodeHeader()对比原来每次新建SimpleDateFormat, 用PrintWriter拼接字符串的做法
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class HeaderEncoderBenchmark extends TestCase {
+    private static final String TAG = "HeaderEncoderBenchmark";
+    private static final int WARMUP_RESPONSES = 50000;
+    private static final int RESPONSES = 500000;
+    private static final String MIME = "audio/mpeg";
+    private static final long LENGTH = 3000000;
+    private static final String ETAG = "5f1c2a9e";
+
+    private HTTPServerDaemon.Response mResponse;
+    private final ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+
+    @Override
+    protected void setUp() throws Exception {
+        mResponse = new HTTPServerDaemon.Response(HTTPServerDaemon.Response.Status.OK, MIME,
+                new ByteArrayInputStream(new byte[0]), LENGTH);
+        mResponse.addHeader("ETag", ETAG);
+        mResponse.addHeader("Accept-Ranges", "bytes");
+        mResponse.setKeepAlive(true);
+        mResponse.beginWrite();
+    }
+
+    public void testHeader() throws Exception {
+        mBuffer.clear();
+        assertTrue(mResponse.encodeHeader(mBuffer));
+        String header = new String(mBuffer.array(), 0, mBuffer.position(), "US-ASCII");
+        assertTrue(header, header.startsWith("HTTP/1.1 200 OK\r\nContent-Type: audio/mpeg\r\nDate: "));
+        assertTrue(header, header.contains("\r\nETag: " + ETAG + "\r\n"));
+        assertTrue(header, header.contains("\r\nConnection: keep-alive\r\n"));
+        assertTrue(header, header.endsWith("\r\nContent-Length: " + LENGTH + "\r\n\r\n"));
+    }
+
+    public void testHeadersPerSecond() throws Exception {
+        for (int i = 0; i < WARMUP_RESPONSES; i++) {
+            encode();
+        }
+        long allocated = Allocations.currentThread();
+        long start = System.nanoTime();
+        for (int i = 0; i < RESPONSES; i++) {
+            encode();
+        }
+        long elapsed = System.nanoTime() - start;
+        long encoderBytes = (Allocations.currentThread() - allocated) / RESPONSES;
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("ETag", ETAG);
+        headers.put("Accept-Ranges", "bytes");
+        OutputStream out = new NullOutputStream();
+        for (int i = 0; i < WARMUP_RESPONSES / 10; i++) {
+            legacySend(headers, out);
+        }
+        allocated = Allocations.currentThread();
+        long legacyStart = System.nanoTime();
+        for (int i = 0; i < RESPONSES / 10; i++) {
+            legacySend(headers, out);
+        }
+        long legacyElapsed = (System.nanoTime() - legacyStart) * 10;
+        long legacyBytes = (Allocations.currentThread() - allocated) / (RESPONSES / 10);
+
+        Log.i(TAG, "encodeHeader: " + (RESPONSES * 1000000000L / elapsed) + " headers/s, " + encoderBytes + " bytes per response");
+        Log.i(TAG, "PrintWriter send: " + (RESPONSES * 1000000000L / legacyElapsed) + " headers/s, " + legacyBytes + " bytes per response");
+        assertTrue(elapsed < legacyElapsed);
+        if (Allocations.isSupported()) {
+            // the Date line is formatted once a second, the header map iterator is all that is left
+            assertTrue("encodeHeader allocates " + encoderBytes + " bytes per response", encoderBytes < 64);
+        }
+    }
+
+    private void encode() {
+        mBuffer.clear();
+        if (!mResponse.encodeHeader(mBuffer)) {
+            fail("header does not fit");
+        }
+    }
+
+    /**
+     * 原来Response.send()写回复头的做法
+     */
+    private static void legacySend(Map<String, String> headers, OutputStream out) {
+        SimpleDateFormat gmtFrmt = new SimpleDateFormat("E, d MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        gmtFrmt.setTimeZone(TimeZone.getTimeZone("GMT"));
+        PrintWriter pw = new PrintWriter(out);
+        pw.print("HTTP/1.1 " + HTTPServerDaemon.Response.Status.OK.getDescription() + " \r\n");
+        pw.print("Content-Type: " + MIME + "\r\n");
+        pw.print("Date: " + gmtFrmt.format(new Date()) + "\r\n");
+        for (String key : headers.keySet()) {
+            String value = headers.get(key);
+            pw.print(key + ": " + value + "\r\n");
+        }
+        pw.print("Connection: keep-alive\r\n");
+        pw.print("Content-Length: " + LENGTH + "\r\n");
+        pw.print("\r\n");
+        pw.flush();
+    }
+
+    private static final class NullOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.TransmitWifi;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 请求头解析的分配量和速度: HttpRequestParser对比原来的BufferedReader, StringTokenizer, toLowerCase和URLDecoder的解码方式.
+ * 同一个keep-alive连接上重复发送浏览器式的请求, 测量每个请求分配的字节数
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class HttpRequestParserBenchmark extends TestCase {
+    private static final String TAG = "HttpRequestParserBenchmark";
+    private static final int WARMUP_REQUESTS = 20000;
+    private static final int REQUESTS = 200000;
+    private static final String REQUEST =
+            "GET /album/My%20Song.mp3 HTTP/1.1\r\n"
+            + "Host: 192.168.43.1:37899\r\n"
+            + "Connection: keep-alive\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 4.4.2; Nexus 5) AppleWebKit/537.36 Chrome/34.0\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip,deflate\r\n"
+            + "Accept-Language: en-US,en;q=0.8\r\n"
+            + "Range: bytes=0-\r\n"
+            + "\r\n";
+
+    private byte[] mRequest;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRequest = REQUEST.getBytes("US-ASCII");
+    }
+
+    public void testParsesRequest() throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream in = new RepeatingInputStream(mRequest, mRequest.length);
+        for (int i = 0; i < 3; i++) {
+            parseOne(parser, in);
+            assertEquals(HTTPServerDaemon.Method.GET, parser.getMethod());
+            assertEquals("/album/My Song.mp3", parser.getUri());
+            assertEquals("bytes=0-", parser.getHeaders().get("range"));
+            assertEquals("192.168.43.1:37899", parser.getHeaders().get("host"));
+            assertEquals(7, parser.getHeaders().size());
+            parser.consume();
+        }
+    }
+
+    /**
+     * 请求头逐字节到达时从上次停下的位置继续扫描, 总扫描量和一次到达时相同
+     */
+    public void testByteByByte() throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream in = new RepeatingInputStream(mRequest, 1);
+        int reads = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) {
+            while (!parser.parse()) {
+                parser.fill(in);
+                reads++;
+            }
+            parser.consume();
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(1000L * mRequest.length, reads);
+        assertEquals("/album/My Song.mp3", parser.getUri());
+        Log.i(TAG, "byte by byte: " + (elapsed / 1000) + " ns per request of " + mRequest.length + " bytes");
+    }
+
+    public void testAllocatedBytesPerRequest() throws Exception {
+        HttpRequestParser parser = new HttpRequestParser();
+        InputStream in = new RepeatingInputStream(mRequest, 1460);
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            parseOne(parser, in);
+            parser.consume();
+        }
+        long allocated = Allocations.currentThread();
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            parseOne(parser, in);
+            parser.consume();
+        }
+        long elapsed = System.nanoTime() - start;
+        long parserBytes = (Allocations.currentThread() - allocated) / REQUESTS;
+
+        for (int i = 0; i < WARMUP_REQUESTS; i++) {
+            legacyParse(mRequest);
+        }
+        allocated = Allocations.currentThread();
+        long legacyStart = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            legacyParse(mRequest);
+        }
+        long legacyElapsed = System.nanoTime() - legacyStart;
+        long legacyBytes = (Allocations.currentThread() - allocated) / REQUESTS;
+
+        Log.i(TAG, "HttpRequestParser: " + (elapsed / REQUESTS) + " ns, " + parserBytes + " bytes per request");
+        Log.i(TAG, "BufferedReader decode: " + (legacyElapsed / REQUESTS) + " ns, " + legacyBytes + " bytes per request");
+        if (Allocations.isSupported()) {
+            // the request is the same on every round, only the parse state changes
+            assertTrue("parser allocates " + parserBytes + " bytes per request", parserBytes < 64);
+            assertTrue(parserBytes * 10 < legacyBytes);
+        }
+    }
+
+    private static void parseOne(HttpRequestParser parser, InputStream in) throws Exception {
+        while (!parser.parse()) {
+            if (parser.fill(in) < 0) {
+                fail("end of stream");
+            }
+        }
+    }
+
+    /**
+     * 原来HTTPSession的做法: 每个请求一个8KB缓冲区, BufferedReader按行读, StringTokenizer拆请求行
+     */
+    private static Map<String, String> legacyParse(byte[] request) throws IOException {
+        byte[] buf = new byte[HttpRequestParser.BUFSIZE];
+        System.arraycopy(request, 0, buf, 0, request.length);
+        BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, request.length)));
+        Map<String, String> pre = new HashMap<String, String>();
+        Map<String, String> headers = new HashMap<String, String>();
+        StringTokenizer st = new StringTokenizer(in.readLine());
+        pre.put("method", st.nextToken());
+        String uri = st.nextToken();
+        pre.put("uri", decodePercent(uri));
+        if (st.hasMoreTokens()) {
+            String line = in.readLine();
+            while (line != null && line.trim().length() > 0) {
+                int p = line.indexOf(':');
+                if (p >= 0) {
+                    headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+                }
+                line = in.readLine();
+            }
+        }
+        return headers;
+    }
+
+    private static String decodePercent(String str) throws UnsupportedEncodingException {
+        return URLDecoder.decode(str, "UTF8");
+    }
+
+    /**
+     * 无限重复同一段数据的流, 每次最多返回chunk字节, 模拟数据分段到达
+     */
+    private static final class RepeatingInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mChunk;
+        private int mPos = 0;
+
+        RepeatingInputStream(byte[] data, int chunk) {
+            mData = data;
+            mChunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            int b = mData[mPos] & 0xff;
+            mPos = (mPos + 1) % mData.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(Math.min(len, mChunk), mData.length - mPos);
+            System.arraycopy(mData, mPos, b, off, count);
+            mPos = (mPos + count) % mData.length;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 大于2GB和4GB的文件: 用稀疏文件在本机回环上测试长度, 范围请求, 整个文件的发送和客户端在大偏移处的续传.
+ * 文件中只有几处写了标记, 其余是空洞, 不占磁盘空间
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class LargeFileTest extends TestCase {
+    private static final String TAG = "LargeFileTest";
+    private static final long SIZE = 5L << 30;
+    private static final int MARKER_LENGTH = 16;
+    /**
+     * markers across the int and unsigned int limits and at both ends
+     */
+    private static final long[] MARKERS = {0, (1L << 31) - 8, (1L << 32) - 8, SIZE - MARKER_LENGTH};
+    private static final long DOWNLOAD_TIMEOUT_SECONDS = 60;
+
+    private File mRoot;
+    private File mFile;
+    private File mSaveFile;
+    private SimpleWebServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("large", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        mFile = new File(mRoot, "video.mp4");
+        mSaveFile = new File(mRoot, "saved.mp4");
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.setLength(SIZE);
+            for (long offset : MARKERS) {
+                file.seek(offset);
+                file.write(marker(offset));
+            }
+        } finally {
+            file.close();
+        }
+        startServer(HTTPServerDaemon.Engine.BLOCKING);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.stop();
+        mFile.delete();
+        mSaveFile.delete();
+        mRoot.delete();
+    }
+
+    public void testContentLength() throws Exception {
+        Response response = request("HEAD /video.mp4 HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n");
+        assertEquals(200, response.mStatus);
+        assertEquals(String.valueOf(SIZE), response.mHeaders.get("content-length"));
+    }
+
+    public void testRangesPastTwoGigabytes() throws Exception {
+        for (long offset : MARKERS) {
+            long last = offset + MARKER_LENGTH - 1;
+            Response response = request("GET /video.mp4 HTTP/1.1\r\nHost: 127.0.0.1\r\nRange: bytes="
+                    + offset + "-" + last + "\r\nConnection: close\r\n\r\n");
+            assertEquals(206, response.mStatus);
+            assertEquals("bytes " + offset + "-" + last + "/" + SIZE, response.mHeaders.get("content-range"));
+            assertTrue("marker at " + offset, Arrays.equals(marker(offset), response.mBody));
+        }
+        Response suffix = request("GET /video.mp4 HTTP/1.1\r\nHost: 127.0.0.1\r\nRange: bytes=-" + MARKER_LENGTH
+                + "\r\nConnection: close\r\n\r\n");
+        assertEquals(206, suffix.mStatus);
+        assertTrue(Arrays.equals(marker(SIZE - MARKER_LENGTH), suffix.mBody));
+    }
+
+    public void testStreamWholeFile() throws Exception {
+        streamWholeFile();
+    }
+
+    public void testStreamWholeFileNio() throws Exception {
+        mServer.stop();
+        startServer(HTTPServerDaemon.Engine.NIO);
+        streamWholeFile();
+    }
+
+    private void streamWholeFile() throws IOException {
+        LoopbackLoad load = new LoopbackLoad(mServer.getListeningPort(), "/video.mp4", 1);
+        load.setDuration(5 * 60 * 1000);
+        LoopbackLoad.Result result = load.run();
+        Log.i(TAG, "whole file: " + result);
+        assertEquals(1, result.mRequests);
+        assertEquals(SIZE, result.mBodyBytes);
+    }
+
+    /**
+     * 客户端从4GB之后续传: 偏移, 长度和进度都不能截成int
+     */
+    public void testResumePastFourGigabytes() throws Exception {
+        long offset = SIZE - 4096 - MARKER_LENGTH;
+        RandomAccessFile partial = new RandomAccessFile(mSaveFile, "rw");
+        try {
+            partial.setLength(offset);
+        } finally {
+            partial.close();
+        }
+        HttpDownload download = new HttpDownload("/video.mp4", mSaveFile.getPath(), offset, "127.0.0.1",
+                mServer.getListeningPort(), new Handler(Looper.getMainLooper()));
+        assertTrue(run(download));
+        assertEquals(SIZE - offset, download.getDataSize());
+        assertEquals(100, download.getProgress());
+        assertEquals(SIZE, mSaveFile.length());
+        RandomAccessFile saved = new RandomAccessFile(mSaveFile, "r");
+        try {
+            byte[] tail = new byte[MARKER_LENGTH];
+            saved.seek(SIZE - MARKER_LENGTH);
+            saved.readFully(tail);
+            assertTrue(Arrays.equals(marker(SIZE - MARKER_LENGTH), tail));
+        } finally {
+            saved.close();
+        }
+    }
+
+    public void testShareManifestSize() throws Exception {
+        ShareSet shareSet = new ShareSet();
+        shareSet.add(new TransmitFileItem("video", mFile.getPath(), "video/mp4", mFile.length()));
+        List<Map<String, String>> entries = ShareSet.parseManifest(new ByteArrayInputStream(shareSet.getManifest()));
+        assertEquals(1, entries.size());
+        TransmitFileItem item = new TransmitFileItem("", "", "", 0);
+        item.initialize(entries.get(0));
+        assertEquals(SIZE, item.getSize());
+    }
+
+    private void startServer(HTTPServerDaemon.Engine engine) throws IOException {
+        mServer = new SimpleWebServer(InetAddress.getByName("127.0.0.1"), 0, mRoot);
+        mServer.setEngine(engine);
+        mServer.setHashIndexEnabled(false);
+        mServer.start();
+    }
+
+    private static boolean run(SimpleDownload download) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        download.setDownloadResultListener(new SimpleDownload.OnDownloadResultListener() {
+            @Override
+            public void onDownloadFailed() {
+                done.countDown();
+            }
+
+            @Override
+            public void onDownloadComplete() {
+                done.countDown();
+            }
+        });
+        download.startDownload();
+        assertTrue("download timed out", done.await(DOWNLOAD_TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        return download.isDownloadOK();
+    }
+
+    private static byte[] marker(long offset) {
+        byte[] marker = new byte[MARKER_LENGTH];
+        for (int i = 0; i < 8; i++) {
+            marker[i] = (byte) (offset >>> (56 - 8 * i));
+            marker[15 - i] = (byte) ~marker[i];
+        }
+        return marker;
+    }
+
+    private Response request(String request) throws IOException {
+        Socket socket = new Socket("127.0.0.1", mServer.getListeningPort());
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(request.getBytes("US-ASCII"));
+            out.flush();
+            ByteArrayOutputStream received = new ByteArrayOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                received.write(buf, 0, read);
+            }
+            return new Response(received.toByteArray());
+        } finally {
+            NetWorkUtils.safeClose(socket);
+        }
+    }
+
+    /**
+     * 整个回复, 头名称转为小写
+     */
+    private static final class Response {
+        final int mStatus;
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        final byte[] mBody;
+
+        Response(byte[] data) throws IOException {
+            String text = new String(data, "ISO-8859-1");
+            int end = text.indexOf("\r\n\r\n");
+            if (end < 0) {
+                throw new IOException("incomplete response");
+            }
+            String[] lines = text.substring(0, end).split("\r\n");
+            mStatus = Integer.parseInt(lines[0].split(" ")[1]);
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                mHeaders.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+            }
+            mBody = Arrays.copyOfRange(data, end + 4, data.length);
+        }
+    }
+}
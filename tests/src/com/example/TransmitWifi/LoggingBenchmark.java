@@ -0,0 +1,110 @@
+package com.example.TransmitWifi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+
+import android.util.Log;
+import junit.framework.TestCase;
+
+/**
+ * 日志对传输的影响: 同样的回环负载在日志关闭, 默认级别和逐请求记录所有头时的吞吐,
+ * 以及未启用级别的日志调用是否还有分配
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class LoggingBenchmark extends TestCase {
+    private static final String TAG = "LoggingBenchmark";
+    private static final int CONNECTIONS = 20;
+    private static final int REQUESTS_PER_CONNECTION = 1000;
+    private static final int FILE_SIZE = 4096;
+    private static final int CALLS = 1000000;
+    private static final int[] LEVELS = {Log.ASSERT, Log.INFO, Log.VERBOSE};
+
+    private File mRoot;
+
+    @Override
+    protected void setUp() throws Exception {
+        mRoot = File.createTempFile("logging", "");
+        mRoot.delete();
+        mRoot.mkdir();
+        FileOutputStream out = new FileOutputStream(new File(mRoot, "small.bin"));
+        try {
+            out.write(new byte[FILE_SIZE]);
+        } finally {
+            NetWorkUtils.safeClose(out);
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        HTTPServerDaemon.setLogLevel(Log.INFO);
+        new File(mRoot, "small.bin").delete();
+        mRoot.delete();
+    }
+
+    public void testThroughputByLogLevel() throws Exception {
+        // warm up the server code once before the measured runs
+        runLoad(Log.ASSERT);
+        for (int level : LEVELS) {
+            LoopbackLoad.Result result = runLoad(level);
+            Log.i(TAG, "log level " + level + ": " + result);
+            assertEquals(result.toString(), 0, result.mFailed);
+            assertEquals(result.toString(), CONNECTIONS * REQUESTS_PER_CONNECTION, result.mRequests);
+        }
+    }
+
+    /**
+     * 级别未启用时只比较一次级别, 不生成消息也不分配记录
+     */
+    public void testDisabledLevelAllocatesNothing() throws Exception {
+        HTTPServerDaemon.setLogLevel(Log.INFO);
+        String name = "user-agent";
+        String value = "Android";
+        for (int i = 0; i < CALLS / 10; i++) {
+            ServerLog.v(TAG, "  HDR: '{}' = '{}'", name, value);
+        }
+        long allocated = Allocations.currentThread();
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            ServerLog.v(TAG, "  HDR: '{}' = '{}'", name, value);
+        }
+        long elapsed = System.nanoTime() - start;
+        long bytes = Allocations.currentThread() - allocated;
+        Log.i(TAG, "disabled record: " + (elapsed * 1000 / CALLS) + " ps per call, " + bytes + " bytes for " + CALLS + " calls");
+        if (Allocations.isSupported()) {
+            assertTrue(bytes + " bytes", bytes < CALLS / 100);
+        }
+    }
+
+    /**
+     * 启用时调用者只放入环形缓冲区, 格式化和输出在后台线程, 缓冲区满时丢弃而不等待
+     */
+    public void testEnabledLevelDoesNotWait() throws Exception {
+        HTTPServerDaemon.setLogLevel(Log.VERBOSE);
+        String name = "user-agent";
+        String value = "Android";
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            ServerLog.v(TAG, "  HDR: '{}' = '{}'", name, value);
+        }
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, "enabled record: " + (elapsed / CALLS) + " ns per call");
+    }
+
+    private LoopbackLoad.Result runLoad(int level) throws IOException {
+        HTTPServerDaemon.setLogLevel(level);
+        SimpleWebServer server = new SimpleWebServer(InetAddress.getByName("127.0.0.1"), 0, mRoot);
+        server.setHashIndexEnabled(false);
+        server.setMaxKeepAliveRequests(Integer.MAX_VALUE);
+        server.start();
+        try {
+            LoopbackLoad load = new LoopbackLoad(server.getListeningPort(), "/small.bin", CONNECTIONS);
+            load.setRequestsPerConnection(REQUESTS_PER_CONNECTION);
+            return load.run();
+        } finally {
+            server.stop();
+        }
+    }
+}
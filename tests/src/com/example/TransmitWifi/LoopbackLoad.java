@@ -0,0 +1,269 @@
+package com.example.TransmitWifi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+/**
+ * 本机回环上的压力客户端: 一个线程用Selector驱动多个持久连接, 每个连接顺序发送同一个GET请求.
+ * 客户端本身不按连接占用线程, 测出的差别来自服务器
+ * @author haihui.li
+ * @version 1.0.0
+ */
+final class LoopbackLoad {
+    private static final int READ_BUFSIZE = 64 * 1024;
+    private static final int MAX_HEADER = 4096;
+    private static final byte[] CONTENT_LENGTH = HeaderEncoder.ascii("content-length:");
+
+    private final InetSocketAddress mAddress;
+    private final byte[] mRequest;
+    private final int mConnections;
+    private int mRequestsPerConnection = 1;
+    private long mDurationMs = 60000;
+
+    /**
+     * 构造函数
+     * @param port port of the server on 127.0.0.1
+     * @param path path of the file every request asks for
+     * @param connections count of connections opened at the same time
+     */
+    LoopbackLoad(int port, String path, int connections) {
+        mAddress = new InetSocketAddress("127.0.0.1", port);
+        mRequest = HeaderEncoder.ascii("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+        mConnections = connections;
+    }
+
+    /**
+     * @param count requests sent one after another on each connection
+     */
+    void setRequestsPerConnection(int count) {
+        mRequestsPerConnection = count;
+    }
+
+    /**
+     * 设置运行时间, 到时未完成的连接被关闭
+     * @param durationMs time the run stops at, 60 seconds by default
+     */
+    void setDuration(long durationMs) {
+        mDurationMs = durationMs;
+    }
+
+    /**
+     * 打开所有连接并发送请求, 直到全部完成或到达运行时间
+     * @return counts of the run
+     */
+    Result run() throws IOException {
+        Selector selector = Selector.open();
+        Client[] clients = new Client[mConnections];
+        Result result = new Result(mConnections);
+        ByteBuffer buffer = ByteBuffer.allocate(READ_BUFSIZE);
+        long start = System.nanoTime();
+        long deadline = start + mDurationMs * 1000000L;
+        int open = 0;
+        try {
+            for (int i = 0; i < clients.length; i++) {
+                SocketChannel channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                clients[i] = new Client(i, channel);
+                channel.register(selector, SelectionKey.OP_CONNECT, clients[i]);
+                channel.connect(mAddress);
+                open++;
+            }
+            while (open > 0) {
+                long remaining = (deadline - System.nanoTime()) / 1000000L;
+                if (remaining <= 0) {
+                    result.mTimedOut = true;
+                    break;
+                }
+                selector.select(remaining);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    Client client = (Client) key.attachment();
+                    try {
+                        if (key.isConnectable()) {
+                            client.mChannel.finishConnect();
+                            key.interestOps(SelectionKey.OP_READ);
+                            client.send();
+                        } else if (key.isReadable() && !client.receive(buffer, result)) {
+                            key.cancel();
+                            client.mChannel.close();
+                            open--;
+                        }
+                    } catch (IOException e) {
+                        result.mFailed++;
+                        key.cancel();
+                        client.mChannel.close();
+                        open--;
+                    }
+                }
+            }
+        } finally {
+            result.mElapsedNanos = System.nanoTime() - start;
+            for (Client client : clients) {
+                if (client != null) {
+                    NetWorkUtils.safeClose(client.mChannel);
+                }
+            }
+            selector.close();
+        }
+        return result;
+    }
+
+    /**
+     * 一次运行的统计
+     */
+    static final class Result {
+        /**
+         * responses with status 2xx, received completely
+         */
+        long mRequests;
+        /**
+         * other responses, resets and connections closed early
+         */
+        long mFailed;
+        long mBodyBytes;
+        long mElapsedNanos;
+        boolean mTimedOut;
+        /**
+         * body bytes received by each connection
+         */
+        final long[] mBytesPerConnection;
+
+        Result(int connections) {
+            mBytesPerConnection = new long[connections];
+        }
+
+        double requestsPerSecond() {
+            return mRequests * 1e9 / mElapsedNanos;
+        }
+
+        double megabytesPerSecond() {
+            return mBodyBytes * 1e9 / mElapsedNanos / (1024 * 1024);
+        }
+
+        /**
+         * Jain's fairness index of the bytes each connection received
+         * @return 1 if all connections got the same, 1/n if one got everything
+         */
+        double fairness() {
+            double sum = 0;
+            double squares = 0;
+            for (long bytes : mBytesPerConnection) {
+                sum += bytes;
+                squares += (double) bytes * bytes;
+            }
+            return squares == 0 ? 1 : sum * sum / (mBytesPerConnection.length * squares);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests, %d failed, %.0f req/s, %.1f MB/s, %d ms%s", mRequests, mFailed,
+                    requestsPerSecond(), megabytesPerSecond(), mElapsedNanos / 1000000, mTimedOut ? ", timed out" : "");
+        }
+    }
+
+    private final class Client {
+        private final int mIndex;
+        private final SocketChannel mChannel;
+        private final byte[] mHeader = new byte[MAX_HEADER];
+        private int mHeaderLength = 0;
+        /**
+         * -1 while the header is read
+         */
+        private long mBodyRemaining = -1;
+        private boolean mSuccess;
+        private int mCompleted = 0;
+
+        Client(int index, SocketChannel channel) {
+            mIndex = index;
+            mChannel = channel;
+        }
+
+        void send() throws IOException {
+            ByteBuffer request = ByteBuffer.wrap(mRequest);
+            while (request.hasRemaining()) {
+                // a short request fits in the empty socket buffer
+                mChannel.write(request);
+            }
+        }
+
+        /**
+         * @return false when the connection is done
+         */
+        boolean receive(ByteBuffer buffer, Result result) throws IOException {
+            buffer.clear();
+            int read = mChannel.read(buffer);
+            if (read < 0) {
+                result.mFailed++;
+                return false;
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                if (mBodyRemaining < 0) {
+                    if (mHeaderLength == mHeader.length) {
+                        throw new IOException("header too large");
+                    }
+                    mHeader[mHeaderLength++] = buffer.get();
+                    if (mHeaderLength >= 4 && mHeader[mHeaderLength - 1] == '\n' && mHeader[mHeaderLength - 3] == '\n') {
+                        parseHeader();
+                    }
+                } else {
+                    int count = (int) Math.min(mBodyRemaining, buffer.remaining());
+                    buffer.position(buffer.position() + count);
+                    mBodyRemaining -= count;
+                    result.mBodyBytes += count;
+                    result.mBytesPerConnection[mIndex] += count;
+                }
+                if (mBodyRemaining == 0) {
+                    if (mSuccess) {
+                        result.mRequests++;
+                    } else {
+                        result.mFailed++;
+                    }
+                    mBodyRemaining = -1;
+                    mHeaderLength = 0;
+                    if (++mCompleted == mRequestsPerConnection) {
+                        return false;
+                    }
+                    send();
+                }
+            }
+            return true;
+        }
+
+        private void parseHeader() throws IOException {
+            // "HTTP/1.1 200 OK"
+            mSuccess = mHeaderLength > 9 && mHeader[9] == '2';
+            for (int i = 0; i + CONTENT_LENGTH.length < mHeaderLength; i++) {
+                if ((i == 0 || mHeader[i - 1] == '\n') && startsWithIgnoreCase(i)) {
+                    long length = 0;
+                    int p = i + CONTENT_LENGTH.length;
+                    while (mHeader[p] == ' ') {
+                        p++;
+                    }
+                    while (mHeader[p] >= '0' && mHeader[p] <= '9') {
+                        length = length * 10 + mHeader[p++] - '0';
+                    }
+                    mBodyRemaining = length;
+                    return;
+                }
+            }
+            throw new IOException("response without Content-Length");
+        }
+
+        private boolean startsWithIgnoreCase(int from) {
+            for (int i = 0; i < CONTENT_LENGTH.length; i++) {
+                if (Character.toLowerCase(mHeader[from + i]) != CONTENT_LENGTH[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+package com.example.TransmitWifi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * multipart解析器在任意位置分段到达时的结果: 请求体在每个偏移处分成两次读取, 以及逐字节读取,
+ * 分隔符, CRLF和部分的头都可能跨两次读取. 另外测试UploadReceiver表单字段的64KB上限
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class MultipartParserTest extends TestCase {
+    private static final String BOUNDARY = "XyZ-boundary";
+    /**
+     * near misses of the delimiter, all part of the file content
+     */
+    private static final String FILE_CONTENT = "line one\r\n--XyZ-bound\r\n-\r\n--\r\n--XyZ-boundar\r\r\n\nend";
+    private static final String FIELD_VALUE = "value with \r\n-- dashes";
+    private static final String BODY = "This is the preamble, it is ignored.\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"field\"\r\n"
+            + "\r\n"
+            + FIELD_VALUE + "\r\n"
+            + "--" + BOUNDARY + "  \r\n"
+            + "Content-Disposition: form-data; name=\"file\"; filename=\"a.txt\"\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + FILE_CONTENT + "\r\n"
+            + "--" + BOUNDARY + "\r\n"
+            + "Content-Disposition: form-data; name=\"empty\"\r\n"
+            + "\r\n"
+            + "\r\n"
+            + "--" + BOUNDARY + "--\r\n"
+            + "epilogue, also ignored\r\n";
+
+    private File mDir;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDir = File.createTempFile("uploads", "");
+        mDir.delete();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        String[] names = mDir.list();
+        if (names != null) {
+            for (String name : names) {
+                new File(mDir, name).delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    public void testEverySplitOffset() throws Exception {
+        byte[] body = BODY.getBytes("UTF-8");
+        for (int split = 0; split <= body.length; split++) {
+            checkParts("split at " + split, parse(body, split, body.length));
+        }
+    }
+
+    public void testByteByByte() throws Exception {
+        byte[] body = BODY.getBytes("UTF-8");
+        checkParts("byte by byte", parse(body, 1, 1));
+    }
+
+    public void testBodyStartingWithDelimiter() throws Exception {
+        byte[] body = BODY.substring(BODY.indexOf("--" + BOUNDARY)).getBytes("UTF-8");
+        for (int split = 0; split <= body.length; split++) {
+            checkParts("split at " + split, parse(body, split, body.length));
+        }
+    }
+
+    public void testTruncatedBody() throws Exception {
+        String truncated = BODY.substring(0, BODY.lastIndexOf("--" + BOUNDARY + "--"));
+        try {
+            parse(truncated.getBytes("UTF-8"), truncated.length(), truncated.length());
+            fail("truncated body accepted");
+        } catch (HTTPServerDaemon.ResponseException e) {
+            assertEquals(HTTPServerDaemon.Response.Status.BAD_REQUEST, e.getStatus());
+            assertTrue(e.getMessage(), e.getMessage().contains("Truncated"));
+        }
+    }
+
+    public void testHeaderTooLarge() throws Exception {
+        StringBuilder body = new StringBuilder("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"");
+        while (body.length() <= 2 * MultipartParser.BUFSIZE) {
+            body.append("aaaaaaaaaaaaaaaa");
+        }
+        byte[] data = body.toString().getBytes("UTF-8");
+        try {
+            parse(data, data.length, data.length);
+            fail("header larger than the buffer accepted");
+        } catch (HTTPServerDaemon.ResponseException e) {
+            assertEquals(HTTPServerDaemon.Response.Status.BAD_REQUEST, e.getStatus());
+            assertTrue(e.getMessage(), e.getMessage().contains("too large"));
+        }
+    }
+
+    public void testBadBoundary() throws Exception {
+        assertBadBoundary(null);
+        assertBadBoundary("");
+        char[] longBoundary = new char[71];
+        Arrays.fill(longBoundary, 'b');
+        assertBadBoundary(new String(longBoundary));
+    }
+
+    public void testParameter() throws Exception {
+        String disposition = "form-data; name=\"file\"; filename=\"a; b.txt\"";
+        assertEquals("file", MultipartParser.getParameter(disposition, "name"));
+        assertEquals("a; b.txt", MultipartParser.getParameter(disposition, "filename"));
+        assertEquals("XyZ", MultipartParser.getParameter("multipart/form-data; boundary=XyZ", "boundary"));
+        assertNull(MultipartParser.getParameter(disposition, "size"));
+    }
+
+    public void testReceiverFieldLimit() throws Exception {
+        UploadReceiver receiver = receive(field(UploadReceiver.MAX_FORM_SIZE));
+        try {
+            assertEquals(UploadReceiver.MAX_FORM_SIZE, receiver.getParms().get("big").length());
+        } finally {
+            receiver.close();
+        }
+        try {
+            receive(field(UploadReceiver.MAX_FORM_SIZE + 1)).close();
+            fail("field over the limit accepted");
+        } catch (HTTPServerDaemon.ResponseException e) {
+            assertEquals(HTTPServerDaemon.Response.Status.PAYLOAD_TOO_LARGE, e.getStatus());
+        }
+    }
+
+    public void testReceiverFiles() throws Exception {
+        UploadReceiver receiver = receive(BODY.getBytes("UTF-8"));
+        try {
+            assertEquals(FIELD_VALUE, receiver.getParms().get("field"));
+            assertEquals("a.txt", receiver.getParms().get("file"));
+            assertEquals("", receiver.getParms().get("empty"));
+            assertEquals(FILE_CONTENT, new String(readFile(new File(receiver.getFiles().get("file"))), "UTF-8"));
+        } finally {
+            receiver.close();
+        }
+        assertEquals(0, mDir.list().length);
+    }
+
+    private void checkParts(String message, List<Part> parts) throws Exception {
+        assertEquals(message, 3, parts.size());
+        assertEquals(message, "form-data; name=\"field\"", parts.get(0).mHeaders.get("content-disposition"));
+        assertEquals(message, FIELD_VALUE, parts.get(0).text());
+        assertEquals(message, "text/plain", parts.get(1).mHeaders.get("content-type"));
+        assertEquals(message, FILE_CONTENT, parts.get(1).text());
+        assertEquals(message, "", parts.get(2).text());
+        for (Part part : parts) {
+            assertTrue(message, part.mEnded);
+        }
+    }
+
+    /**
+     * @param first bytes of the first read
+     * @param next bytes of every later read
+     */
+    private static List<Part> parse(byte[] body, int first, int next) throws Exception {
+        final List<Part> parts = new ArrayList<Part>();
+        MultipartParser parser = new MultipartParser(BOUNDARY, new MultipartParser.Listener() {
+            @Override
+            public void onPartBegin(Map<String, String> headers) {
+                parts.add(new Part(new HashMap<String, String>(headers)));
+            }
+
+            @Override
+            public void onPartData(ByteBuffer data) {
+                Part part = parts.get(parts.size() - 1);
+                assertFalse(part.mEnded);
+                part.mData.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                data.position(data.limit());
+            }
+
+            @Override
+            public void onPartEnd() {
+                parts.get(parts.size() - 1).mEnded = true;
+            }
+        });
+        InputStream in = new SplitInputStream(body, first, next);
+        while (parser.read(in, Long.MAX_VALUE) >= 0) {
+            // until end of stream
+        }
+        parser.finish();
+        return parts;
+    }
+
+    private UploadReceiver receive(byte[] body) throws Exception {
+        UploadReceiver receiver = new UploadReceiver("multipart/form-data; boundary=" + BOUNDARY, mDir);
+        boolean done = false;
+        try {
+            InputStream in = new SplitInputStream(body, 1000, 1000);
+            long remaining = body.length;
+            int read;
+            while (remaining > 0 && (read = receiver.receive(in, remaining)) >= 0) {
+                remaining -= read;
+            }
+            receiver.finish();
+            done = true;
+            return receiver;
+        } finally {
+            if (!done) {
+                receiver.close();
+            }
+        }
+    }
+
+    private static byte[] field(int size) throws IOException {
+        StringBuilder body = new StringBuilder("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\"big\"\r\n\r\n");
+        for (int i = 0; i < size; i++) {
+            body.append((char) ('a' + i % 26));
+        }
+        body.append("\r\n--").append(BOUNDARY).append("--\r\n");
+        return body.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            NetWorkUtils.safeClose(in);
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertBadBoundary(String boundary) {
+        try {
+            new MultipartParser(boundary, null);
+            fail("boundary accepted: " + boundary);
+        } catch (HTTPServerDaemon.ResponseException e) {
+            assertEquals(HTTPServerDaemon.Response.Status.BAD_REQUEST, e.getStatus());
+        }
+    }
+
+    private static final class Part {
+        final Map<String, String> mHeaders;
+        final ByteArrayOutputStream mData = new ByteArrayOutputStream();
+        boolean mEnded = false;
+
+        Part(Map<String, String> headers) {
+            mHeaders = headers;
+        }
+
+        String text() throws IOException {
+            return mData.toString("UTF-8");
+        }
+    }
+
+    /**
+     * 第一次读取返回first个字节, 之后每次最多next个字节
+     */
+    private static final class SplitInputStream extends InputStream {
+        private final byte[] mData;
+        private final int mNext;
+        private int mPos = 0;
+        private int mLimit;
+
+        SplitInputStream(byte[] data, int first, int next) {
+            mData = data;
+            mNext = next;
+            mLimit = first;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (mPos == mData.length) {
+                return -1;
+            }
+            if (mPos == mLimit) {
+                mLimit = Math.min(mData.length, mPos + mNext);
+            }
+            int count = Math.min(len, Math.min(mLimit, mData.length) - mPos);
+            System.arraycopy(mData, mPos, b, off, count);
+            mPos += count;
+            return count;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.TransmitWifi;
+
+import junit.framework.TestCase;
+
+/**
+ * 时间轮的到期, 取消和重新设置
+ * @author haihui.li
+ * @version 1.0.0
+ */
+public class TimerWheelTest extends TestCase {
+    private static final long TICK_MS = 10;
+    private static final int SLOTS = 8;
+
+    private TimerWheel mWheel;
+
+    @Override
+    protected void setUp() throws Exception {
+        mWheel = new TimerWheel(TICK_MS, SLOTS);
+    }
+
+    public void testExpiresAfterDelay() throws Exception {
+        CountingTimeout timeout = new CountingTimeout();
+        mWheel.schedule(timeout, 5 * TICK_MS);
+        assertTrue(timeout.isPending());
+        assertEquals(0, mWheel.expire());
+        Thread.sleep(7 * TICK_MS);
+        assertEquals(1, mWheel.expire());
+        assertEquals(1, timeout.mExpired);
+        assertFalse(timeout.isPending());
+        assertEquals(0, mWheel.size());
+    }
+
+    public void testDelayLongerThanWheel() throws Exception {
+        CountingTimeout timeout = new CountingTimeout();
+        mWheel.schedule(timeout, 2 * SLOTS * TICK_MS);
+        long deadline = System.nanoTime() + 4 * SLOTS * TICK_MS * 1000000;
+        long start = System.nanoTime();
+        while (timeout.mExpired == 0 && System.nanoTime() < deadline) {
+            mWheel.expire();
+            Thread.sleep(1);
+        }
+        assertEquals(1, timeout.mExpired);
+        // not expired on the first visit of its slot
+        assertTrue((System.nanoTime() - start) / 1000000 > (2 * SLOTS - 1) * TICK_MS);
+    }
+
+    public void testCancelAndReschedule() throws Exception {
+        CountingTimeout cancelled = new CountingTimeout();
+        CountingTimeout moved = new CountingTimeout();
+        mWheel.schedule(cancelled, TICK_MS);
+        mWheel.schedule(moved, TICK_MS);
+        mWheel.cancel(cancelled);
+        mWheel.schedule(moved, 100 * TICK_MS);
+        assertEquals(1, mWheel.size());
+        Thread.sleep(3 * TICK_MS);
+        assertEquals(0, mWheel.expire());
+        assertEquals(0, cancelled.mExpired);
+        assertEquals(0, moved.mExpired);
+        assertTrue(moved.isPending());
+        assertTrue(mWheel.millisToNextTick() <= TICK_MS);
+    }
+
+    private static final class CountingTimeout extends TimerWheel.Timeout {
+        private int mExpired = 0;
+
+        @Override
+        void onExpired() {
+            mExpired++;
+        }
+    }
+}